@@ -0,0 +1,375 @@
+package com.ble.demo;
+
+import java.nio.charset.Charset;
+import java.util.Locale;
+
+/**
+ * 广播数据解析：直接在原始字节上遍历AD结构，只记下每个结构的类型、位置和长度，
+ * 各字段在访问时才解码。同一个对象用{@link #reset}反复解析不同的扫描结果，解析和查找都不分配对象，
+ * 可以在扫描回调中用来过滤
+ * <p>
+ * 非线程安全，数据在下一次reset之前不能修改
+ */
+public class AdvData {
+    public static final int TYPE_FLAGS = 0x01;
+    public static final int TYPE_UUID16_INCOMPLETE = 0x02;
+    public static final int TYPE_UUID16_COMPLETE = 0x03;
+    public static final int TYPE_UUID32_INCOMPLETE = 0x04;
+    public static final int TYPE_UUID32_COMPLETE = 0x05;
+    public static final int TYPE_UUID128_INCOMPLETE = 0x06;
+    public static final int TYPE_UUID128_COMPLETE = 0x07;
+    public static final int TYPE_NAME_SHORT = 0x08;
+    public static final int TYPE_NAME_COMPLETE = 0x09;
+    public static final int TYPE_TX_POWER = 0x0A;
+    public static final int TYPE_SERVICE_DATA16 = 0x16;
+    public static final int TYPE_SERVICE_DATA32 = 0x20;
+    public static final int TYPE_SERVICE_DATA128 = 0x21;
+    public static final int TYPE_MANUFACTURER = 0xFF;
+
+    // 蓝牙基础UUID 0000xxxx-0000-1000-8000-00805F9B34FB
+    private static final long BASE_UUID_MSB = 0x0000000000001000L;
+    private static final long BASE_UUID_LSB = 0x800000805F9B34FBL;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int MAX_FIELDS = 128;// 每个结构至少2字节，扩展广播最长255字节
+
+    private final int[] mTypes = new int[MAX_FIELDS];
+    private final int[] mOffsets = new int[MAX_FIELDS];// 数据（类型之后）的位置
+    private final int[] mLengths = new int[MAX_FIELDS];// 数据长度，不含类型
+    private byte[] mData;
+    private int mFieldCount;
+    private boolean mMalformed;
+
+    // 常用字段的序号，没有时为-1
+    private int mFlagsField;
+    private int mNameField;
+    private int mTxPowerField;
+    private int mManufacturerField;
+    private String mLocalName;// getLocalName()解码后缓存
+
+    public AdvData() {
+        reset(null);
+    }
+
+    /**
+     * 解析新的广播数据（通常是LeScanRecord.getBytes()），null表示没有数据
+     */
+    public AdvData reset(byte[] data) {
+        return reset(data, 0, data == null ? 0 : data.length);
+    }
+
+    public AdvData reset(byte[] data, int offset, int length) {
+        mData = data;
+        mFieldCount = 0;
+        mMalformed = false;
+        mFlagsField = -1;
+        mNameField = -1;
+        mTxPowerField = -1;
+        mManufacturerField = -1;
+        mLocalName = null;
+        if (data == null) return this;
+
+        int end = offset + length;
+        int i = offset;
+        while (i < end) {
+            int len = data[i] & 0xFF;
+            // 长度为0表示后面是补齐的0
+            if (len == 0) break;
+            if (i + 1 + len > end || mFieldCount == MAX_FIELDS) {
+                mMalformed = true;
+                break;
+            }
+            int type = data[i + 1] & 0xFF;
+            int n = mFieldCount++;
+            mTypes[n] = type;
+            mOffsets[n] = i + 2;
+            mLengths[n] = len - 1;
+            switch (type) {
+                case TYPE_FLAGS:
+                    if (mFlagsField < 0) mFlagsField = n;
+                    break;
+                case TYPE_NAME_SHORT:
+                    if (mNameField < 0) mNameField = n;
+                    break;
+                case TYPE_NAME_COMPLETE:
+                    // 完整名称优先于缩短的名称
+                    if (mNameField < 0 || mTypes[mNameField] != TYPE_NAME_COMPLETE) mNameField = n;
+                    break;
+                case TYPE_TX_POWER:
+                    if (mTxPowerField < 0) mTxPowerField = n;
+                    break;
+                case TYPE_MANUFACTURER:
+                    if (mManufacturerField < 0 && len - 1 >= 2) mManufacturerField = n;
+                    break;
+            }
+            i += 1 + len;
+        }
+        return this;
+    }
+
+    public byte[] getBytes() {
+        return mData;
+    }
+
+    /**
+     * 最后一个结构的长度超出了数据，已解析的结构仍然可用
+     */
+    public boolean isMalformed() {
+        return mMalformed;
+    }
+
+    public int getFieldCount() {
+        return mFieldCount;
+    }
+
+    public int getFieldType(int field) {
+        return mTypes[field];
+    }
+
+    /**
+     * 结构的数据在{@link #getBytes()}中的位置
+     */
+    public int getFieldOffset(int field) {
+        return mOffsets[field];
+    }
+
+    public int getFieldLength(int field) {
+        return mLengths[field];
+    }
+
+    /**
+     * @return 第一个type类型的结构的序号，没有时返回-1
+     */
+    public int indexOfField(int type) {
+        for (int i = 0; i < mFieldCount; i++) {
+            if (mTypes[i] == type) return i;
+        }
+        return -1;
+    }
+
+    public int getUint8(int offset) {
+        return mData[offset] & 0xFF;
+    }
+
+    /**
+     * 小端
+     */
+    public int getUint16(int offset) {
+        return (mData[offset] & 0xFF) | (mData[offset + 1] & 0xFF) << 8;
+    }
+
+    /**
+     * @return 没有Flags时返回-1
+     */
+    public int getFlags() {
+        return mFlagsField >= 0 && mLengths[mFlagsField] > 0 ? getUint8(mOffsets[mFlagsField]) : -1;
+    }
+
+    public boolean hasTxPower() {
+        return mTxPowerField >= 0 && mLengths[mTxPowerField] > 0;
+    }
+
+    /**
+     * 发射功率（dBm），先用{@link #hasTxPower()}判断
+     */
+    public int getTxPower() {
+        return mData[mOffsets[mTxPowerField]];
+    }
+
+    public boolean hasLocalName() {
+        return mNameField >= 0;
+    }
+
+    public boolean isLocalNameComplete() {
+        return mNameField >= 0 && mTypes[mNameField] == TYPE_NAME_COMPLETE;
+    }
+
+    /**
+     * 解码名称（第一次调用时分配，之后缓存到下一次reset），没有时返回null
+     */
+    public String getLocalName() {
+        if (mLocalName == null && mNameField >= 0) {
+            mLocalName = new String(mData, mOffsets[mNameField], mLengths[mNameField], UTF_8);
+        }
+        return mLocalName;
+    }
+
+    /**
+     * 不解码名称直接比较，prefix中只有ASCII字符时不分配对象
+     */
+    public boolean localNameStartsWith(String prefix) {
+        if (mNameField < 0) return false;
+        int offset = mOffsets[mNameField];
+        int length = mLengths[mNameField];
+        if (prefix.length() > length) return false;
+        for (int i = 0; i < prefix.length(); i++) {
+            char c = prefix.charAt(i);
+            if (c >= 0x80) return getLocalName().startsWith(prefix);
+            if (mData[offset + i] != c) return false;
+        }
+        return true;
+    }
+
+    /**
+     * 是否在UUID列表中声明了16位的服务
+     */
+    public boolean hasServiceUuid(int uuid16) {
+        return hasServiceUuid(BASE_UUID_MSB | (long) uuid16 << 32, BASE_UUID_LSB);
+    }
+
+    /**
+     * 是否在UUID列表（16、32或128位）中声明了服务，参数为UUID的高64位和低64位
+     */
+    public boolean hasServiceUuid(long msb, long lsb) {
+        // 基础UUID上的短UUID，才可能出现在16位和32位列表中
+        boolean isShort = lsb == BASE_UUID_LSB && (msb & 0xFFFFFFFFL) == BASE_UUID_MSB;
+        long shortUuid = msb >>> 32;
+        for (int i = 0; i < mFieldCount; i++) {
+            int offset = mOffsets[i];
+            int end = offset + mLengths[i];
+            switch (mTypes[i]) {
+                case TYPE_UUID16_INCOMPLETE:
+                case TYPE_UUID16_COMPLETE:
+                    if (!isShort || shortUuid > 0xFFFF) break;
+                    for (int j = offset; j + 2 <= end; j += 2) {
+                        if (getUint16(j) == shortUuid) return true;
+                    }
+                    break;
+                case TYPE_UUID32_INCOMPLETE:
+                case TYPE_UUID32_COMPLETE:
+                    if (!isShort) break;
+                    for (int j = offset; j + 4 <= end; j += 4) {
+                        if (getUint32(j) == shortUuid) return true;
+                    }
+                    break;
+                case TYPE_UUID128_INCOMPLETE:
+                case TYPE_UUID128_COMPLETE:
+                    for (int j = offset; j + 16 <= end; j += 16) {
+                        if (getInt64(j) == lsb && getInt64(j + 8) == msb) return true;
+                    }
+                    break;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 16位UUID的服务数据
+     *
+     * @return 结构的序号，数据从getFieldOffset() + 2开始，长度为getFieldLength() - 2；没有时返回-1
+     */
+    public int indexOfServiceData(int uuid16) {
+        for (int i = 0; i < mFieldCount; i++) {
+            if (mTypes[i] == TYPE_SERVICE_DATA16 && mLengths[i] >= 2 && getUint16(mOffsets[i]) == uuid16) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return 第一个厂商数据中的公司ID，没有时返回-1
+     */
+    public int getManufacturerId() {
+        return mManufacturerField >= 0 ? getUint16(mOffsets[mManufacturerField]) : -1;
+    }
+
+    /**
+     * 厂商数据（公司ID之后）在{@link #getBytes()}中的位置，没有时返回-1
+     */
+    public int getManufacturerDataOffset() {
+        return mManufacturerField >= 0 ? mOffsets[mManufacturerField] + 2 : -1;
+    }
+
+    public int getManufacturerDataLength() {
+        return mManufacturerField >= 0 ? mLengths[mManufacturerField] - 2 : 0;
+    }
+
+    private long getUint32(int offset) {
+        return getUint16(offset) | (long) getUint16(offset + 2) << 16;
+    }
+
+    private long getInt64(int offset) {
+        return getUint32(offset) | getUint32(offset + 4) << 32;
+    }
+
+    /**
+     * 每个结构一行，用于显示，会分配对象
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < mFieldCount; i++) {
+            int offset = mOffsets[i];
+            int length = mLengths[i];
+            sb.append(String.format(Locale.US, "0x%02X ", mTypes[i]));
+            switch (mTypes[i]) {
+                case TYPE_FLAGS:
+                    sb.append("Flags: ");
+                    appendHex(sb, offset, length);
+                    break;
+                case TYPE_UUID16_INCOMPLETE:
+                case TYPE_UUID16_COMPLETE:
+                    sb.append("UUID16:");
+                    for (int j = offset; j + 2 <= offset + length; j += 2) {
+                        sb.append(String.format(Locale.US, " %04X", getUint16(j)));
+                    }
+                    break;
+                case TYPE_UUID32_INCOMPLETE:
+                case TYPE_UUID32_COMPLETE:
+                    sb.append("UUID32:");
+                    for (int j = offset; j + 4 <= offset + length; j += 4) {
+                        sb.append(String.format(Locale.US, " %08X", getUint32(j)));
+                    }
+                    break;
+                case TYPE_UUID128_INCOMPLETE:
+                case TYPE_UUID128_COMPLETE:
+                    sb.append("UUID128:");
+                    for (int j = offset; j + 16 <= offset + length; j += 16) {
+                        sb.append(' ').append(formatUuid(getInt64(j + 8), getInt64(j)));
+                    }
+                    break;
+                case TYPE_NAME_SHORT:
+                case TYPE_NAME_COMPLETE:
+                    sb.append("Name: ").append(new String(mData, offset, length, UTF_8));
+                    break;
+                case TYPE_TX_POWER:
+                    sb.append("Tx Power: ").append(length > 0 ? mData[offset] + " dBm" : "");
+                    break;
+                case TYPE_SERVICE_DATA16:
+                    if (length >= 2) {
+                        sb.append(String.format(Locale.US, "Service Data %04X: ", getUint16(offset)));
+                        appendHex(sb, offset + 2, length - 2);
+                    } else {
+                        appendHex(sb, offset, length);
+                    }
+                    break;
+                case TYPE_MANUFACTURER:
+                    if (length >= 2) {
+                        sb.append(String.format(Locale.US, "Manufacturer %04X: ", getUint16(offset)));
+                        appendHex(sb, offset + 2, length - 2);
+                    } else {
+                        appendHex(sb, offset, length);
+                    }
+                    break;
+                default:
+                    appendHex(sb, offset, length);
+                    break;
+            }
+            sb.append('\n');
+        }
+        if (mMalformed) sb.append("(malformed)\n");
+        return sb.toString();
+    }
+
+    private void appendHex(StringBuilder sb, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            sb.append(String.format(Locale.US, "%02X", mData[offset + i]));
+        }
+    }
+
+    private static String formatUuid(long msb, long lsb) {
+        return String.format(Locale.US, "%08x-%04x-%04x-%04x-%012x",
+                msb >>> 32, (msb >>> 16) & 0xFFFF, msb & 0xFFFF, lsb >>> 48, lsb & 0xFFFFFFFFFFFFL);
+    }
+}
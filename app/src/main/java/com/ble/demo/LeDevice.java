@@ -1,24 +1,135 @@
 package com.ble.demo;
 
+import android.bluetooth.BluetoothDevice;
+import android.os.SystemClock;
+
 import com.ble.ble.LeScanRecord;
 import com.ble.ble.scan.LeScanResult;
 
 public class LeDevice {
+    public static final int RSSI_HISTORY = 16;// 保留的信号强度采样数
+    private static final float RSSI_ALPHA = 0.25f;// 指数平滑系数，越大越跟手，越小越稳
+    private static final int RSSI_UNAVAILABLE = 127;
+
     private final String address;
+    private final long packedAddress;// 48位MAC，见packAddress()
     private String name;
+    private int rssi;
+    private final byte[] rssiSamples = new byte[RSSI_HISTORY];// 环形缓冲区
+    private int rssiSampleCount;// 累计的采样数
+    private float smoothedRssi = -127;// 没有采样时排在最后
+    private long lastSeen;// SystemClock.elapsedRealtime()
     private String rxData = "No data";
-    private LeScanRecord mRecord;
+    private byte[] mScanRecord;// 原始广播数据，用AdvData按需解析
     private boolean oadSupported = false;
 
     public LeDevice(String name, String address) {
         this.name = name;
         this.address = address;
+        this.packedAddress = packAddress(address);
     }
 
     public LeDevice(LeScanResult leScanResult) {
-        this.name = leScanResult.getDevice().getName();
         this.address = leScanResult.getDevice().getAddress();
-        this.mRecord = leScanResult.getLeScanRecord();
+        this.packedAddress = packAddress(address);
+        update(leScanResult);
+        if (name == null) name = leScanResult.getDevice().getName();
+    }
+
+    public LeDevice(BluetoothDevice device, int rssi, byte[] scanRecord) {
+        this(device, rssi, scanRecord, null);
+    }
+
+    /**
+     * @param localName 广播数据中的名称，没有时才向系统查询设备名称
+     */
+    public LeDevice(BluetoothDevice device, int rssi, byte[] scanRecord, String localName) {
+        this.address = device.getAddress();
+        this.packedAddress = packAddress(address);
+        update(rssi, scanRecord, localName);
+        // getName()是跨进程调用，只在新设备加入时查询一次
+        if (name == null) name = device.getName();
+    }
+
+    public void update(LeScanResult leScanResult) {
+        // 只保留原始字节，解析好的LeScanRecord不随设备长期保存
+        LeScanRecord record = leScanResult.getLeScanRecord();
+        update(leScanResult.getRssi(), record != null ? record.getBytes() : null, null);
+    }
+
+    /**
+     * 同一设备再次扫描到时原地更新信号强度、广播数据和最后扫描到的时间
+     *
+     * @param localName 广播数据中的名称，为null时保留原来的名称
+     */
+    public void update(int rssi, byte[] scanRecord, String localName) {
+        if (localName != null) this.name = localName;
+        if (rssi != RSSI_UNAVAILABLE) addRssiSample(rssi);
+        this.mScanRecord = scanRecord;
+        this.lastSeen = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * 把"AA:BB:CC:DD:EE:FF"转为48位整数，格式不对时返回-1
+     */
+    public static long packAddress(String address) {
+        if (address == null || address.length() != 17) return -1;
+        long packed = 0;
+        for (int i = 0; i < 17; i++) {
+            char c = address.charAt(i);
+            if (i % 3 == 2) {
+                if (c != ':') return -1;
+                continue;
+            }
+            int digit = Character.digit(c, 16);
+            if (digit < 0) return -1;
+            packed = packed << 4 | digit;
+        }
+        return packed;
+    }
+
+    public long getPackedAddress() {
+        return packedAddress;
+    }
+
+    private void addRssiSample(int rssi) {
+        this.rssi = rssi;
+        rssiSamples[rssiSampleCount % RSSI_HISTORY] = (byte) rssi;
+        smoothedRssi = rssiSampleCount == 0 ? rssi : smoothedRssi + RSSI_ALPHA * (rssi - smoothedRssi);
+        rssiSampleCount++;
+    }
+
+    /**
+     * 最近一次的信号强度
+     */
+    public int getRssi() {
+        return rssi;
+    }
+
+    /**
+     * 指数平滑后的信号强度，用于排序
+     */
+    public float getSmoothedRssi() {
+        return smoothedRssi;
+    }
+
+    /**
+     * 保留的采样数，最多{@link #RSSI_HISTORY}
+     */
+    public int getRssiSampleCount() {
+        return Math.min(rssiSampleCount, RSSI_HISTORY);
+    }
+
+    /**
+     * @param i 0为保留的最早的采样
+     */
+    public int getRssiSample(int i) {
+        int start = rssiSampleCount > RSSI_HISTORY ? rssiSampleCount - RSSI_HISTORY : 0;
+        return rssiSamples[(start + i) % RSSI_HISTORY];
+    }
+
+    public long getLastSeen() {
+        return lastSeen;
     }
 
     public boolean isOadSupported() {
@@ -29,8 +140,11 @@ public class LeDevice {
         this.oadSupported = oadSupported;
     }
 
-    public LeScanRecord getLeScanRecord() {
-        return mRecord;
+    /**
+     * 最近一次扫描到的原始广播数据，可能为null
+     */
+    public byte[] getScanRecord() {
+        return mScanRecord;
     }
 
     public String getName() {
@@ -60,4 +174,9 @@ public class LeDevice {
         }
         return false;
     }
+
+    @Override
+    public int hashCode() {
+        return packedAddress != -1 ? (int) (packedAddress ^ (packedAddress >>> 32)) : address.hashCode();
+    }
 }
\ No newline at end of file
@@ -1,11 +1,8 @@
 package com.ble.demo;
 
 import android.bluetooth.BluetoothAdapter;
-import android.content.BroadcastReceiver;
 import android.content.ComponentName;
-import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.content.pm.PackageInfo;
 import android.os.Bundle;
@@ -17,14 +14,16 @@ import androidx.annotation.Nullable;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.fragment.app.Fragment;
 import androidx.fragment.app.FragmentPagerAdapter;
-import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 import androidx.viewpager.widget.ViewPager;
 
 import com.ble.ble.BleService;
 import com.ble.ble.scan.LeScanner;
 import com.ble.demo.ui.ConnectedFragment;
+import com.ble.demo.ui.MetricsFragment;
 import com.ble.demo.ui.MtuFragment;
 import com.ble.demo.ui.ScanFragment;
+import com.ble.demo.util.LeEventBus;
+import com.ble.demo.util.LeListener;
 import com.ble.demo.util.LeProxy;
 import com.ble.utils.ToastUtil;
 import com.google.android.material.tabs.TabLayout;
@@ -41,44 +40,50 @@ public class MainActivity extends AppCompatActivity {
     private static final int FRAGMENT_SCAN = 0;
     private static final int FRAGMENT_CONNECTED = 1;
     private static final int FRAGMENT_MTU = 2;
+    private static final int FRAGMENT_METRICS = 3;
+
+    private static final int LE_EVENTS = LeEventBus.EVENT_CONNECTED
+            | LeEventBus.EVENT_DISCONNECTED
+            | LeEventBus.EVENT_CONNECT_ERROR
+            | LeEventBus.EVENT_CONNECT_TIMEOUT
+            | LeEventBus.EVENT_SERVICES_DISCOVERED;
 
     private MainActivity mContext;
 
-    private final BroadcastReceiver mLocalReceiver = new BroadcastReceiver() {
+    private final LeListener mLeListener = new LeListener() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-
-            String address = intent.getStringExtra(LeProxy.EXTRA_ADDRESS);
-
-            switch (intent.getAction()) {
-                case LeProxy.ACTION_GATT_CONNECTED:
-                    ToastUtil.show(mContext, getString(R.string.scan_connected) + " " + address);
-                    break;
-                case LeProxy.ACTION_GATT_DISCONNECTED:
-                    ToastUtil.show(mContext, getString(R.string.scan_disconnected) + " " + address);
-                    break;
-                case LeProxy.ACTION_CONNECT_ERROR:
-                    ToastUtil.show(mContext, getString(R.string.scan_connection_error) + " " + address);
-                    break;
-                case LeProxy.ACTION_CONNECT_TIMEOUT:
-                    ToastUtil.show(mContext, getString(R.string.scan_connect_timeout) + " " + address);
-                    break;
-                case LeProxy.ACTION_GATT_SERVICES_DISCOVERED:
-                    ToastUtil.show(mContext, "Services discovered: " + address);
-                    break;
-            }
+        public void onConnected(String address) {
+            showToast(getString(R.string.scan_connected) + " " + address);
+        }
+
+        @Override
+        public void onDisconnected(String address) {
+            showToast(getString(R.string.scan_disconnected) + " " + address);
+        }
+
+        @Override
+        public void onConnectionError(String address, int error, int newState) {
+            showToast(getString(R.string.scan_connection_error) + " " + address);
+        }
+
+        @Override
+        public void onConnectTimeout(String address) {
+            showToast(getString(R.string.scan_connect_timeout) + " " + address);
         }
-    };
 
+        @Override
+        public void onServicesDiscovered(String address) {
+            showToast("Services discovered: " + address);
+        }
+    };
 
-    private IntentFilter makeFilter() {
-        IntentFilter filter = new IntentFilter();
-        filter.addAction(LeProxy.ACTION_GATT_CONNECTED);
-        filter.addAction(LeProxy.ACTION_GATT_DISCONNECTED);
-        filter.addAction(LeProxy.ACTION_CONNECT_ERROR);
-        filter.addAction(LeProxy.ACTION_CONNECT_TIMEOUT);
-        filter.addAction(LeProxy.ACTION_GATT_SERVICES_DISCOVERED);
-        return filter;
+    private void showToast(final String msg) {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                ToastUtil.show(mContext, msg);
+            }
+        });
     }
 
     private final ServiceConnection mConnection = new ServiceConnection() {
@@ -103,7 +108,7 @@ public class MainActivity extends AppCompatActivity {
 
         initView();
         bindService(new Intent(this, BleService.class), mConnection, BIND_AUTO_CREATE);
-        LocalBroadcastManager.getInstance(this).registerReceiver(mLocalReceiver, makeFilter());
+        LeProxy.getInstance().getEventBus().register(mLeListener, LE_EVENTS);
     }
 
 
@@ -146,7 +151,7 @@ public class MainActivity extends AppCompatActivity {
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        LocalBroadcastManager.getInstance(this).unregisterReceiver(mLocalReceiver);
+        LeProxy.getInstance().getEventBus().unregister(mLeListener);
         unbindService(mConnection);
     }
 
@@ -163,6 +168,7 @@ public class MainActivity extends AppCompatActivity {
             fragmentList.add(new ScanFragment());
             fragmentList.add(new ConnectedFragment());
             fragmentList.add(new MtuFragment());
+            fragmentList.add(new MetricsFragment());
         }
 
         @NonNull
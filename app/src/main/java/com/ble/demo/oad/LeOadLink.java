@@ -0,0 +1,46 @@
+package com.ble.demo.oad;
+
+import com.ble.demo.util.LeProxy;
+import com.ble.demo.util.WriteHandle;
+import com.ble.gatt.GattAttributes;
+
+import java.util.UUID;
+
+/**
+ * 通过{@link LeProxy}的发送队列写入OAD服务
+ */
+public class LeOadLink implements OadLink {
+    private final LeProxy mLeProxy;
+    private final String mAddress;
+
+    public LeOadLink(LeProxy leProxy, String address) {
+        mLeProxy = leProxy;
+        mAddress = address;
+    }
+
+    @Override
+    public void enableNotification(UUID charUuid) {
+        mLeProxy.enableNotification(mAddress, GattAttributes.TI_OAD_Service, charUuid);
+    }
+
+    @Override
+    public void write(UUID charUuid, byte[] data, final int tag, final Callback callback) {
+        WriteHandle handle = mLeProxy.send(mAddress, GattAttributes.TI_OAD_Service, charUuid, data, true);
+        handle.setCallback(new WriteHandle.Callback() {
+            @Override
+            public void onComplete(WriteHandle handle) {
+                callback.onWriteComplete(tag, handle.isSuccess());
+            }
+        });
+    }
+
+    @Override
+    public int getPendingWrites() {
+        return mLeProxy.getWriteScheduler(mAddress).getPendingCount();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return mLeProxy.isConnected(mAddress);
+    }
+}
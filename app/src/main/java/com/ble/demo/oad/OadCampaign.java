@@ -0,0 +1,358 @@
+package com.ble.demo.oad;
+
+import android.util.Log;
+
+import com.ble.ble.oad.OADListener;
+import com.ble.demo.util.LeProxy;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 批量OAD：同一个镜像升级多个已连接的设备，最多同时升级maxConcurrent个，其余排队。
+ * 各设备的{@link R2OadClient}共享同一个{@link OadImage}
+ * <p>
+ * 每个设备的回调与{@link OADListener}一致，全部结束后回调{@link Callback#onCampaignFinished(Report)}；
+ * 所有状态只在内部的单线程中修改，回调在各设备的升级线程或该线程中执行，不能有阻塞操作。
+ * 界面用的状态由该线程在状态变化时和升级期间定时生成不可变的快照，{@link #getStatus()}直接返回，不等待
+ */
+public class OadCampaign {
+    private static final String TAG = "OadCampaign";
+    private static final long SNAPSHOT_INTERVAL = 250;// ms，升级期间有进度变化时更新快照的间隔
+
+    public static final int STATE_QUEUED = 0;
+    public static final int STATE_RUNNING = 1;
+    public static final int STATE_SUCCESS = 2;
+    public static final int STATE_FAILED = 3;
+    public static final int STATE_CANCELLED = 4;
+
+    public interface Callback extends OADListener {
+        /**
+         * 所有设备都已结束（成功、失败或取消）
+         */
+        void onCampaignFinished(Report report);
+    }
+
+    /**
+     * 设备的升级状态，用于界面显示，生成后不再修改
+     */
+    public static class Status {
+        public final String address;
+        public final int state;
+        public final int iBytes;
+        public final int nBytes;
+        public final long milliseconds;
+        public final int oadStatus;// 目标返回的状态码，-1表示没有
+        public final String error;
+
+        Status(String address, int state, int iBytes, int nBytes, long milliseconds, int oadStatus, String error) {
+            this.address = address;
+            this.state = state;
+            this.iBytes = iBytes;
+            this.nBytes = nBytes;
+            this.milliseconds = milliseconds;
+            this.oadStatus = oadStatus;
+            this.error = error;
+        }
+    }
+
+    public static class Report {
+        public int succeeded;
+        public int failed;
+        public int cancelled;
+        public long milliseconds;
+        public final List<Status> devices = new ArrayList<>();
+    }
+
+    private final LeProxy mLeProxy;
+    private final OadImage mImage;
+    private final ScheduledExecutorService mExecutor = Executors.newSingleThreadScheduledExecutor();
+    private final LinkedHashMap<String, Session> mSessions = new LinkedHashMap<>();
+    private volatile Callback mCallback;
+    private volatile File mTimelineDir;
+
+    private int mMaxConcurrent = 2;
+    private int mRunning;
+    private long mStartNanos;
+    private boolean mFinished = true;
+    private boolean mCancelled;
+
+    private volatile List<Status> mSnapshot = Collections.emptyList();
+    private volatile boolean mProgressChanged;// 升级线程置位，快照更新后清除
+    private ScheduledFuture<?> mSnapshotFuture;
+    private final Runnable mSnapshotTask = new Runnable() {
+        @Override
+        public void run() {
+            if (mProgressChanged) publishSnapshot();
+        }
+    };
+
+    private class Session implements OADListener {
+        final String address;
+        volatile R2OadClient client;
+        int state = STATE_QUEUED;
+        // 以下在升级线程中更新
+        volatile int iBytes;
+        volatile int nBytes;
+        volatile long milliseconds;
+        volatile int oadStatus = -1;
+        String error;
+
+        Session(String address) {
+            this.address = address;
+        }
+
+        @Override
+        public void onPrepared(String address) {
+            R2OadClient c = client;
+            if (c != null) c.startProgramming();
+            Callback callback = mCallback;
+            if (callback != null) callback.onPrepared(address);
+        }
+
+        @Override
+        public void onFinished(String address, int nBytes, long milliseconds) {
+            this.iBytes = nBytes;
+            this.nBytes = nBytes;
+            this.milliseconds = milliseconds;
+            Callback callback = mCallback;
+            if (callback != null) callback.onFinished(address, nBytes, milliseconds);
+            end(this, STATE_SUCCESS, null);
+        }
+
+        @Override
+        public void onInterrupted(String address, int iBytes, int nBytes, long milliseconds) {
+            this.iBytes = iBytes;
+            this.nBytes = nBytes;
+            this.milliseconds = milliseconds;
+            Callback callback = mCallback;
+            if (callback != null) callback.onInterrupted(address, iBytes, nBytes, milliseconds);
+            end(this, STATE_FAILED, "interrupted");
+        }
+
+        @Override
+        public void onProgressChanged(String address, int iBytes, int nBytes, long milliseconds) {
+            this.iBytes = iBytes;
+            this.nBytes = nBytes;
+            this.milliseconds = milliseconds;
+            mProgressChanged = true;
+            Callback callback = mCallback;
+            if (callback != null) callback.onProgressChanged(address, iBytes, nBytes, milliseconds);
+        }
+
+        @Override
+        public void onBlockWrite(byte[] data) {
+            Callback callback = mCallback;
+            if (callback != null) callback.onBlockWrite(data);
+        }
+
+        @Override
+        public void onStatusChange(String address, int status) {
+            oadStatus = status;
+            mProgressChanged = true;
+            Callback callback = mCallback;
+            if (callback != null) callback.onStatusChange(address, status);
+        }
+
+        Status toStatus() {
+            return new Status(address, state, iBytes, nBytes, milliseconds, oadStatus, error);
+        }
+    }
+
+    public OadCampaign(LeProxy leProxy, OadImage image) {
+        mLeProxy = leProxy;
+        mImage = image;
+    }
+
+    public void setCallback(Callback callback) {
+        mCallback = callback;
+    }
+
+    /**
+     * 每个设备的时间线写入dir（见{@link R2OadClient#setTimelineDir}），null表示不记录；须在start()之前设置
+     */
+    public void setTimelineDir(File dir) {
+        mTimelineDir = dir;
+    }
+
+    /**
+     * 最多同时升级的设备数，不超过同时连接的设备数
+     */
+    public void setMaxConcurrent(final int maxConcurrent) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                mMaxConcurrent = Math.max(1, maxConcurrent);
+                pump();
+            }
+        });
+    }
+
+    /**
+     * 加入要升级的设备，已加入的忽略
+     */
+    public void start(final Collection<String> addresses) {
+        final List<String> list = new ArrayList<>(addresses);
+        post(new Runnable() {
+            @Override
+            public void run() {
+                if (mFinished) {
+                    mFinished = false;
+                    mCancelled = false;
+                    mStartNanos = System.nanoTime();
+                    mSnapshotFuture = mExecutor.scheduleWithFixedDelay(mSnapshotTask,
+                            SNAPSHOT_INTERVAL, SNAPSHOT_INTERVAL, TimeUnit.MILLISECONDS);
+                }
+                for (String address : list) {
+                    if (!mSessions.containsKey(address)) {
+                        mSessions.put(address, new Session(address));
+                    }
+                }
+                pump();
+                publishSnapshot();
+                checkFinished();
+            }
+        });
+    }
+
+    /**
+     * 取消排队中的设备，并中断正在升级的设备
+     */
+    public void cancel() {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                mCancelled = true;
+                for (Session s : mSessions.values()) {
+                    if (s.state == STATE_QUEUED) {
+                        s.state = STATE_CANCELLED;
+                    } else if (s.state == STATE_RUNNING) {
+                        s.client.stopProgramming();
+                    }
+                }
+                publishSnapshot();
+                checkFinished();
+            }
+        });
+    }
+
+    public void release() {
+        mCallback = null;
+        post(new Runnable() {
+            @Override
+            public void run() {
+                for (Session s : mSessions.values()) {
+                    if (s.client != null) releaseClient(s);
+                }
+                mSessions.clear();
+                mExecutor.shutdown();
+            }
+        });
+    }
+
+    /**
+     * 各设备状态的最新快照，不可修改，可以在主线程中频繁调用；没有变化时返回同一个列表
+     */
+    public List<Status> getStatus() {
+        return mSnapshot;
+    }
+
+    // 在内部线程中调用
+    private void publishSnapshot() {
+        mProgressChanged = false;
+        List<Status> list = new ArrayList<>(mSessions.size());
+        for (Session s : mSessions.values()) {
+            list.add(s.toStatus());
+        }
+        mSnapshot = Collections.unmodifiableList(list);
+    }
+
+    private void post(Runnable task) {
+        try {
+            mExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "campaign released");
+        }
+    }
+
+    // 有空位时开始下一个设备
+    private void pump() {
+        for (Session s : mSessions.values()) {
+            if (mRunning >= mMaxConcurrent) return;
+            if (s.state == STATE_QUEUED) startSession(s);
+        }
+    }
+
+    private void startSession(Session s) {
+        if (!mLeProxy.isConnected(s.address)) {
+            s.state = STATE_FAILED;
+            s.error = "not connected";
+            Log.w(TAG, s.address + " not connected, skipped");
+            return;
+        }
+        s.state = STATE_RUNNING;
+        mRunning++;
+        s.client = new R2OadClient(s.address, new LeOadLink(mLeProxy, s.address), s);
+        s.client.setTimelineDir(mTimelineDir);
+        mLeProxy.getEventBus().register(s.client, R2OadClient.EVENTS, s.address, null);
+        mLeProxy.getLinkTuner().beginBulkTransfer(s.address);
+        s.client.prepare(mImage);
+        Log.i(TAG, s.address + " started, running " + mRunning);
+    }
+
+    private void end(final Session s, final int state, final String error) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                if (s.state != STATE_RUNNING) return;
+                s.state = mCancelled && state == STATE_FAILED ? STATE_CANCELLED : state;
+                s.error = s.state == STATE_FAILED ? error : null;
+                mRunning--;
+                releaseClient(s);
+                Log.i(TAG, s.address + " ended, state " + s.state + (s.error != null ? ", " + s.error : ""));
+                pump();
+                // 先更新快照，onCampaignFinished()中就能拿到最终状态
+                publishSnapshot();
+                checkFinished();
+            }
+        });
+    }
+
+    private void releaseClient(Session s) {
+        mLeProxy.getEventBus().unregister(s.client);
+        mLeProxy.getLinkTuner().endBulkTransfer(s.address);
+        s.client.release();
+        s.client = null;
+    }
+
+    private void checkFinished() {
+        if (mFinished) return;
+        Report report = new Report();
+        for (Session s : mSessions.values()) {
+            if (s.state == STATE_QUEUED || s.state == STATE_RUNNING) return;
+            if (s.state == STATE_SUCCESS) report.succeeded++;
+            else if (s.state == STATE_FAILED) report.failed++;
+            else report.cancelled++;
+            report.devices.add(s.toStatus());
+        }
+        mFinished = true;
+        if (mSnapshotFuture != null) {
+            mSnapshotFuture.cancel(false);
+            mSnapshotFuture = null;
+        }
+        report.milliseconds = (System.nanoTime() - mStartNanos) / 1000000;
+        Log.i(TAG, "campaign finished in " + report.milliseconds + " ms: " + report.succeeded + " succeeded, "
+                + report.failed + " failed, " + report.cancelled + " cancelled");
+        Callback callback = mCallback;
+        if (callback != null) callback.onCampaignFinished(report);
+    }
+}
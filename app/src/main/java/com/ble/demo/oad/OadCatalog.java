@@ -0,0 +1,326 @@
+package com.ble.demo.oad;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 升级文件目录：assets和Download目录中的.bin/.hexe，连同大小、修改时间、镜像类型、版本和哈希保存在本地索引中，
+ * 打开选择界面时直接用缓存的结果，刷新在后台线程中进行，只重新解析大小或修改时间变了的文件
+ * <p>
+ * 目录变化后在主线程中回调{@link Listener}
+ */
+public class OadCatalog {
+    private static final String TAG = "OadCatalog";
+
+    /**
+     * 本地升级文件所在的目录
+     */
+    public static final File DOWNLOAD_DIR = new File(Environment.getExternalStorageDirectory().getAbsolutePath()
+            + "/" + Environment.DIRECTORY_DOWNLOADS);
+
+    private static final String INDEX_FILE = "oad_catalog.idx";
+    private static final int INDEX_MAGIC = 0x4F414443;// "OADC"
+    private static final int INDEX_VERSION = 1;
+
+    private static OadCatalog mInstance;
+
+    public static class Entry {
+        public final String path;// assets中为文件名，本地文件为绝对路径
+        public final boolean isAssets;
+        public final long size;
+        public final long lastModified;
+        public final int imageType;// 无法解析时为-1
+        public final int version;
+        public final String hash;// 无法解析时为""
+        public final boolean valid;// 镜像头中的CRC与内容一致
+
+        Entry(String path, boolean isAssets, long size, long lastModified, int imageType, int version,
+              String hash, boolean valid) {
+            this.path = path;
+            this.isAssets = isAssets;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.imageType = imageType;
+            this.version = version;
+            this.hash = hash;
+            this.valid = valid;
+        }
+
+        public String getName() {
+            return isAssets ? path : path.substring(path.lastIndexOf('/') + 1);
+        }
+
+        @Override
+        public String toString() {
+            return getName();
+        }
+    }
+
+    public interface Listener {
+        /**
+         * 在主线程中回调
+         */
+        void onCatalogChanged(OadCatalog catalog);
+    }
+
+    private final Context mContext;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final CopyOnWriteArrayList<Listener> mListeners = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean mRefreshPending = new AtomicBoolean();
+    private volatile List<Entry> mEntries = Collections.emptyList();
+    private volatile boolean mLoaded;// 已读取本地索引
+    private volatile boolean mRefreshed;// 本进程中已完整刷新过
+
+    private OadCatalog(Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    public static synchronized OadCatalog getInstance(Context context) {
+        if (mInstance == null) {
+            mInstance = new OadCatalog(context);
+        }
+        return mInstance;
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * 缓存的全部条目（assets在前，本地文件按修改时间从新到旧），不会阻塞
+     */
+    public List<Entry> getEntries() {
+        return mEntries;
+    }
+
+    public List<Entry> getAssets() {
+        return filter(true);
+    }
+
+    public List<Entry> getFiles() {
+        return filter(false);
+    }
+
+    /**
+     * 本进程中是否已完整刷新过（为false时getEntries()可能是上次保存的结果或空的）
+     */
+    public boolean isRefreshed() {
+        return mRefreshed;
+    }
+
+    private List<Entry> filter(boolean isAssets) {
+        List<Entry> list = new ArrayList<>();
+        for (Entry e : mEntries) {
+            if (e.isAssets == isAssets) list.add(e);
+        }
+        return list;
+    }
+
+    /**
+     * 在后台刷新，已有刷新在排队时忽略
+     */
+    public void refresh() {
+        if (!mRefreshPending.compareAndSet(false, true)) return;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mRefreshPending.set(false);
+                if (!mLoaded) {
+                    mLoaded = true;
+                    List<Entry> saved = readIndex();
+                    if (!saved.isEmpty()) publish(saved);
+                }
+                long start = System.nanoTime();
+                List<Entry> entries = scan();
+                boolean changed = !sameEntries(entries, mEntries);
+                mRefreshed = true;
+                Log.i(TAG, "refreshed " + entries.size() + " entries in "
+                        + (System.nanoTime() - start) / 1000000 + " ms, changed: " + changed);
+                if (changed) {
+                    writeIndex(entries);
+                }
+                // 未变化也回调一次，让界面知道刷新已结束
+                publish(entries);
+            }
+        });
+    }
+
+    private void publish(List<Entry> entries) {
+        mEntries = Collections.unmodifiableList(entries);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (Listener l : mListeners) {
+                    l.onCatalogChanged(OadCatalog.this);
+                }
+            }
+        });
+    }
+
+    private List<Entry> scan() {
+        Map<String, Entry> old = new HashMap<>();
+        for (Entry e : mEntries) {
+            old.put(key(e.path, e.isAssets), e);
+        }
+
+        List<Entry> entries = new ArrayList<>();
+        // assets只在安装或更新APK时变化，以APK的更新时间作为修改时间
+        long apkTime = apkUpdateTime();
+        try {
+            String[] names = mContext.getAssets().list("");
+            if (names != null) {
+                for (String name : names) {
+                    if (!isImageName(name)) continue;
+                    Entry e = old.get(key(name, true));
+                    entries.add(e != null && e.lastModified == apkTime ? e : index(name, true, -1, apkTime));
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "list assets failed", e);
+        }
+
+        // Download目录中可能有上千个文件，只取文件名过滤，匹配的才去读大小和修改时间
+        List<Entry> files = new ArrayList<>();
+        String[] names = DOWNLOAD_DIR.list();
+        if (names != null) {
+            for (String name : names) {
+                if (!isImageName(name)) continue;
+                File file = new File(DOWNLOAD_DIR, name);
+                long size = file.length();
+                long lastModified = file.lastModified();
+                if (lastModified == 0 || file.isDirectory()) continue;
+                String path = file.getAbsolutePath();
+                Entry e = old.get(key(path, false));
+                files.add(e != null && e.size == size && e.lastModified == lastModified
+                        ? e : index(path, false, size, lastModified));
+            }
+        }
+        Collections.sort(files, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                return a.lastModified < b.lastModified ? 1 : a.lastModified > b.lastModified ? -1 : 0;
+            }
+        });
+        entries.addAll(files);
+        return entries;
+    }
+
+    // 解析一个新的或变化了的文件
+    private Entry index(String path, boolean isAssets, long size, long lastModified) {
+        try {
+            OadImage image = new OadImage(OadImageCache.map(mContext, path, isAssets));
+            return new Entry(path, isAssets, image.getFileLength(), lastModified,
+                    image.getUint8(OadImage.OFFSET_TYPE), image.getUint16(OadImage.OFFSET_VER),
+                    image.getHash(), image.getHeaderCrc() == image.getImageCrc());
+        } catch (IOException | IllegalArgumentException e) {
+            Log.w(TAG, "cannot index " + path + ": " + e.getMessage());
+            return new Entry(path, isAssets, size, lastModified, -1, 0, "", false);
+        }
+    }
+
+    private long apkUpdateTime() {
+        try {
+            return mContext.getPackageManager().getPackageInfo(mContext.getPackageName(), 0).lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            return 0;
+        }
+    }
+
+    private static boolean isImageName(String name) {
+        String lowercaseName = name.toLowerCase(Locale.ROOT);
+        return lowercaseName.endsWith(".bin") || lowercaseName.endsWith(".hexe");
+    }
+
+    private static String key(String path, boolean isAssets) {
+        return isAssets ? "assets:" + path : path;
+    }
+
+    private static boolean sameEntries(List<Entry> a, List<Entry> b) {
+        if (a.size() != b.size()) return false;
+        for (int i = 0; i < a.size(); i++) {
+            if (a.get(i) != b.get(i)) return false;
+        }
+        return true;
+    }
+
+    private List<Entry> readIndex() {
+        List<Entry> entries = new ArrayList<>();
+        File file = new File(mContext.getFilesDir(), INDEX_FILE);
+        if (!file.exists()) return entries;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION) return entries;
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    entries.add(new Entry(in.readUTF(), in.readBoolean(), in.readLong(), in.readLong(),
+                            in.readInt(), in.readInt(), in.readUTF(), in.readBoolean()));
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "read index failed", e);
+            entries.clear();
+        }
+        return entries;
+    }
+
+    // 先写临时文件再改名，写到一半被杀掉也不会留下损坏的索引
+    private void writeIndex(List<Entry> entries) {
+        File file = new File(mContext.getFilesDir(), INDEX_FILE);
+        File tmp = new File(mContext.getFilesDir(), INDEX_FILE + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeInt(INDEX_MAGIC);
+                out.writeInt(INDEX_VERSION);
+                out.writeInt(entries.size());
+                for (Entry e : entries) {
+                    out.writeUTF(e.path);
+                    out.writeBoolean(e.isAssets);
+                    out.writeLong(e.size);
+                    out.writeLong(e.lastModified);
+                    out.writeInt(e.imageType);
+                    out.writeInt(e.version);
+                    out.writeUTF(e.hash);
+                    out.writeBoolean(e.valid);
+                }
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file)) Log.w(TAG, "rename index failed");
+        } catch (IOException e) {
+            Log.e(TAG, "write index failed", e);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.ble.demo.oad;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * 升级中断时记录的断点：镜像的哈希、目标已确认的块数和OAD类型，按设备地址保存在SharedPreferences中，
+ * 下次升级同一个镜像时可以从该块继续（需要目标支持，如R2 OAD的块请求）
+ */
+public class OadCheckpoint {
+    private static final String PREFS_NAME = "oad_checkpoints";
+
+    private static final String KEY_HASH = ".hash";
+    private static final String KEY_BLOCKS = ".blocks";
+    private static final String KEY_BLOCK_COUNT = ".block_count";
+    private static final String KEY_TYPE = ".type";
+
+    public final String address;
+    public final String imageHash;// 见OadImage.getHash()
+    public final int ackedBlocks;// 目标已确认的块数，即下次从这一块开始
+    public final int blockCount;
+    public final String oadType;
+
+    public OadCheckpoint(String address, String imageHash, int ackedBlocks, int blockCount, String oadType) {
+        this.address = address;
+        this.imageHash = imageHash;
+        this.ackedBlocks = ackedBlocks;
+        this.blockCount = blockCount;
+        this.oadType = oadType;
+    }
+
+    /**
+     * 断点是否属于这个镜像
+     */
+    public boolean matches(String imageHash, String oadType) {
+        return this.imageHash.equals(imageHash) && this.oadType.equals(oadType)
+                && ackedBlocks > 0 && ackedBlocks < blockCount;
+    }
+
+    public int getSavedBytes() {
+        return ackedBlocks * R2OadClient.BLOCK_SIZE;
+    }
+
+    private static SharedPreferences prefs(Context context) {
+        return context.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    public static void save(Context context, OadCheckpoint checkpoint) {
+        String a = checkpoint.address;
+        prefs(context).edit()
+                .putString(a + KEY_HASH, checkpoint.imageHash)
+                .putInt(a + KEY_BLOCKS, checkpoint.ackedBlocks)
+                .putInt(a + KEY_BLOCK_COUNT, checkpoint.blockCount)
+                .putString(a + KEY_TYPE, checkpoint.oadType)
+                .apply();
+    }
+
+    /**
+     * @return 没有断点时返回null
+     */
+    public static OadCheckpoint load(Context context, String address) {
+        SharedPreferences sp = prefs(context);
+        String hash = sp.getString(address + KEY_HASH, null);
+        String type = sp.getString(address + KEY_TYPE, null);
+        if (hash == null || type == null) return null;
+        return new OadCheckpoint(address, hash, sp.getInt(address + KEY_BLOCKS, 0),
+                sp.getInt(address + KEY_BLOCK_COUNT, 0), type);
+    }
+
+    public static void clear(Context context, String address) {
+        prefs(context).edit()
+                .remove(address + KEY_HASH)
+                .remove(address + KEY_BLOCKS)
+                .remove(address + KEY_BLOCK_COUNT)
+                .remove(address + KEY_TYPE)
+                .apply();
+    }
+}
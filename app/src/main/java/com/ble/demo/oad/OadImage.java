@@ -0,0 +1,196 @@
+package com.ble.demo.oad;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * 解析好的升级镜像：数据只读（通常是内存映射的文件），块数、CRC和内容哈希在创建时算好，
+ * 可以被多个升级同时使用。通过{@link OadImageCache}获取
+ */
+public class OadImage {
+    public static final int BLOCK_SIZE = 16;
+    public static final int HEADER_SIZE = 16;
+
+    // 镜像头：crc0(2) crc1(2) ver(2) len(2) uid(4) addr(2) imgType(1) state(1)
+    static final int OFFSET_CRC0 = 0;
+    static final int OFFSET_CRC1 = 2;
+    static final int OFFSET_VER = 4;
+    static final int OFFSET_LEN = 6;
+    static final int OFFSET_UID = 8;
+    static final int OFFSET_ADDR = 12;
+    static final int OFFSET_TYPE = 14;
+    static final int OFFSET_STATE = 15;
+    static final int CRC_START = 4;// CRC从ver开始算
+    static final int WORD_SIZE = 4;// 镜像头中的长度以4字节为单位
+
+    private static final char[] CRC_TABLE = new char[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 8;
+            for (int j = 0; j < 8; j++) {
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+            }
+            CRC_TABLE[i] = (char) crc;
+        }
+    }
+
+    private final ByteBuffer mData;
+    private final String mHash;
+    private final int mImageLength;
+    private final int mBlockCount;
+    private final int mImageCrc;
+    private final char[] mBlockCrcs;
+
+    /**
+     * @param data 完整的镜像文件（position到limit），之后不能再修改
+     * @throws IllegalArgumentException 比镜像头还短
+     */
+    public OadImage(ByteBuffer data) {
+        ByteBuffer buf = data.slice().asReadOnlyBuffer();
+        if (buf.remaining() < HEADER_SIZE) {
+            throw new IllegalArgumentException("image too small: " + buf.remaining());
+        }
+        mData = buf;
+        int words = (buf.get(OFFSET_LEN) & 0xFF) | (buf.get(OFFSET_LEN + 1) & 0xFF) << 8;
+        mImageLength = words > 0 && words * WORD_SIZE <= buf.remaining() ? words * WORD_SIZE : buf.remaining();
+        mBlockCount = (mImageLength + BLOCK_SIZE - 1) / BLOCK_SIZE;
+
+        // 一次遍历算出各块的CRC、整个镜像的CRC和SHA-1
+        mBlockCrcs = new char[mBlockCount];
+        int imageCrc = 0;
+        for (int block = 0; block < mBlockCount; block++) {
+            int start = block * BLOCK_SIZE;
+            int end = Math.min(start + BLOCK_SIZE, mImageLength);
+            int blockCrc = 0;
+            for (int i = start; i < end; i++) {
+                int b = buf.get(i) & 0xFF;
+                blockCrc = crc16(blockCrc, b);
+                if (i >= CRC_START) imageCrc = crc16(imageCrc, b);
+            }
+            for (int i = end; i < start + BLOCK_SIZE; i++) {
+                blockCrc = crc16(blockCrc, 0xFF);
+            }
+            mBlockCrcs[block] = (char) blockCrc;
+        }
+        mImageCrc = imageCrc;
+        mHash = sha1(buf.duplicate());
+    }
+
+    private static int crc16(int crc, int b) {
+        return ((crc << 8) ^ CRC_TABLE[((crc >> 8) ^ b) & 0xFF]) & 0xFFFF;
+    }
+
+    /**
+     * CRC-16/XMODEM（多项式0x1021，初值0），与TI OAD目标端的crc16()一致
+     */
+    public static int crc16(ByteBuffer buf, int from, int to) {
+        int crc = 0;
+        for (int i = from; i < to; i++) {
+            crc = crc16(crc, buf.get(i) & 0xFF);
+        }
+        return crc;
+    }
+
+    private static String sha1(ByteBuffer buf) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            md.update(buf);
+            StringBuilder sb = new StringBuilder();
+            for (byte b : md.digest()) {
+                sb.append(String.format("%02x", b & 0xFF));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 只读的镜像数据，每次返回新的视图，可以自由修改position
+     */
+    public ByteBuffer getData() {
+        return mData.duplicate();
+    }
+
+    /**
+     * 文件内容的SHA-1
+     */
+    public String getHash() {
+        return mHash;
+    }
+
+    /**
+     * 文件长度
+     */
+    public int getFileLength() {
+        return mData.remaining();
+    }
+
+    /**
+     * 镜像头中的长度，超出文件长度时为文件长度
+     */
+    public int getImageLength() {
+        return mImageLength;
+    }
+
+    public int getBlockCount() {
+        return mBlockCount;
+    }
+
+    /**
+     * 从ver开始计算的整个镜像的CRC
+     */
+    public int getImageCrc() {
+        return mImageCrc;
+    }
+
+    /**
+     * 镜像头中记录的CRC（crc0）
+     */
+    public int getHeaderCrc() {
+        return getUint16(OFFSET_CRC0);
+    }
+
+    /**
+     * 小端的16位无符号数
+     */
+    int getUint16(int offset) {
+        return (mData.get(offset) & 0xFF) | (mData.get(offset + 1) & 0xFF) << 8;
+    }
+
+    int getUint8(int offset) {
+        return mData.get(offset) & 0xFF;
+    }
+
+    /**
+     * 某一块（不足16字节时补0xFF）的CRC
+     */
+    public int getBlockCrc(int block) {
+        return mBlockCrcs[block];
+    }
+
+    /**
+     * 复制offset开始的dst.length个字节
+     */
+    public void getHeader(int offset, byte[] dst) {
+        for (int i = 0; i < dst.length; i++) {
+            dst[i] = mData.get(offset + i);
+        }
+    }
+
+    /**
+     * 复制第block块到dst[offset]开始的16个字节，不足16字节时补0xFF
+     */
+    public void getBlock(int block, byte[] dst, int offset) {
+        int start = block * BLOCK_SIZE;
+        int len = Math.min(BLOCK_SIZE, mImageLength - start);
+        for (int i = 0; i < len; i++) {
+            dst[offset + i] = mData.get(start + i);
+        }
+        for (int i = len; i < BLOCK_SIZE; i++) {
+            dst[offset + i] = (byte) 0xFF;
+        }
+    }
+}
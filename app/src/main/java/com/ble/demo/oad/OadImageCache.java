@@ -0,0 +1,147 @@
+package com.ble.demo.oad;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 升级镜像的缓存：本地文件直接内存映射，assets通过AssetFileDescriptor映射（需不压缩，见build.gradle），
+ * 不占用Java堆；解析结果按内容哈希缓存，同一个镜像重复或同时升级时不再重新读取
+ * <p>
+ * 最多缓存{@link #MAX_IMAGES}个镜像，按最近使用淘汰
+ */
+public class OadImageCache {
+    private static final String TAG = "OadImageCache";
+
+    private static final int MAX_IMAGES = 4;
+
+    private static OadImageCache mInstance;
+
+    // 内容哈希 -> 镜像，按访问顺序排列
+    private final LinkedHashMap<String, OadImage> mImages = new LinkedHashMap<String, OadImage>(8, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, OadImage> eldest) {
+            return size() > MAX_IMAGES;
+        }
+    };
+    // 文件（路径、长度、修改时间）-> 内容哈希
+    private final HashMap<String, String> mHashes = new HashMap<>();
+
+    private OadImageCache() {
+    }
+
+    public static synchronized OadImageCache getInstance() {
+        if (mInstance == null) {
+            mInstance = new OadImageCache();
+        }
+        return mInstance;
+    }
+
+    /**
+     * 获取镜像，未缓存时读取并解析，有IO操作，不要在主线程中调用
+     *
+     * @throws IllegalArgumentException 文件太小，不是升级镜像
+     */
+    public OadImage load(Context context, String path, boolean isAssets) throws IOException {
+        String fileKey = isAssets ? "assets:" + path : fileKey(new File(path));
+        synchronized (this) {
+            String hash = mHashes.get(fileKey);
+            OadImage image = hash != null ? mImages.get(hash) : null;
+            if (image != null) return image;
+        }
+
+        long start = System.nanoTime();
+        OadImage image = new OadImage(map(context, path, isAssets));
+        Log.i(TAG, "loaded " + path + " (" + image.getFileLength() + " bytes) in "
+                + (System.nanoTime() - start) / 1000000 + " ms");
+
+        synchronized (this) {
+            // 同时加载时用先放入的那个
+            OadImage cached = mImages.get(image.getHash());
+            if (cached != null) {
+                image = cached;
+            } else {
+                mImages.put(image.getHash(), image);
+            }
+            mHashes.put(fileKey, image.getHash());
+            return image;
+        }
+    }
+
+    public synchronized void clear() {
+        mImages.clear();
+        mHashes.clear();
+    }
+
+    private static String fileKey(File file) {
+        return file.getAbsolutePath() + ":" + file.length() + ":" + file.lastModified();
+    }
+
+    /**
+     * 映射镜像文件，不缓存（如{@link OadCatalog}建立索引时）
+     */
+    static ByteBuffer map(Context context, String path, boolean isAssets) throws IOException {
+        return isAssets ? mapAsset(context, path) : mapFile(path);
+    }
+
+    private static ByteBuffer mapFile(String path) throws IOException {
+        FileInputStream in = new FileInputStream(path);
+        try {
+            FileChannel channel = in.getChannel();
+            // 映射在通道关闭后仍然有效
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            in.close();
+        }
+    }
+
+    private static ByteBuffer mapAsset(Context context, String name) throws IOException {
+        AssetFileDescriptor afd;
+        try {
+            afd = context.getAssets().openFd(name);
+        } catch (IOException e) {
+            // 被压缩的assets无法映射，只能读到堆中
+            Log.w(TAG, name + " is compressed, reading into heap");
+            return readFully(context.getAssets().open(name));
+        }
+        try {
+            FileInputStream in = afd.createInputStream();
+            try {
+                return in.getChannel().map(FileChannel.MapMode.READ_ONLY, afd.getStartOffset(), afd.getLength());
+            } finally {
+                in.close();
+            }
+        } finally {
+            afd.close();
+        }
+    }
+
+    private static ByteBuffer readFully(InputStream in) throws IOException {
+        try {
+            byte[] buf = new byte[Math.max(in.available(), 4096)];
+            int len = 0;
+            int n;
+            while ((n = in.read(buf, len, buf.length - len)) != -1) {
+                len += n;
+                if (len == buf.length) {
+                    byte[] larger = new byte[buf.length * 2];
+                    System.arraycopy(buf, 0, larger, 0, len);
+                    buf = larger;
+                }
+            }
+            return ByteBuffer.wrap(buf, 0, len);
+        } finally {
+            in.close();
+        }
+    }
+}
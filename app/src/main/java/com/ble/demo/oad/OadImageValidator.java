@@ -0,0 +1,146 @@
+package com.ble.demo.oad;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * 发送前检查CC2640 R2 OAD镜像，避免传输几分钟后才被目标拒绝：
+ * 镜像头中的长度、CRC、镜像类型和状态，以及与目标Image Identify返回的镜像头是否冲突
+ * <p>
+ * 镜像头：crc0(2) crc1(2) ver(2) len(2) uid(4) addr(2) imgType(1) state(1)，小端；
+ * crc0是从ver开始到镜像结束的CRC-16，crc1由目标校验后写入，文件中应为0xFFFF
+ */
+public class OadImageValidator {
+    // 镜像类型，与TI OAD的定义一致
+    public static final int IMG_TYPE_APP = 1;
+    public static final int IMG_TYPE_STACK = 2;
+    public static final int IMG_TYPE_APP_STACK = 3;
+    public static final int IMG_TYPE_NP = 4;
+    public static final int IMG_TYPE_FACTORY = 5;
+
+    private static final int CRC_NOT_SET = 0xFFFF;
+    private static final int STATE_EMPTY = 0xFF;
+
+    // 目标返回的Image Identify：ver(2) len(2) uid(4)
+    private static final int TARGET_IDENTIFY_MIN_LENGTH = 8;
+
+    public static class Result {
+        public int version;
+        public int imageType;
+        public int imageLength;
+        public int headerCrc;
+        public int computedCrc;
+        public String uid;
+        /**
+         * 是否与目标的镜像头比较过；R2 OAD的目标不响应查询，只有之前收到过Image Identify notify才能比较，
+         * 为false时结果只说明镜像本身没问题
+         */
+        public boolean targetChecked;
+        /**
+         * 镜像一定会被拒绝的问题
+         */
+        public final List<String> errors = new ArrayList<>();
+        /**
+         * 可能有问题，但不一定会被拒绝
+         */
+        public final List<String> warnings = new ArrayList<>();
+
+        public boolean isValid() {
+            return errors.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format(Locale.US, "ver 0x%04X, type %d, uid %s, %d bytes, crc 0x%04X",
+                    version, imageType, uid, imageLength, headerCrc));
+            for (String e : errors) sb.append("\nERROR: ").append(e);
+            for (String w : warnings) sb.append("\nWARNING: ").append(w);
+            if (!targetChecked) sb.append("\nNOTE: target checks skipped, no Image Identify from the target");
+            return sb.toString();
+        }
+    }
+
+    /**
+     * 只检查镜像本身
+     */
+    public static Result validate(OadImage image) {
+        return validate(image, null);
+    }
+
+    /**
+     * @param targetIdentify 目标Image Identify notify的数据（ver/len/uid），没有时为null
+     */
+    public static Result validate(OadImage image, byte[] targetIdentify) {
+        Result r = new Result();
+        r.version = image.getUint16(OadImage.OFFSET_VER);
+        r.imageType = image.getUint8(OadImage.OFFSET_TYPE);
+        r.headerCrc = image.getHeaderCrc();
+        r.computedCrc = image.getImageCrc();
+        byte[] uid = new byte[4];
+        image.getHeader(OadImage.OFFSET_UID, uid);
+        r.uid = toUid(uid);
+
+        int words = image.getUint16(OadImage.OFFSET_LEN);
+        r.imageLength = words * OadImage.WORD_SIZE;
+        int fileLength = image.getFileLength();
+        if (words == 0) {
+            r.errors.add("length in header is 0");
+        } else if (r.imageLength > fileLength) {
+            r.errors.add("header length " + r.imageLength + " exceeds file length " + fileLength);
+        } else if (r.imageLength < fileLength) {
+            r.warnings.add((fileLength - r.imageLength) + " bytes after the image will not be sent");
+        }
+
+        // 长度不对时CRC也没有意义
+        if (r.errors.isEmpty() && r.headerCrc != r.computedCrc) {
+            r.errors.add(String.format(Locale.US, "CRC mismatch: header 0x%04X, computed 0x%04X",
+                    r.headerCrc, r.computedCrc));
+        }
+        int crc1 = image.getUint16(OadImage.OFFSET_CRC1);
+        if (crc1 != CRC_NOT_SET) {
+            r.warnings.add(String.format(Locale.US, "crc1 is 0x%04X, expected 0xFFFF", crc1));
+        }
+
+        if (r.imageType < IMG_TYPE_APP || r.imageType > IMG_TYPE_FACTORY) {
+            r.errors.add("unknown image type " + r.imageType);
+        }
+        int state = image.getUint8(OadImage.OFFSET_STATE);
+        if (state != STATE_EMPTY) {
+            r.warnings.add(String.format(Locale.US, "image state is 0x%02X, expected 0xFF", state));
+        }
+
+        if (targetIdentify != null && targetIdentify.length >= TARGET_IDENTIFY_MIN_LENGTH) {
+            compareWithTarget(r, targetIdentify);
+            r.targetChecked = true;
+        }
+        return r;
+    }
+
+    private static void compareWithTarget(Result r, byte[] identify) {
+        int targetVer = (identify[0] & 0xFF) | (identify[1] & 0xFF) << 8;
+        byte[] uid = new byte[4];
+        System.arraycopy(identify, 4, uid, 0, 4);
+        String targetUid = toUid(uid);
+        if (!targetUid.equals(r.uid)) {
+            r.warnings.add("uid " + r.uid + " differs from the target's " + targetUid);
+        }
+        if (targetVer == r.version) {
+            // 部分目标（如CC2541的A/B镜像）只接受与当前运行的版本不同的镜像
+            r.warnings.add(String.format(Locale.US, "target is already running version 0x%04X", targetVer));
+        }
+    }
+
+    private static String toUid(byte[] uid) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : uid) {
+            if (b >= 0x20 && b < 0x7F) {
+                sb.append((char) b);
+            } else {
+                sb.append(String.format(Locale.US, "\\x%02X", b & 0xFF));
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,35 @@
+package com.ble.demo.oad;
+
+import java.util.UUID;
+
+/**
+ * OAD数据的发送通道，真实设备见{@link LeOadLink}
+ */
+public interface OadLink {
+
+    interface Callback {
+        /**
+         * 一次写操作结束，可在任意线程中回调
+         *
+         * @param tag write()时传入的标记，如块序号
+         */
+        void onWriteComplete(int tag, boolean success);
+    }
+
+    /**
+     * 打开OAD特征的notify
+     */
+    void enableNotification(UUID charUuid);
+
+    /**
+     * 写入OAD特征（WRITE_NO_RESPONSE），结果通过callback返回
+     */
+    void write(UUID charUuid, byte[] data, int tag, Callback callback);
+
+    /**
+     * 排队中和在途的写操作数
+     */
+    int getPendingWrites();
+
+    boolean isConnected();
+}
@@ -0,0 +1,181 @@
+package com.ble.demo.oad;
+
+import android.util.Log;
+
+/**
+ * OAD发送速率的闭环控制（AIMD）：从较快的速率开始，每连续确认一批块后加性提速，
+ * 出现丢块（目标请求回退）、写入被拒绝、发送队列积压或实际吞吐明显低于发送速率时乘性降速，
+ * 一批块内最多降速一次，避免一次拥塞把速率降到底
+ * <p>
+ * 非线程安全，由{@link R2OadClient}在自己的线程中调用
+ */
+public class OadPacer {
+    private static final String TAG = "OadPacer";
+
+    private final String mAddress;
+
+    private double mInitialRate = 100;// 块/秒，即10ms一块
+    private double mMinRate = 10;
+    private double mMaxRate = 500;
+    private double mIncreaseStep = 5;// 每批增加的速率（块/秒）
+    private double mDecreaseFactor = 0.5;
+    private int mEpochBlocks = 32;
+
+    private double mRate;
+    private int mEpochAcked;
+    private long mEpochStartNanos;
+    private boolean mDecreasedInEpoch;
+    private int mSlowEpochs;
+    private double mMeasuredRate;
+
+    private int mIncreaseCount;
+    private int mDecreaseCount;
+    private long mStartNanos;
+    private long mAckedTotal;
+
+    public OadPacer(String address) {
+        mAddress = address;
+        reset();
+    }
+
+    /**
+     * @param initialRate 开始时的速率（块/秒）
+     * @param minRate     最低速率
+     * @param maxRate     最高速率
+     */
+    public void setRateRange(double initialRate, double minRate, double maxRate) {
+        mMinRate = minRate;
+        mMaxRate = maxRate;
+        mInitialRate = Math.max(minRate, Math.min(maxRate, initialRate));
+        reset();
+    }
+
+    /**
+     * @param increaseStep   每确认一批块后增加的速率（块/秒）
+     * @param decreaseFactor 降速时乘的系数，0~1
+     * @param epochBlocks    一批的块数
+     */
+    public void setAimd(double increaseStep, double decreaseFactor, int epochBlocks) {
+        mIncreaseStep = increaseStep;
+        mDecreaseFactor = decreaseFactor;
+        mEpochBlocks = Math.max(1, epochBlocks);
+    }
+
+    public void reset() {
+        mRate = mInitialRate;
+        mEpochAcked = 0;
+        mEpochStartNanos = 0;
+        mDecreasedInEpoch = false;
+        mSlowEpochs = 0;
+        mMeasuredRate = 0;
+        mIncreaseCount = 0;
+        mDecreaseCount = 0;
+        mStartNanos = System.nanoTime();
+        mAckedTotal = 0;
+    }
+
+    /**
+     * 当前速率（块/秒）
+     */
+    public double getRate() {
+        return mRate;
+    }
+
+    /**
+     * 两块之间的发送间隔
+     */
+    public long getIntervalNanos() {
+        return (long) (1e9 / mRate);
+    }
+
+    /**
+     * 最近一批块的实际确认速率（块/秒）
+     */
+    public double getMeasuredRate() {
+        return mMeasuredRate;
+    }
+
+    /**
+     * 目标确认（请求了后续块）或写入完成count块
+     */
+    public void onAcked(int count) {
+        if (count <= 0) return;
+        long now = System.nanoTime();
+        if (mEpochStartNanos == 0) mEpochStartNanos = now;
+        mAckedTotal += count;
+        mEpochAcked += count;
+        if (mEpochAcked < mEpochBlocks) return;
+
+        long elapsed = now - mEpochStartNanos;
+        mMeasuredRate = elapsed > 0 ? mEpochAcked * 1e9 / elapsed : mRate;
+        boolean decreased = mDecreasedInEpoch;
+        mEpochAcked = 0;
+        mEpochStartNanos = now;
+        mDecreasedInEpoch = false;
+
+        if (mMeasuredRate < mRate * 0.75) {
+            // 连续两批实际吞吐跟不上发送速率，降到实际吞吐附近
+            if (++mSlowEpochs >= 2) {
+                mSlowEpochs = 0;
+                setRate(mMeasuredRate * 1.1, "throughput " + (int) mMeasuredRate + " blk/s");
+                mDecreaseCount++;
+            }
+        } else {
+            mSlowEpochs = 0;
+            if (!decreased) {
+                mIncreaseCount++;
+                setRate(mRate + mIncreaseStep, null);
+            }
+        }
+    }
+
+    /**
+     * 目标请求回退（丢块）
+     */
+    public void onLoss() {
+        decrease("loss");
+    }
+
+    /**
+     * 写入被底层拒绝或失败
+     */
+    public void onWriteFailed() {
+        decrease("write failed");
+    }
+
+    /**
+     * 发送队列积压，写入跟不上发送速率
+     */
+    public void onBackpressure() {
+        decrease("backpressure");
+    }
+
+    private void decrease(String reason) {
+        if (mDecreasedInEpoch) return;
+        mDecreasedInEpoch = true;
+        mDecreaseCount++;
+        setRate(mRate * mDecreaseFactor, reason);
+    }
+
+    private void setRate(double rate, String reason) {
+        rate = Math.max(mMinRate, Math.min(mMaxRate, rate));
+        if (rate == mRate) return;
+        mRate = rate;
+        if (reason != null) {
+            Log.i(TAG, mAddress + " rate -> " + (int) rate + " blk/s (" + reason + ")");
+        }
+    }
+
+    /**
+     * 整个过程的平均确认速率（块/秒）
+     */
+    public double getAverageRate() {
+        long elapsed = System.nanoTime() - mStartNanos;
+        return elapsed > 0 ? mAckedTotal * 1e9 / elapsed : 0;
+    }
+
+    public void logSummary() {
+        Log.i(TAG, mAddress + " final rate " + (int) mRate + " blk/s, average " + (int) getAverageRate()
+                + " blk/s, increases " + mIncreaseCount + ", decreases " + mDecreaseCount);
+    }
+}
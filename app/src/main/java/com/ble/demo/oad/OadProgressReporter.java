@@ -0,0 +1,172 @@
+package com.ble.demo.oad;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 合并升级进度回调：升级线程只把最新的进度写进基本类型字段，按设定的频率在主线程回调一次，
+ * 不分配对象，也不会因为每一块都刷新界面而拖慢发送
+ * <p>
+ * 同时计算瞬时速率（指数平滑）、平均速率和剩余时间，这些值只在主线程中读取
+ */
+public class OadProgressReporter {
+    private static final int MSG_PUBLISH = 1;
+    private static final int DEFAULT_RATE_HZ = 10;
+    private static final double RATE_SMOOTHING = 0.3;// 瞬时速率的平滑系数
+
+    public interface Listener {
+        /**
+         * 在主线程中回调，可通过reporter的get方法读取进度
+         */
+        void onProgress(OadProgressReporter reporter);
+    }
+
+    private final Listener mListener;
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+    private long mIntervalMillis = 1000 / DEFAULT_RATE_HZ;
+    private volatile long mLastPublishUptime;
+
+    // 升级线程写，主线程读，都在synchronized中（几乎不会竞争）
+    private int mWriteBytes;
+    private int mWriteTotal;
+    private long mWriteMillis;
+
+    // 以下只在主线程中使用
+    private int mBytes;
+    private int mTotalBytes;
+    private long mMillis;
+    private int mLastBytes;
+    private long mLastMillis;
+    private double mInstantRate;// B/s
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper()) {
+        @Override
+        public void handleMessage(Message msg) {
+            if (msg.what == MSG_PUBLISH) {
+                mScheduled.set(false);
+                publish();
+            }
+        }
+    };
+
+    public OadProgressReporter(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * @param hz 每秒最多回调几次
+     */
+    public void setRate(int hz) {
+        mIntervalMillis = 1000 / Math.max(1, hz);
+    }
+
+    /**
+     * 开始新的升级前在主线程中调用
+     */
+    public void reset() {
+        synchronized (this) {
+            mWriteBytes = 0;
+            mWriteTotal = 0;
+            mWriteMillis = 0;
+        }
+        mHandler.removeMessages(MSG_PUBLISH);
+        mScheduled.set(false);
+        mBytes = mTotalBytes = mLastBytes = 0;
+        mMillis = mLastMillis = 0;
+        mInstantRate = 0;
+    }
+
+    /**
+     * 记录最新进度，可以在任意线程中频繁调用
+     */
+    public void update(int iBytes, int nBytes, long milliseconds) {
+        synchronized (this) {
+            mWriteBytes = iBytes;
+            mWriteTotal = nBytes;
+            mWriteMillis = milliseconds;
+        }
+
+        if (mScheduled.compareAndSet(false, true)) {
+            long delay = mLastPublishUptime + mIntervalMillis - SystemClock.uptimeMillis();
+            mHandler.sendEmptyMessageDelayed(MSG_PUBLISH, Math.max(0, delay));
+        }
+    }
+
+    /**
+     * 立即在主线程回调最新进度（如升级结束时）
+     */
+    public void flush() {
+        mHandler.removeMessages(MSG_PUBLISH);
+        mScheduled.set(true);
+        mHandler.sendEmptyMessage(MSG_PUBLISH);
+    }
+
+    public void release() {
+        mHandler.removeCallbacksAndMessages(null);
+    }
+
+    private void publish() {
+        int bytes, total;
+        long millis;
+        synchronized (this) {
+            bytes = mWriteBytes;
+            total = mWriteTotal;
+            millis = mWriteMillis;
+        }
+
+        mLastPublishUptime = SystemClock.uptimeMillis();
+        if (millis > mLastMillis && bytes >= mLastBytes) {
+            double rate = (bytes - mLastBytes) * 1000.0 / (millis - mLastMillis);
+            mInstantRate = mInstantRate == 0 ? rate : mInstantRate + RATE_SMOOTHING * (rate - mInstantRate);
+        }
+        mLastBytes = bytes;
+        mLastMillis = millis;
+        mBytes = bytes;
+        mTotalBytes = total;
+        mMillis = millis;
+        mListener.onProgress(this);
+    }
+
+    public int getBytes() {
+        return mBytes;
+    }
+
+    public int getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    public long getMillis() {
+        return mMillis;
+    }
+
+    public int getPercent() {
+        return mTotalBytes > 0 ? (int) (100L * mBytes / mTotalBytes) : 0;
+    }
+
+    /**
+     * 最近的速率（B/s）
+     */
+    public double getInstantRate() {
+        return mInstantRate;
+    }
+
+    /**
+     * 从开始到现在的平均速率（B/s）
+     */
+    public double getAverageRate() {
+        return mMillis > 0 ? mBytes * 1000.0 / mMillis : 0;
+    }
+
+    /**
+     * 按最近的速率估算的剩余时间（ms），无法估算时返回-1
+     */
+    public long getEtaMillis() {
+        double rate = mInstantRate > 0 ? mInstantRate : getAverageRate();
+        if (rate <= 0 || mTotalBytes <= 0) return -1;
+        return (long) ((mTotalBytes - mBytes) * 1000 / rate);
+    }
+}
@@ -0,0 +1,436 @@
+package com.ble.demo.oad;
+
+import com.ble.ble.oad.OADListener;
+import com.ble.demo.util.LeListener;
+import com.ble.gatt.GattAttributes;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 模拟的CC2640 R2 OAD目标，不需要真机就可以在JVM上（如Gradle单元测试）比较发送策略、测试断点续传：
+ * 实现{@link OadLink}，直接交给{@link R2OadClient}使用，回调与OADActivity相同（{@link OADListener}）
+ * <p>
+ * 目标端：写入Image Identify后检查镜像头，不接受时通过Image Identify返回自己的镜像头，
+ * 接受后通过Image Block请求块序号，收到不是期望的块时重新请求期望的块，全部收到后校验CRC并断开（重启）
+ * <p>
+ * 链路：写入先进入发送队列，每个连接间隔最多发出packetsPerEvent包，每包按lossRate丢失，
+ * 到达目标还要再经过latencyMillis；目标的notify同样在下一个连接事件发出。
+ * 使用真实时间，所有状态只在内部的单线程中修改
+ */
+public class OadTargetSimulator implements OadLink {
+
+    // 状态码，与TI OAD的状态码一致
+    public static final int STATUS_SUCCESS = 0;
+    public static final int STATUS_CRC_ERR = 1;
+    public static final int STATUS_DL_NOT_COMPLETE = 6;
+    public static final int STATUS_IMAGE_TOO_BIG = 8;
+    public static final int STATUS_INCOMPATIBLE_IMAGE = 9;
+
+    private static final int STATE_IDLE = 0;
+    private static final int STATE_RECEIVING = 1;
+    private static final int STATE_DONE = 2;
+
+    /**
+     * 链路参数
+     */
+    public static class LinkModel {
+        public double connectionIntervalMillis = 7.5;
+        public int packetsPerEvent = 4;// 每个连接事件最多发出的包数
+        public long latencyMillis = 5;// 发出后到达对端的时间（含目标处理）
+        public double lossRate = 0;// 丢包率，0~1
+        public int queueCapacity = 16;// 发送队列满时写入失败
+        public int maxImageBytes = 256 * 1024;
+        public long seed = 1;
+    }
+
+    /**
+     * 一次升级的结果
+     */
+    public static class Result {
+        public boolean finished;// APP端回调了onFinished()
+        public int status = STATUS_DL_NOT_COMPLETE;// 目标端的结果
+        public long milliseconds;
+        public int packetsSent;
+        public int packetsLost;
+        public int duplicateBlocks;
+        public int resumedBlocks;
+
+        @Override
+        public String toString() {
+            return "finished=" + finished + ", status=" + status + ", " + milliseconds + " ms, sent "
+                    + packetsSent + ", lost " + packetsLost + ", duplicate blocks " + duplicateBlocks
+                    + ", resumed blocks " + resumedBlocks;
+        }
+    }
+
+    private final String mAddress;
+    private final LinkModel mModel;
+    private final Random mRandom;
+    private final ScheduledExecutorService mExecutor = Executors.newSingleThreadScheduledExecutor();
+    private volatile LeListener mListener;
+
+    // 链路
+    private final ArrayDeque<Packet> mUplink = new ArrayDeque<>();// APP -> 目标
+    private final ArrayDeque<byte[]> mDownlink = new ArrayDeque<>();// 目标 -> APP（块请求/镜像头）
+    private final ArrayDeque<UUID> mDownlinkUuids = new ArrayDeque<>();
+    private final AtomicInteger mPending = new AtomicInteger();// 与WriteScheduler一样，write()返回时就已计入
+    private volatile boolean mConnected = true;
+
+    // 目标
+    private byte[] mCurrentIdentify;// 目标正在运行的镜像：ver(2) len(2) uid(4)，null时不检查版本
+    private int mState = STATE_IDLE;
+    private byte[] mImage;
+    private int mBlockCount;
+    private int mExpectedBlock;
+    private boolean mRerequested;// 收到乱序块后已重新请求过mExpectedBlock
+    private int mKeepBlocks;// 断线后保留的块数（支持续传的目标）
+    private boolean mSupportResume;
+
+    private final Result mResult = new Result();
+
+    private static class Packet {
+        UUID uuid;
+        byte[] data;
+        int tag;
+        Callback callback;
+    }
+
+    public OadTargetSimulator(String address, LinkModel model) {
+        mAddress = address;
+        mModel = model;
+        mRandom = new Random(model.seed);
+        long intervalMicros = (long) (model.connectionIntervalMillis * 1000);
+        mExecutor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                connectionEvent();
+            }
+        }, intervalMicros, intervalMicros, TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * 接收notify和断线的监听，通常是{@link R2OadClient}
+     */
+    public void setListener(LeListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * 目标正在运行的镜像（ver/len/uid），写入版本相同的镜像会被拒绝
+     */
+    public void setCurrentImage(int version, byte[] uid) {
+        final byte[] identify = new byte[8];
+        identify[0] = (byte) version;
+        identify[1] = (byte) (version >> 8);
+        System.arraycopy(uid, 0, identify, 4, 4);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mCurrentIdentify = identify;
+            }
+        });
+    }
+
+    /**
+     * 为true时目标断线后保留已收到的块，重新写入相同的镜像头后从断点开始请求
+     */
+    public void setSupportResume(final boolean supportResume) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mSupportResume = supportResume;
+            }
+        });
+    }
+
+    /**
+     * 模拟断线，升级中断；之后可以用{@link #reconnect()}重新连接
+     */
+    public void disconnect() {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!mConnected) return;
+                mConnected = false;
+                failPending();
+                if (mState == STATE_RECEIVING) {
+                    mKeepBlocks = mSupportResume ? mExpectedBlock : 0;
+                    mState = STATE_IDLE;
+                }
+                LeListener listener = mListener;
+                if (listener != null) listener.onDisconnected(mAddress);
+            }
+        });
+    }
+
+    public void reconnect() {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mConnected = true;
+            }
+        });
+    }
+
+    public void release() {
+        mExecutor.shutdownNow();
+    }
+
+    public Result getResult() {
+        final Result r = new Result();
+        try {
+            mExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    r.finished = mResult.finished;
+                    r.status = mResult.status;
+                    r.milliseconds = mResult.milliseconds;
+                    r.packetsSent = mResult.packetsSent;
+                    r.packetsLost = mResult.packetsLost;
+                    r.duplicateBlocks = mResult.duplicateBlocks;
+                    r.resumedBlocks = mResult.resumedBlocks;
+                }
+            }).get();
+        } catch (Exception e) {
+            // 已释放
+        }
+        return r;
+    }
+
+    @Override
+    public void enableNotification(UUID charUuid) {
+    }
+
+    @Override
+    public void write(final UUID charUuid, final byte[] data, final int tag, final Callback callback) {
+        mPending.incrementAndGet();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!mConnected || mUplink.size() >= mModel.queueCapacity) {
+                    mPending.decrementAndGet();
+                    callback.onWriteComplete(tag, false);
+                    return;
+                }
+                Packet p = new Packet();
+                p.uuid = charUuid;
+                p.data = data;
+                p.tag = tag;
+                p.callback = callback;
+                mUplink.add(p);
+            }
+        });
+    }
+
+    @Override
+    public int getPendingWrites() {
+        return mPending.get();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return mConnected;
+    }
+
+    // 一个连接事件：双向各发出最多packetsPerEvent包
+    private void connectionEvent() {
+        if (!mConnected) return;
+        for (int i = 0; i < mModel.packetsPerEvent && !mDownlink.isEmpty(); i++) {
+            final UUID uuid = mDownlinkUuids.poll();
+            final byte[] data = mDownlink.poll();
+            if (lost()) continue;
+            deliver(new Runnable() {
+                @Override
+                public void run() {
+                    LeListener listener = mListener;
+                    if (listener != null && mConnected) listener.onDataAvailable(mAddress, uuid, data);
+                }
+            });
+        }
+        for (int i = 0; i < mModel.packetsPerEvent && !mUplink.isEmpty(); i++) {
+            final Packet p = mUplink.poll();
+            mPending.decrementAndGet();
+            mResult.packetsSent++;
+            // WRITE_NO_RESPONSE：发出即算写入成功，丢包APP端不知道
+            p.callback.onWriteComplete(p.tag, true);
+            if (lost()) {
+                mResult.packetsLost++;
+                continue;
+            }
+            deliver(new Runnable() {
+                @Override
+                public void run() {
+                    if (mConnected) onReceive(p.uuid, p.data);
+                }
+            });
+        }
+    }
+
+    private boolean lost() {
+        return mModel.lossRate > 0 && mRandom.nextDouble() < mModel.lossRate;
+    }
+
+    private void deliver(Runnable task) {
+        mExecutor.schedule(task, mModel.latencyMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void failPending() {
+        for (Packet p : mUplink) {
+            mPending.decrementAndGet();
+            p.callback.onWriteComplete(p.tag, false);
+        }
+        mUplink.clear();
+        mDownlink.clear();
+        mDownlinkUuids.clear();
+    }
+
+    private void notifyApp(UUID uuid, byte[] data) {
+        mDownlinkUuids.add(uuid);
+        mDownlink.add(data);
+    }
+
+    private void requestBlock(int block) {
+        notifyApp(GattAttributes.TI_OAD_Image_Block, new byte[]{(byte) block, (byte) (block >> 8)});
+    }
+
+    private void onReceive(UUID uuid, byte[] data) {
+        if (GattAttributes.TI_OAD_Image_Identify.equals(uuid)) {
+            onIdentify(data);
+        } else if (GattAttributes.TI_OAD_Image_Block.equals(uuid)) {
+            onBlock(data);
+        }
+    }
+
+    // ver(2) len(2) uid(4) addr(2) imgType(1) state(1)
+    private void onIdentify(byte[] data) {
+        if (data.length < 8) return;
+        int ver = (data[0] & 0xFF) | (data[1] & 0xFF) << 8;
+        int len = ((data[2] & 0xFF) | (data[3] & 0xFF) << 8) * OadImage.WORD_SIZE;
+        boolean sameVersion = mCurrentIdentify != null
+                && ver == ((mCurrentIdentify[0] & 0xFF) | (mCurrentIdentify[1] & 0xFF) << 8);
+        if (sameVersion || len == 0 || len > mModel.maxImageBytes) {
+            mResult.status = len > mModel.maxImageBytes ? STATUS_IMAGE_TOO_BIG : STATUS_INCOMPATIBLE_IMAGE;
+            notifyApp(GattAttributes.TI_OAD_Image_Identify,
+                    mCurrentIdentify != null ? mCurrentIdentify.clone() : new byte[8]);
+            return;
+        }
+
+        int blockCount = (len + OadImage.BLOCK_SIZE - 1) / OadImage.BLOCK_SIZE;
+        boolean resume = mSupportResume && mImage != null && mImage.length == len && mKeepBlocks > 0;
+        if (!resume) {
+            mImage = new byte[len];
+            mKeepBlocks = 0;
+        }
+        mBlockCount = blockCount;
+        mExpectedBlock = mKeepBlocks;
+        mResult.resumedBlocks = mKeepBlocks;
+        mResult.status = STATUS_DL_NOT_COMPLETE;
+        mState = STATE_RECEIVING;
+        mRerequested = false;
+        requestBlock(mExpectedBlock);
+    }
+
+    private void onBlock(byte[] data) {
+        if (mState != STATE_RECEIVING || data.length < 2) return;
+        int block = (data[0] & 0xFF) | (data[1] & 0xFF) << 8;
+        if (block != mExpectedBlock) {
+            if (block < mExpectedBlock) mResult.duplicateBlocks++;
+            // 每个期望的块只重新请求一次，避免一连串乱序块引发一连串请求
+            if (!mRerequested) {
+                mRerequested = true;
+                requestBlock(mExpectedBlock);
+            }
+            return;
+        }
+
+        int offset = block * OadImage.BLOCK_SIZE;
+        System.arraycopy(data, 2, mImage, offset, Math.min(data.length - 2, mImage.length - offset));
+        mExpectedBlock++;
+        mRerequested = false;
+        if (mExpectedBlock < mBlockCount) {
+            requestBlock(mExpectedBlock);
+            return;
+        }
+
+        // 全部收到，校验后重启
+        mState = STATE_DONE;
+        mKeepBlocks = 0;
+        int crc = crc16(mImage, OadImage.CRC_START, mImage.length);
+        int headerCrc = (mImage[0] & 0xFF) | (mImage[1] & 0xFF) << 8;
+        mResult.status = crc == headerCrc ? STATUS_SUCCESS : STATUS_CRC_ERR;
+        if (mResult.status == STATUS_SUCCESS) {
+            mCurrentIdentify = new byte[8];
+            System.arraycopy(mImage, OadImage.OFFSET_VER, mCurrentIdentify, 0, 8);
+        }
+        mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                disconnect();
+            }
+        }, mModel.latencyMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private static int crc16(byte[] data, int from, int to) {
+        return OadImage.crc16(ByteBuffer.wrap(data), from, to);
+    }
+
+    /**
+     * 用{@link R2OadClient}升级一次，阻塞到结束或超时，用于基准测试
+     */
+    public static Result run(OadImage image, LinkModel model, long timeoutMillis) throws InterruptedException {
+        String address = "00:00:00:00:00:00";
+        final OadTargetSimulator target = new OadTargetSimulator(address, model);
+        final CountDownLatch done = new CountDownLatch(1);
+        final boolean[] finished = new boolean[1];
+        final R2OadClient[] client = new R2OadClient[1];
+        client[0] = new R2OadClient(address, target, new OADListener() {
+            @Override
+            public void onPrepared(String address) {
+                client[0].startProgramming();
+            }
+
+            @Override
+            public void onFinished(String address, int nBytes, long milliseconds) {
+                finished[0] = true;
+                done.countDown();
+            }
+
+            @Override
+            public void onInterrupted(String address, int iBytes, int nBytes, long milliseconds) {
+                done.countDown();
+            }
+
+            @Override
+            public void onProgressChanged(String address, int iBytes, int nBytes, long milliseconds) {
+            }
+
+            @Override
+            public void onBlockWrite(byte[] data) {
+            }
+
+            @Override
+            public void onStatusChange(String address, int status) {
+            }
+        });
+        target.setListener(client[0]);
+
+        long start = System.nanoTime();
+        client[0].prepare(image);
+        boolean ended = done.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        long millis = (System.nanoTime() - start) / 1000000;
+        client[0].release();
+        Result result = target.getResult();
+        target.release();
+        result.finished = ended && finished[0];
+        result.milliseconds = millis;
+        return result;
+    }
+}
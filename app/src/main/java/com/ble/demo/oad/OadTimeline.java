@@ -0,0 +1,258 @@
+package com.ble.demo.oad;
+
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * 一次OAD的时间线：每个事件是一条定长的二进制记录，写入开始时预先分配的缓冲区，
+ * 升级中不分配对象也不做格式化；结束后写入文件，需要分析时再用{@link #exportCsv}导出
+ * <p>
+ * 只在{@link R2OadClient}的线程中使用，不是线程安全的
+ * <p>
+ * 记录（12字节，小端）：time(4，开始后的微秒) block(2) event(1) status(1) arg(4)
+ */
+public class OadTimeline {
+    public static final String FILE_SUFFIX = ".oadt";
+
+    /**
+     * 写入块，arg为当时的发送间隔（us），按窗口发送时为已发出未确认的块数
+     */
+    public static final int EVENT_WRITE = 1;
+    /**
+     * 块写入完成，status为0成功/1失败，arg为从写入到完成的时间（us）
+     */
+    public static final int EVENT_WRITE_DONE = 2;
+    /**
+     * 目标请求块，arg为请求的前一块从写入到被确认的时间（us），没有时为-1
+     */
+    public static final int EVENT_REQUEST = 3;
+    /**
+     * 从block重新发送，arg为原来的下一块
+     */
+    public static final int EVENT_REWIND = 4;
+    /**
+     * 等不到目标的块请求（超时），arg为已确认的块数
+     */
+    public static final int EVENT_ACK_TIMEOUT = 5;
+    /**
+     * 发送队列满，arg为排队中的写操作数（只在开始受阻时记录一次）
+     */
+    public static final int EVENT_BACKPRESSURE = 6;
+    /**
+     * 升级结束，status为0完成/1中断，arg为重发的块数
+     */
+    public static final int EVENT_END = 7;
+
+    private static final int MAGIC = 0x5444414F;// "OADT"
+    private static final int VERSION = 1;
+    private static final int RECORD_SIZE = 12;
+    private static final int RECORDS_PER_BLOCK = 4;// 写入、写入完成、请求，再留一些给重发
+    private static final int EXTRA_RECORDS = 256;
+    private static final int MAX_RECORDS = 1 << 18;// 3MB
+
+    private static final String[] EVENT_NAMES = {
+            "", "write", "write_done", "request", "rewind", "ack_timeout", "backpressure", "end"
+    };
+
+    private ByteBuffer mBuffer;
+    private int[] mWriteMicros = new int[0];// 每块最近一次写入的时间
+    private String mAddress;
+    private long mStartNanos;
+    private long mStartWallMillis;
+    private int mBlockCount;
+    private int mImageLength;
+    private int mDropped;
+
+    /**
+     * 开始新的升级，按块数预先分配（已分配的足够时复用）
+     */
+    public void begin(String address, int blockCount, int imageLength) {
+        int records = Math.min(MAX_RECORDS, blockCount * RECORDS_PER_BLOCK + EXTRA_RECORDS);
+        if (mBuffer == null || mBuffer.capacity() < records * RECORD_SIZE) {
+            mBuffer = ByteBuffer.allocate(records * RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        if (mWriteMicros.length < blockCount) {
+            mWriteMicros = new int[blockCount];
+        }
+        mBuffer.clear();
+        mAddress = address;
+        mBlockCount = blockCount;
+        mImageLength = imageLength;
+        mDropped = 0;
+        mStartNanos = System.nanoTime();
+        mStartWallMillis = System.currentTimeMillis();
+    }
+
+    public void onWrite(int block, long arg) {
+        int now = now();
+        if (block < mBlockCount) mWriteMicros[block] = now;
+        add(now, EVENT_WRITE, block, 0, (int) arg);
+    }
+
+    public void onWriteDone(int block, boolean success) {
+        int now = now();
+        int latency = block >= 0 && block < mBlockCount ? now - mWriteMicros[block] : -1;
+        add(now, EVENT_WRITE_DONE, block, success ? 0 : 1, latency);
+    }
+
+    public void onRequest(int block) {
+        int now = now();
+        int latency = block > 0 && block <= mBlockCount ? now - mWriteMicros[block - 1] : -1;
+        add(now, EVENT_REQUEST, block, 0, latency);
+    }
+
+    public void onRewind(int block, int nextBlock) {
+        add(now(), EVENT_REWIND, block, 0, nextBlock);
+    }
+
+    public void onAckTimeout(int ackedBlocks) {
+        add(now(), EVENT_ACK_TIMEOUT, ackedBlocks, 0, ackedBlocks);
+    }
+
+    public void onBackpressure(int block, int pendingWrites) {
+        add(now(), EVENT_BACKPRESSURE, block, 0, pendingWrites);
+    }
+
+    public void end(boolean finished, int retransmits) {
+        add(now(), EVENT_END, mBlockCount, finished ? 0 : 1, retransmits);
+    }
+
+    public int getRecordCount() {
+        return mBuffer == null ? 0 : mBuffer.position() / RECORD_SIZE;
+    }
+
+    /**
+     * 缓冲区满后丢弃的记录数
+     */
+    public int getDroppedCount() {
+        return mDropped;
+    }
+
+    private int now() {
+        return (int) ((System.nanoTime() - mStartNanos) / 1000);
+    }
+
+    private void add(int micros, int event, int block, int status, int arg) {
+        if (mBuffer == null) return;
+        if (mBuffer.remaining() < RECORD_SIZE) {
+            mDropped++;
+            return;
+        }
+        mBuffer.putInt(micros)
+                .putShort((short) block)
+                .put((byte) event)
+                .put((byte) status)
+                .putInt(arg);
+    }
+
+    /**
+     * 写入dir，文件名为 地址_时间.oadt
+     *
+     * @return 写入的文件
+     */
+    public File save(File dir) throws IOException {
+        if (mBuffer == null) throw new IOException("no timeline");
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("cannot create " + dir);
+
+        String time = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date(mStartWallMillis));
+        File file = new File(dir, mAddress.replace(":", "") + "_" + time + FILE_SUFFIX);
+        byte[] address = mAddress.getBytes("US-ASCII");
+        ByteBuffer header = ByteBuffer.allocate(34 + address.length).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC)
+                .putShort((short) VERSION)
+                .putShort((short) RECORD_SIZE)
+                .putLong(mStartWallMillis)
+                .putInt(mBlockCount)
+                .putInt(mImageLength)
+                .putInt(getRecordCount())
+                .putInt(mDropped)
+                .putShort((short) address.length)
+                .put(address);
+        header.flip();
+
+        ByteBuffer records = mBuffer.duplicate();
+        records.flip();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            FileChannel channel = out.getChannel();
+            while (header.hasRemaining()) channel.write(header);
+            while (records.hasRemaining()) channel.write(records);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    /**
+     * 把{@link #save}写入的文件导出为CSV：time_ms,event,block,status,arg
+     */
+    public static void exportCsv(File timeline, File csv) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(timeline));
+        Writer out = null;
+        try {
+            byte[] h = new byte[34];
+            in.readFully(h);
+            ByteBuffer header = ByteBuffer.wrap(h).order(ByteOrder.LITTLE_ENDIAN);
+            if (header.getInt() != MAGIC) throw new IOException("not an OAD timeline: " + timeline);
+            int version = header.getShort();
+            int recordSize = header.getShort();
+            if (version != VERSION || recordSize != RECORD_SIZE) {
+                throw new IOException("unsupported timeline version " + version);
+            }
+            long startMillis = header.getLong();
+            int blockCount = header.getInt();
+            int imageLength = header.getInt();
+            int recordCount = header.getInt();
+            int dropped = header.getInt();
+            byte[] address = new byte[header.getShort()];
+            in.readFully(address);
+
+            out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(csv), "UTF-8"));
+            out.write(String.format(Locale.US, "# %s, start %s, %d blocks, %d bytes, %d records, %d dropped\n",
+                    new String(address, "US-ASCII"),
+                    new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US).format(new Date(startMillis)),
+                    blockCount, imageLength, recordCount, dropped));
+            out.write("time_ms,event,block,status,arg\n");
+
+            byte[] r = new byte[RECORD_SIZE];
+            ByteBuffer record = ByteBuffer.wrap(r).order(ByteOrder.LITTLE_ENDIAN);
+            StringBuilder sb = new StringBuilder(64);
+            for (int i = 0; i < recordCount; i++) {
+                in.readFully(r);
+                record.clear();
+                long micros = record.getInt() & 0xFFFFFFFFL;
+                int block = record.getShort() & 0xFFFF;
+                int event = record.get() & 0xFF;
+                int status = record.get() & 0xFF;
+                int arg = record.getInt();
+
+                sb.setLength(0);
+                sb.append(micros / 1000).append('.');
+                long fraction = micros % 1000;
+                if (fraction < 100) sb.append('0');
+                if (fraction < 10) sb.append('0');
+                sb.append(fraction).append(',')
+                        .append(event < EVENT_NAMES.length ? EVENT_NAMES[event] : String.valueOf(event)).append(',')
+                        .append(block).append(',')
+                        .append(status).append(',')
+                        .append(arg).append('\n');
+                out.write(sb.toString());
+            }
+        } finally {
+            in.close();
+            if (out != null) out.close();
+        }
+    }
+}
@@ -0,0 +1,571 @@
+package com.ble.demo.oad;
+
+import android.util.Log;
+
+import com.ble.ble.oad.OADListener;
+import com.ble.demo.util.LeEventBus;
+import com.ble.demo.util.LeListener;
+import com.ble.gatt.GattAttributes;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CC2640 R2 OAD的APP端实现，不需要手动选择发送间隔：目标发块请求时按窗口发送，
+ * 每个连接事件能发几块由连接和目标决定；目标不发块请求时由{@link OadPacer}根据写入结果调整发送速率
+ * <p>
+ * 流程：打开Image Identify/Image Block的notify，写入镜像头（Image Identify），
+ * 目标接受后通过Image Block的notify请求块序号，APP写入 块序号(2字节，小端)+16字节数据；
+ * 目标拒绝镜像时会通过Image Identify的notify返回它当前的镜像头。
+ * <p>
+ * 目标只按顺序接收块，请求哪一块就说明之前的都已收到：已发出未确认的块不超过窗口（{@link #setWindow}），
+ * 只要窗口和发送队列有空位就写入；目标重复请求某一块时从该块重发，随机丢包不降低发送速率；回退后残留的乱序块还会让目标再请求同一块，这种请求不再重发。
+ * 目标一直不发请求（请求丢失）时按往返时间超时后从已确认处重发
+ * 回调与{@link OADListener}一致，可以直接替换OADProxy使用。
+ * <p>
+ * 所有状态只在内部的单线程中修改，需要注册到{@link LeEventBus}（{@link #EVENTS}，按地址过滤）才能收到块请求
+ */
+public class R2OadClient extends LeListener {
+    private static final String TAG = "R2OadClient";
+
+    public static final int EVENTS = LeEventBus.EVENT_DATA_AVAILABLE | LeEventBus.EVENT_DISCONNECTED;
+
+    public static final int BLOCK_SIZE = OadImage.BLOCK_SIZE;
+
+    // 状态码，与TI OAD的状态码一致
+    public static final int STATUS_INCORRECT_IMAGE = 9;
+
+    // Image Identify写入镜像头中 ver(2) len(2) uid(4) addr(2) imgType(1) state(1)
+    private static final int IDENTIFY_OFFSET = 4;
+    private static final int IDENTIFY_LENGTH = 12;
+
+    private static final long NOTIFY_ENABLE_DELAY = 300;// ms
+    private static final long FIRST_REQUEST_TIMEOUT = 2000;// ms，写入镜像头后等待第一个块请求
+    private static final long ACK_TIMEOUT = 1000;// ms，等不到后续块请求就从已确认处重发，按往返时间缩短
+    private static final long MIN_ACK_TIMEOUT = 100;// ms
+    private static final int DEFAULT_WINDOW = 32;// 块
+    private static final long WINDOW_TICK_INTERVAL = 5;// ms，按窗口发送时检查超时和补发的间隔
+    private static final int MAX_PENDING_WRITES = 4;
+    private static final int PROGRESS_STEPS = 200;
+
+    private static final int STATE_IDLE = 0;
+    private static final int STATE_PREPARING = 1;
+    private static final int STATE_PREPARED = 2;
+    private static final int STATE_PROGRAMMING = 3;
+
+    private final String mAddress;
+    private final OadLink mLink;
+    private final OADListener mListener;
+    private final OadPacer mPacer;
+    private final ScheduledExecutorService mExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    private volatile int mState = STATE_IDLE;
+    private OadImage mImage;
+    private int mImageLength;
+    private int mBlockCount;
+    private int mNextBlock;// 下一个要发送的块
+    private volatile int mAckedBlocks;// 目标已收到的块数（块请求驱动时）
+    private int mWrittenBlocks;// 写入成功的块数（目标不发块请求时用于进度）
+    private boolean mStreaming;
+    private volatile boolean mRequestDriven;
+    private int mResumeBlock;// 断点续传时期望开始的块
+    private volatile int mStartBlock;// 实际开始发送的块
+    private int mRetransmits;
+    private int mProgressStep;
+    private int mLastProgressBlocks;
+    private long mStartNanos;
+    private long mNextTickNanos;
+    private long mLastAckNanos;
+    private int mSession;// 每次开始加1，让上一次残留的定时任务失效
+    private boolean mBackpressured;
+    private int mWindow = DEFAULT_WINDOW;
+    private long[] mWriteNanos = new long[0];// 每块最近一次写入的时间
+    private long mRttNanos;// 块写入到目标请求下一块的平滑时间
+    private int mRewindBlock;// 最近一次从哪一块重发
+    private final OadTimeline mTimelineRecorder = new OadTimeline();// 复用预先分配的缓冲区
+    private OadTimeline mTimeline;// 本次升级不记录时为null
+    private volatile File mTimelineDir;
+    private volatile File mLastTimelineFile;
+
+    public R2OadClient(String address, OadLink link, OADListener listener) {
+        mAddress = address;
+        mLink = link;
+        mListener = listener;
+        mPacer = new OadPacer(address);
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public OadPacer getPacer() {
+        return mPacer;
+    }
+
+    public boolean isProgramming() {
+        return mState == STATE_PROGRAMMING;
+    }
+
+    public int getBlockCount() {
+        return mBlockCount;
+    }
+
+    /**
+     * 目标已确认收到的块数，用于保存断点；目标不发块请求时无法确认，返回0
+     */
+    public int getAckedBlocks() {
+        return mRequestDriven ? mAckedBlocks : 0;
+    }
+
+    /**
+     * 本次升级跳过的块数（断点续传）
+     */
+    public int getResumedBlocks() {
+        return mStartBlock;
+    }
+
+    /**
+     * 已发出但目标还没确认的块数上限，只在目标发块请求时有效
+     */
+    public void setWindow(final int blocks) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                mWindow = Math.max(1, blocks);
+            }
+        });
+    }
+
+    /**
+     * 设置后每次升级都记录时间线（{@link OadTimeline}），结束时写入dir，null表示不记录
+     */
+    public void setTimelineDir(File dir) {
+        mTimelineDir = dir;
+    }
+
+    /**
+     * 最近一次写入的时间线文件，没有时为null
+     */
+    public File getLastTimelineFile() {
+        return mLastTimelineFile;
+    }
+
+    /**
+     * 打开notify，完成后回调onPrepared()
+     *
+     * @param image 见{@link OadImageCache}，可以同时给多个设备使用
+     */
+    public void prepare(final OadImage image) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                if (mState == STATE_PROGRAMMING) return;
+                mImage = image;
+                mImageLength = image.getImageLength();
+                mBlockCount = image.getBlockCount();
+                mState = STATE_PREPARING;
+                final int session = ++mSession;
+
+                // 两次打开notify之间留出时间，避免GATT操作冲突
+                mLink.enableNotification(GattAttributes.TI_OAD_Image_Identify);
+                mExecutor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (session != mSession) return;
+                        mLink.enableNotification(GattAttributes.TI_OAD_Image_Block);
+                    }
+                }, NOTIFY_ENABLE_DELAY, TimeUnit.MILLISECONDS);
+                mExecutor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (session != mSession || mState != STATE_PREPARING) return;
+                        mState = STATE_PREPARED;
+                        mListener.onPrepared(mAddress);
+                    }
+                }, 2 * NOTIFY_ENABLE_DELAY, TimeUnit.MILLISECONDS);
+            }
+        });
+    }
+
+    /**
+     * 写入镜像头并开始发送，须在onPrepared()之后调用
+     */
+    public void startProgramming() {
+        startProgramming(0);
+    }
+
+    /**
+     * 从断点继续：目标通过块请求给出续传位置时以目标为准（请求块0说明目标已重新开始），
+     * 目标不发块请求时从resumeBlock开始发送
+     *
+     * @param resumeBlock 上次目标已确认的块数，见{@link OadCheckpoint}
+     */
+    public void startProgramming(final int resumeBlock) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                if (mState != STATE_PREPARED) return;
+                mState = STATE_PROGRAMMING;
+                final int session = ++mSession;
+                mNextBlock = 0;
+                mAckedBlocks = 0;
+                mWrittenBlocks = 0;
+                mStreaming = false;
+                mRequestDriven = false;
+                mRetransmits = 0;
+                mResumeBlock = Math.max(0, Math.min(resumeBlock, mBlockCount - 1));
+                mStartBlock = 0;
+                mLastProgressBlocks = 0;
+                mProgressStep = Math.max(1, mBlockCount / PROGRESS_STEPS);
+                mPacer.reset();
+                mStartNanos = System.nanoTime();
+                mBackpressured = false;
+                mRttNanos = 0;
+                mRewindBlock = -1;
+                if (mWriteNanos.length < mBlockCount) mWriteNanos = new long[mBlockCount];
+                mTimeline = mTimelineDir != null ? mTimelineRecorder : null;
+                if (mTimeline != null) mTimeline.begin(mAddress, mBlockCount, mImageLength);
+
+                byte[] identify = new byte[IDENTIFY_LENGTH];
+                mImage.getHeader(IDENTIFY_OFFSET, identify);
+                mLink.write(GattAttributes.TI_OAD_Image_Identify, identify, -1, mWriteCallback);
+
+                // 目标不发块请求（旧版本）时直接开始发送
+                mExecutor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (session != mSession || mState != STATE_PROGRAMMING || mStreaming) return;
+                        Log.w(TAG, mAddress + " no block request, start streaming");
+                        startStreaming(mResumeBlock);
+                    }
+                }, FIRST_REQUEST_TIMEOUT, TimeUnit.MILLISECONDS);
+            }
+        });
+    }
+
+    /**
+     * 取消升级，回调onInterrupted()；还在准备时也会取消
+     */
+    public void stopProgramming() {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                if (mState == STATE_PROGRAMMING) {
+                    interrupt();
+                } else if (mState == STATE_PREPARING || mState == STATE_PREPARED) {
+                    mState = STATE_IDLE;
+                    mSession++;
+                    mListener.onInterrupted(mAddress, 0, mImageLength, 0);
+                }
+            }
+        });
+    }
+
+    public void release() {
+        mState = STATE_IDLE;
+        mExecutor.shutdownNow();
+    }
+
+    // release()之后的回调直接丢弃
+    private void post(Runnable task) {
+        try {
+            mExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, mAddress + " client released");
+        }
+    }
+
+    private void startStreaming(int block) {
+        if (mResumeBlock > 0) {
+            if (block > 0) {
+                Log.i(TAG, mAddress + " resume from block " + block + "/" + mBlockCount);
+            } else {
+                Log.w(TAG, mAddress + " target restarted, resume from block " + mResumeBlock + " not possible");
+            }
+        }
+        mStreaming = true;
+        mStartBlock = block;
+        mNextBlock = block;
+        mAckedBlocks = block;
+        mWrittenBlocks = block;
+        mLastProgressBlocks = block;
+        mNextTickNanos = System.nanoTime();
+        mLastAckNanos = mNextTickNanos;
+        tick(mSession);
+    }
+
+    private void scheduleTick(final int session, long interval) {
+        long now = System.nanoTime();
+        // 线程被耽误时不补发积压的节拍
+        mNextTickNanos = Math.max(mNextTickNanos + interval, now - interval);
+        long delay = Math.max(0, mNextTickNanos - now);
+        mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                tick(session);
+            }
+        }, delay, TimeUnit.NANOSECONDS);
+    }
+
+    private void tick(int session) {
+        if (session != mSession || mState != STATE_PROGRAMMING) return;
+        if (!mLink.isConnected()) {
+            // 断线回调可能还在路上，按相同的规则判断
+            onLinkLost();
+            return;
+        }
+
+        if (!mRequestDriven && mNextBlock >= mBlockCount && mLink.getPendingWrites() == 0) {
+            // 全部发出、写入完成
+            finish();
+            return;
+        }
+        // 块请求驱动时最后一块可能丢失，等目标校验后断开（重启），没等到就由checkAckTimeout()重发
+
+        if (mRequestDriven) {
+            checkAckTimeout();
+            fillWindow();
+            scheduleTick(session, WINDOW_TICK_INTERVAL * 1000000);
+            return;
+        }
+
+        if (mNextBlock >= mBlockCount) {
+            // 全部发出，等写入完成
+        } else if (mLink.getPendingWrites() >= MAX_PENDING_WRITES) {
+            mPacer.onBackpressure();
+            if (mTimeline != null && !mBackpressured) {
+                mTimeline.onBackpressure(mNextBlock, mLink.getPendingWrites());
+            }
+            mBackpressured = true;
+        } else {
+            mBackpressured = false;
+            writeBlock(mNextBlock++);
+        }
+        scheduleTick(session, mPacer.getIntervalNanos());
+    }
+
+    // 窗口和发送队列有空位就写入
+    private void fillWindow() {
+        while (mNextBlock < mBlockCount && mNextBlock - mAckedBlocks < mWindow) {
+            if (mLink.getPendingWrites() >= MAX_PENDING_WRITES) {
+                if (mTimeline != null && !mBackpressured) {
+                    mTimeline.onBackpressure(mNextBlock, mLink.getPendingWrites());
+                }
+                mBackpressured = true;
+                return;
+            }
+            mBackpressured = false;
+            writeBlock(mNextBlock++);
+        }
+    }
+
+    // 最后几块或重发请求丢失时目标不会再发请求
+    private void checkAckTimeout() {
+        if (mNextBlock <= mAckedBlocks) return;
+        long timeout = mRttNanos > 0
+                ? Math.max(MIN_ACK_TIMEOUT * 1000000, Math.min(ACK_TIMEOUT * 1000000, 4 * mRttNanos))
+                : ACK_TIMEOUT * 1000000;
+        long now = System.nanoTime();
+        if (now - mLastAckNanos <= timeout) return;
+        mPacer.onLoss();
+        if (mTimeline != null) mTimeline.onAckTimeout(mAckedBlocks);
+        rewind(mAckedBlocks);
+        mLastAckNanos = now;
+    }
+
+    // 从block开始重发
+    private void rewind(int block) {
+        if (block < mNextBlock) {
+            if (mTimeline != null) mTimeline.onRewind(block, mNextBlock);
+            mRetransmits += mNextBlock - block;
+            mNextBlock = block;
+        }
+        mRewindBlock = block;
+    }
+
+    private void writeBlock(int block) {
+        byte[] data = new byte[2 + BLOCK_SIZE];
+        data[0] = (byte) block;
+        data[1] = (byte) (block >> 8);
+        mImage.getBlock(block, data, 2);
+        mWriteNanos[block] = System.nanoTime();
+        if (mTimeline != null) {
+            mTimeline.onWrite(block, mRequestDriven ? block - mAckedBlocks : mPacer.getIntervalNanos() / 1000);
+        }
+        mLink.write(GattAttributes.TI_OAD_Image_Block, data, block, mWriteCallback);
+        mListener.onBlockWrite(data);
+    }
+
+    private final OadLink.Callback mWriteCallback = new OadLink.Callback() {
+        @Override
+        public void onWriteComplete(final int tag, final boolean success) {
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mState != STATE_PROGRAMMING || tag < 0) return;
+                    if (mTimeline != null) mTimeline.onWriteDone(tag, success);
+                    if (success) {
+                        mWrittenBlocks++;
+                        if (mRequestDriven) {
+                            fillWindow();
+                        } else {
+                            mPacer.onAcked(1);
+                            reportProgress(mWrittenBlocks);
+                        }
+                    } else {
+                        // 重试后仍失败，从该块重新发送
+                        mPacer.onWriteFailed();
+                        rewind(tag);
+                    }
+                }
+            });
+        }
+    };
+
+    private void onBlockRequest(int block) {
+        if (mState != STATE_PROGRAMMING) return;
+        mRequestDriven = true;
+        if (mTimeline != null) mTimeline.onRequest(block);
+        if (!mStreaming) {
+            // 第一个请求给出续传位置，超出镜像说明数据有误，不能当作已经传完
+            if (block >= mBlockCount) {
+                Log.e(TAG, mAddress + " bad first block request " + block + "/" + mBlockCount);
+                interrupt();
+                return;
+            }
+            startStreaming(block);
+            return;
+        }
+        if (block > mNextBlock) {
+            // 请求的块之前还有没发出的块，目标不可能都收到了
+            Log.e(TAG, mAddress + " bad block request " + block + ", next " + mNextBlock + "/" + mBlockCount);
+            interrupt();
+            return;
+        }
+        long now = System.nanoTime();
+        if (block > mAckedBlocks) {
+            // 目标请求block，说明之前的块都已收到
+            if (mWriteNanos[block - 1] != 0) {
+                long rtt = now - mWriteNanos[block - 1];
+                mRttNanos = mRttNanos == 0 ? rtt : mRttNanos + (rtt - mRttNanos) / 8;
+            }
+            mPacer.onAcked(block - mAckedBlocks);
+            mAckedBlocks = block;
+            mLastAckNanos = now;
+            reportProgress(block);
+            if (block == mBlockCount) {
+                // 每一块都已发出并被目标确认
+                finish();
+                return;
+            }
+        } else if (block == mRewindBlock && (mNextBlock <= block || now - mWriteNanos[block] < 2 * mRttNanos)) {
+            // 已经从这一块重发，重发的块还没到达目标，这是残留的乱序块引起的请求
+        } else {
+            // 重复请求或回退，说明有块丢失
+            mPacer.onLoss();
+            rewind(block);
+        }
+        fillWindow();
+    }
+
+    private void onIdentifyNotify() {
+        if (mState == STATE_PROGRAMMING && !mStreaming) {
+            // 目标返回自己的镜像头，说明拒绝了这个镜像
+            Log.e(TAG, mAddress + " image rejected by target");
+            mListener.onStatusChange(mAddress, STATUS_INCORRECT_IMAGE);
+            interrupt();
+        }
+    }
+
+    private void reportProgress(int blocks) {
+        if (blocks - mLastProgressBlocks < mProgressStep && blocks < mBlockCount) return;
+        mLastProgressBlocks = blocks;
+        mListener.onProgressChanged(mAddress, Math.min(blocks * BLOCK_SIZE, mImageLength), mImageLength,
+                elapsedMillis());
+    }
+
+    // 在回调结束之前写入，回调中就可以通过getLastTimelineFile()拿到文件
+    private void saveTimeline(boolean finished) {
+        if (mTimeline == null) return;
+        mTimeline.end(finished, mRetransmits);
+        try {
+            mLastTimelineFile = mTimeline.save(mTimelineDir);
+            Log.i(TAG, mAddress + " timeline: " + mLastTimelineFile + ", " + mTimeline.getRecordCount() + " records");
+        } catch (IOException e) {
+            Log.e(TAG, mAddress + " save timeline failed", e);
+        }
+        mTimeline = null;
+    }
+
+    private long elapsedMillis() {
+        return (System.nanoTime() - mStartNanos) / 1000000;
+    }
+
+    private int progressBytes() {
+        int blocks = mRequestDriven ? mAckedBlocks : mWrittenBlocks;
+        return Math.min(blocks * BLOCK_SIZE, mImageLength);
+    }
+
+    private void finish() {
+        mState = STATE_IDLE;
+        mSession++;
+        mPacer.logSummary();
+        Log.i(TAG, mAddress + " finished, retransmitted blocks: " + mRetransmits);
+        saveTimeline(true);
+        mListener.onFinished(mAddress, mImageLength, elapsedMillis());
+    }
+
+    private void interrupt() {
+        mState = STATE_IDLE;
+        mSession++;
+        mPacer.logSummary();
+        saveTimeline(false);
+        mListener.onInterrupted(mAddress, progressBytes(), mImageLength, elapsedMillis());
+    }
+
+    @Override
+    public void onDataAvailable(String address, UUID uuid, byte[] data) {
+        if (mState != STATE_PROGRAMMING || data == null) return;
+        if (GattAttributes.TI_OAD_Image_Block.equals(uuid) && data.length >= 2) {
+            final int block = (data[0] & 0xFF) | (data[1] & 0xFF) << 8;
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    onBlockRequest(block);
+                }
+            });
+        } else if (GattAttributes.TI_OAD_Image_Identify.equals(uuid)) {
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    onIdentifyNotify();
+                }
+            });
+        }
+    }
+
+    @Override
+    public void onDisconnected(String address) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                if (mState != STATE_PROGRAMMING) return;
+                onLinkLost();
+            }
+        });
+    }
+
+    // 发完最后一块后目标会重启，断线即完成（目标重启前最后几个块请求可能发不出来，不要求已确认）
+    private void onLinkLost() {
+        if (mNextBlock >= mBlockCount && mLink.getPendingWrites() == 0) {
+            finish();
+        } else {
+            interrupt();
+        }
+    }
+}
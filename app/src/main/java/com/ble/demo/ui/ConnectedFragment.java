@@ -4,11 +4,11 @@ import android.app.Activity;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattService;
-import android.content.BroadcastReceiver;
-import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -23,25 +23,37 @@ import android.widget.ListView;
 import android.widget.TextView;
 
 import androidx.fragment.app.Fragment;
-import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
 import com.ble.api.DataUtil;
 import com.ble.demo.LeDevice;
 import com.ble.demo.MainActivity;
 import com.ble.demo.R;
 import com.ble.demo.util.HexAsciiWatcher;
+import com.ble.demo.util.LeEventBus;
+import com.ble.demo.util.LeListener;
 import com.ble.demo.util.LeProxy;
+import com.ble.demo.util.RxRingBuffer;
+import com.ble.demo.util.WriteHandle;
 import com.ble.gatt.GattAttributes;
 import com.ble.utils.TimeUtil;
+import com.ble.utils.ToastUtil;
 
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 public class ConnectedFragment extends Fragment implements View.OnClickListener {
     private final String TAG = "ConnectedFragment";
 
     private static final int REQ_HEX_INPUT = 3;
+    private static final int MAX_SEND_BYTES = 256;//一次最多发送的字节数
+
+    private static final int MSG_DISCONNECTED = 1;
+    private static final int MSG_DATA_AVAILABLE = 2;
+    private static final int MSG_WRITE_FAILED = 3;
 
     private List<String> mSelectedAddresses;
     private ConnectedDeviceListAdapter mDeviceListAdapter;
@@ -52,55 +64,123 @@ public class ConnectedFragment extends Fragment implements View.OnClickListener
     private CheckBox mBoxEncrypt;
     private EditText mEdtInput;
 
-    private final BroadcastReceiver mLocalReceiver = new BroadcastReceiver() {
+    private final Map<String, RxRingBuffer.Cursor> mRxCursors = new HashMap<>();
+    private RxRingBuffer.Packet mRxPacket;
+    private final StringBuilder mRxText = new StringBuilder();
+    private final Handler mHandler = new MyHandler(this);
 
-        @Override
-        public void onReceive(Context context, Intent intent) {
+    private static class MyHandler extends Handler {
+        final WeakReference<ConnectedFragment> reference;
+
+        MyHandler(ConnectedFragment fragment) {
+            super(Looper.getMainLooper());
+            reference = new WeakReference<>(fragment);
+        }
 
-            String address = intent.getStringExtra(LeProxy.EXTRA_ADDRESS);
+        @Override
+        public void handleMessage(Message msg) {
+            ConnectedFragment fragment = reference.get();
+            if (fragment == null) return;
+
+            switch (msg.what) {
+                case MSG_DISCONNECTED:// 断线
+                    String address = (String) msg.obj;
+                    fragment.mSelectedAddresses.remove(address);
+                    fragment.mDeviceListAdapter.removeDevice(address);
+                    fragment.closeRxCursor(address);
+                    break;
 
-            switch (intent.getAction()) {
-                case LeProxy.ACTION_GATT_DISCONNECTED:// 断线
-                    mSelectedAddresses.remove(address);
-                    mDeviceListAdapter.removeDevice(address);
+                case MSG_DATA_AVAILABLE:// 接收到从机数据
+                    fragment.displayRxData();
                     break;
 
-                case LeProxy.ACTION_DATA_AVAILABLE:// 接收到从机数据
-                    displayRxData(intent);
+                case MSG_WRITE_FAILED:
+                    ToastUtil.show(fragment.getActivity(), "Send failed: " + msg.obj);
                     break;
             }
         }
+    }
+
+    // 回调线程中只发通知，数据在主线程从接收缓冲区读取，未处理的通知会合并
+    // 发送失败（重试后仍失败或超时）时提示
+    private final WriteHandle.Callback mWriteCallback = new WriteHandle.Callback() {
+        @Override
+        public void onComplete(WriteHandle handle) {
+            if (!handle.isSuccess()) {
+                Log.e(TAG, "send failed: " + handle.getAddress() + ", status=" + handle.getStatus());
+                mHandler.obtainMessage(MSG_WRITE_FAILED, handle.getAddress()).sendToTarget();
+            }
+        }
+    };
+
+    private final LeListener mLeListener = new LeListener() {
+        @Override
+        public void onDisconnected(String address) {
+            mHandler.obtainMessage(MSG_DISCONNECTED, address).sendToTarget();
+        }
+
+        @Override
+        public void onDataAvailable(String address, UUID uuid, byte[] data) {
+            if (!mHandler.hasMessages(MSG_DATA_AVAILABLE)) {
+                mHandler.sendEmptyMessage(MSG_DATA_AVAILABLE);
+            }
+        }
     };
 
-    private void displayRxData(Intent intent) {
-        String address = intent.getStringExtra(LeProxy.EXTRA_ADDRESS);
-        String uuid = intent.getStringExtra(LeProxy.EXTRA_UUID);
-        byte[] data = intent.getByteArrayExtra(LeProxy.EXTRA_DATA);
+    private void displayRxData() {
+        boolean changed = false;
+        for (Map.Entry<String, RxRingBuffer.Cursor> entry : mRxCursors.entrySet()) {
+            RxRingBuffer buffer = mLeProxy.getRxBuffer(entry.getKey());
+            if (mRxPacket == null || mRxPacket.data.length < buffer.getSlotSize()) {
+                mRxPacket = buffer.newPacket();
+            }
+            // 界面只显示最新的一包
+            if (!buffer.readLatest(entry.getValue(), mRxPacket)) continue;
 
-        LeDevice device = mDeviceListAdapter.getDevice(address);
-        if (device != null) {
-            String dataStr = "timestamp: " + TimeUtil.timestamp("MM-dd HH:mm:ss.SSS") + '\n'
-                    + "uuid: " + uuid + '\n'
-                    + "length: " + (data == null ? 0 : data.length) + '\n';
-            if (mBoxHex.isChecked()) {
-                dataStr += "data: " + DataUtil.byteArrayToHex(data) + '\n';
-            } else {
-                if (data == null) {
-                    dataStr += "data: ";
-                } else {
-                    dataStr += "data: " + new String(data);
-                }
+            LeDevice device = mDeviceListAdapter.getDevice(entry.getKey());
+            if (device != null) {
+                device.setRxData(formatRxData(mRxPacket));
+                changed = true;
             }
-            device.setRxData(dataStr);
+        }
+        if (changed) {
             mDeviceListAdapter.notifyDataSetChanged();
         }
     }
 
-    private IntentFilter makeFilter() {
-        IntentFilter filter = new IntentFilter();
-        filter.addAction(LeProxy.ACTION_GATT_DISCONNECTED);
-        filter.addAction(LeProxy.ACTION_DATA_AVAILABLE);
-        return filter;
+    private String formatRxData(RxRingBuffer.Packet packet) {
+        StringBuilder sb = mRxText;
+        sb.setLength(0);
+        sb.append("timestamp: ").append(TimeUtil.timestamp("MM-dd HH:mm:ss.SSS")).append('\n')
+                .append("uuid: ").append(packet.uuid).append('\n')
+                .append("length: ").append(packet.length).append('\n')
+                .append("data: ");
+        if (mBoxHex.isChecked()) {
+            packet.appendHex(sb);
+        } else {
+            sb.append(new String(packet.data, 0, packet.length));
+        }
+        return sb.append('\n').toString();
+    }
+
+    private void openRxCursor(String address) {
+        if (!mRxCursors.containsKey(address)) {
+            mRxCursors.put(address, mLeProxy.getRxBuffer(address).openCursor());
+        }
+    }
+
+    private void closeRxCursor(String address) {
+        RxRingBuffer.Cursor cursor = mRxCursors.remove(address);
+        if (cursor != null) {
+            mLeProxy.getRxBuffer(address).closeCursor(cursor);
+        }
+    }
+
+    private void closeAllRxCursors() {
+        for (Map.Entry<String, RxRingBuffer.Cursor> entry : mRxCursors.entrySet()) {
+            mLeProxy.getRxBuffer(entry.getKey()).closeCursor(entry.getValue());
+        }
+        mRxCursors.clear();
     }
 
     public void onCreate(Bundle savedInstanceState) {
@@ -108,7 +188,7 @@ public class ConnectedFragment extends Fragment implements View.OnClickListener
         mDeviceListAdapter = new ConnectedDeviceListAdapter();
         mSelectedAddresses = new ArrayList<>();
         mLeProxy = LeProxy.getInstance();
-        LocalBroadcastManager.getInstance(getActivity()).registerReceiver(mLocalReceiver, makeFilter());
+        mLeProxy.getEventBus().register(mLeListener, LeEventBus.EVENT_DISCONNECTED | LeEventBus.EVENT_DATA_AVAILABLE);
     }
 
     @Override
@@ -150,6 +230,7 @@ public class ConnectedFragment extends Fragment implements View.OnClickListener
         updateEditText(false);
 
         view.findViewById(R.id.btn_send).setOnClickListener(this);
+        view.findViewById(R.id.btn_oad_campaign).setOnClickListener(this);
         mEdtInput.setOnClickListener(this);
         mEdtInput.setOnFocusChangeListener(new View.OnFocusChangeListener() {
             @Override
@@ -170,9 +251,31 @@ public class ConnectedFragment extends Fragment implements View.OnClickListener
             case R.id.edt_msg:
                 goHexInputActivity();
                 break;
+
+            case R.id.btn_oad_campaign:
+                goOadCampaignActivity();
+                break;
         }
     }
 
+    // 批量升级勾选的、支持OAD的设备
+    private void goOadCampaignActivity() {
+        ArrayList<String> addresses = new ArrayList<>();
+        for (String address : mSelectedAddresses) {
+            LeDevice device = mDeviceListAdapter.getDevice(address);
+            if (device != null && device.isOadSupported()) {
+                addresses.add(address);
+            }
+        }
+        if (addresses.isEmpty()) {
+            ToastUtil.show(getActivity(), R.string.oad_please_select_a_device);
+            return;
+        }
+        Intent intent = new Intent(getActivity(), OadCampaignActivity.class);
+        intent.putStringArrayListExtra(OadCampaignActivity.EXTRA_ADDRESSES, addresses);
+        startActivity(intent);
+    }
+
 
     private void goHexInputActivity() {
         if (mBoxHex.isChecked()) {
@@ -212,28 +315,20 @@ public class ConnectedFragment extends Fragment implements View.OnClickListener
             Log.e(TAG, inputStr + " -> " + DataUtil.byteArrayToHex(data));
 
             for (int i = 0; i < mSelectedAddresses.size(); i++) {
-                mLeProxy.send(mSelectedAddresses.get(i), data);
+                mLeProxy.sendStream(mSelectedAddresses.get(i), data).setCallback(mWriteCallback);
             }
         }
     }
 
     private void updateEditText(boolean clearText) {
         mInputWatcher.setTextType(mBoxHex.isChecked() ? HexAsciiWatcher.HEX : HexAsciiWatcher.ASCII);
-        int maxLen;//可输入的字符串长度
+        int maxLen;//可输入的字符串长度，超过一包的数据由LeProxy按MTU分包发送
         String hintText;
         if (mBoxHex.isChecked()) {
-            if (mBoxEncrypt.isChecked()) {
-                maxLen = 34;
-            } else {
-                maxLen = 40;
-            }
-            hintText = getString(R.string.connected_send_hex_hint, maxLen / 2);
+            maxLen = MAX_SEND_BYTES * 2;
+            hintText = getString(R.string.connected_send_hex_hint, MAX_SEND_BYTES);
         } else {
-            if (mBoxEncrypt.isChecked()) {
-                maxLen = 17;
-            } else {
-                maxLen = 20;
-            }
+            maxLen = MAX_SEND_BYTES;
             hintText = getString(R.string.connected_send_ascii_hint, maxLen);
         }
         mInputWatcher.setMaxLength(maxLen);
@@ -252,19 +347,23 @@ public class ConnectedFragment extends Fragment implements View.OnClickListener
         mLeProxy.setEncrypt(mBoxEncrypt.isChecked());
         mSelectedAddresses.clear();
         mDeviceListAdapter.clear();
+        closeAllRxCursors();
         List<BluetoothDevice> connectedDevices = mLeProxy.getConnectedDevices();
         for (int i = 0; i < connectedDevices.size(); i++) {
             String name = connectedDevices.get(i).getName();
             String address = connectedDevices.get(i).getAddress();
             mSelectedAddresses.add(address);
             mDeviceListAdapter.addDevice(new LeDevice(name, address));
+            openRxCursor(address);
         }
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
-        LocalBroadcastManager.getInstance(getActivity()).unregisterReceiver(mLocalReceiver);
+        mLeProxy.getEventBus().unregister(mLeListener);
+        mHandler.removeCallbacksAndMessages(null);
+        closeAllRxCursors();
     }
 
     private class ConnectedDeviceListAdapter extends BaseAdapter {
@@ -5,7 +5,6 @@ import android.content.DialogInterface;
 import android.content.Intent;
 import android.os.Build;
 import android.os.Bundle;
-import android.os.Environment;
 import android.view.Gravity;
 import android.view.MenuItem;
 import android.view.View;
@@ -24,24 +23,22 @@ import androidx.core.content.PermissionChecker;
 
 import com.ble.ble.scan.LeScanner;
 import com.ble.demo.R;
+import com.ble.demo.oad.OadCatalog;
 
-import java.io.File;
-import java.io.FilenameFilter;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
 
 /**
- * 加载本地OAD文件
+ * 加载本地OAD文件，列表来自{@link OadCatalog}的缓存，打开时在后台刷新
  */
 public class FileActivity extends AppCompatActivity {
     static final String TAG = "FileActivity";
 
     public final static String EXTRA_FILE_PATH = "com.ble.demo.ui.FileActivity.EXTRA_FILE_PATH";
 
-    private final File DIR = new File(Environment.getExternalStorageDirectory().getAbsolutePath()
-            + "/" + Environment.DIRECTORY_DOWNLOADS);
     private FileAdapter mFileAdapter;
+    private OadCatalog mCatalog;
 
 
     @Override
@@ -53,7 +50,10 @@ public class FileActivity extends AppCompatActivity {
         setContentView(listView);
 
         getSupportActionBar().setDisplayHomeAsUpEnabled(true);
+        getSupportActionBar().setTitle(OadCatalog.DOWNLOAD_DIR.getAbsolutePath());
 
+        mCatalog = OadCatalog.getInstance(this);
+        mCatalog.addListener(mCatalogListener);
         mFileAdapter = new FileAdapter();
         listView.setAdapter(mFileAdapter);
         listView.setOnItemClickListener(mOnItemClickListener);
@@ -64,7 +64,8 @@ public class FileActivity extends AppCompatActivity {
     protected void onResume() {
         super.onResume();
         if (hasPermission()) {
-            mFileAdapter.updateFiles(getLocalFiles());
+            mFileAdapter.updateFiles(mCatalog.getFiles());
+            mCatalog.refresh();
         } else {
             new AlertDialog.Builder(this)
                     .setCancelable(false)
@@ -92,36 +93,27 @@ public class FileActivity extends AppCompatActivity {
                 == PermissionChecker.PERMISSION_GRANTED;
     }
 
-    private List<String> getLocalFiles() {
-        List<String> fileList = new ArrayList<String>();
-
-        if (DIR.exists()) {
-            getSupportActionBar().setTitle(DIR.getAbsolutePath());
-
-            File[] files = DIR.listFiles(new FilenameFilter() {
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mCatalog.removeListener(mCatalogListener);
+    }
 
-                @Override
-                public boolean accept(File dir, String name) {
-                    String lowercaseName = name.toLowerCase(Locale.ROOT);
-                    return lowercaseName.endsWith(".bin")
-                            || lowercaseName.endsWith(".hexe");
+    private final OadCatalog.Listener mCatalogListener = new OadCatalog.Listener() {
+        @Override
+        public void onCatalogChanged(OadCatalog catalog) {
+            List<OadCatalog.Entry> files = catalog.getFiles();
+            mFileAdapter.updateFiles(files);
+            if (files.isEmpty() && catalog.isRefreshed()) {
+                if (OadCatalog.DOWNLOAD_DIR.exists()) {
+                    Toast.makeText(FileActivity.this, "No OAD images available", Toast.LENGTH_LONG).show();
+                } else {
+                    Toast.makeText(FileActivity.this, OadCatalog.DOWNLOAD_DIR.getAbsolutePath() + " does not exist",
+                            Toast.LENGTH_LONG).show();
                 }
-            });
-
-            if (files != null) {
-                for (File file : files)
-                    if (!file.isDirectory()) {
-                        fileList.add(file.getName());
-                    }
             }
-
-            if (fileList.size() == 0)
-                Toast.makeText(this, "No OAD images available", Toast.LENGTH_LONG).show();
-        } else {
-            Toast.makeText(this, DIR.getAbsolutePath() + " does not exist", Toast.LENGTH_LONG).show();
         }
-        return fileList;
-    }
+    };
 
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
@@ -137,16 +129,16 @@ public class FileActivity extends AppCompatActivity {
         @Override
         public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
             Intent intent = new Intent();
-            intent.putExtra(EXTRA_FILE_PATH, DIR.getAbsolutePath() + File.separator + mFileAdapter.getItem(position));
+            intent.putExtra(EXTRA_FILE_PATH, mFileAdapter.getItem(position).path);
             setResult(RESULT_OK, intent);
             finish();
         }
     };
 
     private class FileAdapter extends BaseAdapter {
-        final List<String> mFiles = new ArrayList<>();
+        final List<OadCatalog.Entry> mFiles = new ArrayList<>();
 
-        void updateFiles(List<String> files) {
+        void updateFiles(List<OadCatalog.Entry> files) {
             mFiles.clear();
             mFiles.addAll(files);
             notifyDataSetChanged();
@@ -156,7 +148,7 @@ public class FileActivity extends AppCompatActivity {
             return mFiles.size();
         }
 
-        public String getItem(int pos) {
+        public OadCatalog.Entry getItem(int pos) {
             return mFiles.get(pos);
         }
 
@@ -175,7 +167,13 @@ public class FileActivity extends AppCompatActivity {
                 view = twName;
             }
 
-            ((TextView) view).setText(mFiles.get(pos));
+            OadCatalog.Entry e = mFiles.get(pos);
+            if (e.imageType < 0) {
+                ((TextView) view).setText(e.getName());
+            } else {
+                ((TextView) view).setText(String.format(Locale.US, "%s  (v0x%04X, %d KB%s)", e.getName(), e.version,
+                        (e.size + 1023) / 1024, e.valid ? "" : ", bad CRC"));
+            }
             return view;
         }
     }
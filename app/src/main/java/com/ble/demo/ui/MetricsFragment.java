@@ -0,0 +1,163 @@
+package com.ble.demo.ui;
+
+import android.bluetooth.BluetoothGatt;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import androidx.annotation.Nullable;
+import androidx.fragment.app.Fragment;
+
+import com.ble.demo.R;
+import com.ble.demo.util.LeMetrics;
+import com.ble.demo.util.LeProxy;
+import com.ble.demo.util.LinkTuner;
+
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * 各设备的收发速率和延时统计，每秒刷新一次
+ */
+public class MetricsFragment extends Fragment implements View.OnClickListener {
+    private static final String TAG = "MetricsFragment";
+
+    private static final int MSG_REFRESH = 1;
+    private static final long REFRESH_INTERVAL = 1000;// ms
+
+    private LeProxy mLeProxy;
+    private TextView mTxtMetrics;
+    // 上一次的快照，用于计算速率
+    private final HashMap<String, LeMetrics.Snapshot> mLastSnapshots = new HashMap<>();
+    private final StringBuilder mText = new StringBuilder();
+    private final Handler mHandler = new MyHandler(this);
+
+    private static class MyHandler extends Handler {
+        final WeakReference<MetricsFragment> reference;
+
+        MyHandler(MetricsFragment fragment) {
+            super(Looper.getMainLooper());
+            reference = new WeakReference<>(fragment);
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            MetricsFragment fragment = reference.get();
+            if (fragment == null) return;
+
+            if (msg.what == MSG_REFRESH) {
+                fragment.refresh();
+                sendEmptyMessageDelayed(MSG_REFRESH, REFRESH_INTERVAL);
+            }
+        }
+    }
+
+    @Override
+    public void onCreate(@Nullable Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        mLeProxy = LeProxy.getInstance();
+    }
+
+    @Nullable
+    @Override
+    public View onCreateView(LayoutInflater inflater, @Nullable ViewGroup container, @Nullable Bundle savedInstanceState) {
+        return inflater.inflate(R.layout.fragment_metrics, container, false);
+    }
+
+    @Override
+    public void onViewCreated(View view, @Nullable Bundle savedInstanceState) {
+        super.onViewCreated(view, savedInstanceState);
+        mTxtMetrics = (TextView) view.findViewById(R.id.txt_metrics);
+        view.findViewById(R.id.btn_reset).setOnClickListener(this);
+    }
+
+    @Override
+    public void onResume() {
+        super.onResume();
+        mHandler.sendEmptyMessage(MSG_REFRESH);
+    }
+
+    @Override
+    public void onPause() {
+        super.onPause();
+        mHandler.removeMessages(MSG_REFRESH);
+    }
+
+    @Override
+    public void onClick(View v) {
+        if (v.getId() == R.id.btn_reset) {
+            mLeProxy.getMetrics().clear();
+            mLastSnapshots.clear();
+            refresh();
+        }
+    }
+
+    private void refresh() {
+        List<LeMetrics.Snapshot> snapshots = mLeProxy.getMetrics().snapshotAll();
+        StringBuilder sb = mText;
+        sb.setLength(0);
+        if (snapshots.isEmpty()) {
+            sb.append(getString(R.string.no_data));
+        }
+        for (LeMetrics.Snapshot s : snapshots) {
+            LeMetrics.Snapshot last = mLastSnapshots.put(s.address, s);
+            double txBps = 0, rxBps = 0, rxPps = 0;
+            if (last != null) {
+                txBps = LeMetrics.Snapshot.rate(last.txBytes, s.txBytes, last.timeNanos, s.timeNanos);
+                rxBps = LeMetrics.Snapshot.rate(last.rxBytes, s.rxBytes, last.timeNanos, s.timeNanos);
+                rxPps = LeMetrics.Snapshot.rate(last.rxPackets, s.rxPackets, last.timeNanos, s.timeNanos);
+            }
+            sb.append(s.address).append(mLeProxy.isConnected(s.address) ? "" : " (disconnected)").append('\n');
+            sb.append(String.format(Locale.US, " TX %.0f B/s, total %d B / %d pkts, failed %d\n",
+                    txBps, s.txBytes, s.txPackets, s.txFailures));
+            sb.append(String.format(Locale.US, " RX %.0f B/s, %.1f notify/s, total %d B / %d pkts\n",
+                    rxBps, rxPps, s.rxBytes, s.rxPackets));
+            LinkTuner.LinkState link = mLeProxy.getLinkTuner().getLinkState(s.address);
+            if (link != null) {
+                sb.append(" link MTU ").append(link.mtu)
+                        .append(", priority ").append(priorityName(link.priority))
+                        .append(", PHY ").append(link.phy == LinkTuner.PHY_2M ? "2M (requested)" : "1M")
+                        .append('\n');
+            }
+            appendLatency(sb, " write", s.writeLatency);
+            appendLatency(sb, " connect", s.connectLatency);
+            sb.append(" last connect ").append(s.lastConnectMillis).append(" ms, discover ")
+                    .append(s.lastDiscoverMillis).append(" ms\n\n");
+        }
+        mTxtMetrics.setText(sb);
+    }
+
+    private static String priorityName(int priority) {
+        switch (priority) {
+            case BluetoothGatt.CONNECTION_PRIORITY_HIGH:
+                return "HIGH";
+            case BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER:
+                return "LOW_POWER";
+            default:
+                return "BALANCED";
+        }
+    }
+
+    private static void appendLatency(StringBuilder sb, String name, LeMetrics.HistogramSnapshot h) {
+        sb.append(name).append(" n=").append(h.count);
+        if (h.count > 0) {
+            sb.append(String.format(Locale.US, " avg %.1f, p50 %.1f, p99 %.1f, max %.1f ms",
+                    h.getMeanUs() / 1000.0, h.getPercentileUs(50) / 1000.0,
+                    h.getPercentileUs(99) / 1000.0, h.maxUs / 1000.0));
+        }
+        sb.append('\n');
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mHandler.removeCallbacksAndMessages(null);
+    }
+}
@@ -2,11 +2,10 @@ package com.ble.demo.ui;
 
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
-import android.content.BroadcastReceiver;
-import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -21,15 +20,20 @@ import android.widget.TextView;
 
 import androidx.annotation.Nullable;
 import androidx.fragment.app.Fragment;
-import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
 import com.ble.api.DataUtil;
 import com.ble.demo.R;
+import com.ble.demo.util.LeEventBus;
+import com.ble.demo.util.LeListener;
 import com.ble.demo.util.LeProxy;
+import com.ble.demo.util.RxRingBuffer;
+import com.ble.demo.util.WriteHandle;
 import com.ble.utils.TimeUtil;
 import com.ble.utils.ToastUtil;
 
+import java.lang.ref.WeakReference;
 import java.util.List;
+import java.util.UUID;
 
 /**
  * 大数据传输，即突破一次只能发送20字节的限制，须手机系统不低于Android5.0
@@ -39,6 +43,10 @@ import java.util.List;
 public class MtuFragment extends Fragment implements View.OnClickListener {
     private static final String TAG = "MtuFragment";
 
+    private static final int MSG_DATA_AVAILABLE = 1;
+    private static final int MSG_MTU_CHANGED = 2;
+    private static final int MSG_WRITE_FAILED = 3;
+
     private LeProxy mLeProxy;
     private Spinner mSpinnerDevice;
     private EditText mEdtTxData;
@@ -49,61 +57,114 @@ public class MtuFragment extends Fragment implements View.OnClickListener {
     private int mDataType = 0;//0-HEX, 1-ASCII
     private ArrayAdapter<String> mDeviceAdapter;
 
-    private int mMtu = 23;
+    private RxRingBuffer.Cursor mRxCursor;
+    private RxRingBuffer.Packet mRxPacket;
+    private String mRxAddress;
+    private final StringBuilder mRxText = new StringBuilder();
+    private final Handler mHandler = new MyHandler(this);
+
+    private static class MyHandler extends Handler {
+        final WeakReference<MtuFragment> reference;
+
+        MyHandler(MtuFragment fragment) {
+            super(Looper.getMainLooper());
+            reference = new WeakReference<>(fragment);
+        }
 
-    private final BroadcastReceiver mGattReceiver = new BroadcastReceiver() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            String address = intent.getStringExtra(LeProxy.EXTRA_ADDRESS);
-            if (LeProxy.ACTION_DATA_AVAILABLE.equals(intent.getAction())) {
-                if (address.equals(mSelectedAddress)) {
-                    displayRxData(intent);
-                }
-            } else if (LeProxy.ACTION_MTU_CHANGED.equals(intent.getAction())) {
-                int status = intent.getIntExtra(LeProxy.EXTRA_STATUS, BluetoothGatt.GATT_FAILURE);
-                if (status == BluetoothGatt.GATT_SUCCESS) {
-                    mMtu = intent.getIntExtra(LeProxy.EXTRA_MTU, 23);
-                    updateTxData();
-                    ToastUtil.show(getActivity(), "MTU has been " + mMtu);
-                } else {
-                    ToastUtil.show(getActivity(), "MTU update error: " + status);
-                }
+        public void handleMessage(Message msg) {
+            MtuFragment fragment = reference.get();
+            if (fragment == null) return;
+
+            switch (msg.what) {
+                case MSG_DATA_AVAILABLE:
+                    fragment.displayRxData();
+                    break;
+
+                case MSG_MTU_CHANGED:
+                    fragment.onMtuChanged(msg.arg1, msg.arg2);
+                    break;
+
+                case MSG_WRITE_FAILED:
+                    ToastUtil.show(fragment.getActivity(), "Send failed: " + msg.obj);
+                    break;
+            }
+        }
+    }
+
+    // 发送失败（重试后仍失败或超时）时提示
+    private final WriteHandle.Callback mWriteCallback = new WriteHandle.Callback() {
+        @Override
+        public void onComplete(WriteHandle handle) {
+            if (!handle.isSuccess()) {
+                Log.e(TAG, "send failed: " + handle.getAddress() + ", status=" + handle.getStatus());
+                mHandler.obtainMessage(MSG_WRITE_FAILED, handle.getAddress()).sendToTarget();
             }
         }
     };
 
+    private final LeListener mLeListener = new LeListener() {
+        @Override
+        public void onDataAvailable(String address, UUID uuid, byte[] data) {
+            if (address.equals(mSelectedAddress) && !mHandler.hasMessages(MSG_DATA_AVAILABLE)) {
+                mHandler.sendEmptyMessage(MSG_DATA_AVAILABLE);
+            }
+        }
 
-    private void displayRxData(Intent intent) {
-        String uuid = intent.getStringExtra(LeProxy.EXTRA_UUID);
-        byte[] data = intent.getByteArrayExtra(LeProxy.EXTRA_DATA);
+        @Override
+        public void onMtuChanged(String address, int mtu, int status) {
+            mHandler.obtainMessage(MSG_MTU_CHANGED, mtu, status).sendToTarget();
+        }
+    };
 
-        String dataStr = "timestamp: " + TimeUtil.timestamp("MM-dd HH:mm:ss.SSS") + '\n'
-                + "uuid: " + uuid + '\n'
-                + "length: " + (data == null ? 0 : data.length) + '\n';
+    private void onMtuChanged(int mtu, int status) {
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            updateTxData();
+            ToastUtil.show(getActivity(), "MTU has been " + mtu);
+        } else {
+            ToastUtil.show(getActivity(), "MTU update error: " + status);
+        }
+    }
+
+    private void displayRxData() {
+        if (mRxCursor == null) return;
+        RxRingBuffer buffer = mLeProxy.getRxBuffer(mRxAddress);
+        if (mRxPacket == null || mRxPacket.data.length < buffer.getSlotSize()) {
+            mRxPacket = buffer.newPacket();
+        }
+        if (!buffer.readLatest(mRxCursor, mRxPacket)) return;
+
+        StringBuilder sb = mRxText;
+        sb.setLength(0);
+        sb.append("timestamp: ").append(TimeUtil.timestamp("MM-dd HH:mm:ss.SSS")).append('\n')
+                .append("uuid: ").append(mRxPacket.uuid).append('\n')
+                .append("length: ").append(mRxPacket.length).append('\n')
+                .append("data: ");
         if (mDataType == 0) {
-            dataStr += "data: " + DataUtil.byteArrayToHex(data);
+            mRxPacket.appendHex(sb);
         } else {
-            if (data == null) {
-                dataStr += "data: ";
-            } else {
-                dataStr += "data: " + new String(data);
-            }
+            sb.append(new String(mRxPacket.data, 0, mRxPacket.length));
         }
-        mTxtRxData.setText(dataStr);
+        mTxtRxData.setText(sb);
     }
 
-    private IntentFilter makeFilter() {
-        IntentFilter filter = new IntentFilter();
-        filter.addAction(LeProxy.ACTION_MTU_CHANGED);
-        filter.addAction(LeProxy.ACTION_DATA_AVAILABLE);
-        return filter;
+    // 切换设备时重新打开接收游标
+    private void updateRxCursor() {
+        if (mRxCursor != null) {
+            mLeProxy.getRxBuffer(mRxAddress).closeCursor(mRxCursor);
+            mRxCursor = null;
+        }
+        mRxAddress = mSelectedAddress;
+        if (mRxAddress != null && mLeProxy.isConnected(mRxAddress)) {
+            mRxCursor = mLeProxy.getRxBuffer(mRxAddress).openCursor();
+        }
     }
 
     @Override
     public void onCreate(@Nullable Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         mLeProxy = LeProxy.getInstance();
-        LocalBroadcastManager.getInstance(getActivity()).registerReceiver(mGattReceiver, makeFilter());
+        mLeProxy.getEventBus().register(mLeListener, LeEventBus.EVENT_DATA_AVAILABLE | LeEventBus.EVENT_MTU_CHANGED);
     }
 
     @Nullable
@@ -148,7 +209,7 @@ public class MtuFragment extends Fragment implements View.OnClickListener {
 
     private void updateTxData() {
         StringBuilder sb = new StringBuilder();
-        int max = mBoxEncrypt.isChecked() ? mMtu - 6 : mMtu - 3;//加密要用去3字节
+        int max = mLeProxy.getMaxPayload(mSelectedAddress);//一包的最大字节数，已扣除加密占用的3字节
 
         if (mDataType == 0) {//hex
             for (int i = 0; i < max; i++) {
@@ -165,7 +226,10 @@ public class MtuFragment extends Fragment implements View.OnClickListener {
     @Override
     public void onDestroy() {
         super.onDestroy();
-        LocalBroadcastManager.getInstance(getActivity()).unregisterReceiver(mGattReceiver);
+        mLeProxy.getEventBus().unregister(mLeListener);
+        mHandler.removeCallbacksAndMessages(null);
+        mSelectedAddress = null;
+        updateRxCursor();
     }
 
     @Override
@@ -209,7 +273,7 @@ public class MtuFragment extends Fragment implements View.OnClickListener {
                 } else {//ascii
                     data = txData.getBytes();
                 }
-                mLeProxy.send(mSelectedAddress, data);
+                mLeProxy.sendStream(mSelectedAddress, data).setCallback(mWriteCallback);
             }
 
         } catch (Exception e) {
@@ -234,6 +298,8 @@ public class MtuFragment extends Fragment implements View.OnClickListener {
             @Override
             public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
                 mSelectedAddress = mDeviceAdapter.getItem(position);
+                updateRxCursor();
+                updateTxData();
             }
 
             @Override
@@ -1,24 +1,19 @@
 package com.ble.demo.ui;
 
-import android.app.Dialog;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattService;
-import android.content.BroadcastReceiver;
-import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.os.Bundle;
 import android.os.Handler;
-import android.os.Message;
 import android.util.Log;
+import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.View.OnClickListener;
-import android.view.Window;
 import android.view.WindowManager;
 import android.widget.AdapterView;
-import android.widget.AdapterView.OnItemClickListener;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.ListView;
@@ -26,8 +21,8 @@ import android.widget.ProgressBar;
 import android.widget.Spinner;
 import android.widget.TextView;
 
+import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
-import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
 import com.ble.api.DataUtil;
 import com.ble.ble.oad.OADListener;
@@ -37,16 +32,28 @@ import com.ble.ble.oad.OADType;
 import com.ble.demo.MainActivity;
 import com.ble.demo.R;
 import com.ble.demo.adapter.LogListAdapter;
+import com.ble.demo.oad.LeOadLink;
+import com.ble.demo.oad.OadCheckpoint;
+import com.ble.demo.oad.OadImage;
+import com.ble.demo.oad.OadImageCache;
+import com.ble.demo.oad.OadImageValidator;
+import com.ble.demo.oad.OadProgressReporter;
+import com.ble.demo.oad.OadTimeline;
+import com.ble.demo.oad.R2OadClient;
+import com.ble.demo.util.LeEventBus;
+import com.ble.demo.util.LeListener;
 import com.ble.demo.util.LeProxy;
+import com.ble.demo.util.RxRingBuffer;
 import com.ble.gatt.GattAttributes;
 import com.ble.utils.TimeUtil;
 import com.ble.utils.ToastUtil;
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.ref.WeakReference;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Locale;
+import java.util.Arrays;
 import java.util.TimerTask;
+import java.util.UUID;
 
 /**
  * CC2541的OAD需判断镜像类别是A还是B，只有类别不同才可以升级
@@ -57,20 +64,22 @@ public class OADActivity extends AppCompatActivity implements OnClickListener, O
     private final String TAG = "OADActivity";
 
     private static final int REQ_FILE_PATH = 1;
+    private static final int MENU_EXPORT_TIMELINE = 1;
+    static final String TIMELINE_DIR = "oad_timeline";
 
     private static final int MSG_OAD_IMAGE_TYPE = 8;
     private static final int MSG_OAD_PREPARED = 9;
-    private static final int MSG_OAD_PROGRESS_CHANGED = 10;
     private static final int MSG_OAD_INTERRUPT = 11;
     private static final int MSG_OAD_FINISH = 12;
     private static final int MSG_OAD_STATUS = 13;
+    private static final int MSG_GATT_CONNECTED = 14;
+    private static final int MSG_GATT_DISCONNECTED = 15;
+    private static final int MSG_DATA_AVAILABLE = 16;
+    private static final int MSG_MTU_CHANGED = 17;
 
     private static final String EXTRA_IMAGE_TYPE = "extra_image_type";
-    private static final String EXTRA_I_BYTES = "extra_i_bytes";
-    private static final String EXTRA_N_BYTES = "extra_n_bytes";
-    private static final String EXTRA_MILLISECONDS = "extra_milliseconds";
 
-    private final List<String> mAssetsFiles = new ArrayList<>();
+    private OadFilePicker mFilePicker;
 
     private TextView mTvConnectionState;
     private TextView mTvTargetImageType;
@@ -83,19 +92,28 @@ public class OADActivity extends AppCompatActivity implements OnClickListener, O
     private ListView mLogList;
     private LogListAdapter mLogListAdapter;
 
-    private int mSendInterval = 20;//发送间隔
+    private int mSendInterval = 0;//发送间隔，0表示自动调整（见R2OadClient）
+    private boolean mAdaptive;//本次升级是否自动调整发送间隔
     private String mDeviceName;
     private String mDeviceAddress;
     private String mFilePath;
-    private final ProgressInfo mProgressInfo = new ProgressInfo();
+    private OadProgressReporter mProgressReporter;
+    // 界面上正在显示的值，没变化时不刷新
+    private int mShownPercent = -1;
+    private long mShownSeconds = -1;
+    private int mShownKBytes = -1;
+    private int mShownRequestedBlock = -1;
+    private int mRequestedBlock = -1;//目标最近一次请求的块，每块都会请求，不逐条打印，随进度一起显示
+    private final StringBuilder mProgressText = new StringBuilder();
     private OADProxy mOADProxy;//升级的关键类
+    private R2OadClient mOadClient;//自动调整发送间隔时使用
+    private String mImageHash;//当前镜像的哈希，用于断点续传
+    private byte[] mTargetIdentify;//目标最近一次Image Identify notify的数据
+    private int mResumeBlock;//从该块继续升级，0表示从头开始
     private LeProxy mLeProxy;
-
-    private static class ProgressInfo {
-        int iBytes;
-        int nBytes;
-        long milliseconds;
-    }
+    private RxRingBuffer.Cursor mRxCursor;
+    private RxRingBuffer.Packet mRxPacket;
+    private boolean mBulkTransfer;
 
     private Handler mHandler = new MyHandler(this);
 
@@ -111,29 +129,55 @@ public class OADActivity extends AppCompatActivity implements OnClickListener, O
             OADActivity activity = weakReference.get();
             if (activity == null) return;
 
-            Bundle data = msg.getData();
             String s = null;
             switch (msg.what) {
                 case MSG_OAD_PREPARED:
                     activity.mBtnStart.setText(R.string.oad_cancel);
+                    // 升级期间保持高速连接间隔
+                    activity.setBulkTransfer(true);
+                    activity.mProgressReporter.reset();
+                    activity.resetProgressUi();
                     // 准备就绪，开始升级
-                    activity.mOADProxy.startProgramming(activity.mSendInterval);
+                    if (activity.mAdaptive) {
+                        activity.mOadClient.startProgramming(activity.mResumeBlock);
+                    } else {
+                        activity.mOADProxy.startProgramming(activity.mSendInterval);
+                    }
                     s = "OAD Prepared";
                     break;
 
                 case MSG_OAD_FINISH:
                 case MSG_OAD_INTERRUPT:
-                    activity.displayData(data);
+                    activity.setBulkTransfer(false);
                     activity.mBtnStart.setText(R.string.oad_start);
-                    break;
-
-                case MSG_OAD_PROGRESS_CHANGED:
-                    activity.displayData(data);
+                    if (activity.mAdaptive) {
+                        s = activity.updateCheckpoint(msg.what == MSG_OAD_FINISH);
+                        File timeline = activity.mOadClient.getLastTimelineFile();
+                        if (timeline != null) activity.appendLog("Timeline: " + timeline.getName());
+                    }
                     break;
 
                 case MSG_OAD_STATUS:
                     s = msg.arg1 + " [" + OADStatus.getMessage(msg.arg1) + "]";
                     break;
+
+                case MSG_GATT_CONNECTED:
+                    activity.mTvConnectionState.setText(R.string.connected);
+                    s = "Connected";
+                    break;
+
+                case MSG_GATT_DISCONNECTED:// 断线
+                    activity.mTvConnectionState.setText(R.string.disconnected);
+                    s = "Disconnected";
+                    break;
+
+                case MSG_DATA_AVAILABLE:
+                    activity.readRxData();
+                    break;
+
+                case MSG_MTU_CHANGED:
+                    s = "MTU Changed: " + msg.arg1;
+                    break;
             }
 
             activity.appendLog(s);
@@ -141,76 +185,116 @@ public class OADActivity extends AppCompatActivity implements OnClickListener, O
     }
 
 
-    private void displayData(Bundle data) {
-        mProgressInfo.iBytes = data.getInt(EXTRA_I_BYTES);
-        mProgressInfo.nBytes = data.getInt(EXTRA_N_BYTES);
-        mProgressInfo.milliseconds = data.getLong(EXTRA_MILLISECONDS);
-
-        updateProgressUi();
-    }
+    // 进度在主线程中按固定频率回调，只刷新有变化的控件
+    private final OadProgressReporter.Listener mProgressListener = new OadProgressReporter.Listener() {
+        @Override
+        public void onProgress(OadProgressReporter reporter) {
+            updateProgressUi(reporter);
+        }
+    };
 
-    private void updateProgressUi() {
-        long seconds = mProgressInfo.milliseconds / 1000;
+    private void updateProgressUi(OadProgressReporter p) {
+        StringBuilder sb = mProgressText;
+        int percent = p.getPercent();
+        if (percent != mShownPercent) {
+            mShownPercent = percent;
+            sb.setLength(0);
+            mTvProgress.setText(sb.append(percent).append('%').toString());
+            mProgressBar.setProgress(percent);
+        }
 
-        int progress = 0;
-        if (mProgressInfo.nBytes != 0) {
-            progress = 100 * mProgressInfo.iBytes / mProgressInfo.nBytes;
+        long seconds = p.getMillis() / 1000;
+        if (seconds != mShownSeconds) {
+            mShownSeconds = seconds;
+            sb.setLength(0);
+            appendTime(sb, seconds);
+            long eta = p.getEtaMillis();
+            if (eta >= 0 && p.getBytes() < p.getTotalBytes()) {
+                appendTime(sb.append("  ETA "), (eta + 999) / 1000);
+            }
+            mTvTime.setText(sb.toString());
         }
-        String time = String.format(Locale.US, "%02d:%02d", seconds / 60, seconds % 60);
-        String bytes = mProgressInfo.iBytes / 1024 + "KB/" + mProgressInfo.nBytes / 1024 + "KB";
 
-        mTvProgress.setText(progress + "%");
-        mTvTime.setText(time);
-        mTvBytes.setText(bytes);
-        mProgressBar.setProgress(progress);
+        int kBytes = p.getBytes() / 1024;
+        if (kBytes != mShownKBytes || mRequestedBlock != mShownRequestedBlock) {
+            mShownKBytes = kBytes;
+            mShownRequestedBlock = mRequestedBlock;
+            sb.setLength(0);
+            sb.append(kBytes).append("KB/").append(p.getTotalBytes() / 1024).append("KB  ");
+            appendRate(sb, p.getInstantRate());
+            if (mRequestedBlock >= 0) sb.append("  Block Rx: ").append(mRequestedBlock);
+            mTvBytes.setText(sb.toString());
+        }
     }
 
-    private final BroadcastReceiver mLocalReceiver = new BroadcastReceiver() {
-
-        @Override
-        public void onReceive(Context context, Intent intent) {
+    private void resetProgressUi() {
+        mShownPercent = -1;
+        mShownSeconds = -1;
+        mShownKBytes = -1;
+        mShownRequestedBlock = -1;
+        mRequestedBlock = -1;
+        updateProgressUi(mProgressReporter);
+    }
 
-            String address = intent.getStringExtra(LeProxy.EXTRA_ADDRESS);
-            if (!address.equals(mDeviceAddress)) return;
+    private static void appendTime(StringBuilder sb, long seconds) {
+        long m = seconds / 60, s = seconds % 60;
+        if (m < 10) sb.append('0');
+        sb.append(m).append(':');
+        if (s < 10) sb.append('0');
+        sb.append(s);
+    }
 
-            String s = null;
-            switch (intent.getAction()) {
-                case LeProxy.ACTION_GATT_DISCONNECTED:// 断线
-                    mTvConnectionState.setText(R.string.disconnected);
-                    s = "Disconnected";
-                    break;
+    // KB/s，保留一位小数
+    private static void appendRate(StringBuilder sb, double bytesPerSecond) {
+        long tenths = Math.round(bytesPerSecond * 10 / 1024);
+        sb.append(tenths / 10).append('.').append(tenths % 10).append("KB/s");
+    }
 
-                case LeProxy.ACTION_GATT_CONNECTED:
-                    mTvConnectionState.setText(R.string.connected);
-                    s = "Connected";
-                    break;
+    // 回调线程中只发通知，界面更新都在主线程
+    private final LeListener mLeListener = new LeListener() {
+        @Override
+        public void onConnected(String address) {
+            mHandler.sendEmptyMessage(MSG_GATT_CONNECTED);
+        }
 
-                case LeProxy.ACTION_DATA_AVAILABLE: {
-                    String uuid = intent.getStringExtra(LeProxy.EXTRA_UUID);
-                    byte[] data = intent.getByteArrayExtra(LeProxy.EXTRA_DATA);
-                    if (GattAttributes.TI_OAD_Image_Identify.toString().equals(uuid)) {
-                        short ver = DataUtil.buildUint16(data[1], data[0]);
-                        Character imgType = ((ver & 1) == 1) ? 'B' : 'A';
-                        // 显示模块当前程序的镜像类型（A/B）
-                        mTvTargetImageType.setText("Target Image Type: " + imgType);
-
-                    } else if (GattAttributes.TI_OAD_Image_Block.toString().equals(uuid)) {
-                        s = "OAD Block Rx: " + DataUtil.byteArrayToHex(data);
-                        Log.e(TAG, s);
-                    }
-                }
-                break;
+        @Override
+        public void onDisconnected(String address) {
+            mHandler.sendEmptyMessage(MSG_GATT_DISCONNECTED);
+        }
 
-                case LeProxy.ACTION_MTU_CHANGED:
-                    int mtu = intent.getIntExtra(LeProxy.EXTRA_MTU, 23);
-                    s = "MTU Changed: " + mtu;
-                    break;
+        @Override
+        public void onDataAvailable(String address, UUID uuid, byte[] data) {
+            if (!mHandler.hasMessages(MSG_DATA_AVAILABLE)) {
+                mHandler.sendEmptyMessage(MSG_DATA_AVAILABLE);
             }
+        }
 
-            appendLog(s);
+        @Override
+        public void onMtuChanged(String address, int mtu, int status) {
+            mHandler.obtainMessage(MSG_MTU_CHANGED, mtu, status).sendToTarget();
         }
     };
 
+    // 按序读取接收缓冲区中的数据
+    private void readRxData() {
+        RxRingBuffer buffer = mLeProxy.getRxBuffer(mDeviceAddress);
+        while (buffer.read(mRxCursor, mRxPacket)) {
+            byte[] data = mRxPacket.data;
+            if (GattAttributes.TI_OAD_Image_Identify.equals(mRxPacket.uuid)) {
+                if (mRxPacket.length < 2) continue;
+                short ver = DataUtil.buildUint16(data[1], data[0]);
+                mTargetIdentify = Arrays.copyOf(data, mRxPacket.length);
+                Character imgType = ((ver & 1) == 1) ? 'B' : 'A';
+                // 显示模块当前程序的镜像类型（A/B）
+                mTvTargetImageType.setText("Target Image Type: " + imgType);
+
+            } else if (GattAttributes.TI_OAD_Image_Block.equals(mRxPacket.uuid)) {
+                // 只记下块号，由mProgressReporter按固定频率刷新界面时显示
+                if (mRxPacket.length >= 2) mRequestedBlock = (data[0] & 0xFF) | (data[1] & 0xFF) << 8;
+            }
+        }
+    }
+
     private void appendLog(String s) {
         if (s != null) {
             mLogListAdapter.add(TimeUtil.timestamp("HH:mm:ss.SSS - ") + s);
@@ -218,46 +302,33 @@ public class OADActivity extends AppCompatActivity implements OnClickListener, O
         }
     }
 
-    private IntentFilter makeFilter() {
-        IntentFilter filter = new IntentFilter();
-        filter.addAction(LeProxy.ACTION_GATT_CONNECTED);
-        filter.addAction(LeProxy.ACTION_GATT_DISCONNECTED);
-        filter.addAction(LeProxy.ACTION_MTU_CHANGED);
-        filter.addAction(LeProxy.ACTION_DATA_AVAILABLE);
-        return filter;
-    }
-
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_oad);
         getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
 
-        try {
-            String[] assetsFiles = getAssets().list("");
-            for (String name : assetsFiles) {
-                if (name.endsWith(".bin") || name.endsWith(".hexe")) {
-                    mAssetsFiles.add(name);
-                }
+        mFilePicker = new OadFilePicker(this, REQ_FILE_PATH, new OadFilePicker.Callback() {
+            @Override
+            public void onFileSelected(String path) {
+                mFilePath = path;
+                mTvFilePath.setText(mFilePath);
             }
-            mAssetsFiles.add("本地文件");
-
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-
+        });
 
         mDeviceName = getIntent().getStringExtra(MainActivity.EXTRA_DEVICE_NAME);
         mDeviceAddress = getIntent().getStringExtra(MainActivity.EXTRA_DEVICE_ADDRESS);
         initView();
 
         mLeProxy = LeProxy.getInstance();
-        /*if (Build.VERSION.SDK_INT >= 21) {
-            BluetoothGatt gatt = mLeProxy.getBluetoothGatt(mDeviceAddress);
-            if (gatt != null)
-                gatt.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
-        }*/
         mOADProxy = mLeProxy.getOADProxy(this, OADType.cc2640_r2_oad);//TODO 升级类型，依模块型号而定
-        LocalBroadcastManager.getInstance(this).registerReceiver(mLocalReceiver, makeFilter());
+        mOadClient = new R2OadClient(mDeviceAddress, new LeOadLink(mLeProxy, mDeviceAddress), this);
+        mOadClient.setTimelineDir(getExternalFilesDir(TIMELINE_DIR));
+        mLeProxy.getEventBus().register(mOadClient, R2OadClient.EVENTS, mDeviceAddress, null);
+        RxRingBuffer rxBuffer = mLeProxy.getRxBuffer(mDeviceAddress);
+        mRxCursor = rxBuffer.openCursor();
+        mRxPacket = rxBuffer.newPacket();
+        mLeProxy.getEventBus().register(mLeListener, LeEventBus.EVENT_CONNECTED | LeEventBus.EVENT_DISCONNECTED
+                | LeEventBus.EVENT_DATA_AVAILABLE | LeEventBus.EVENT_MTU_CHANGED, mDeviceAddress, null);
 
         //这一步只有CC2541 OAD才需要
         //new Timer().schedule(new GetTargetImgInfoTask(mDeviceAddress), 100, 100);
@@ -280,7 +351,8 @@ public class OADActivity extends AppCompatActivity implements OnClickListener, O
         mTvFilePath.setText(mFilePath);
         mBtnStart.setOnClickListener(this);
 
-        updateProgressUi();
+        mProgressReporter = new OadProgressReporter(mProgressListener);
+        resetProgressUi();
 
         findViewById(R.id.oad_btn_load_file).setOnClickListener(this);
 
@@ -289,13 +361,13 @@ public class OADActivity extends AppCompatActivity implements OnClickListener, O
         ArrayAdapter<String> intervalAdapter = new ArrayAdapter<String>(this, android.R.layout.simple_spinner_item, intervals);
         Spinner intervalSpinner = (Spinner) findViewById(R.id.oad_sp_send_interval);
         intervalSpinner.setAdapter(intervalAdapter);
-        intervalSpinner.setSelection(1);// 默认20ms
+        intervalSpinner.setSelection(0);// 默认自动调整
         intervalSpinner.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
 
             @Override
             public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
                 String s = intervals[position];
-                mSendInterval = Integer.valueOf(s.substring(0, s.indexOf("ms")));
+                mSendInterval = s.endsWith("ms") ? Integer.valueOf(s.substring(0, s.indexOf("ms"))) : 0;
                 Log.i(TAG, "发送间隔：" + mSendInterval + "ms");
             }
 
@@ -354,19 +426,61 @@ public class OADActivity extends AppCompatActivity implements OnClickListener, O
         }
     }
 
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        menu.add(Menu.NONE, MENU_EXPORT_TIMELINE, Menu.NONE, R.string.oad_export_timeline);
+        return true;
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         if (item.getItemId() == android.R.id.home) {
             onBackPressed();
             return true;
         }
+        if (item.getItemId() == MENU_EXPORT_TIMELINE) {
+            exportTimeline();
+            return true;
+        }
         return super.onOptionsItemSelected(item);
     }
 
+    // 把最近一次升级的时间线导出为CSV（与.oadt文件同目录同名）
+    private void exportTimeline() {
+        final File timeline = mOadClient.getLastTimelineFile();
+        if (timeline == null) {
+            ToastUtil.show(this, R.string.oad_no_timeline);
+            return;
+        }
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                String name = timeline.getName();
+                final File csv = new File(timeline.getParentFile(),
+                        name.substring(0, name.length() - OadTimeline.FILE_SUFFIX.length()) + ".csv");
+                String s;
+                try {
+                    OadTimeline.exportCsv(timeline, csv);
+                    s = "Timeline exported: " + csv.getAbsolutePath();
+                } catch (IOException e) {
+                    Log.e(TAG, "exportTimeline() - " + timeline, e);
+                    s = "Timeline export failed: " + e.getMessage();
+                }
+                final String log = s;
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        appendLog(log);
+                    }
+                });
+            }
+        }, "OadTimelineExport").start();
+    }
+
     @Override
     public void onBackPressed() {
         // 重写返回键事件
-        if (mOADProxy.isProgramming()) {
+        if (isProgramming()) {
             ToastUtil.show(this, R.string.oad_programming);
         } else {
             super.onBackPressed();
@@ -379,26 +493,48 @@ public class OADActivity extends AppCompatActivity implements OnClickListener, O
         super.onDestroy();
         Log.e(TAG, "onDestroy()");
         mOADProxy.release();
+        mFilePicker.release();
+        mLeProxy.getEventBus().unregister(mOadClient);
+        mOadClient.release();
+        setBulkTransfer(false);
         getWindow().clearFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
-        LocalBroadcastManager.getInstance(this).unregisterReceiver(mLocalReceiver);
+        mLeProxy.getEventBus().unregister(mLeListener);
+        mLeProxy.getRxBuffer(mDeviceAddress).closeCursor(mRxCursor);
+        mHandler.removeCallbacksAndMessages(null);
+        mProgressReporter.release();
+    }
+
+    private void setBulkTransfer(boolean bulk) {
+        if (mBulkTransfer == bulk) return;
+        mBulkTransfer = bulk;
+        if (bulk) {
+            mLeProxy.getLinkTuner().beginBulkTransfer(mDeviceAddress);
+        } else {
+            mLeProxy.getLinkTuner().endBulkTransfer(mDeviceAddress);
+        }
     }
 
     @Override
     public void onClick(View v) {
         switch (v.getId()) {
             case R.id.oad_btn_load_file:// 加载升级文件
-                showLoadFileMenu();
+                mFilePicker.show();
                 break;
 
             case R.id.oad_btn_start:
-                if (mOADProxy.isProgramming()) {
+                if (isProgramming()) {
                     // 取消升级
-                    mOADProxy.stopProgramming();
+                    if (mAdaptive) {
+                        mOadClient.stopProgramming();
+                    } else {
+                        mOADProxy.stopProgramming();
+                    }
                 } else {
                     // 开始升级
                     if (mFilePath != null) {
-                        boolean isAssets = mAssetsFiles.contains(mFilePath);
-                        mOADProxy.prepare(mDeviceAddress, mFilePath, isAssets);
+                        boolean isAssets = mFilePicker.isAssets(mFilePath);
+                        mAdaptive = mSendInterval == 0;
+                        preflight(mFilePath, isAssets);
                     } else {
                         ToastUtil.show(this, R.string.oad_please_select_a_image);
                     }
@@ -407,45 +543,136 @@ public class OADActivity extends AppCompatActivity implements OnClickListener, O
         }
     }
 
-    /**
-     * 加载升级文件
-     */
-    private void showLoadFileMenu() {
-        final Dialog dialog = new Dialog(this);
-        dialog.requestWindowFeature(Window.FEATURE_NO_TITLE);
-        ListView menuList = new ListView(this);
-
-        menuList.setAdapter(new ArrayAdapter<>(this, R.layout.text_view, mAssetsFiles));
-        menuList.setOnItemClickListener(new OnItemClickListener() {
+    private boolean isProgramming() {
+        return mOADProxy.isProgramming() || mOadClient.isProgramming();
+    }
 
+    // 在后台加载镜像（已缓存时直接返回）并检查，有问题的镜像不再花时间传输
+    private void preflight(final String path, final boolean isAssets) {
+        final byte[] targetIdentify = mTargetIdentify;
+        mBtnStart.setEnabled(false);
+        new Thread(new Runnable() {
             @Override
-            public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
-
-                if (position < mAssetsFiles.size() - 1) {
-                    // 加载assets文件
-                    mFilePath = mAssetsFiles.get(position);
-                    mTvFilePath.setText(mFilePath);
-                } else {
-                    // 加载本地文件（Download目录）
-                    startActivityForResult(new Intent(OADActivity.this, FileActivity.class), REQ_FILE_PATH);
+            public void run() {
+                try {
+                    final OadImage image = OadImageCache.getInstance().load(OADActivity.this, path, isAssets);
+                    final OadImageValidator.Result result = OadImageValidator.validate(image, targetIdentify);
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (!isFinishing()) onPreflightDone(image, result, path, isAssets);
+                        }
+                    });
+                } catch (final IOException | IllegalArgumentException e) {
+                    Log.e(TAG, "read image failed: " + path, e);
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            mBtnStart.setEnabled(true);
+                            ToastUtil.show(OADActivity.this, "Read file failed: " + e.getMessage());
+                        }
+                    });
                 }
-                dialog.dismiss();
             }
-        });
-        dialog.setContentView(menuList);
-        dialog.show();
+        }).start();
+    }
+
+    private void onPreflightDone(final OadImage image, OadImageValidator.Result result,
+                                 final String path, final boolean isAssets) {
+        mBtnStart.setEnabled(true);
+        Log.i(TAG, "preflight " + path + ": " + result);
+        for (String w : result.warnings) {
+            appendLog("Image warning: " + w);
+        }
+        if (!result.targetChecked) {
+            // 目标还没返回过Image Identify，版本和UID没有比较，由目标在收到镜像头后决定是否接受
+            appendLog("Image checked, target checks skipped (no Image Identify from target)");
+        }
+        if (result.isValid()) {
+            prepare(image, path, isAssets);
+            return;
+        }
+
+        for (String e : result.errors) {
+            appendLog("Image error: " + e);
+        }
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.oad_preflight_failed)
+                .setMessage(result.toString())
+                .setPositiveButton(android.R.string.cancel, null)
+                .setNegativeButton(R.string.oad_start_anyway, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        prepare(image, path, isAssets);
+                    }
+                })
+                .show();
+    }
+
+    private void prepare(OadImage image, String path, boolean isAssets) {
+        if (mAdaptive) {
+            offerResume(image);
+        } else {
+            mOADProxy.prepare(mDeviceAddress, path, isAssets);
+        }
+    }
+
+    private void offerResume(final OadImage image) {
+        String hash = image.getHash();
+        mImageHash = hash;
+        mResumeBlock = 0;
+        final OadCheckpoint checkpoint = OadCheckpoint.load(this, mDeviceAddress);
+        if (checkpoint == null || !checkpoint.matches(hash, OADType.cc2640_r2_oad.name())) {
+            mOadClient.prepare(image);
+            return;
+        }
+
+        int percent = 100 * checkpoint.ackedBlocks / checkpoint.blockCount;
+        new AlertDialog.Builder(this)
+                .setMessage(getString(R.string.oad_resume_message, percent, checkpoint.getSavedBytes() / 1024))
+                .setCancelable(false)
+                .setPositiveButton(R.string.oad_resume, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        mResumeBlock = checkpoint.ackedBlocks;
+                        mOadClient.prepare(image);
+                    }
+                })
+                .setNegativeButton(R.string.oad_restart, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        OadCheckpoint.clear(OADActivity.this, mDeviceAddress);
+                        mOadClient.prepare(image);
+                    }
+                })
+                .show();
+    }
+
+    /**
+     * 升级结束后更新断点：完成则清除，中断则记录目标已确认的块
+     *
+     * @return 要显示的日志
+     */
+    private String updateCheckpoint(boolean finished) {
+        int resumed = mOadClient.getResumedBlocks();
+        String s = resumed > 0 ? "Resumed from block " + resumed + ", saved "
+                + resumed * R2OadClient.BLOCK_SIZE + " bytes" : null;
+        if (finished) {
+            OadCheckpoint.clear(this, mDeviceAddress);
+            return s;
+        }
+        int acked = mOadClient.getAckedBlocks();
+        if (acked > 0 && mImageHash != null) {
+            OadCheckpoint.save(this, new OadCheckpoint(mDeviceAddress, mImageHash, acked,
+                    mOadClient.getBlockCount(), OADType.cc2640_r2_oad.name()));
+            s = (s == null ? "" : s + "; ") + "Checkpoint saved at block " + acked;
+        }
+        return s;
     }
 
     @Override
     public void onActivityResult(int requestCode, int resultCode, Intent data) {
-        if (resultCode == RESULT_OK && requestCode == REQ_FILE_PATH) {
-            String filepath = data.getStringExtra(FileActivity.EXTRA_FILE_PATH);
-            if (filepath != null) {
-                mFilePath = filepath;
-                mTvFilePath.setText(mFilePath);
-            }
-            Log.e(TAG, "########### " + mFilePath);
-        }
+        mFilePicker.onActivityResult(requestCode, resultCode, data);
         super.onActivityResult(requestCode, resultCode, data);
     }
 
@@ -458,19 +685,23 @@ public class OADActivity extends AppCompatActivity implements OnClickListener, O
     @Override
     public void onFinished(String address, int nBytes, long milliseconds) {
         // 升级完毕，这里只是APP端发送完所有有数据
-        handleMessage(MSG_OAD_FINISH, nBytes, nBytes, milliseconds);
+        mProgressReporter.update(nBytes, nBytes, milliseconds);
+        mProgressReporter.flush();
+        mHandler.sendEmptyMessage(MSG_OAD_FINISH);
     }
 
     @Override
     public void onInterrupted(String address, int iBytes, int nBytes, long milliseconds) {
         // 升级异常中断
-        handleMessage(MSG_OAD_INTERRUPT, iBytes, nBytes, milliseconds);
+        mProgressReporter.update(iBytes, nBytes, milliseconds);
+        mProgressReporter.flush();
+        mHandler.sendEmptyMessage(MSG_OAD_INTERRUPT);
     }
 
     @Override
     public void onProgressChanged(String address, int iBytes, int nBytes, long milliseconds) {
-        // 升级进度
-        handleMessage(MSG_OAD_PROGRESS_CHANGED, iBytes, nBytes, milliseconds);
+        // 升级进度，可能每一块都回调，这里只记录，由mProgressReporter合并后刷新界面
+        mProgressReporter.update(iBytes, nBytes, milliseconds);
     }
 
     @Override
@@ -486,26 +717,6 @@ public class OADActivity extends AppCompatActivity implements OnClickListener, O
         } else {
             Log.e(TAG, "升级异常：" + OADStatus.getMessage(status));
         }
-        Message msg = new Message();
-        msg.what = MSG_OAD_STATUS;
-        msg.arg1 = status;
-        mHandler.sendMessage(msg);
-    }
-
-    /**
-     * @param what
-     * @param iBytes       已经升级（发送）的字节数
-     * @param nBytes       总的字节数
-     * @param milliseconds 升级时间（ms）
-     */
-    private void handleMessage(int what, int iBytes, int nBytes, long milliseconds) {
-        Bundle data = new Bundle();
-        data.putInt(EXTRA_I_BYTES, iBytes);
-        data.putInt(EXTRA_N_BYTES, nBytes);
-        data.putLong(EXTRA_MILLISECONDS, milliseconds);
-        Message msg = new Message();
-        msg.what = what;
-        msg.setData(data);
-        mHandler.sendMessage(msg);
+        mHandler.obtainMessage(MSG_OAD_STATUS, status, 0).sendToTarget();
     }
 }
\ No newline at end of file
@@ -0,0 +1,353 @@
+package com.ble.demo.ui;
+
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Message;
+import android.util.Log;
+import android.view.MenuItem;
+import android.view.View;
+import android.view.WindowManager;
+import android.widget.AdapterView;
+import android.widget.ArrayAdapter;
+import android.widget.Button;
+import android.widget.ProgressBar;
+import android.widget.Spinner;
+import android.widget.TextView;
+
+import androidx.appcompat.app.AlertDialog;
+import androidx.appcompat.app.AppCompatActivity;
+
+import com.ble.ble.oad.OADStatus;
+import com.ble.demo.R;
+import com.ble.demo.oad.OadCampaign;
+import com.ble.demo.oad.OadImage;
+import com.ble.demo.oad.OadImageCache;
+import com.ble.demo.oad.OadImageValidator;
+import com.ble.demo.util.LeProxy;
+import com.ble.utils.ToastUtil;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 批量OAD：用同一个镜像升级ConnectedFragment中勾选的设备
+ */
+public class OadCampaignActivity extends AppCompatActivity implements View.OnClickListener {
+    private static final String TAG = "OadCampaignActivity";
+
+    public static final String EXTRA_ADDRESSES = "extra_addresses";
+
+    private static final int REQ_FILE_PATH = 1;
+
+    private static final int MSG_IMAGE_LOADED = 1;
+    private static final int MSG_IMAGE_FAILED = 2;
+    private static final int MSG_REFRESH = 3;
+    private static final int MSG_FINISHED = 4;
+
+    private static final long REFRESH_INTERVAL = 500;// ms
+
+    private OadFilePicker mFilePicker;
+    private ArrayList<String> mAddresses;
+    private String mFilePath;
+    private int mMaxConcurrent = 2;
+    private LeProxy mLeProxy;
+    private OadCampaign mCampaign;
+    private boolean mRunning;
+    private int mImageLength;
+
+    private TextView mTvFilePath;
+    private TextView mTvProgress;
+    private TextView mTvDevices;
+    private ProgressBar mProgressBar;
+    private Button mBtnStart;
+    private final StringBuilder mText = new StringBuilder();
+    private List<OadCampaign.Status> mShownStatus;// 界面上正在显示的快照
+
+    private final Handler mHandler = new MyHandler(this);
+
+    private static class MyHandler extends Handler {
+        final WeakReference<OadCampaignActivity> reference;
+
+        MyHandler(OadCampaignActivity activity) {
+            reference = new WeakReference<>(activity);
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            OadCampaignActivity activity = reference.get();
+            if (activity == null) return;
+
+            switch (msg.what) {
+                case MSG_IMAGE_LOADED:
+                    activity.startCampaign((OadImage) msg.obj);
+                    break;
+
+                case MSG_IMAGE_FAILED:
+                    activity.mBtnStart.setEnabled(true);
+                    ToastUtil.show(activity, (String) msg.obj);
+                    break;
+
+                case MSG_REFRESH:
+                    activity.refresh();
+                    if (activity.mRunning) sendEmptyMessageDelayed(MSG_REFRESH, REFRESH_INTERVAL);
+                    break;
+
+                case MSG_FINISHED:
+                    activity.onCampaignFinished((OadCampaign.Report) msg.obj);
+                    break;
+            }
+        }
+    }
+
+    // 升级线程中只发通知，界面定时从OadCampaign读取状态
+    private final OadCampaign.Callback mCampaignCallback = new OadCampaign.Callback() {
+        @Override
+        public void onCampaignFinished(OadCampaign.Report report) {
+            mHandler.obtainMessage(MSG_FINISHED, report).sendToTarget();
+        }
+
+        @Override
+        public void onPrepared(String address) {
+            Log.i(TAG, address + " prepared");
+        }
+
+        @Override
+        public void onFinished(String address, int nBytes, long milliseconds) {
+            Log.i(TAG, address + " finished in " + milliseconds + " ms");
+        }
+
+        @Override
+        public void onInterrupted(String address, int iBytes, int nBytes, long milliseconds) {
+            Log.w(TAG, address + " interrupted at " + iBytes + "/" + nBytes);
+        }
+
+        @Override
+        public void onProgressChanged(String address, int iBytes, int nBytes, long milliseconds) {
+        }
+
+        @Override
+        public void onBlockWrite(byte[] data) {
+        }
+
+        @Override
+        public void onStatusChange(String address, int status) {
+            Log.i(TAG, address + " status " + status);
+        }
+    };
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_oad_campaign);
+        getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
+
+        mLeProxy = LeProxy.getInstance();
+        mAddresses = getIntent().getStringArrayListExtra(EXTRA_ADDRESSES);
+        if (mAddresses == null) mAddresses = new ArrayList<>();
+        mFilePicker = new OadFilePicker(this, REQ_FILE_PATH, new OadFilePicker.Callback() {
+            @Override
+            public void onFileSelected(String path) {
+                mFilePath = path;
+                mTvFilePath.setText(mFilePath);
+            }
+        });
+        initView();
+    }
+
+    private void initView() {
+        getSupportActionBar().setDisplayHomeAsUpEnabled(true);
+        getSupportActionBar().setTitle(R.string.oad_campaign);
+        getSupportActionBar().setSubtitle(mAddresses.size() + " devices");
+
+        mTvFilePath = (TextView) findViewById(R.id.campaign_tv_filepath);
+        mTvProgress = (TextView) findViewById(R.id.campaign_tv_progress);
+        mTvDevices = (TextView) findViewById(R.id.campaign_tv_devices);
+        mProgressBar = (ProgressBar) findViewById(R.id.campaign_progressBar);
+        mBtnStart = (Button) findViewById(R.id.campaign_btn_start);
+        mBtnStart.setOnClickListener(this);
+        findViewById(R.id.campaign_btn_load_file).setOnClickListener(this);
+
+        final String[] values = getResources().getStringArray(R.array.oad_campaign_concurrency_values);
+        Spinner spinner = (Spinner) findViewById(R.id.campaign_sp_concurrency);
+        spinner.setAdapter(new ArrayAdapter<>(this, android.R.layout.simple_spinner_item, values));
+        spinner.setSelection(1);
+        spinner.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+            @Override
+            public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+                mMaxConcurrent = Integer.parseInt(values[position]);
+                if (mCampaign != null) mCampaign.setMaxConcurrent(mMaxConcurrent);
+            }
+
+            @Override
+            public void onNothingSelected(AdapterView<?> parent) {
+            }
+        });
+
+        mTvDevices.setText(join(mAddresses));
+    }
+
+    private static String join(List<String> addresses) {
+        StringBuilder sb = new StringBuilder();
+        for (String address : addresses) {
+            sb.append(address).append('\n');
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public void onClick(View v) {
+        switch (v.getId()) {
+            case R.id.campaign_btn_load_file:
+                if (!mRunning) mFilePicker.show();
+                break;
+
+            case R.id.campaign_btn_start:
+                if (mRunning) {
+                    mCampaign.cancel();
+                } else if (mFilePath == null) {
+                    ToastUtil.show(this, R.string.oad_please_select_a_image);
+                } else if (mAddresses.isEmpty()) {
+                    ToastUtil.show(this, R.string.oad_please_select_a_device);
+                } else {
+                    mBtnStart.setEnabled(false);
+                    loadImage(mFilePath, mFilePicker.isAssets(mFilePath));
+                }
+                break;
+        }
+    }
+
+    // 镜像只加载、检查一次，所有设备共享
+    private void loadImage(final String path, final boolean isAssets) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    OadImage image = OadImageCache.getInstance().load(OadCampaignActivity.this, path, isAssets);
+                    OadImageValidator.Result result = OadImageValidator.validate(image);
+                    Log.i(TAG, "preflight " + path + ": " + result);
+                    if (result.isValid()) {
+                        mHandler.obtainMessage(MSG_IMAGE_LOADED, image).sendToTarget();
+                    } else {
+                        mHandler.obtainMessage(MSG_IMAGE_FAILED, "Invalid image: " + result.errors.get(0)).sendToTarget();
+                    }
+                } catch (IOException | IllegalArgumentException e) {
+                    Log.e(TAG, "read image failed: " + path, e);
+                    mHandler.obtainMessage(MSG_IMAGE_FAILED, "Read file failed: " + e.getMessage()).sendToTarget();
+                }
+            }
+        }).start();
+    }
+
+    private void startCampaign(OadImage image) {
+        mBtnStart.setEnabled(true);
+        if (mCampaign != null) mCampaign.release();
+        mCampaign = new OadCampaign(mLeProxy, image);
+        mImageLength = image.getImageLength();
+        mCampaign.setCallback(mCampaignCallback);
+        mCampaign.setMaxConcurrent(mMaxConcurrent);
+        mCampaign.setTimelineDir(getExternalFilesDir(OADActivity.TIMELINE_DIR));
+        mCampaign.start(mAddresses);
+        mRunning = true;
+        mBtnStart.setText(R.string.oad_cancel);
+        mHandler.sendEmptyMessage(MSG_REFRESH);
+    }
+
+    // 快照没变时不重新拼接文本
+    private void refresh() {
+        if (mCampaign == null) return;
+        List<OadCampaign.Status> list = mCampaign.getStatus();
+        if (list == mShownStatus) return;
+        mShownStatus = list;
+        long done = 0;
+        StringBuilder sb = mText;
+        sb.setLength(0);
+        for (OadCampaign.Status s : list) {
+            done += s.state == OadCampaign.STATE_SUCCESS ? mImageLength : s.iBytes;
+            sb.append(s.address).append("  ").append(stateName(s.state));
+            if (s.nBytes > 0) {
+                sb.append("  ").append(100L * s.iBytes / s.nBytes).append("%  ")
+                        .append(s.milliseconds / 1000).append('.').append(s.milliseconds / 100 % 10).append('s');
+            }
+            if (s.oadStatus > 0) sb.append("  [").append(OADStatus.getMessage(s.oadStatus)).append(']');
+            if (s.error != null) sb.append("  ").append(s.error);
+            sb.append('\n');
+        }
+        long total = (long) mImageLength * list.size();
+        int progress = total > 0 ? (int) (100 * done / total) : 0;
+        mTvProgress.setText(progress + "%  (" + done / 1024 + "KB/" + total / 1024 + "KB)");
+        mProgressBar.setProgress(progress);
+        mTvDevices.setText(sb);
+    }
+
+    private static String stateName(int state) {
+        switch (state) {
+            case OadCampaign.STATE_QUEUED:
+                return "QUEUED";
+            case OadCampaign.STATE_RUNNING:
+                return "RUNNING";
+            case OadCampaign.STATE_SUCCESS:
+                return "SUCCESS";
+            case OadCampaign.STATE_FAILED:
+                return "FAILED";
+            default:
+                return "CANCELLED";
+        }
+    }
+
+    private void onCampaignFinished(OadCampaign.Report report) {
+        mRunning = false;
+        mHandler.removeMessages(MSG_REFRESH);
+        refresh();
+        mBtnStart.setText(R.string.oad_start);
+
+        StringBuilder sb = new StringBuilder(getString(R.string.oad_campaign_report, report.succeeded,
+                report.failed, report.cancelled, report.milliseconds / 1000));
+        for (OadCampaign.Status s : report.devices) {
+            if (s.state != OadCampaign.STATE_SUCCESS) {
+                sb.append('\n').append(s.address).append(' ').append(stateName(s.state));
+                if (s.error != null) sb.append(": ").append(s.error);
+            }
+        }
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.oad_campaign)
+                .setMessage(sb)
+                .setPositiveButton(android.R.string.ok, null)
+                .show();
+    }
+
+    @Override
+    public void onActivityResult(int requestCode, int resultCode, Intent data) {
+        mFilePicker.onActivityResult(requestCode, resultCode, data);
+        super.onActivityResult(requestCode, resultCode, data);
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if (item.getItemId() == android.R.id.home) {
+            onBackPressed();
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    @Override
+    public void onBackPressed() {
+        if (mRunning) {
+            ToastUtil.show(this, R.string.oad_programming);
+        } else {
+            super.onBackPressed();
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (mCampaign != null) mCampaign.release();
+        mFilePicker.release();
+        getWindow().clearFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
+        mHandler.removeCallbacksAndMessages(null);
+    }
+}
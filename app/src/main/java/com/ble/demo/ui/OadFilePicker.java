@@ -0,0 +1,118 @@
+package com.ble.demo.ui;
+
+import android.app.Activity;
+import android.app.Dialog;
+import android.content.Intent;
+import android.view.View;
+import android.view.Window;
+import android.widget.AdapterView;
+import android.widget.ArrayAdapter;
+import android.widget.ListView;
+
+import com.ble.demo.R;
+import com.ble.demo.oad.OadCatalog;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 选择升级文件，{@link OADActivity}和{@link OadCampaignActivity}共用：
+ * 列出assets中的镜像，最后一项"本地文件"打开{@link FileActivity}
+ * <p>
+ * assets列表由OadCatalog在后台刷新，变化时通知菜单的adapter，菜单打开时也能看到刷新后的结果
+ */
+class OadFilePicker {
+    private static final String LOCAL_FILE = "本地文件";
+
+    interface Callback {
+        void onFileSelected(String path);
+    }
+
+    private final Activity mActivity;
+    private final int mRequestCode;
+    private final Callback mCallback;
+    private final List<String> mAssetsFiles = new ArrayList<>();
+    private final ArrayAdapter<String> mAdapter;
+
+    private final OadCatalog.Listener mCatalogListener = new OadCatalog.Listener() {
+        @Override
+        public void onCatalogChanged(OadCatalog catalog) {
+            updateAssetsFiles(catalog);
+        }
+    };
+
+    /**
+     * @param requestCode 打开FileActivity的请求码，结果交给{@link #onActivityResult}
+     */
+    OadFilePicker(Activity activity, int requestCode, Callback callback) {
+        mActivity = activity;
+        mRequestCode = requestCode;
+        mCallback = callback;
+        mAdapter = new ArrayAdapter<>(activity, R.layout.text_view);
+
+        OadCatalog catalog = OadCatalog.getInstance(activity);
+        catalog.addListener(mCatalogListener);
+        updateAssetsFiles(catalog);
+        catalog.refresh();
+    }
+
+    private void updateAssetsFiles(OadCatalog catalog) {
+        mAssetsFiles.clear();
+        for (OadCatalog.Entry e : catalog.getAssets()) {
+            mAssetsFiles.add(e.path);
+        }
+        mAdapter.setNotifyOnChange(false);
+        mAdapter.clear();
+        mAdapter.addAll(mAssetsFiles);
+        mAdapter.add(LOCAL_FILE);
+        mAdapter.notifyDataSetChanged();
+    }
+
+    /**
+     * path是否是assets中的文件
+     */
+    boolean isAssets(String path) {
+        return mAssetsFiles.contains(path);
+    }
+
+    void show() {
+        final Dialog dialog = new Dialog(mActivity);
+        dialog.requestWindowFeature(Window.FEATURE_NO_TITLE);
+        ListView menuList = new ListView(mActivity);
+
+        menuList.setAdapter(mAdapter);
+        menuList.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+
+            @Override
+            public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+                if (position < mAdapter.getCount() - 1) {
+                    // 加载assets文件
+                    mCallback.onFileSelected(mAdapter.getItem(position));
+                } else {
+                    // 加载本地文件（Download目录）
+                    mActivity.startActivityForResult(new Intent(mActivity, FileActivity.class), mRequestCode);
+                }
+                dialog.dismiss();
+            }
+        });
+        dialog.setContentView(menuList);
+        dialog.show();
+    }
+
+    /**
+     * 在Activity.onActivityResult()中调用
+     */
+    void onActivityResult(int requestCode, int resultCode, Intent data) {
+        if (resultCode == Activity.RESULT_OK && requestCode == mRequestCode) {
+            String filepath = data.getStringExtra(FileActivity.EXTRA_FILE_PATH);
+            if (filepath != null) mCallback.onFileSelected(filepath);
+        }
+    }
+
+    /**
+     * 在Activity.onDestroy()中调用
+     */
+    void release() {
+        OadCatalog.getInstance(mActivity).removeListener(mCatalogListener);
+    }
+}
@@ -2,6 +2,7 @@ package com.ble.demo.ui;
 
 import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.DialogInterface;
@@ -16,45 +17,67 @@ import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.AdapterView;
-import android.widget.AdapterView.OnItemClickListener;
-import android.widget.AdapterView.OnItemLongClickListener;
-import android.widget.BaseAdapter;
-import android.widget.ListView;
+import android.widget.ArrayAdapter;
+import android.widget.EditText;
+import android.widget.Spinner;
 import android.widget.TextView;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.appcompat.app.AlertDialog;
 import androidx.fragment.app.Fragment;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+import androidx.recyclerview.widget.SimpleItemAnimator;
 import androidx.swiperefreshlayout.widget.SwipeRefreshLayout;
 
 import com.ble.api.DataUtil;
-import com.ble.ble.LeScanRecord;
 import com.ble.ble.scan.LeScanResult;
 import com.ble.ble.scan.LeScanner;
 import com.ble.ble.scan.OnLeScanListener;
 import com.ble.ble.scan.ScanPermissionRequest;
 import com.ble.ble.scan.ScanRequestCallback;
+import com.ble.demo.AdvData;
 import com.ble.demo.LeDevice;
 import com.ble.demo.R;
+import com.ble.demo.util.FrameMonitor;
+import com.ble.demo.util.LeConnector;
+import com.ble.demo.util.LeFilterScanner;
 import com.ble.demo.util.LeProxy;
+import com.ble.demo.util.LeRssiRanking;
+import com.ble.demo.util.LeScanBatcher;
+import com.ble.demo.util.LeScanConfig;
+import com.ble.utils.ToastUtil;
 
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
 
 public class ScanFragment extends Fragment {
     private final static String TAG = "ScanFragment";
 
     private static final int MSG_SCAN_STARTED = 1;
-    private static final int MSG_SCAN_DEVICE = 2;
     private static final int MSG_SCAN_STOPPED = 3;
+    private static final int MSG_CONNECT_STATUS = 4;
+
+    private static final long SCAN_DURATION = 10000;// 按扫描配置扫描时的时长
+    private static final long DEVICE_TTL = 5000;// 扫描中超过这么久没有扫描到的设备从列表中移除
+
+    private static final Object PAYLOAD_UPDATE = new Object();// 只更新信号强度（和后来扫描到的名称），不重新绑定整行
 
     private LeProxy mLeProxy = LeProxy.getInstance();
     private LeDeviceListAdapter mLeDeviceListAdapter = new LeDeviceListAdapter();
     private Handler mHandler = new MyHandler(new WeakReference<ScanFragment>(this));
+    private FrameMonitor mFrameMonitor;
+    private LeScanConfig mScanConfig;
+    private LeFilterScanner mFilterScanner;
 
     private SwipeRefreshLayout mRefreshLayout;
+    private TextView mTxtConnectStatus;
+    private int mConnectTotal;
+    private final HashSet<String> mReadyAddresses = new HashSet<>();
 
     private static class MyHandler extends Handler {
         WeakReference<ScanFragment> reference;
@@ -71,15 +94,28 @@ public class ScanFragment extends Fragment {
                 switch (msg.what) {
                     case MSG_SCAN_STARTED:
                         fragment.mLeDeviceListAdapter.clear();
+                        fragment.mLeDeviceListAdapter.mBatcher.setTtl(fragment.getDeviceTtl());
                         fragment.mRefreshLayout.setRefreshing(true);
-                        break;
-
-                    case MSG_SCAN_DEVICE:
-                        fragment.mLeDeviceListAdapter.addDevice((LeDevice) msg.obj);
+                        fragment.mFrameMonitor.start();
                         break;
 
                     case MSG_SCAN_STOPPED:
                         fragment.mRefreshLayout.setRefreshing(false);
+                        // 停止扫描后保留列表，方便选择设备
+                        fragment.mLeDeviceListAdapter.mBatcher.setTtl(0);
+                        fragment.mFrameMonitor.stop();
+                        fragment.logScanStats();
+                        break;
+
+                    case MSG_CONNECT_STATUS:
+                        String[] status = (String[]) msg.obj;
+                        if (msg.arg1 > 0) {
+                            fragment.mReadyAddresses.add(status[0]);
+                        } else {
+                            fragment.mReadyAddresses.remove(status[0]);
+                        }
+                        fragment.mTxtConnectStatus.setText(fragment.mReadyAddresses.size() + "/"
+                                + fragment.mConnectTotal + "  " + status[0] + " " + status[1]);
                         break;
                 }
             }
@@ -103,6 +139,8 @@ public class ScanFragment extends Fragment {
     @Override
     public void onCreate(@Nullable Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        mScanConfig = LeScanConfig.load(requireContext());
+        mFilterScanner = new LeFilterScanner(mOnFilterScanListener);
         getActivity().registerReceiver(mReceiver, new IntentFilter(BluetoothAdapter.ACTION_STATE_CHANGED));
     }
 
@@ -119,16 +157,131 @@ public class ScanFragment extends Fragment {
             @Override
             public void onRefresh() {
                 //mLeDeviceListAdapter.clear();
-                LeScanner.startScan(mOnLeScanListener);
+                startScan();
             }
         });
 
-        ListView listView = (ListView) view.findViewById(R.id.listView1);
-        listView.setAdapter(mLeDeviceListAdapter);
-        listView.setOnItemClickListener(mOnItemClickListener);
-        listView.setOnItemLongClickListener(mOnItemLongClickListener);
+        RecyclerView recyclerView = (RecyclerView) view.findViewById(R.id.recycler_devices);
+        recyclerView.setLayoutManager(new LinearLayoutManager(getActivity()));
+        // 信号强度变化很频繁，关闭变化动画，只重新绑定变化的行
+        ((SimpleItemAnimator) recyclerView.getItemAnimator()).setSupportsChangeAnimations(false);
+        recyclerView.setAdapter(mLeDeviceListAdapter);
+        mFrameMonitor = new FrameMonitor(requireActivity().getWindowManager().getDefaultDisplay().getRefreshRate());
+
+        mTxtConnectStatus = (TextView) view.findViewById(R.id.txt_connect_status);
+        view.findViewById(R.id.btn_connect_all).setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                connectAll();
+            }
+        });
+        view.findViewById(R.id.btn_scan_config).setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                showScanConfigDialog();
+            }
+        });
     }
 
+    // 没有设置过滤条件时仍用LeScanner，否则交给系统扫描接口
+    private void startScan() {
+        if (mScanConfig.isDefault()) {
+            LeScanner.startScan(mOnLeScanListener);
+        } else if (!mFilterScanner.start(mScanConfig, SCAN_DURATION)) {
+            mRefreshLayout.setRefreshing(false);
+        }
+    }
+
+    // 批量上报时设备要等一个上报周期才会再次出现
+    private long getDeviceTtl() {
+        return mScanConfig.isDefault() ? DEVICE_TTL : Math.max(DEVICE_TTL, 2 * mScanConfig.getReportDelayMillis());
+    }
+
+    private void stopScan() {
+        LeScanner.stopScan();
+        mFilterScanner.stop();
+    }
+
+    private void showScanConfigDialog() {
+        View view = getLayoutInflater().inflate(R.layout.dialog_scan_config, null);
+        final EditText edtUuids = (EditText) view.findViewById(R.id.edt_service_uuids);
+        final EditText edtManufacturers = (EditText) view.findViewById(R.id.edt_manufacturer_ids);
+        final EditText edtNamePrefix = (EditText) view.findViewById(R.id.edt_name_prefix);
+        final EditText edtAddresses = (EditText) view.findViewById(R.id.edt_addresses);
+        final EditText edtReportDelay = (EditText) view.findViewById(R.id.edt_report_delay);
+        final Spinner spinnerMode = (Spinner) view.findViewById(R.id.spinner_scan_mode);
+
+        // 数组按ScanSettings.SCAN_MODE_LOW_POWER、BALANCED、LOW_LATENCY的顺序
+        spinnerMode.setAdapter(new ArrayAdapter<>(requireContext(), android.R.layout.simple_spinner_item,
+                getResources().getStringArray(R.array.scan_mode_values)));
+        spinnerMode.setSelection(mScanConfig.getScanMode());
+        edtUuids.setText(mScanConfig.getServiceUuidsText());
+        edtManufacturers.setText(mScanConfig.getManufacturerIdsText());
+        edtNamePrefix.setText(mScanConfig.getNamePrefix());
+        edtAddresses.setText(mScanConfig.getAddressesText());
+        edtReportDelay.setText(String.valueOf(mScanConfig.getReportDelayMillis()));
+
+        new AlertDialog.Builder(requireActivity())
+                .setTitle(R.string.scan_config)
+                .setView(view)
+                .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        LeScanConfig config = new LeScanConfig();
+                        try {
+                            config.setServiceUuids(edtUuids.getText().toString());
+                            config.setManufacturerIds(edtManufacturers.getText().toString());
+                            config.setNamePrefix(edtNamePrefix.getText().toString());
+                            config.setAddresses(edtAddresses.getText().toString());
+                            String delay = edtReportDelay.getText().toString().trim();
+                            config.setReportDelayMillis(delay.isEmpty() ? 0 : Long.parseLong(delay));
+                        } catch (IllegalArgumentException e) {
+                            ToastUtil.show(getActivity(), getString(R.string.scan_config_invalid, e.getMessage()));
+                            return;
+                        }
+                        config.setScanMode(spinnerMode.getSelectedItemPosition());
+                        config.save(requireContext());
+                        mScanConfig = config;
+                        stopScan();
+                        // 重新检查权限和蓝牙开关，就绪后按新的配置扫描
+                        requestScan();
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
+    //按顺序连接列表中的所有设备，失败自动重连
+    private void connectAll() {
+        if (mLeDeviceListAdapter.getItemCount() == 0) return;
+        stopScan();
+        List<String> addresses = new ArrayList<>();
+        for (int i = 0; i < mLeDeviceListAdapter.getItemCount(); i++) {
+            addresses.add(mLeDeviceListAdapter.getItem(i).getAddress());
+        }
+        mConnectTotal = addresses.size();
+        mReadyAddresses.clear();
+        mTxtConnectStatus.setText(null);
+        LeConnector connector = mLeProxy.getConnector();
+        connector.clear();
+        connector.setCallback(mConnectorCallback);
+        connector.connect(addresses);
+    }
+
+    private final LeConnector.Callback mConnectorCallback = new LeConnector.Callback() {
+        @Override
+        public void onReady(String address, long readyMillis, int attempts) {
+            mHandler.obtainMessage(MSG_CONNECT_STATUS, 1, 0,
+                    new String[]{address, "ready " + readyMillis + "ms"}).sendToTarget();
+        }
+
+        @Override
+        public void onRetry(String address, int attempts, long delayMillis) {
+            mHandler.obtainMessage(MSG_CONNECT_STATUS, 0, 0,
+                    new String[]{address, "retry in " + delayMillis + "ms"}).sendToTarget();
+        }
+    };
+
     @Override
     public void onStart() {
         super.onStart();
@@ -184,7 +337,7 @@ public class ScanFragment extends Fragment {
 
             @Override
             public void onReady() {
-                LeScanner.startScan(mOnLeScanListener);
+                startScan();
             }
         });
     }
@@ -205,12 +358,21 @@ public class ScanFragment extends Fragment {
     @Override
     public void onPause() {
         super.onPause();
-        LeScanner.stopScan();
+        stopScan();
+    }
+
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        mFrameMonitor.stop();
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
+        mLeDeviceListAdapter.release();
+        mLeProxy.getConnector().setCallback(null);
+        mHandler.removeCallbacksAndMessages(null);
         getActivity().unregisterReceiver(mReceiver);
     }
 
@@ -220,38 +382,42 @@ public class ScanFragment extends Fragment {
         LeScanner.onRequestPermissionsResult(this, requestCode, permissions, grantResults);//todo 处理授权结果
     }
 
-    private final OnItemClickListener mOnItemClickListener = new OnItemClickListener() {
-
-        @Override
-        public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
-            //单击连接设备
-            LeScanner.stopScan();
-            LeDevice device = mLeDeviceListAdapter.getItem(position);
-            mLeProxy.connect(device.getAddress(), false);
-        }
-    };
-
+    private void onItemClick(int position) {
+        //单击连接设备
+        stopScan();
+        LeDevice device = mLeDeviceListAdapter.getItem(position);
+        mLeProxy.connect(device.getAddress(), false);
+    }
 
-    private final OnItemLongClickListener mOnItemLongClickListener = new OnItemLongClickListener() {
+    private void onItemLongClick(int position) {
+        //长按查看广播数据
+        LeDevice device = mLeDeviceListAdapter.getItem(position);
+        showAdvDetailsDialog(device);
+    }
 
-        @Override
-        public boolean onItemLongClick(AdapterView<?> parent, View view, int position, long id) {
-            //长按查看广播数据
-            LeDevice device = mLeDeviceListAdapter.getItem(position);
-            showAdvDetailsDialog(device);
-            return true;
+    // 比较刷新方式时看这里的掉帧数和每次刷新的耗时
+    private void logScanStats() {
+        LeScanBatcher batcher = mLeDeviceListAdapter.mBatcher;
+        Log.i(TAG, String.format(Locale.US, "scan: %d devices (%d evicted), %d results in %d batches, flush mean %d us, max %d us; %s",
+                mLeDeviceListAdapter.getItemCount(), batcher.getEvictedCount(), batcher.getResultCount(),
+                batcher.getFlushCount(), batcher.getFlushTime().getMeanUs(), batcher.getFlushTime().maxUs, mFrameMonitor));
+        if (!mScanConfig.isDefault()) {
+            // 比较过滤前后回调的次数
+            Log.i(TAG, String.format(Locale.US, "filtered scan: %d callbacks, %d results, %d passed name filter",
+                    mFilterScanner.getReportCount(), mFilterScanner.getResultCount(), mFilterScanner.getDeliveredCount()));
         }
-    };
+    }
 
     //显示广播数据
     private void showAdvDetailsDialog(LeDevice device) {
-        LeScanRecord record = device.getLeScanRecord();
+        byte[] scanRecord = device.getScanRecord();
+        if (scanRecord == null) return;
 
         String message = device.getAddress()
                 + "\n\n["
-                + DataUtil.byteArrayToHex(record.getBytes())
+                + DataUtil.byteArrayToHex(scanRecord)
                 + "]\n\n"
-                + record.toString();
+                + new AdvData().reset(scanRecord).toString();
 
         new AlertDialog.Builder(getActivity())
                 .setMessage(message)
@@ -269,11 +435,8 @@ public class ScanFragment extends Fragment {
 
         @Override
         public void onLeScan(LeScanResult leScanResult) {
-            Log.e(TAG, "onLeScan() - " + leScanResult.getDevice() + " [" + leScanResult.getLeScanRecord().getLocalName() + "]");
-            Message msg = new Message();
-            msg.what = MSG_SCAN_DEVICE;
-            msg.obj = new LeDevice(leScanResult);
-            mHandler.sendMessage(msg);
+            // 只放进缓冲区，主线程每帧最多处理一次
+            mLeDeviceListAdapter.mBatcher.offer(leScanResult);
         }
 
         @Override
@@ -286,69 +449,162 @@ public class ScanFragment extends Fragment {
         }
     };
 
+    private final LeFilterScanner.Listener mOnFilterScanListener = new LeFilterScanner.Listener() {
+        @Override
+        public void onScanStart() {
+            mHandler.sendEmptyMessage(MSG_SCAN_STARTED);
+        }
 
-    private class LeDeviceListAdapter extends BaseAdapter {
-        private ArrayList<LeDevice> mLeDevices = new ArrayList<>();
+        @Override
+        public void onScanResult(BluetoothDevice device, int rssi, byte[] scanRecord) {
+            mLeDeviceListAdapter.mBatcher.offer(device, rssi, scanRecord);
+        }
 
-        void addDevice(LeDevice device) {
-            //if (TextUtils.isEmpty(device.getName())) return;
-            if (!mLeDevices.contains(device)) {
-                mLeDevices.add(device);
-                notifyDataSetChanged();
-            }
+        @Override
+        public void onScanFailed(int errorCode) {
+        }
+
+        @Override
+        public void onScanStop() {
+            mHandler.sendEmptyMessage(MSG_SCAN_STOPPED);
+        }
+    };
+
+
+    // 按平滑后的信号强度排列，近的在上面
+    private class LeDeviceListAdapter extends RecyclerView.Adapter<ViewHolder> implements LeRssiRanking.Callback {
+        final LeScanBatcher mBatcher = new LeScanBatcher(this);
+        private final StringBuilder mRssiText = new StringBuilder();
+
+        LeDeviceListAdapter() {
+            // 以MAC作为稳定的id
+            setHasStableIds(true);
+        }
+
+        @Override
+        public void onInserted(int position) {
+            notifyItemInserted(position);
+        }
+
+        @Override
+        public void onRemoved(int position) {
+            notifyItemRemoved(position);
+        }
+
+        @Override
+        public void onMoved(int fromPosition, int toPosition) {
+            notifyItemMoved(fromPosition, toPosition);
+        }
+
+        @Override
+        public void onChanged(int position) {
+            notifyItemChanged(position, PAYLOAD_UPDATE);
+        }
+
+        @Override
+        public void onDataSetChanged() {
+            notifyDataSetChanged();
         }
 
         void clear() {
-            mLeDevices.clear();
+            mBatcher.clear();
             notifyDataSetChanged();
         }
 
+        void release() {
+            mBatcher.release();
+        }
+
+        LeDevice getItem(int position) {
+            return mBatcher.getRanking().get(position);
+        }
+
         @Override
-        public int getCount() {
-            return mLeDevices.size();
+        public int getItemCount() {
+            return mBatcher.getRanking().size();
         }
 
         @Override
-        public LeDevice getItem(int i) {
-            return mLeDevices.get(i);
+        public long getItemId(int position) {
+            return getItem(position).getPackedAddress();
         }
 
+        @NonNull
         @Override
-        public long getItemId(int i) {
-            return i;
+        public ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+            View view = getLayoutInflater().inflate(R.layout.item_device_list, parent, false);
+            final ViewHolder viewHolder = new ViewHolder(view);
+            view.setOnClickListener(new View.OnClickListener() {
+                @Override
+                public void onClick(View v) {
+                    int position = viewHolder.getAdapterPosition();
+                    if (position != RecyclerView.NO_POSITION) onItemClick(position);
+                }
+            });
+            view.setOnLongClickListener(new View.OnLongClickListener() {
+                @Override
+                public boolean onLongClick(View v) {
+                    int position = viewHolder.getAdapterPosition();
+                    if (position != RecyclerView.NO_POSITION) onItemLongClick(position);
+                    return true;
+                }
+            });
+            return viewHolder;
         }
 
         @Override
-        public View getView(int i, View view, ViewGroup viewGroup) {
-            ViewHolder viewHolder;
-
-            if (view == null) {
-                view = getLayoutInflater().inflate(R.layout.item_device_list, null);
-                viewHolder = new ViewHolder();
-                viewHolder.deviceAddress = (TextView) view.findViewById(R.id.device_address);
-                viewHolder.deviceName = (TextView) view.findViewById(R.id.device_name);
-                viewHolder.connect = (TextView) view.findViewById(R.id.btn_connect);
-                viewHolder.connect.setVisibility(View.VISIBLE);
-                view.setTag(viewHolder);
-            } else {
-                viewHolder = (ViewHolder) view.getTag();
+        public void onBindViewHolder(@NonNull ViewHolder viewHolder, int position, @NonNull List<Object> payloads) {
+            if (payloads.isEmpty()) {
+                onBindViewHolder(viewHolder, position);
+                return;
             }
+            LeDevice device = getItem(position);
+            // 名称只在之后才扫描到时变化，一般只有信号强度要更新
+            if (!TextUtils.equals(device.getName(), viewHolder.shownName)) bindName(viewHolder, device);
+            bindRssi(viewHolder, device);
+        }
+
+        @Override
+        public void onBindViewHolder(@NonNull ViewHolder viewHolder, int position) {
+            LeDevice device = getItem(position);
+            bindName(viewHolder, device);
+            viewHolder.shownRssi = Integer.MIN_VALUE;
+            bindRssi(viewHolder, device);
+        }
 
-            LeDevice device = mLeDevices.get(i);
+        private void bindName(ViewHolder viewHolder, LeDevice device) {
             String deviceName = device.getName();
+            viewHolder.shownName = deviceName;
             if (!TextUtils.isEmpty(deviceName))
                 viewHolder.deviceName.setText(deviceName);
             else
                 viewHolder.deviceName.setText(R.string.unknown_device);
-            viewHolder.deviceAddress.setText(device.getAddress());
+        }
 
-            return view;
+        private void bindRssi(ViewHolder viewHolder, LeDevice device) {
+            int rssi = Math.round(device.getSmoothedRssi());
+            if (rssi == viewHolder.shownRssi) return;
+            viewHolder.shownRssi = rssi;
+            StringBuilder sb = mRssiText;
+            sb.setLength(0);
+            sb.append(device.getAddress()).append("  ").append(rssi).append(" dBm");
+            viewHolder.deviceAddress.setText(sb.toString());
         }
     }
 
-    private static class ViewHolder {
-        TextView deviceName;
-        TextView deviceAddress;
-        TextView connect;
+    private static class ViewHolder extends RecyclerView.ViewHolder {
+        final TextView deviceName;
+        final TextView deviceAddress;
+        final TextView connect;
+        String shownName;// 正在显示的名称和信号强度
+        int shownRssi;
+
+        ViewHolder(View view) {
+            super(view);
+            deviceAddress = (TextView) view.findViewById(R.id.device_address);
+            deviceName = (TextView) view.findViewById(R.id.device_name);
+            connect = (TextView) view.findViewById(R.id.btn_connect);
+            connect.setVisibility(View.VISIBLE);
+        }
     }
-}
\ No newline at end of file
+}
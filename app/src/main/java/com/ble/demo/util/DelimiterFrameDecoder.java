@@ -0,0 +1,52 @@
+package com.ble.demo.util;
+
+/**
+ * 以分隔符结尾的帧：[数据][校验][分隔符]，如以"\r\n"结尾的文本帧
+ */
+public class DelimiterFrameDecoder extends FrameDecoder {
+    private final byte[] mDelimiter;
+    // 已查找过的位置（相对于未处理数据的起始位置），新数据到来时从这里继续查找
+    private int mSearched;
+
+    /**
+     * @param delimiter      分隔符，不含在输出的帧中
+     * @param maxFrameLength 最大帧长（含分隔符）
+     * @param checksum       帧尾校验（位于分隔符之前），可为null
+     */
+    public DelimiterFrameDecoder(byte[] delimiter, int maxFrameLength, FrameChecksum checksum) {
+        super(maxFrameLength, checksum);
+        if (delimiter == null || delimiter.length == 0) {
+            throw new IllegalArgumentException("delimiter must not be empty");
+        }
+        mDelimiter = delimiter.clone();
+    }
+
+    @Override
+    protected int frameLength(byte[] buf, int start, int available) {
+        int last = available - mDelimiter.length;
+        for (int i = mSearched; i <= last; i++) {
+            if (matches(buf, start + i)) {
+                return i + mDelimiter.length;
+            }
+        }
+        mSearched = Math.max(mSearched, last + 1);
+        return 0;
+    }
+
+    private boolean matches(byte[] buf, int pos) {
+        for (int j = 0; j < mDelimiter.length; j++) {
+            if (buf[pos + j] != mDelimiter[j]) return false;
+        }
+        return true;
+    }
+
+    @Override
+    protected int trailerLength() {
+        return mDelimiter.length;
+    }
+
+    @Override
+    protected void onConsumed() {
+        mSearched = 0;
+    }
+}
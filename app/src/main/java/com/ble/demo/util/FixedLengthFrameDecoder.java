@@ -0,0 +1,22 @@
+package com.ble.demo.util;
+
+/**
+ * 固定长度的帧，不论数据如何分包，每凑够frameLength字节输出一帧
+ */
+public class FixedLengthFrameDecoder extends FrameDecoder {
+    private final int mFrameLength;
+
+    /**
+     * @param frameLength 帧长（含校验）
+     * @param checksum    帧尾校验，可为null
+     */
+    public FixedLengthFrameDecoder(int frameLength, FrameChecksum checksum) {
+        super(frameLength, checksum);
+        mFrameLength = frameLength;
+    }
+
+    @Override
+    protected int frameLength(byte[] buf, int start, int available) {
+        return available >= mFrameLength ? mFrameLength : 0;
+    }
+}
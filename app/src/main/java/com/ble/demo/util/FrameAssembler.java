@@ -0,0 +1,91 @@
+package com.ble.demo.util;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 接收帧重组：位于onCharacteristicChanged()和消费者之间，按设备保存未完成的帧，只向消费者输出完整的帧
+ * <p>
+ * 用法：
+ * <pre>
+ * FrameAssembler assembler = new FrameAssembler(factory, listener);
+ * LeProxy.getInstance().getEventBus().register(assembler, FrameAssembler.EVENTS, null, channelUuid);
+ * </pre>
+ */
+public class FrameAssembler extends LeListener {
+
+    /**
+     * 注册时需要的事件：数据和断线（断线时丢弃未完成的帧）
+     */
+    public static final int EVENTS = LeEventBus.EVENT_DATA_AVAILABLE | LeEventBus.EVENT_DISCONNECTED;
+
+    public interface FrameListener {
+        /**
+         * 在蓝牙回调线程中调用，buf在回调返回后会被复用，需要保留时须自行复制
+         */
+        void onFrame(String address, UUID uuid, byte[] buf, int offset, int length);
+    }
+
+    private final FrameDecoder.Factory mFactory;
+    private final FrameListener mListener;
+    private final ConcurrentHashMap<String, DeviceDecoder> mDecoders = new ConcurrentHashMap<>();
+
+    // 每个设备一个解码器，同时作为解码器的输出，避免每包数据创建回调对象
+    private class DeviceDecoder implements FrameDecoder.Sink {
+        final String address;
+        final FrameDecoder decoder;
+        UUID uuid;
+
+        DeviceDecoder(String address, FrameDecoder decoder) {
+            this.address = address;
+            this.decoder = decoder;
+        }
+
+        @Override
+        public void onFrame(byte[] buf, int offset, int length) {
+            mListener.onFrame(address, uuid, buf, offset, length);
+        }
+    }
+
+    public FrameAssembler(FrameDecoder.Factory factory, FrameListener listener) {
+        mFactory = factory;
+        mListener = listener;
+    }
+
+    @Override
+    public void onDataAvailable(String address, UUID uuid, byte[] data) {
+        if (data == null || data.length == 0) return;
+        DeviceDecoder d = getDecoder(address);
+        synchronized (d) {
+            d.uuid = uuid;
+            d.decoder.decode(data, 0, data.length, d);
+        }
+    }
+
+    @Override
+    public void onDisconnected(String address) {
+        DeviceDecoder d = mDecoders.get(address);
+        if (d != null) {
+            synchronized (d) {
+                d.decoder.reset();
+            }
+        }
+    }
+
+    /**
+     * 获取设备的解码器，可用于查看帧数、校验错误数等统计
+     */
+    public FrameDecoder getFrameDecoder(String address) {
+        return getDecoder(address).decoder;
+    }
+
+    private DeviceDecoder getDecoder(String address) {
+        DeviceDecoder d = mDecoders.get(address);
+        if (d == null) {
+            d = new DeviceDecoder(address, mFactory.create());
+            DeviceDecoder old = mDecoders.putIfAbsent(address, d);
+            if (old != null) d = old;
+        }
+        return d;
+    }
+}
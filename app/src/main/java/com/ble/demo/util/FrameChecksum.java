@@ -0,0 +1,85 @@
+package com.ble.demo.util;
+
+/**
+ * 帧尾校验，校验值位于帧数据末尾
+ */
+public interface FrameChecksum {
+
+    /**
+     * 校验值的字节数
+     */
+    int length();
+
+    /**
+     * @param buf    帧数据（不含校验值），校验值紧跟在offset+length之后
+     * @param offset 数据起始位置
+     * @param length 数据长度
+     * @return 校验是否通过
+     */
+    boolean verify(byte[] buf, int offset, int length);
+
+    /**
+     * CRC-16/MODBUS，多项式0x8005（反射0xA001），初值0xFFFF，校验值低字节在前
+     */
+    FrameChecksum CRC16_MODBUS = new FrameChecksum() {
+        @Override
+        public int length() {
+            return 2;
+        }
+
+        @Override
+        public boolean verify(byte[] buf, int offset, int length) {
+            int crc = 0xFFFF;
+            for (int i = offset; i < offset + length; i++) {
+                crc ^= buf[i] & 0xFF;
+                for (int j = 0; j < 8; j++) {
+                    crc = (crc & 1) != 0 ? (crc >>> 1) ^ 0xA001 : crc >>> 1;
+                }
+            }
+            int end = offset + length;
+            return (buf[end] & 0xFF) == (crc & 0xFF) && (buf[end + 1] & 0xFF) == (crc >>> 8);
+        }
+    };
+
+    /**
+     * CRC-16/CCITT-FALSE，多项式0x1021，初值0xFFFF，校验值高字节在前
+     */
+    FrameChecksum CRC16_CCITT = new FrameChecksum() {
+        @Override
+        public int length() {
+            return 2;
+        }
+
+        @Override
+        public boolean verify(byte[] buf, int offset, int length) {
+            int crc = 0xFFFF;
+            for (int i = offset; i < offset + length; i++) {
+                crc ^= (buf[i] & 0xFF) << 8;
+                for (int j = 0; j < 8; j++) {
+                    crc = (crc & 0x8000) != 0 ? ((crc << 1) ^ 0x1021) & 0xFFFF : (crc << 1) & 0xFFFF;
+                }
+            }
+            int end = offset + length;
+            return (buf[end] & 0xFF) == (crc >>> 8) && (buf[end + 1] & 0xFF) == (crc & 0xFF);
+        }
+    };
+
+    /**
+     * 累加和，取低8位
+     */
+    FrameChecksum SUM8 = new FrameChecksum() {
+        @Override
+        public int length() {
+            return 1;
+        }
+
+        @Override
+        public boolean verify(byte[] buf, int offset, int length) {
+            int sum = 0;
+            for (int i = offset; i < offset + length; i++) {
+                sum += buf[i];
+            }
+            return (byte) sum == buf[offset + length];
+        }
+    };
+}
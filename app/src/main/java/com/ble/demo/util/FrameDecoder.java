@@ -0,0 +1,200 @@
+package com.ble.demo.util;
+
+/**
+ * 增量式帧解码：把多包notify数据拼成完整的应用层帧
+ * <p>
+ * 每个设备一个解码器实例（见{@link Factory}），内部缓冲区在创建时按最大帧长分配并反复使用，
+ * 每包数据只追加一次，已解出的帧从缓冲区头部移走，不会反复拼接整段数据。
+ * 可选{@link FrameChecksum}校验帧尾，校验失败的帧丢弃并计数
+ */
+public abstract class FrameDecoder {
+
+    /**
+     * 接收完整的帧，buf在回调返回后会被复用，需要保留时须自行复制
+     */
+    public interface Sink {
+        void onFrame(byte[] buf, int offset, int length);
+    }
+
+    /**
+     * 为每个设备创建独立的解码器
+     */
+    public interface Factory {
+        FrameDecoder create();
+    }
+
+    private final byte[] mBuf;
+    private final FrameChecksum mChecksum;
+    private int mStart;
+    private int mEnd;
+    // 缓冲区满溢出后，下一个帧尾之前的数据是被丢弃的帧的后半段，不能输出（分隔符帧）
+    private boolean mSkipNextFrame;
+    // 声明的帧长超出上限时，该帧还没收到的字节数，收到后直接丢弃
+    private long mDiscardBytes;
+
+    private long mFrameCount;
+    private long mChecksumErrorCount;
+    private long mOverflowCount;
+
+    /**
+     * @param maxFrameLength 最大帧长（含帧头、校验和分隔符），超出的数据会被丢弃
+     * @param checksum       帧尾校验，null表示不校验
+     */
+    protected FrameDecoder(int maxFrameLength, FrameChecksum checksum) {
+        if (maxFrameLength <= 0) throw new IllegalArgumentException("maxFrameLength must be > 0");
+        mBuf = new byte[maxFrameLength];
+        mChecksum = checksum;
+    }
+
+    /**
+     * 查找缓冲区中第一个完整的帧
+     *
+     * @param buf       缓冲区
+     * @param start     未处理数据的起始位置
+     * @param available 未处理数据的长度
+     * @return 帧的总长度；0表示数据还不完整；-1表示起始字节无效，需丢弃一个字节重新同步
+     */
+    protected abstract int frameLength(byte[] buf, int start, int available);
+
+    /**
+     * 帧头长度，不含在输出的帧中
+     */
+    protected int headerLength() {
+        return 0;
+    }
+
+    /**
+     * 帧尾长度（如分隔符），不含在输出的帧中
+     */
+    protected int trailerLength() {
+        return 0;
+    }
+
+    /**
+     * 解出一帧或丢弃数据后调用，子类在这里清除查找状态
+     */
+    protected void onConsumed() {
+    }
+
+    public int getMaxFrameLength() {
+        return mBuf.length;
+    }
+
+    /**
+     * 输入一包数据，解出的完整帧通过sink回调
+     */
+    public void decode(byte[] data, int offset, int length, Sink sink) {
+        while (length > 0) {
+            if (mDiscardBytes > 0) {
+                int n = (int) Math.min(length, mDiscardBytes);
+                mDiscardBytes -= n;
+                offset += n;
+                length -= n;
+                continue;
+            }
+            if (mEnd == mBuf.length) {
+                if (mStart > 0) {
+                    compact();
+                } else {
+                    // 缓冲区已满仍不是完整的帧，丢弃重新开始
+                    overflow();
+                }
+            }
+            int n = Math.min(length, mBuf.length - mEnd);
+            System.arraycopy(data, offset, mBuf, mEnd, n);
+            mEnd += n;
+            offset += n;
+            length -= n;
+            drain(sink);
+        }
+    }
+
+    private void drain(Sink sink) {
+        while (mEnd > mStart) {
+            int len = frameLength(mBuf, mStart, mEnd - mStart);
+            if (len == 0) {
+                if (mStart > 0 && mEnd == mBuf.length) compact();
+                return;
+            }
+            if (len < 0) {
+                mStart++;
+                onConsumed();
+                continue;
+            }
+            if (len > mBuf.length) {
+                // 声明的帧长超出上限，丢弃整个帧（包括还没收到的部分），之后的帧正常输出
+                mOverflowCount++;
+                mDiscardBytes = (long) len - (mEnd - mStart);
+                mStart = 0;
+                mEnd = 0;
+                onConsumed();
+                return;
+            }
+            if (len > mEnd - mStart) return;
+
+            int payloadOffset = mStart + headerLength();
+            int payloadLength = len - headerLength() - trailerLength();
+            mStart += len;
+            onConsumed();
+            if (payloadLength < 0) continue;
+            if (mSkipNextFrame) {
+                mSkipNextFrame = false;
+                continue;
+            }
+
+            if (mChecksum != null) {
+                int checksumLength = mChecksum.length();
+                if (payloadLength < checksumLength
+                        || !mChecksum.verify(mBuf, payloadOffset, payloadLength - checksumLength)) {
+                    mChecksumErrorCount++;
+                    continue;
+                }
+                payloadLength -= checksumLength;
+            }
+            mFrameCount++;
+            sink.onFrame(mBuf, payloadOffset, payloadLength);
+        }
+        mStart = 0;
+        mEnd = 0;
+    }
+
+    private void overflow() {
+        mOverflowCount++;
+        // 保留可能是半个帧尾的最后几个字节，帧尾跨包时不会把下一帧当成被丢弃帧的后半段
+        int keep = Math.min(Math.max(trailerLength() - 1, 0), mEnd - mStart);
+        System.arraycopy(mBuf, mEnd - keep, mBuf, 0, keep);
+        mStart = 0;
+        mEnd = keep;
+        onConsumed();
+        mSkipNextFrame = true;
+    }
+
+    private void compact() {
+        System.arraycopy(mBuf, mStart, mBuf, 0, mEnd - mStart);
+        mEnd -= mStart;
+        mStart = 0;
+    }
+
+    /**
+     * 丢弃未完成的数据（如断线后）
+     */
+    public void reset() {
+        mStart = 0;
+        mEnd = 0;
+        mSkipNextFrame = false;
+        mDiscardBytes = 0;
+        onConsumed();
+    }
+
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    public long getChecksumErrorCount() {
+        return mChecksumErrorCount;
+    }
+
+    public long getOverflowCount() {
+        return mOverflowCount;
+    }
+}
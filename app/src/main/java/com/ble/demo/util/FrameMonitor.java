@@ -0,0 +1,88 @@
+package com.ble.demo.util;
+
+import android.view.Choreographer;
+
+import java.util.Locale;
+
+/**
+ * 统计界面的帧间隔和掉帧数，用于比较列表刷新方式的卡顿情况；在主线程中使用
+ * <p>
+ * 开始后每帧记录一次与上一帧的间隔，超过1.5个刷新周期的按整数个周期计为掉帧
+ */
+public class FrameMonitor implements Choreographer.FrameCallback {
+    private final long mPeriodNanos;
+    private final LeMetrics.Histogram mIntervals = new LeMetrics.Histogram();
+    private boolean mRunning;
+    private long mLastFrameNanos;
+    private long mFrames;
+    private long mDroppedFrames;
+    private long mJankyFrames;
+
+    /**
+     * @param refreshRate 屏幕刷新率（Hz），如Display.getRefreshRate()
+     */
+    public FrameMonitor(float refreshRate) {
+        mPeriodNanos = (long) (1000000000L / (refreshRate > 1 ? refreshRate : 60));
+    }
+
+    public void start() {
+        if (mRunning) return;
+        mRunning = true;
+        mLastFrameNanos = 0;
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    public void stop() {
+        mRunning = false;
+        Choreographer.getInstance().removeFrameCallback(this);
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (!mRunning) return;
+        if (mLastFrameNanos != 0) {
+            long interval = frameTimeNanos - mLastFrameNanos;
+            mIntervals.record(interval);
+            mFrames++;
+            long missed = (interval + mPeriodNanos / 2) / mPeriodNanos - 1;
+            if (missed > 0) {
+                mJankyFrames++;
+                mDroppedFrames += missed;
+            }
+        }
+        mLastFrameNanos = frameTimeNanos;
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    public long getFrameCount() {
+        return mFrames;
+    }
+
+    /**
+     * 掉的帧数（错过的刷新周期）
+     */
+    public long getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    /**
+     * 至少掉了一帧的帧数
+     */
+    public long getJankyFrames() {
+        return mJankyFrames;
+    }
+
+    public LeMetrics.HistogramSnapshot getIntervals() {
+        LeMetrics.HistogramSnapshot s = new LeMetrics.HistogramSnapshot();
+        mIntervals.copyTo(s);
+        return s;
+    }
+
+    @Override
+    public String toString() {
+        LeMetrics.HistogramSnapshot s = getIntervals();
+        return String.format(Locale.US, "%d frames, %d janky, %d dropped, interval mean %.1f ms, p99 %.1f ms, max %.1f ms",
+                mFrames, mJankyFrames, mDroppedFrames, s.getMeanUs() / 1000.0,
+                s.getPercentileUs(99) / 1000.0, s.maxUs / 1000.0);
+    }
+}
@@ -0,0 +1,73 @@
+package com.ble.demo.util;
+
+import android.content.Context;
+import android.content.Intent;
+
+import androidx.localbroadcastmanager.content.LocalBroadcastManager;
+
+import java.util.UUID;
+
+/**
+ * 兼容旧的广播方式：把{@link LeEventBus}的事件转成LocalBroadcast（ACTION_XXX）发出去，
+ * 通过{@link LeProxy#setBroadcastEnabled(boolean)}开关
+ */
+class LeBroadcastAdapter extends LeListener {
+    private final Context mContext;
+
+    LeBroadcastAdapter(Context context) {
+        mContext = context;
+    }
+
+    @Override
+    public void onConnected(String address) {
+        updateBroadcast(address, LeProxy.ACTION_GATT_CONNECTED);
+    }
+
+    @Override
+    public void onConnectTimeout(String address) {
+        updateBroadcast(address, LeProxy.ACTION_CONNECT_TIMEOUT);
+    }
+
+    @Override
+    public void onConnectionError(String address, int error, int newState) {
+        updateBroadcast(address, LeProxy.ACTION_CONNECT_ERROR);
+    }
+
+    @Override
+    public void onDisconnected(String address) {
+        updateBroadcast(address, LeProxy.ACTION_GATT_DISCONNECTED);
+    }
+
+    @Override
+    public void onServicesDiscovered(String address) {
+        updateBroadcast(address, LeProxy.ACTION_GATT_SERVICES_DISCOVERED);
+    }
+
+    @Override
+    public void onDataAvailable(String address, UUID uuid, byte[] data) {
+        Intent intent = new Intent(LeProxy.ACTION_DATA_AVAILABLE);
+        intent.putExtra(LeProxy.EXTRA_ADDRESS, address);
+        intent.putExtra(LeProxy.EXTRA_UUID, uuid.toString());
+        intent.putExtra(LeProxy.EXTRA_DATA, data);
+        sendBroadcast(intent);
+    }
+
+    @Override
+    public void onMtuChanged(String address, int mtu, int status) {
+        Intent intent = new Intent(LeProxy.ACTION_MTU_CHANGED);
+        intent.putExtra(LeProxy.EXTRA_ADDRESS, address);
+        intent.putExtra(LeProxy.EXTRA_MTU, mtu);
+        intent.putExtra(LeProxy.EXTRA_STATUS, status);
+        sendBroadcast(intent);
+    }
+
+    private void updateBroadcast(String address, String action) {
+        Intent intent = new Intent(action);
+        intent.putExtra(LeProxy.EXTRA_ADDRESS, address);
+        sendBroadcast(intent);
+    }
+
+    private void sendBroadcast(Intent intent) {
+        LocalBroadcastManager.getInstance(mContext).sendBroadcast(intent);
+    }
+}
@@ -0,0 +1,409 @@
+package com.ble.demo.util;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 多设备连接管理：按顺序一个一个发起连接，限制同时检索服务的设备数，
+ * 连接超时、出错或断开后按指数退避（带随机抖动）自动重连，并记录每个设备从开始连接到可以通信的时间。
+ * 通过{@link LeProxy#disconnect(String)}主动断开的设备不再自动重连，直到再次{@link #connect(Collection)}
+ * <p>
+ * Android同时发起多个连接很容易失败，所以这里同一时刻只有一个设备处于连接中；
+ * 所有状态只在内部的单线程中修改，回调也在该线程中执行，不能有阻塞操作
+ */
+public class LeConnector extends LeListener {
+    private static final String TAG = "LeConnector";
+
+    public static final int EVENTS = LeEventBus.EVENT_CONNECTED
+            | LeEventBus.EVENT_CONNECT_TIMEOUT
+            | LeEventBus.EVENT_CONNECT_ERROR
+            | LeEventBus.EVENT_DISCONNECTED
+            | LeEventBus.EVENT_SERVICES_DISCOVERED;
+
+    public static final int STATE_WAITING = 0;// 排队等待连接
+    public static final int STATE_CONNECTING = 1;
+    public static final int STATE_DISCOVERING = 2;// 已连接，正在检索服务
+    public static final int STATE_READY = 3;// 检索服务成功，可以通信
+    public static final int STATE_BACKOFF = 4;// 连接失败，等待重连
+    public static final int STATE_STOPPED = 5;// 主动断开，不自动重连
+
+    public interface Callback {
+        /**
+         * 设备可以通信了
+         *
+         * @param readyMillis 从开始连接（含之前失败的尝试）到检索服务成功的时间
+         * @param attempts    本次用了几次连接
+         */
+        void onReady(String address, long readyMillis, int attempts);
+
+        /**
+         * 连接失败，将在delayMillis后重连
+         */
+        void onRetry(String address, int attempts, long delayMillis);
+    }
+
+    private final LeProxy mLeProxy;
+    private final ScheduledExecutorService mExecutor = Executors.newSingleThreadScheduledExecutor();
+    private final Random mRandom = new Random();
+    private final LinkedHashMap<String, Target> mTargets = new LinkedHashMap<>();
+    private volatile Callback mCallback;
+
+    private int mMaxConnected = 4;
+    private int mMaxDiscovering = 1;
+    private long mConnectTimeout = 10000;// ms，底层超时未回调时的兜底
+    private long mDiscoverTimeout = 10000;// ms
+    private long mBackoffBase = 500;// ms
+    private long mBackoffMax = 30000;// ms
+
+    private Target mConnecting;
+    private ScheduledFuture<?> mPumpFuture;
+    private volatile List<Status> mSnapshot = Collections.emptyList();
+
+    private static class Target {
+        final String address;
+        int state = STATE_WAITING;
+        int attempts;
+        long startNanos;// 本轮连接开始的时间
+        long nextTryNanos;
+        long readyMillis = -1;
+        ScheduledFuture<?> timeout;
+
+        Target(String address) {
+            this.address = address;
+        }
+    }
+
+    /**
+     * 设备的状态，用于界面显示，生成后不再修改
+     */
+    public static class Status {
+        public final String address;
+        public final int state;
+        public final int attempts;
+        public final long readyMillis;
+
+        Status(String address, int state, int attempts, long readyMillis) {
+            this.address = address;
+            this.state = state;
+            this.attempts = attempts;
+            this.readyMillis = readyMillis;
+        }
+    }
+
+    LeConnector(LeProxy leProxy) {
+        mLeProxy = leProxy;
+    }
+
+    public void setCallback(Callback callback) {
+        mCallback = callback;
+    }
+
+    /**
+     * @param maxConnected   最多同时连接的设备数，不超过BleService.setMaxConnectedNumber()的设置
+     * @param maxDiscovering 最多同时检索服务的设备数
+     */
+    public void setLimits(final int maxConnected, final int maxDiscovering) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mMaxConnected = Math.max(1, maxConnected);
+                mMaxDiscovering = Math.max(1, maxDiscovering);
+                pump();
+            }
+        });
+    }
+
+    /**
+     * 重连的等待时间为 base * 2^(失败次数-1)，最多max，再乘以0.5~1的随机系数
+     */
+    public void setBackoff(final long baseMillis, final long maxMillis) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mBackoffBase = baseMillis;
+                mBackoffMax = maxMillis;
+            }
+        });
+    }
+
+    /**
+     * 加入要连接的设备，已加入的忽略（主动断开过的重新开始连接）
+     */
+    public void connect(final Collection<String> addresses) {
+        final List<String> list = new ArrayList<>(addresses);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (String address : list) {
+                    Target old = mTargets.get(address);
+                    if (old != null && old.state == STATE_STOPPED) {
+                        old.state = STATE_WAITING;
+                        old.attempts = 0;
+                    } else if (old == null) {
+                        Target t = new Target(address);
+                        mTargets.put(address, t);
+                        if (mLeProxy.isConnected(address)) {
+                            t.state = STATE_READY;
+                            t.readyMillis = 0;
+                        }
+                    }
+                }
+                publishSnapshot();
+                pump();
+            }
+        });
+    }
+
+    /**
+     * 不再管理该设备并断开连接
+     */
+    public void disconnect(final String address) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Target t = mTargets.remove(address);
+                if (t == null) return;
+                cancelTimeout(t);
+                if (t == mConnecting) mConnecting = null;
+                mLeProxy.disconnectGatt(address);
+                publishSnapshot();
+                pump();
+            }
+        });
+    }
+
+    /**
+     * 设备被主动断开（由{@link LeProxy#disconnect(String)}调用），之后的断开事件不再触发重连
+     */
+    void onUserDisconnect(final String address) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Target t = mTargets.get(address);
+                if (t == null) return;
+                cancelTimeout(t);
+                if (t == mConnecting) mConnecting = null;
+                t.state = STATE_STOPPED;
+                publishSnapshot();
+                pump();
+            }
+        });
+    }
+
+    /**
+     * 不再管理任何设备，已连接的设备保持连接
+     */
+    public void clear() {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (Target t : mTargets.values()) {
+                    cancelTimeout(t);
+                }
+                mTargets.clear();
+                mConnecting = null;
+                publishSnapshot();
+            }
+        });
+    }
+
+    /**
+     * 各设备状态的最新快照，不可修改，不会阻塞，可以在任意线程中调用；没有变化时返回同一个列表
+     */
+    public List<Status> getStatus() {
+        return mSnapshot;
+    }
+
+    // 状态变化后在内部线程中调用
+    private void publishSnapshot() {
+        List<Status> list = new ArrayList<>(mTargets.size());
+        for (Target t : mTargets.values()) {
+            list.add(new Status(t.address, t.state, t.attempts, t.readyMillis));
+        }
+        mSnapshot = Collections.unmodifiableList(list);
+    }
+
+    private final Runnable mPumpTask = new Runnable() {
+        @Override
+        public void run() {
+            mPumpFuture = null;
+            pump();
+        }
+    };
+
+    // 满足条件时发起下一个连接
+    private void pump() {
+        if (mConnecting != null) return;
+
+        int connected = 0;
+        int discovering = 0;
+        for (Target t : mTargets.values()) {
+            if (t.state == STATE_READY) connected++;
+            else if (t.state == STATE_DISCOVERING) discovering++;
+        }
+        if (connected + discovering >= mMaxConnected || discovering >= mMaxDiscovering) return;
+
+        long now = System.nanoTime();
+        long nextWake = Long.MAX_VALUE;
+        for (Target t : mTargets.values()) {
+            if (t.state == STATE_WAITING) {
+                startConnect(t);
+                return;
+            }
+            if (t.state == STATE_BACKOFF) {
+                if (t.nextTryNanos <= now) {
+                    startConnect(t);
+                    return;
+                }
+                nextWake = Math.min(nextWake, t.nextTryNanos);
+            }
+        }
+        if (nextWake != Long.MAX_VALUE && mPumpFuture == null) {
+            mPumpFuture = mExecutor.schedule(mPumpTask, nextWake - now, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void startConnect(final Target t) {
+        if (t.attempts == 0) t.startNanos = System.nanoTime();
+        t.attempts++;
+        t.state = STATE_CONNECTING;
+        mConnecting = t;
+        publishSnapshot();
+        Log.i(TAG, "connect " + t.address + ", attempt " + t.attempts);
+        mLeProxy.connect(t.address, false);
+        t.timeout = mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                t.timeout = null;
+                if (t.state == STATE_CONNECTING) {
+                    Log.w(TAG, "no connect callback: " + t.address);
+                    mLeProxy.disconnectGatt(t.address);
+                    onFailed(t);
+                }
+            }
+        }, mConnectTimeout, TimeUnit.MILLISECONDS);
+    }
+
+    private void onFailed(Target t) {
+        cancelTimeout(t);
+        if (t == mConnecting) mConnecting = null;
+        int failures = Math.max(1, Math.min(t.attempts, 16));
+        long delay = Math.min(mBackoffMax, mBackoffBase << (failures - 1));
+        delay = (long) (delay * (0.5 + mRandom.nextDouble() * 0.5));
+        t.state = STATE_BACKOFF;
+        t.nextTryNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+        publishSnapshot();
+        Log.w(TAG, "retry " + t.address + " in " + delay + "ms");
+        Callback callback = mCallback;
+        if (callback != null) callback.onRetry(t.address, t.attempts, delay);
+        pump();
+    }
+
+    private void cancelTimeout(Target t) {
+        if (t.timeout != null) {
+            t.timeout.cancel(false);
+            t.timeout = null;
+        }
+    }
+
+    private void post(final String address, final int event) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Target t = mTargets.get(address);
+                if (t != null) handleEvent(t, event);
+            }
+        });
+    }
+
+    private void handleEvent(final Target t, int event) {
+        switch (event) {
+            case LeEventBus.EVENT_CONNECTED:
+                if (t.state != STATE_CONNECTING) break;
+                cancelTimeout(t);
+                t.state = STATE_DISCOVERING;
+                if (t == mConnecting) mConnecting = null;
+                publishSnapshot();
+                t.timeout = mExecutor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        t.timeout = null;
+                        if (t.state == STATE_DISCOVERING) {
+                            Log.w(TAG, "discover services timeout: " + t.address);
+                            mLeProxy.disconnectGatt(t.address);
+                            onFailed(t);
+                        }
+                    }
+                }, mDiscoverTimeout, TimeUnit.MILLISECONDS);
+                pump();
+                break;
+
+            case LeEventBus.EVENT_SERVICES_DISCOVERED:
+                if (t.state == STATE_READY || t.state == STATE_STOPPED) break;
+                cancelTimeout(t);
+                if (t == mConnecting) mConnecting = null;
+                t.state = STATE_READY;
+                // 不是由这里发起的连接（如手动连接），不计时
+                t.readyMillis = t.attempts > 0 ? (System.nanoTime() - t.startNanos) / 1000000 : 0;
+                int attempts = t.attempts;
+                t.attempts = 0;
+                publishSnapshot();
+                Log.i(TAG, "ready " + t.address + " in " + t.readyMillis + "ms, attempts=" + attempts);
+                Callback callback = mCallback;
+                if (callback != null) callback.onReady(t.address, t.readyMillis, attempts);
+                pump();
+                break;
+
+            case LeEventBus.EVENT_CONNECT_TIMEOUT:
+            case LeEventBus.EVENT_CONNECT_ERROR:
+                if (t.state == STATE_CONNECTING || t.state == STATE_DISCOVERING) {
+                    mLeProxy.disconnectGatt(t.address);
+                    onFailed(t);
+                }
+                break;
+
+            case LeEventBus.EVENT_DISCONNECTED:
+                if (t.state != STATE_BACKOFF && t.state != STATE_WAITING && t.state != STATE_STOPPED) {
+                    // 已连接的设备断开，重新开始计时
+                    if (t.state == STATE_READY) t.attempts = 0;
+                    onFailed(t);
+                }
+                break;
+        }
+    }
+
+    @Override
+    public void onConnected(String address) {
+        post(address, LeEventBus.EVENT_CONNECTED);
+    }
+
+    @Override
+    public void onConnectTimeout(String address) {
+        post(address, LeEventBus.EVENT_CONNECT_TIMEOUT);
+    }
+
+    @Override
+    public void onConnectionError(String address, int error, int newState) {
+        post(address, LeEventBus.EVENT_CONNECT_ERROR);
+    }
+
+    @Override
+    public void onDisconnected(String address) {
+        post(address, LeEventBus.EVENT_DISCONNECTED);
+    }
+
+    @Override
+    public void onServicesDiscovered(String address) {
+        post(address, LeEventBus.EVENT_SERVICES_DISCOVERED);
+    }
+}
@@ -0,0 +1,179 @@
+package com.ble.demo.util;
+
+import android.bluetooth.BluetoothDevice;
+
+import com.ble.ble.LeScanRecord;
+import com.ble.ble.scan.LeScanResult;
+import com.ble.demo.LeDevice;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * 扫描结果的索引：按48位MAC（{@link LeDevice#packAddress}）开放寻址哈希到设备所在的位置（slot），
+ * 同一设备再次扫描到时O(1)找到并原地更新，位置不变
+ * <p>
+ * 移除设备后位置空出（get()返回null），给之后的新设备复用，其他设备的位置不变；
+ * 哈希表用后移删除，不留墓碑，查找链不会因为设备频繁进出而变长
+ * <p>
+ * 键和值都是基本类型数组，查找不分配对象；非线程安全
+ */
+public class LeDeviceIndex {
+    private static final long EMPTY = Long.MIN_VALUE;// 有效的MAC不会是这个值
+    private static final int INITIAL_CAPACITY = 64;// 2的幂
+
+    private final ArrayList<LeDevice> mDevices = new ArrayList<>();// 空出的位置为null
+    private long[] mKeys;
+    private int[] mSlots;
+    private int mMask;
+    private int mSize;
+    private int[] mFreeSlots = new int[16];
+    private int mFreeCount;
+
+    public LeDeviceIndex() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * 加入或原地更新扫描结果
+     *
+     * @return 已有设备返回其位置；新设备返回 -(位置 + 1)
+     */
+    public int update(LeScanResult result) {
+        LeScanRecord record = result.getLeScanRecord();
+        return update(result.getDevice(), result.getRssi(), record != null ? record.getBytes() : null, null);
+    }
+
+    /**
+     * 同{@link #update(LeScanResult)}，用于平台扫描接口的结果
+     *
+     * @param localName 广播数据中的名称，可以为null；新设备没有名称时才查询{@link BluetoothDevice#getName()}
+     */
+    public int update(BluetoothDevice device, int rssi, byte[] scanRecord, String localName) {
+        long key = LeDevice.packAddress(device.getAddress());
+        int i = probe(key);
+        if (mKeys[i] == key) {
+            int slot = mSlots[i];
+            mDevices.get(slot).update(rssi, scanRecord, localName);
+            return slot;
+        }
+
+        LeDevice newDevice = new LeDevice(device, rssi, scanRecord, localName);
+        int slot;
+        if (mFreeCount > 0) {
+            slot = mFreeSlots[--mFreeCount];
+            mDevices.set(slot, newDevice);
+        } else {
+            slot = mDevices.size();
+            mDevices.add(newDevice);
+        }
+        mKeys[i] = key;
+        mSlots[i] = slot;
+        mSize++;
+        // 装载因子不超过0.5，线性探测的链保持很短
+        if (mSize * 2 > mKeys.length) rehash(mKeys.length * 2);
+        return -(slot + 1);
+    }
+
+    /**
+     * 移除slot处的设备，空出的位置之后给新设备使用
+     */
+    public void remove(int slot) {
+        LeDevice device = mDevices.get(slot);
+        if (device == null) return;
+        mDevices.set(slot, null);
+        if (mFreeCount == mFreeSlots.length) mFreeSlots = Arrays.copyOf(mFreeSlots, mFreeCount * 2);
+        mFreeSlots[mFreeCount++] = slot;
+        mSize--;
+
+        long key = LeDevice.packAddress(device.getAddress());
+        int i = probe(key);
+        if (mKeys[i] != key) return;
+        // 后移删除：把后面探测链上能放到空位的键前移，直到遇到空位
+        int j = i;
+        while (true) {
+            j = (j + 1) & mMask;
+            if (mKeys[j] == EMPTY) break;
+            int home = hash(mKeys[j]) & mMask;
+            // home不在(i, j]之间时，键可以前移到i
+            boolean stay = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+            if (!stay) {
+                mKeys[i] = mKeys[j];
+                mSlots[i] = mSlots[j];
+                i = j;
+            }
+        }
+        mKeys[i] = EMPTY;
+    }
+
+    /**
+     * @return 设备的位置，没有时返回-1
+     */
+    public int indexOf(String address) {
+        long key = LeDevice.packAddress(address);
+        int i = probe(key);
+        return mKeys[i] == key ? mSlots[i] : -1;
+    }
+
+    /**
+     * @return 位置已空出时返回null
+     */
+    public LeDevice get(int slot) {
+        return mDevices.get(slot);
+    }
+
+    /**
+     * 设备数
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * 位置的范围[0, getSlotCount())，包括空出的位置
+     */
+    public int getSlotCount() {
+        return mDevices.size();
+    }
+
+    public void clear() {
+        mDevices.clear();
+        Arrays.fill(mKeys, EMPTY);
+        mSize = 0;
+        mFreeCount = 0;
+    }
+
+    // 返回key所在或应插入的位置
+    private int probe(long key) {
+        int i = hash(key) & mMask;
+        while (mKeys[i] != EMPTY && mKeys[i] != key) {
+            i = (i + 1) & mMask;
+        }
+        return i;
+    }
+
+    // MAC的高位是厂商编号，同一批模块只有低位不同，先打散再取低位
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private void allocate(int capacity) {
+        mKeys = new long[capacity];
+        mSlots = new int[capacity];
+        mMask = capacity - 1;
+        Arrays.fill(mKeys, EMPTY);
+    }
+
+    private void rehash(int capacity) {
+        long[] keys = mKeys;
+        int[] slots = mSlots;
+        allocate(capacity);
+        for (int j = 0; j < keys.length; j++) {
+            if (keys[j] == EMPTY) continue;
+            int i = probe(keys[j]);
+            mKeys[i] = keys[j];
+            mSlots[i] = slots[j];
+        }
+    }
+}
@@ -0,0 +1,355 @@
+package com.ble.demo.util;
+
+import android.util.Log;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 把蓝牙事件从回调线程转到后台线程执行，回调线程只负责入队
+ * <p>
+ * 每个监听者的每个设备对应一条串行通道，同一设备的事件按顺序执行；
+ * 各通道共享一个固定大小的线程池，每次最多连续执行{@link #BATCH}个事件后让出线程，
+ * 某个设备的监听者处理慢不会拖住其他设备。通道的事件槽在创建时分配，入队不分配内存。
+ * 通道满时的处理方式见POLICY_XXX
+ */
+public class LeDispatcher {
+    private static final String TAG = "LeDispatcher";
+
+    /**
+     * 通道满时阻塞回调线程直到有空位，事件不会丢失，只用于处理很快且不能丢事件的监听者
+     */
+    public static final int POLICY_BLOCK = 0;
+    /**
+     * 通道满时丢弃最早的数据事件（连接状态事件不丢弃）；通道中没有数据事件时丢弃新来的数据事件，
+     * 新来的是状态事件则阻塞回调线程直到有空位
+     */
+    public static final int POLICY_DROP_OLDEST = 1;
+    /**
+     * 同一通道uuid还未执行的数据事件合并为最新的一个，适合只关心最新数据或自行从{@link RxRingBuffer}读取的监听者；
+     * 通道满时同{@link #POLICY_DROP_OLDEST}
+     */
+    public static final int POLICY_COALESCE = 2;
+
+    static final int BATCH = 32;
+
+    private final ThreadPoolExecutor mExecutor;
+
+    /**
+     * @param threads 线程数，通常2个即可
+     */
+    public LeDispatcher(int threads) {
+        final AtomicInteger count = new AtomicInteger();
+        mExecutor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, TAG + "-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * 包装监听者，包装后的监听者注册到{@link LeEventBus}，事件在后台线程中回调target
+     *
+     * @param policy       POLICY_XXX
+     * @param laneCapacity 每个设备最多缓存的事件数
+     */
+    public AsyncListener wrap(LeListener target, int policy, int laneCapacity) {
+        return new AsyncListener(target, policy, laneCapacity);
+    }
+
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    /**
+     * 预分配的事件槽
+     */
+    private static class Event {
+        int type;
+        UUID uuid;
+        byte[] data;
+        int arg1;
+        int arg2;
+
+        void clear() {
+            uuid = null;
+            data = null;
+        }
+    }
+
+    public class AsyncListener extends LeListener {
+        private final LeListener mTarget;
+        private final int mPolicy;
+        private final int mCapacity;
+        private final ConcurrentHashMap<String, Lane> mLanes = new ConcurrentHashMap<>();
+        private final AtomicLong mDroppedCount = new AtomicLong();
+        private final AtomicLong mCoalescedCount = new AtomicLong();
+        private volatile boolean mClosed;
+
+        AsyncListener(LeListener target, int policy, int capacity) {
+            if (capacity <= 0) throw new IllegalArgumentException("capacity must be > 0");
+            mTarget = target;
+            mPolicy = policy;
+            mCapacity = capacity;
+        }
+
+        public LeListener getTarget() {
+            return mTarget;
+        }
+
+        /**
+         * 通道满被丢弃的事件数
+         */
+        public long getDroppedCount() {
+            return mDroppedCount.get();
+        }
+
+        /**
+         * 被合并的数据事件数
+         */
+        public long getCoalescedCount() {
+            return mCoalescedCount.get();
+        }
+
+        /**
+         * 停止分发，未执行的事件丢弃，阻塞中的回调线程立即返回
+         */
+        public void close() {
+            mClosed = true;
+            for (Lane lane : mLanes.values()) {
+                lane.close();
+            }
+        }
+
+        private Lane lane(String address) {
+            Lane lane = mLanes.get(address);
+            if (lane == null) {
+                lane = new Lane(this, address);
+                Lane old = mLanes.putIfAbsent(address, lane);
+                if (old != null) lane = old;
+            }
+            return lane;
+        }
+
+        @Override
+        public void onConnected(String address) {
+            lane(address).post(LeEventBus.EVENT_CONNECTED, null, null, 0, 0);
+        }
+
+        @Override
+        public void onConnectTimeout(String address) {
+            lane(address).post(LeEventBus.EVENT_CONNECT_TIMEOUT, null, null, 0, 0);
+        }
+
+        @Override
+        public void onConnectionError(String address, int error, int newState) {
+            lane(address).post(LeEventBus.EVENT_CONNECT_ERROR, null, null, error, newState);
+        }
+
+        @Override
+        public void onDisconnected(String address) {
+            lane(address).post(LeEventBus.EVENT_DISCONNECTED, null, null, 0, 0);
+        }
+
+        @Override
+        public void onServicesDiscovered(String address) {
+            lane(address).post(LeEventBus.EVENT_SERVICES_DISCOVERED, null, null, 0, 0);
+        }
+
+        @Override
+        public void onDataAvailable(String address, UUID uuid, byte[] data) {
+            lane(address).post(LeEventBus.EVENT_DATA_AVAILABLE, uuid, data, 0, 0);
+        }
+
+        @Override
+        public void onMtuChanged(String address, int mtu, int status) {
+            lane(address).post(LeEventBus.EVENT_MTU_CHANGED, null, null, mtu, status);
+        }
+    }
+
+    /**
+     * 单个设备的串行通道
+     */
+    private class Lane implements Runnable {
+        private final AsyncListener mOwner;
+        private final String mAddress;
+        private final Event[] mSlots;
+        private int mHead;
+        private int mSize;
+        private boolean mScheduled;
+        private boolean mClosed;
+        private int mWaiting;// 阻塞等待空位的回调线程数
+
+        Lane(AsyncListener owner, String address) {
+            mOwner = owner;
+            mAddress = address;
+            mSlots = new Event[owner.mCapacity];
+            for (int i = 0; i < mSlots.length; i++) {
+                mSlots[i] = new Event();
+            }
+        }
+
+        void post(int type, UUID uuid, byte[] data, int arg1, int arg2) {
+            boolean schedule = false;
+            synchronized (this) {
+                if (mClosed || mOwner.mClosed) return;
+
+                if (mOwner.mPolicy == POLICY_COALESCE && type == LeEventBus.EVENT_DATA_AVAILABLE && mSize > 0) {
+                    Event tail = mSlots[(mHead + mSize - 1) % mSlots.length];
+                    if (tail.type == type && tail.uuid != null && tail.uuid.equals(uuid)) {
+                        tail.data = data;
+                        mOwner.mCoalescedCount.incrementAndGet();
+                        return;
+                    }
+                }
+
+                if (mSize == mSlots.length) {
+                    if (mOwner.mPolicy == POLICY_BLOCK) {
+                        if (!awaitSpace()) return;
+                    } else if (!dropOldestData()) {
+                        // 通道中全是状态事件，不能丢
+                        if (type == LeEventBus.EVENT_DATA_AVAILABLE) {
+                            mOwner.mDroppedCount.incrementAndGet();
+                            return;
+                        }
+                        if (!awaitSpace()) return;
+                    }
+                }
+
+                Event e = mSlots[(mHead + mSize) % mSlots.length];
+                e.type = type;
+                e.uuid = uuid;
+                e.data = data;
+                e.arg1 = arg1;
+                e.arg2 = arg2;
+                mSize++;
+                if (!mScheduled) {
+                    mScheduled = true;
+                    schedule = true;
+                }
+            }
+            if (schedule) schedule();
+        }
+
+        // 在锁中调用，等到有空位；通道关闭或线程被中断时返回false
+        private boolean awaitSpace() {
+            mWaiting++;
+            try {
+                while (mSize == mSlots.length && !mClosed) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                mWaiting--;
+            }
+            return !mClosed;
+        }
+
+        // 丢弃最早的数据事件，后面的事件依次前移；没有数据事件时返回false
+        private boolean dropOldestData() {
+            int n = mSlots.length;
+            int k = 0;
+            while (k < mSize && mSlots[(mHead + k) % n].type != LeEventBus.EVENT_DATA_AVAILABLE) k++;
+            if (k == mSize) return false;
+            Event dropped = mSlots[(mHead + k) % n];
+            for (int i = k; i < mSize - 1; i++) {
+                mSlots[(mHead + i) % n] = mSlots[(mHead + i + 1) % n];
+            }
+            dropped.clear();
+            mSlots[(mHead + mSize - 1) % n] = dropped;
+            mSize--;
+            mOwner.mDroppedCount.incrementAndGet();
+            return true;
+        }
+
+        synchronized void close() {
+            mClosed = true;
+            for (Event e : mSlots) {
+                e.clear();
+            }
+            mSize = 0;
+            notifyAll();
+        }
+
+        private void schedule() {
+            try {
+                mExecutor.execute(this);
+            } catch (RejectedExecutionException e) {
+                Log.w(TAG, "dispatcher has been shut down");
+            }
+        }
+
+        @Override
+        public void run() {
+            int type, arg1, arg2;
+            UUID uuid;
+            byte[] data;
+            for (int n = 0; n < BATCH; n++) {
+                synchronized (this) {
+                    if (mSize == 0 || mClosed) {
+                        mScheduled = false;
+                        return;
+                    }
+                    Event e = mSlots[mHead];
+                    type = e.type;
+                    uuid = e.uuid;
+                    data = e.data;
+                    arg1 = e.arg1;
+                    arg2 = e.arg2;
+                    e.clear();
+                    mHead = (mHead + 1) % mSlots.length;
+                    mSize--;
+                    if (mWaiting > 0) notifyAll();
+                }
+                try {
+                    deliver(type, uuid, data, arg1, arg2);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "listener error: " + mAddress, e);
+                }
+            }
+            // 连续执行了一批，让出线程给其他通道
+            schedule();
+        }
+
+        private void deliver(int type, UUID uuid, byte[] data, int arg1, int arg2) {
+            LeListener target = mOwner.mTarget;
+            switch (type) {
+                case LeEventBus.EVENT_CONNECTED:
+                    target.onConnected(mAddress);
+                    break;
+                case LeEventBus.EVENT_CONNECT_TIMEOUT:
+                    target.onConnectTimeout(mAddress);
+                    break;
+                case LeEventBus.EVENT_CONNECT_ERROR:
+                    target.onConnectionError(mAddress, arg1, arg2);
+                    break;
+                case LeEventBus.EVENT_DISCONNECTED:
+                    target.onDisconnected(mAddress);
+                    break;
+                case LeEventBus.EVENT_SERVICES_DISCOVERED:
+                    target.onServicesDiscovered(mAddress);
+                    break;
+                case LeEventBus.EVENT_DATA_AVAILABLE:
+                    target.onDataAvailable(mAddress, uuid, data);
+                    break;
+                case LeEventBus.EVENT_MTU_CHANGED:
+                    target.onMtuChanged(mAddress, arg1, arg2);
+                    break;
+            }
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package com.ble.demo.util;
+
+import java.util.UUID;
+
+/**
+ * 蓝牙事件分发，代替逐包发送LocalBroadcast：
+ * 监听者可按事件类型、设备地址、通道uuid过滤，事件直接回调，不产生Intent/Bundle
+ * <p>
+ * 注册表采用写时复制，分发过程不加锁、不分配内存。
+ * 默认在蓝牙回调线程中直接回调，处理较重的监听者用{@link #registerAsync}注册，由{@link LeDispatcher}转到后台线程
+ */
+public class LeEventBus {
+
+    public static final int EVENT_CONNECTED = 1;
+    public static final int EVENT_CONNECT_TIMEOUT = 1 << 1;
+    public static final int EVENT_CONNECT_ERROR = 1 << 2;
+    public static final int EVENT_DISCONNECTED = 1 << 3;
+    public static final int EVENT_SERVICES_DISCOVERED = 1 << 4;
+    public static final int EVENT_DATA_AVAILABLE = 1 << 5;
+    public static final int EVENT_MTU_CHANGED = 1 << 6;
+    public static final int EVENT_ALL = 0xFFFFFFFF;
+
+    private static final Registration[] EMPTY = new Registration[0];
+    private static final int DISPATCHER_THREADS = 2;
+
+    private volatile Registration[] mRegistrations = EMPTY;
+    private LeDispatcher mDispatcher;
+
+    private static class Registration {
+        final LeListener listener;
+        // 实际回调的监听者，异步注册时为包装后的监听者
+        final LeListener target;
+        final int events;
+        final String address;
+        final UUID uuid;
+
+        Registration(LeListener listener, LeListener target, int events, String address, UUID uuid) {
+            this.listener = listener;
+            this.target = target;
+            this.events = events;
+            this.address = address;
+            this.uuid = uuid;
+        }
+
+        boolean accept(int event, String address) {
+            return (events & event) != 0
+                    && (this.address == null || this.address.equals(address));
+        }
+    }
+
+    public void register(LeListener listener) {
+        register(listener, EVENT_ALL, null, null);
+    }
+
+    public void register(LeListener listener, int events) {
+        register(listener, events, null, null);
+    }
+
+    /**
+     * @param listener 监听者，同一个监听者重复注册会覆盖之前的过滤条件
+     * @param events   关心的事件，如{@link #EVENT_DATA_AVAILABLE} | {@link #EVENT_DISCONNECTED}
+     * @param address  只接收该设备的事件，null表示所有设备
+     * @param uuid     只接收该通道的数据，null表示所有通道（仅对{@link #EVENT_DATA_AVAILABLE}有效）
+     */
+    public void register(LeListener listener, int events, String address, UUID uuid) {
+        if (listener == null) return;
+        register(new Registration(listener, listener, events, address, uuid));
+    }
+
+    /**
+     * 异步注册：监听者在后台线程中回调，同一设备的事件保持顺序，处理慢不会阻塞蓝牙回调线程和其他设备
+     *
+     * @param policy   通道满时的处理方式，如{@link LeDispatcher#POLICY_COALESCE}
+     * @param capacity 每个设备最多缓存的事件数
+     * @see #register(LeListener, int, String, UUID)
+     */
+    public void registerAsync(LeListener listener, int events, String address, UUID uuid, int policy, int capacity) {
+        if (listener == null) return;
+        LeListener target = getDispatcher().wrap(listener, policy, capacity);
+        register(new Registration(listener, target, events, address, uuid));
+    }
+
+    private synchronized LeDispatcher getDispatcher() {
+        if (mDispatcher == null) {
+            mDispatcher = new LeDispatcher(DISPATCHER_THREADS);
+        }
+        return mDispatcher;
+    }
+
+    private synchronized void register(Registration registration) {
+        LeListener listener = registration.listener;
+        Registration[] old = mRegistrations;
+        int index = indexOf(old, listener);
+        Registration[] regs;
+        if (index < 0) {
+            regs = new Registration[old.length + 1];
+            System.arraycopy(old, 0, regs, 0, old.length);
+            index = old.length;
+        } else {
+            regs = old.clone();
+            close(old[index]);
+        }
+        regs[index] = registration;
+        mRegistrations = regs;
+    }
+
+    public synchronized void unregister(LeListener listener) {
+        Registration[] old = mRegistrations;
+        int index = indexOf(old, listener);
+        if (index < 0) return;
+        close(old[index]);
+        if (old.length == 1) {
+            mRegistrations = EMPTY;
+            return;
+        }
+        Registration[] regs = new Registration[old.length - 1];
+        System.arraycopy(old, 0, regs, 0, index);
+        System.arraycopy(old, index + 1, regs, index, old.length - index - 1);
+        mRegistrations = regs;
+    }
+
+    private static void close(Registration registration) {
+        if (registration.target instanceof LeDispatcher.AsyncListener) {
+            ((LeDispatcher.AsyncListener) registration.target).close();
+        }
+    }
+
+    private static int indexOf(Registration[] regs, LeListener listener) {
+        for (int i = 0; i < regs.length; i++) {
+            if (regs[i].listener == listener) return i;
+        }
+        return -1;
+    }
+
+    void dispatchConnected(String address) {
+        for (Registration r : mRegistrations) {
+            if (r.accept(EVENT_CONNECTED, address)) r.target.onConnected(address);
+        }
+    }
+
+    void dispatchConnectTimeout(String address) {
+        for (Registration r : mRegistrations) {
+            if (r.accept(EVENT_CONNECT_TIMEOUT, address)) r.target.onConnectTimeout(address);
+        }
+    }
+
+    void dispatchConnectionError(String address, int error, int newState) {
+        for (Registration r : mRegistrations) {
+            if (r.accept(EVENT_CONNECT_ERROR, address)) r.target.onConnectionError(address, error, newState);
+        }
+    }
+
+    void dispatchDisconnected(String address) {
+        for (Registration r : mRegistrations) {
+            if (r.accept(EVENT_DISCONNECTED, address)) r.target.onDisconnected(address);
+        }
+    }
+
+    void dispatchServicesDiscovered(String address) {
+        for (Registration r : mRegistrations) {
+            if (r.accept(EVENT_SERVICES_DISCOVERED, address)) r.target.onServicesDiscovered(address);
+        }
+    }
+
+    void dispatchDataAvailable(String address, UUID uuid, byte[] data) {
+        for (Registration r : mRegistrations) {
+            if (r.accept(EVENT_DATA_AVAILABLE, address) && (r.uuid == null || r.uuid.equals(uuid))) {
+                r.target.onDataAvailable(address, uuid, data);
+            }
+        }
+    }
+
+    void dispatchMtuChanged(String address, int mtu, int status) {
+        for (Registration r : mRegistrations) {
+            if (r.accept(EVENT_MTU_CHANGED, address)) r.target.onMtuChanged(address, mtu, status);
+        }
+    }
+}
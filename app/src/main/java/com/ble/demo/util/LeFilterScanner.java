@@ -0,0 +1,183 @@
+package com.ble.demo.util;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelUuid;
+import android.util.Log;
+
+import com.ble.demo.AdvData;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * 按{@link LeScanConfig}扫描：过滤条件、扫描模式和批量上报交给系统的BluetoothLeScanner（LeScanner不支持这些设置），
+ * 权限和蓝牙开关由调用者先通过LeScanner.requestScan()检查，扫描期间权限被收回时按扫描失败处理。回调都在主线程中
+ */
+public class LeFilterScanner {
+    private static final String TAG = "LeFilterScanner";
+
+    public interface Listener {
+        void onScanStart();
+
+        void onScanResult(BluetoothDevice device, int rssi, byte[] scanRecord);
+
+        void onScanFailed(int errorCode);
+
+        void onScanStop();
+    }
+
+    private final Listener mListener;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final AdvData mAdvData = new AdvData();// 只在主线程中使用
+    private BluetoothLeScanner mScanner;
+    private String mNamePrefix = "";
+    private boolean mScanning;
+
+    private long mReportCount;// 系统回调的次数（批量上报算一次）
+    private long mResultCount;// 收到的扫描结果
+    private long mDeliveredCount;// 通过名称过滤交给Listener的结果
+
+    private final Runnable mStopRunnable = new Runnable() {
+        @Override
+        public void run() {
+            stop();
+        }
+    };
+
+    private final ScanCallback mScanCallback = new ScanCallback() {
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            mReportCount++;
+            deliver(result);
+        }
+
+        @Override
+        public void onBatchScanResults(List<ScanResult> results) {
+            mReportCount++;
+            for (int i = 0; i < results.size(); i++) {
+                deliver(results.get(i));
+            }
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            Log.e(TAG, "onScanFailed() - " + errorCode);
+            mHandler.removeCallbacks(mStopRunnable);
+            mScanning = false;
+            mListener.onScanFailed(errorCode);
+            mListener.onScanStop();
+        }
+    };
+
+    public LeFilterScanner(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * 开始扫描，durationMillis后自动停止；正在扫描时先停止再按新的配置开始
+     *
+     * @return 蓝牙未打开或没有扫描权限时返回false
+     */
+    public boolean start(LeScanConfig config, long durationMillis) {
+        if (mScanning) stop();
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        if (adapter == null || !adapter.isEnabled()) return false;
+        mScanner = adapter.getBluetoothLeScanner();
+        if (mScanner == null) return false;
+
+        ScanSettings.Builder settings = new ScanSettings.Builder().setScanMode(config.getScanMode());
+        long reportDelay = config.getReportDelayMillis();
+        if (reportDelay > 0) {
+            if (adapter.isOffloadedScanBatchingSupported()) {
+                settings.setReportDelay(reportDelay);
+            } else {
+                Log.w(TAG, "scan batching not supported, reporting each result");
+            }
+        }
+
+        mNamePrefix = config.getNamePrefix();
+        mReportCount = 0;
+        mResultCount = 0;
+        mDeliveredCount = 0;
+        try {
+            mScanner.startScan(buildFilters(config), settings.build(), mScanCallback);
+        } catch (SecurityException e) {
+            Log.e(TAG, "start scan without permission - " + e);
+            return false;
+        }
+        mScanning = true;
+        mListener.onScanStart();
+        mHandler.postDelayed(mStopRunnable, durationMillis);
+        return true;
+    }
+
+    public void stop() {
+        mHandler.removeCallbacks(mStopRunnable);
+        if (!mScanning) return;
+        mScanning = false;
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        // 蓝牙已关闭时系统已经停止了扫描，再调用会抛异常
+        if (adapter != null && adapter.isEnabled()) {
+            try {
+                // 批量上报时先取出芯片中缓存的结果
+                mScanner.flushPendingScanResults(mScanCallback);
+                mScanner.stopScan(mScanCallback);
+            } catch (SecurityException e) {
+                // 权限已被收回，系统也不会再回调
+                Log.w(TAG, "stop scan without permission - " + e);
+            }
+        }
+        mListener.onScanStop();
+    }
+
+    public boolean isScanning() {
+        return mScanning;
+    }
+
+    public long getReportCount() {
+        return mReportCount;
+    }
+
+    public long getResultCount() {
+        return mResultCount;
+    }
+
+    public long getDeliveredCount() {
+        return mDeliveredCount;
+    }
+
+    // 每个条件一个ScanFilter，系统按“或”匹配
+    private static List<ScanFilter> buildFilters(LeScanConfig config) {
+        List<ScanFilter> filters = new ArrayList<>();
+        for (UUID uuid : config.getServiceUuids()) {
+            filters.add(new ScanFilter.Builder().setServiceUuid(new ParcelUuid(uuid)).build());
+        }
+        for (int id : config.getManufacturerIds()) {
+            // 空的数据匹配该公司ID的任意厂商数据
+            filters.add(new ScanFilter.Builder().setManufacturerData(id, new byte[0]).build());
+        }
+        for (String address : config.getAddresses()) {
+            filters.add(new ScanFilter.Builder().setDeviceAddress(address).build());
+        }
+        return filters;
+    }
+
+    private void deliver(ScanResult result) {
+        mResultCount++;
+        ScanRecord record = result.getScanRecord();
+        byte[] bytes = record != null ? record.getBytes() : null;
+        if (!mNamePrefix.isEmpty() && !mAdvData.reset(bytes).localNameStartsWith(mNamePrefix)) return;
+        mDeliveredCount++;
+        mListener.onScanResult(result.getDevice(), result.getRssi(), bytes);
+    }
+}
@@ -0,0 +1,40 @@
+package com.ble.demo.util;
+
+import java.util.UUID;
+
+/**
+ * 蓝牙事件监听，通过{@link LeEventBus#register}注册后由{@link LeProxy}直接回调，
+ * 只需重写关心的方法
+ * <p>
+ * 注：通过register()注册时回调在蓝牙回调线程中执行，不能有阻塞操作，更新UI需自行切换到主线程；
+ * 处理较重（如格式化大量数据）时用{@link LeEventBus#registerAsync}注册，在后台线程中回调
+ */
+public abstract class LeListener {
+
+    public void onConnected(String address) {
+    }
+
+    public void onConnectTimeout(String address) {
+    }
+
+    public void onConnectionError(String address, int error, int newState) {
+    }
+
+    public void onDisconnected(String address) {
+    }
+
+    public void onServicesDiscovered(String address) {
+    }
+
+    /**
+     * 接收到模组数据（notify或read）
+     *
+     * @param uuid 数据所在的特征uuid
+     * @param data 特征值，只读，不要修改或长期持有
+     */
+    public void onDataAvailable(String address, UUID uuid, byte[] data) {
+    }
+
+    public void onMtuChanged(String address, int mtu, int status) {
+    }
+}
@@ -0,0 +1,232 @@
+package com.ble.demo.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 按设备统计收发字节数、包数和各类延时
+ * <p>
+ * 计数器和直方图都是原子变量，记录时不加锁、不分配内存（设备第一次出现时除外），
+ * 通过{@link #snapshot(String)}获取某一时刻的快照，两次快照相减得到速率
+ */
+public class LeMetrics {
+
+    /**
+     * 直方图各桶的上限（微秒），最后一个桶存放超出上限的值
+     */
+    static final long[] BUCKET_BOUNDS_US = {
+            250, 500, 1000, 2000, 4000, 8000, 16000, 32000, 64000, 128000,
+            256000, 512000, 1000000, 2000000, 5000000, 10000000
+    };
+
+    private final ConcurrentHashMap<String, DeviceMetrics> mDevices = new ConcurrentHashMap<>();
+
+    /**
+     * 固定分桶的延时直方图
+     */
+    public static class Histogram {
+        private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_BOUNDS_US.length + 1);
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mSumUs = new AtomicLong();
+        private final AtomicLong mMaxUs = new AtomicLong();
+
+        public void record(long nanos) {
+            long us = nanos / 1000;
+            int i = 0;
+            while (i < BUCKET_BOUNDS_US.length && us > BUCKET_BOUNDS_US[i]) i++;
+            mBuckets.incrementAndGet(i);
+            mCount.incrementAndGet();
+            mSumUs.addAndGet(us);
+            long max;
+            while (us > (max = mMaxUs.get()) && !mMaxUs.compareAndSet(max, us)) {
+                // retry
+            }
+        }
+
+        void copyTo(HistogramSnapshot s) {
+            for (int i = 0; i < s.buckets.length; i++) {
+                s.buckets[i] = mBuckets.get(i);
+            }
+            s.count = mCount.get();
+            s.sumUs = mSumUs.get();
+            s.maxUs = mMaxUs.get();
+        }
+    }
+
+    public static class HistogramSnapshot {
+        public final long[] buckets = new long[BUCKET_BOUNDS_US.length + 1];
+        public long count;
+        public long sumUs;
+        public long maxUs;
+
+        public long getMeanUs() {
+            return count == 0 ? 0 : sumUs / count;
+        }
+
+        /**
+         * 估算百分位数，返回所在桶的上限（微秒）
+         *
+         * @param percentile 0~100
+         */
+        public long getPercentileUs(double percentile) {
+            if (count == 0) return 0;
+            long target = (long) Math.ceil(count * percentile / 100);
+            long n = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                n += buckets[i];
+                if (n >= target) {
+                    return i < BUCKET_BOUNDS_US.length ? BUCKET_BOUNDS_US[i] : maxUs;
+                }
+            }
+            return maxUs;
+        }
+    }
+
+    /**
+     * 单个设备的统计
+     */
+    public static class DeviceMetrics {
+        final String address;
+        final AtomicLong txBytes = new AtomicLong();
+        final AtomicLong txPackets = new AtomicLong();
+        final AtomicLong txFailures = new AtomicLong();
+        final AtomicLong rxBytes = new AtomicLong();
+        final AtomicLong rxPackets = new AtomicLong();
+        final Histogram writeLatency = new Histogram();
+        final Histogram connectLatency = new Histogram();
+        volatile long connectStartNanos;
+        volatile long connectedNanos;
+        volatile long servicesDiscoveredNanos;
+
+        DeviceMetrics(String address) {
+            this.address = address;
+        }
+    }
+
+    public static class Snapshot {
+        public String address;
+        public long timeNanos;
+        public long txBytes;
+        public long txPackets;
+        public long txFailures;
+        public long rxBytes;
+        public long rxPackets;
+        public final HistogramSnapshot writeLatency = new HistogramSnapshot();
+        /**
+         * 从发起连接到检索服务成功的时间
+         */
+        public final HistogramSnapshot connectLatency = new HistogramSnapshot();
+        /**
+         * 最近一次连接各阶段的时间（ms），-1表示未知
+         */
+        public long lastConnectMillis = -1;
+        public long lastDiscoverMillis = -1;
+
+        /**
+         * 两次快照之间的速率（每秒）
+         */
+        public static double rate(long prev, long cur, long prevTimeNanos, long curTimeNanos) {
+            long dt = curTimeNanos - prevTimeNanos;
+            return dt <= 0 ? 0 : (cur - prev) * 1e9 / dt;
+        }
+    }
+
+    DeviceMetrics get(String address) {
+        DeviceMetrics m = mDevices.get(address);
+        if (m == null) {
+            m = new DeviceMetrics(address);
+            DeviceMetrics old = mDevices.putIfAbsent(address, m);
+            if (old != null) m = old;
+        }
+        return m;
+    }
+
+    public void onConnectStart(String address) {
+        DeviceMetrics m = get(address);
+        m.connectStartNanos = System.nanoTime();
+        m.connectedNanos = 0;
+        m.servicesDiscoveredNanos = 0;
+    }
+
+    public void onConnected(String address) {
+        get(address).connectedNanos = System.nanoTime();
+    }
+
+    public void onServicesDiscovered(String address) {
+        DeviceMetrics m = get(address);
+        long now = System.nanoTime();
+        m.servicesDiscoveredNanos = now;
+        if (m.connectStartNanos != 0) {
+            m.connectLatency.record(now - m.connectStartNanos);
+        }
+    }
+
+    public void onRx(String address, int length) {
+        DeviceMetrics m = get(address);
+        m.rxPackets.incrementAndGet();
+        m.rxBytes.addAndGet(length);
+    }
+
+    public void onWriteComplete(String address, int length, long latencyNanos, boolean success) {
+        DeviceMetrics m = get(address);
+        if (success) {
+            m.txPackets.incrementAndGet();
+            m.txBytes.addAndGet(length);
+            m.writeLatency.record(latencyNanos);
+        } else {
+            m.txFailures.incrementAndGet();
+        }
+    }
+
+    /**
+     * 获取设备的统计快照，设备没有任何记录时返回null
+     */
+    public Snapshot snapshot(String address) {
+        DeviceMetrics m = mDevices.get(address);
+        if (m == null) return null;
+        Snapshot s = new Snapshot();
+        snapshot(m, s);
+        return s;
+    }
+
+    /**
+     * 所有设备的统计快照
+     */
+    public List<Snapshot> snapshotAll() {
+        List<Snapshot> list = new ArrayList<>();
+        for (DeviceMetrics m : mDevices.values()) {
+            Snapshot s = new Snapshot();
+            snapshot(m, s);
+            list.add(s);
+        }
+        return list;
+    }
+
+    private static void snapshot(DeviceMetrics m, Snapshot s) {
+        s.address = m.address;
+        s.timeNanos = System.nanoTime();
+        s.txBytes = m.txBytes.get();
+        s.txPackets = m.txPackets.get();
+        s.txFailures = m.txFailures.get();
+        s.rxBytes = m.rxBytes.get();
+        s.rxPackets = m.rxPackets.get();
+        m.writeLatency.copyTo(s.writeLatency);
+        m.connectLatency.copyTo(s.connectLatency);
+        long start = m.connectStartNanos;
+        long connected = m.connectedNanos;
+        long discovered = m.servicesDiscoveredNanos;
+        if (start != 0 && connected >= start) {
+            s.lastConnectMillis = (connected - start) / 1000000;
+        }
+        if (connected != 0 && discovered >= connected) {
+            s.lastDiscoverMillis = (discovered - connected) / 1000000;
+        }
+    }
+
+    public void clear() {
+        mDevices.clear();
+    }
+}
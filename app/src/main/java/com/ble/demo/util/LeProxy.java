@@ -5,13 +5,9 @@ import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothProfile;
-import android.content.Intent;
 import android.os.IBinder;
 import android.util.Log;
 
-import androidx.localbroadcastmanager.content.LocalBroadcastManager;
-
-import com.ble.api.DataUtil;
 import com.ble.ble.BleCallBack;
 import com.ble.ble.BleService;
 import com.ble.ble.constants.BleUUIDS;
@@ -21,9 +17,15 @@ import com.ble.ble.oad.OADProxy;
 import com.ble.ble.oad.OADType;
 import com.ble.ble.util.GattUtil;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 
 /**
  * Created by JiaJiefei on 2017/2/17.
@@ -31,7 +33,7 @@ import java.util.UUID;
 public class LeProxy {
     private static final String TAG = "LeProxy";
 
-    //各蓝牙事件的广播action
+    //各蓝牙事件的广播action（兼容旧的广播方式，见setBroadcastEnabled()，建议通过getEventBus()注册监听）
     public static final String ACTION_CONNECT_TIMEOUT = "ACTION_CONNECT_TIMEOUT";
     public static final String ACTION_CONNECT_ERROR = "ACTION_CONNECT_ERROR";
     public static final String ACTION_GATT_CONNECTED = "ACTION_GATT_CONNECTED";
@@ -46,10 +48,34 @@ public class LeProxy {
     public static final String EXTRA_MTU = "EXTRA_MTU";
     public static final String EXTRA_STATUS = "EXTRA_STATUS";
 
+    private static final int BROADCAST_QUEUE_CAPACITY = 256;
+
     private static LeProxy mInstance;
 
     private BleService mBleService;
     private boolean mEncrypt = false;
+    private final LeEventBus mEventBus = new LeEventBus();
+    private LeBroadcastAdapter mBroadcastAdapter;
+    private boolean mBroadcastEnabled = false;
+
+    private final ConcurrentHashMap<String, RxRingBuffer> mRxBuffers = new ConcurrentHashMap<>();
+    private int mRxBufferCapacity = 128;
+    private int mRxBufferSlotSize = 512;//ATT特征值最大长度
+    private int mRxOverflowPolicy = RxRingBuffer.OVERFLOW_OVERWRITE;
+
+    private final ConcurrentHashMap<String, WriteScheduler> mWriteSchedulers = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService mWriteExecutor = Executors.newSingleThreadScheduledExecutor();
+    private int mWriteWindow = 1;
+    private int mWriteRetries = 2;
+
+    private final ConcurrentHashMap<String, Integer> mMtus = new ConcurrentHashMap<>();
+
+    private final LeMetrics mMetrics = new LeMetrics();
+    private final LinkTuner mLinkTuner = new LinkTuner(this, mWriteExecutor);
+
+    private int mMaxConnectedNumber = 4;
+    private int mConnectTimeout = 5000;// ms
+    private LeConnector mConnector;
 
     private LeProxy() {
     }
@@ -63,10 +89,35 @@ public class LeProxy {
 
     public void setBleService(IBinder binder) {
         mBleService = ((BleService.LocalBinder) binder).getService(mBleCallBack);
-        // mBleService.setMaxConnectedNumber(4);// 设置最大可连接从机数量，默认为4
-        mBleService.setConnectTimeout(5000);//设置APP端的连接超时时间（单位ms）
+        mBleService.setMaxConnectedNumber(mMaxConnectedNumber);// 设置最大可连接从机数量，默认为4
+        mBleService.setConnectTimeout(mConnectTimeout);//设置APP端的连接超时时间（单位ms）
         mBleService.initialize();// 必须调用初始化函数
         setEncrypt(false);
+        mBroadcastAdapter = new LeBroadcastAdapter(mBleService);
+        setBroadcastEnabled(mBroadcastEnabled);
+    }
+
+    /**
+     * 蓝牙事件分发，注册{@link LeListener}即可收到连接、数据等事件
+     */
+    public LeEventBus getEventBus() {
+        return mEventBus;
+    }
+
+    /**
+     * 是否同时以LocalBroadcast（ACTION_XXX）的方式发出蓝牙事件，默认关闭，
+     * 仍使用广播接收的旧代码需开启，开启后每包数据都会产生Intent开销
+     */
+    public void setBroadcastEnabled(boolean enabled) {
+        mBroadcastEnabled = enabled;
+        if (mBroadcastAdapter == null) return;
+        if (enabled) {
+            // 每包数据都要构造Intent，放到后台线程中发出
+            mEventBus.registerAsync(mBroadcastAdapter, LeEventBus.EVENT_ALL, null, null,
+                    LeDispatcher.POLICY_DROP_OLDEST, BROADCAST_QUEUE_CAPACITY);
+        } else {
+            mEventBus.unregister(mBroadcastAdapter);
+        }
     }
 
     public void setEncrypt(boolean encrypt) {
@@ -77,6 +128,70 @@ public class LeProxy {
         }
     }
 
+    /**
+     * 设置接收缓冲区参数，只对之后新建的缓冲区生效
+     *
+     * @param capacity       每个设备缓存的包数
+     * @param slotSize       每包最大字节数
+     * @param overflowPolicy {@link RxRingBuffer#OVERFLOW_OVERWRITE}或{@link RxRingBuffer#OVERFLOW_DROP_NEWEST}
+     */
+    public void setRxBufferConfig(int capacity, int slotSize, int overflowPolicy) {
+        mRxBufferCapacity = capacity;
+        mRxBufferSlotSize = slotSize;
+        mRxOverflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * 获取设备的接收缓冲区，所有notify/read到的数据都会写入这里，
+     * 消费者用{@link RxRingBuffer#openCursor()}按序读取，不需要复制每包数据
+     */
+    public RxRingBuffer getRxBuffer(String address) {
+        RxRingBuffer buffer = mRxBuffers.get(address);
+        if (buffer == null) {
+            buffer = new RxRingBuffer(mRxBufferCapacity, mRxBufferSlotSize, mRxOverflowPolicy);
+            RxRingBuffer old = mRxBuffers.putIfAbsent(address, buffer);
+            if (old != null) buffer = old;
+        }
+        return buffer;
+    }
+
+    /**
+     * 设置最大可连接从机数量和连接超时时间，须在setBleService()之前调用
+     */
+    public void setConnectionConfig(int maxConnectedNumber, int connectTimeoutMillis) {
+        mMaxConnectedNumber = maxConnectedNumber;
+        mConnectTimeout = connectTimeoutMillis;
+        synchronized (this) {
+            if (mConnector != null) mConnector.setLimits(maxConnectedNumber, 1);
+        }
+    }
+
+    /**
+     * 多设备连接管理，按顺序连接多个设备并自动重连
+     */
+    public synchronized LeConnector getConnector() {
+        if (mConnector == null) {
+            mConnector = new LeConnector(this);
+            mConnector.setLimits(mMaxConnectedNumber, 1);
+            mEventBus.register(mConnector, LeConnector.EVENTS);
+        }
+        return mConnector;
+    }
+
+    /**
+     * 连接参数自动调整（MTU、连接优先级、PHY）
+     */
+    public LinkTuner getLinkTuner() {
+        return mLinkTuner;
+    }
+
+    /**
+     * 各设备的收发统计
+     */
+    public LeMetrics getMetrics() {
+        return mMetrics;
+    }
+
     public OADProxy getOADProxy(OADListener listener, OADType type) {
         if (mBleService != null) {
             return OADManager.getOADProxy(mBleService, listener, type);
@@ -86,11 +201,26 @@ public class LeProxy {
 
     public void connect(String address, boolean autoConnect) {
         if (mBleService != null) {
+            mMetrics.onConnectStart(address);
             mBleService.connect(address, autoConnect);
         }
     }
 
+    /**
+     * 主动断开，{@link LeConnector}管理的设备不再自动重连
+     */
     public void disconnect(String address) {
+        LeConnector connector;
+        synchronized (this) {
+            connector = mConnector;
+        }
+        // 先于断开事件排进LeConnector的线程
+        if (connector != null) connector.onUserDisconnect(address);
+        disconnectGatt(address);
+    }
+
+    // 只断开连接，LeConnector自己的超时和失败处理用这个，之后照常重连
+    void disconnectGatt(String address) {
         if (mBleService != null) {
             mBleService.disconnect(address);
         }
@@ -114,17 +244,161 @@ public class LeProxy {
     }
 
     /**
-     * TODO 向默认通道0x1001发送数据
+     * TODO 向默认通道0x1001发送数据，数据先进入该设备的发送队列，按顺序发出
      *
      * @param address 设备地址
      * @param data    发送的数据
+     * @return 发送结果，可通过{@link WriteHandle#setCallback}得知是否发送成功
      */
-    public void send(String address, byte[] data) {
-        if (mBleService != null) {
-            mBleService.send(address, data, mEncrypt);
+    public WriteHandle send(String address, byte[] data) {
+        return send(address, BleUUIDS.PRIMARY_SERVICE, BleUUIDS.CHARACTERS[0], data, true);
+    }
+
+    /**
+     * 向指定通道发送数据，数据先进入该设备的发送队列，按顺序发出
+     *
+     * @param noResponse true表示WRITE_NO_RESPONSE
+     */
+    public WriteHandle send(String address, UUID serUuid, UUID charUuid, byte[] data, boolean noResponse) {
+        if (mBleService == null || address == null) {
+            return WriteHandle.failed(address);
         }
+        mLinkTuner.onActivity(address);
+        return getWriteScheduler(address).enqueue(serUuid, charUuid, data, noResponse);
     }
 
+    /**
+     * 向默认通道0x1001发送任意长度的数据，按当前MTU分成尽可能大的包依次发送
+     *
+     * @return 所有包都发送成功才算成功
+     */
+    public WriteHandle sendStream(String address, byte[] data) {
+        return sendStream(address, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * 发送data中剩余的数据（position到limit），发送后data的position移到limit
+     */
+    public WriteHandle sendStream(String address, ByteBuffer data) {
+        if (mBleService == null || address == null) {
+            return WriteHandle.failed(address);
+        }
+        mLinkTuner.onActivity(address);
+        WriteScheduler scheduler = getWriteScheduler(address);
+        WriteHandle handle = new WriteHandle(address);
+        int max = getMaxPayload(address);
+        while (data.hasRemaining()) {
+            byte[] chunk = new byte[Math.min(max, data.remaining())];
+            data.get(chunk);
+            scheduler.enqueue(BleUUIDS.PRIMARY_SERVICE, BleUUIDS.CHARACTERS[0], chunk, true, handle);
+        }
+        handle.seal();
+        return handle;
+    }
+
+    /**
+     * 读取in直到结束并分包发送，读取在调用线程中进行，不要在主线程中读取慢速的流
+     */
+    public WriteHandle sendStream(String address, InputStream in) throws IOException {
+        if (mBleService == null || address == null) {
+            return WriteHandle.failed(address);
+        }
+        mLinkTuner.onActivity(address);
+        WriteScheduler scheduler = getWriteScheduler(address);
+        WriteHandle handle = new WriteHandle(address);
+        int max = getMaxPayload(address);
+        byte[] chunk = new byte[max];
+        int len = 0;
+        int n;
+        while ((n = in.read(chunk, len, max - len)) != -1) {
+            len += n;
+            if (len == max) {
+                scheduler.enqueue(BleUUIDS.PRIMARY_SERVICE, BleUUIDS.CHARACTERS[0], chunk, true, handle);
+                chunk = new byte[max];
+                len = 0;
+            }
+        }
+        if (len > 0) {
+            byte[] last = new byte[len];
+            System.arraycopy(chunk, 0, last, 0, len);
+            scheduler.enqueue(BleUUIDS.PRIMARY_SERVICE, BleUUIDS.CHARACTERS[0], last, true, handle);
+        }
+        handle.seal();
+        return handle;
+    }
+
+    /**
+     * 获取协商后的MTU，未协商时为默认值23
+     */
+    public int getMtu(String address) {
+        Integer mtu = address == null ? null : mMtus.get(address);
+        return mtu == null ? 23 : mtu;
+    }
+
+    /**
+     * 默认通道一包最多可发送的字节数：MTU-3，加密时还要再减去3字节
+     */
+    public int getMaxPayload(String address) {
+        return getMtu(address) - (mEncrypt ? 6 : 3);
+    }
+
+    /**
+     * 获取设备的发送队列
+     */
+    public WriteScheduler getWriteScheduler(String address) {
+        WriteScheduler scheduler = mWriteSchedulers.get(address);
+        if (scheduler == null) {
+            scheduler = new WriteScheduler(address, mWriter, mWriteExecutor);
+            scheduler.setListener(mWriteListener);
+            scheduler.setWindow(mWriteWindow);
+            scheduler.setMaxRetries(mWriteRetries);
+            WriteScheduler old = mWriteSchedulers.putIfAbsent(address, scheduler);
+            if (old != null) scheduler = old;
+        }
+        return scheduler;
+    }
+
+    /**
+     * 设置发送队列参数，对所有设备生效
+     *
+     * @param window     WRITE_NO_RESPONSE写操作的最大在途数量
+     * @param maxRetries 写入失败的重试次数
+     */
+    public void setWriteConfig(int window, int maxRetries) {
+        mWriteWindow = window;
+        mWriteRetries = maxRetries;
+        for (WriteScheduler scheduler : mWriteSchedulers.values()) {
+            scheduler.setWindow(window);
+            scheduler.setMaxRetries(maxRetries);
+        }
+    }
+
+    private final WriteScheduler.Writer mWriter = new WriteScheduler.Writer() {
+        @Override
+        public boolean write(String address, UUID serUuid, UUID charUuid, byte[] data, boolean noResponse) {
+            if (mBleService == null) return false;
+            if (BleUUIDS.PRIMARY_SERVICE.equals(serUuid) && BleUUIDS.CHARACTERS[0].equals(charUuid)) {
+                // 默认通道，由BleService处理加密
+                return mBleService.send(address, data, mEncrypt);
+            }
+            BluetoothGatt gatt = mBleService.getBluetoothGatt(address);
+            BluetoothGattCharacteristic c = GattUtil.getGattCharacteristic(gatt, serUuid, charUuid);
+            if (c == null) return false;
+            c.setWriteType(noResponse ? BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE
+                    : BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+            c.setValue(data);
+            return gatt.writeCharacteristic(c);
+        }
+    };
+
+    private final WriteScheduler.Listener mWriteListener = new WriteScheduler.Listener() {
+        @Override
+        public void onWriteComplete(String address, int length, long latencyNanos, boolean success) {
+            mMetrics.onWriteComplete(address, length, latencyNanos, success);
+            mLinkTuner.onActivity(address);
+        }
+    };
+
 
     /**
      * 检测设备是否已连接
@@ -169,94 +443,102 @@ public class LeProxy {
      * 如默认MTU为23，APP一次最多可以发送20字节的数据
      * <p>
      * 注：更新MTU要求手机系统版本不低于Android5.0
+     *
+     * @return false表示请求没有发出（如GATT忙）
      */
-    public void requestMtu(String address, int mtu) {
+    public boolean requestMtu(String address, int mtu) {
         if (mBleService != null) {
-            mBleService.requestMtu(address, mtu);
+            return mBleService.requestMtu(address, mtu);
         }
+        return false;
     }
 
     /**
      * 这里集合了所有的蓝牙交互事件
-     * 注意事项！！！：回调方法所在线程不能有阻塞操作，否则可能导致数据发送失败或者某些方法无法正常回调
+     * 注意事项！！！：回调方法所在线程不能有阻塞操作，否则可能导致数据发送失败或者某些方法无法正常回调，
+     * 较重的处理通过{@link LeEventBus#registerAsync}放到后台线程
      */
     private final BleCallBack mBleCallBack = new BleCallBack() {
         @Override
         public void onConnected(String address) {
             //todo !!!这里只代表手机与模组建立了物理连接，APP还不能与模组进行数据交互
             Log.i(TAG, "onConnected() - " + address);
-            updateBroadcast(address, ACTION_GATT_CONNECTED);
+            mMetrics.onConnected(address);
+            mEventBus.dispatchConnected(address);
         }
 
         @Override
         public void onConnectTimeout(String address) {
             Log.e(TAG, "onConnectTimeout() - " + address);
-            updateBroadcast(address, ACTION_CONNECT_TIMEOUT);
+            mEventBus.dispatchConnectTimeout(address);
         }
 
         @Override
         public void onConnectionError(String address, int error, int newState) {
             Log.e(TAG, "onConnectionError() - " + address + " error code: " + error + ", new state: " + newState);
-            updateBroadcast(address, ACTION_CONNECT_ERROR);
+            mEventBus.dispatchConnectionError(address, error, newState);
         }
 
         @Override
         public void onDisconnected(String address) {
             Log.e(TAG, "onDisconnected() - " + address);
-            updateBroadcast(address, ACTION_GATT_DISCONNECTED);
+            mMtus.remove(address);
+            mLinkTuner.onDisconnected(address);
+            WriteScheduler scheduler = mWriteSchedulers.get(address);
+            if (scheduler != null) scheduler.cancelAll();
+            mEventBus.dispatchDisconnected(address);
         }
 
         @Override
         public void onServicesDiscovered(String address) {
             //TODO !!!检索服务成功，到这一步才可以与从机进行数据交互，有些手机可能需要延时几百毫秒才能交互数据
             Log.i(TAG, "onServicesDiscovered() - " + address);
+            mMetrics.onServicesDiscovered(address);
             //TODO 打开模组默认的数据接收通道【0x1002】，这一步成功才能保证APP收到数据
             enableNotification(address, BleUUIDS.PRIMARY_SERVICE, BleUUIDS.CHARACTERS[1]);
-            updateBroadcast(address, ACTION_GATT_SERVICES_DISCOVERED);
+            //自动请求大MTU、2M PHY等，见LinkTuner.Policy
+            mLinkTuner.onServicesDiscovered(address);
+            mEventBus.dispatchServicesDiscovered(address);
         }
 
 
         @Override
         public void onCharacteristicChanged(String address, BluetoothGattCharacteristic characteristic) {
             //TODO 接收到模块数据
-            byte[] data = characteristic.getValue();
-            Log.i(TAG, "onCharacteristicChanged() - " + address + " uuid=" + characteristic.getUuid().toString()
-                    + "\n len=" + (data == null ? 0 : data.length)
-                    + " [" + DataUtil.byteArrayToHex(data) + ']');
-
-            updateBroadcast(address, characteristic);
+            byte[] value = characteristic.getValue();
+            LeTrace.record(LeTrace.INFO, LeTrace.EVENT_RX, address, characteristic.getUuid(),
+                    value, BluetoothGatt.GATT_SUCCESS);
+            mMetrics.onRx(address, value == null ? 0 : value.length);
+            onDataAvailable(address, characteristic);
         }
 
         @Override
         public void onCharacteristicRead(String address, BluetoothGattCharacteristic characteristic, int status) {
             if (status == BluetoothGatt.GATT_SUCCESS) {
                 //读取到模块数据
-                Log.i(TAG, "onCharacteristicRead() - " + address + " uuid=" + characteristic.getUuid().toString()
-                        + "\n len=" + characteristic.getValue().length
-                        + " [" + DataUtil.byteArrayToHex(characteristic.getValue()) + ']');
-                updateBroadcast(address, characteristic);
+                LeTrace.record(LeTrace.INFO, LeTrace.EVENT_READ, address, characteristic.getUuid(),
+                        characteristic.getValue(), status);
+                onDataAvailable(address, characteristic);
             }
         }
 
         @Override
         public void onCharacteristicWrite(String address, BluetoothGattCharacteristic characteristic, int status) {
-            //调试时可以在这里打印status来看数据有没有发送成功
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                String uuid = characteristic.getUuid().toString();
-                //如果发送数据加密，可以先把characteristic.getValue()获取的数据解密一下再打印
-                //byte[] decodedData = new EncodeUtil().decodeMessage(characteristic.getValue());
-                Log.i(TAG, "onCharacteristicWrite() - " + address + ", " + uuid
-                        + "\n len=" + characteristic.getValue().length
-                        + " [" + DataUtil.byteArrayToHex(characteristic.getValue()) + ']');
+            //调试时可以通过LeTrace的输出查看数据有没有发送成功
+            //如果发送数据加密，记录的是加密后的数据
+            LeTrace.record(status == BluetoothGatt.GATT_SUCCESS ? LeTrace.INFO : LeTrace.ERROR,
+                    LeTrace.EVENT_WRITE, address, characteristic.getUuid(), characteristic.getValue(), status);
+            WriteScheduler scheduler = mWriteSchedulers.get(address);
+            if (scheduler != null) {
+                scheduler.onWriteComplete(characteristic.getUuid(), status, status == BluetoothGatt.GATT_SUCCESS);
             }
         }
 
         @Override
         public void onDescriptorWrite(String address, BluetoothGattDescriptor descriptor, int status) {
-            String charUuid = descriptor.getCharacteristic().getUuid().toString().substring(4, 8);
-            String descUuid = descriptor.getUuid().toString().substring(4, 8);
-            Log.e(TAG, "onDescriptorWrite() - 0x" + charUuid + "/0x" + descUuid + " -> " + DataUtil.byteArrayToHex(descriptor.getValue())
-                    + ", status=" + status);
+            LeTrace.record(status == BluetoothGatt.GATT_SUCCESS ? LeTrace.INFO : LeTrace.ERROR,
+                    LeTrace.EVENT_DESCRIPTOR_WRITE, address, descriptor.getCharacteristic().getUuid(),
+                    descriptor.getUuid(), descriptor.getValue(), status);
         }
 
 
@@ -264,32 +546,20 @@ public class LeProxy {
         public void onMtuChanged(String address, int mtu, int status) {
             if (status == BluetoothGatt.GATT_SUCCESS) {
                 Log.i(TAG, "onMtuChanged() - " + address + ", MTU has been " + mtu);
+                mMtus.put(address, mtu);
+                mLinkTuner.onMtuChanged(address, mtu, status);
             } else {
                 Log.e(TAG, "onMtuChanged() - " + address + ", MTU request failed: " + status);
             }
-            Intent intent = new Intent(ACTION_MTU_CHANGED);
-            intent.putExtra(EXTRA_ADDRESS, address);
-            intent.putExtra(EXTRA_MTU, mtu);
-            intent.putExtra(EXTRA_STATUS, status);
-            sendBroadcast(intent);
+            mEventBus.dispatchMtuChanged(address, mtu, status);
         }
     };
 
-    private void updateBroadcast(String address, String action) {
-        Intent intent = new Intent(action);
-        intent.putExtra(EXTRA_ADDRESS, address);
-        sendBroadcast(intent);
-    }
-
-    private void updateBroadcast(String address, BluetoothGattCharacteristic characteristic) {
-        Intent intent = new Intent(ACTION_DATA_AVAILABLE);
-        intent.putExtra(EXTRA_ADDRESS, address);
-        intent.putExtra(EXTRA_UUID, characteristic.getUuid().toString());
-        intent.putExtra(EXTRA_DATA, characteristic.getValue());
-        sendBroadcast(intent);
-    }
-
-    private void sendBroadcast(Intent intent) {
-        LocalBroadcastManager.getInstance(mBleService).sendBroadcast(intent);
+    private void onDataAvailable(String address, BluetoothGattCharacteristic characteristic) {
+        UUID uuid = characteristic.getUuid();
+        byte[] data = characteristic.getValue();
+        getRxBuffer(address).write(uuid, data);
+        mLinkTuner.onActivity(address);
+        mEventBus.dispatchDataAvailable(address, uuid, data);
     }
 }
\ No newline at end of file
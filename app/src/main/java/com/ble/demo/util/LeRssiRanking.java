@@ -0,0 +1,194 @@
+package com.ble.demo.util;
+
+import com.ble.demo.LeDevice;
+
+import java.util.Arrays;
+
+/**
+ * 按平滑后的信号强度从强到弱排列{@link LeDeviceIndex}中的设备，信号强度相同的按MAC排列
+ * <p>
+ * 排好序的位置数组和每个位置所在的名次增量维护：设备更新后只在原名次和新名次之间移动，
+ * 新设备二分查找插入，不在每次刷新时重新排序。每次变化按名次回调{@link Callback}，可以直接对应到列表的通知
+ * <p>
+ * 排序用的是缓存的整数dBm，平滑值偏离超过1dB才重新排名，避免在两个值之间来回跳；只在主线程中使用
+ */
+public class LeRssiRanking {
+    private static final int MAX_BATCH_OPS = 64;// 一批中插入、移除和移动太多时改为通知整个列表刷新
+
+    public interface Callback {
+        void onInserted(int position);
+
+        void onRemoved(int position);
+
+        void onMoved(int fromPosition, int toPosition);
+
+        void onChanged(int position);
+
+        /**
+         * 一批中的插入、移除和移动太多，之后的单个变化不再回调
+         */
+        void onDataSetChanged();
+    }
+
+    private final LeDeviceIndex mIndex;
+    private final Callback mCallback;
+    private int[] mOrder = new int[64];// 名次 -> 位置
+    private int[] mRanks = new int[64];// 位置 -> 名次，不在排序中为-1
+    private int[] mKeys = new int[64];// 位置 -> 排序用的信号强度
+    private int mSize;
+
+    private boolean mBatching;
+    private int mBatchOps;
+
+    public LeRssiRanking(LeDeviceIndex index, Callback callback) {
+        mIndex = index;
+        mCallback = callback;
+        Arrays.fill(mRanks, -1);
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @return 第position名的设备在{@link LeDeviceIndex}中的位置
+     */
+    public int getSlot(int position) {
+        return mOrder[position];
+    }
+
+    public LeDevice get(int position) {
+        return mIndex.get(mOrder[position]);
+    }
+
+    /**
+     * @return 设备的名次，不在排序中时返回-1
+     */
+    public int getPosition(int slot) {
+        return slot < mRanks.length ? mRanks[slot] : -1;
+    }
+
+    /**
+     * 之后的变化到{@link #endBatch()}为止算一批
+     */
+    public void beginBatch() {
+        mBatching = true;
+        mBatchOps = 0;
+    }
+
+    public void endBatch() {
+        mBatching = false;
+        if (mBatchOps > MAX_BATCH_OPS) mCallback.onDataSetChanged();
+    }
+
+    /**
+     * 清空，不回调
+     */
+    public void clear() {
+        Arrays.fill(mRanks, -1);
+        mSize = 0;
+    }
+
+    /**
+     * 加入新设备
+     */
+    public void insert(int slot) {
+        ensureSlot(slot);
+        if (mRanks[slot] >= 0) {
+            update(slot);
+            return;
+        }
+        mKeys[slot] = Math.round(mIndex.get(slot).getSmoothedRssi());
+        if (mSize == mOrder.length) mOrder = Arrays.copyOf(mOrder, mSize * 2);
+        int position = search(slot, -1);
+        System.arraycopy(mOrder, position, mOrder, position + 1, mSize - position);
+        mOrder[position] = slot;
+        mSize++;
+        reindex(position, mSize - 1);
+        if (emit(true)) mCallback.onInserted(position);
+    }
+
+    /**
+     * 移除设备，要在从{@link LeDeviceIndex}中移除之前调用
+     */
+    public void remove(int slot) {
+        int position = getPosition(slot);
+        if (position < 0) return;
+        System.arraycopy(mOrder, position + 1, mOrder, position, mSize - position - 1);
+        mSize--;
+        mRanks[slot] = -1;
+        reindex(position, mSize - 1);
+        if (emit(true)) mCallback.onRemoved(position);
+    }
+
+    /**
+     * 设备的信号强度更新后调用，需要时移动到新的名次
+     */
+    public void update(int slot) {
+        int from = getPosition(slot);
+        if (from < 0) return;
+        float rssi = mIndex.get(slot).getSmoothedRssi();
+        if (Math.abs(rssi - mKeys[slot]) < 1) {
+            if (emit(false)) mCallback.onChanged(from);
+            return;
+        }
+        mKeys[slot] = Math.round(rssi);
+        int to = search(slot, from);
+        if (to < from) {
+            System.arraycopy(mOrder, to, mOrder, to + 1, from - to);
+        } else if (to > from) {
+            System.arraycopy(mOrder, from + 1, mOrder, from, to - from);
+        }
+        mOrder[to] = slot;
+        reindex(Math.min(from, to), Math.max(from, to));
+        if (to != from && emit(true)) mCallback.onMoved(from, to);
+        if (emit(false)) mCallback.onChanged(to);
+    }
+
+    // 信号强的在前，相同的按MAC排列
+    private int compare(int slotA, int slotB) {
+        if (mKeys[slotA] != mKeys[slotB]) return mKeys[slotA] > mKeys[slotB] ? -1 : 1;
+        long a = mIndex.get(slotA).getPackedAddress();
+        long b = mIndex.get(slotB).getPackedAddress();
+        return a < b ? -1 : a > b ? 1 : 0;
+    }
+
+    // 在不含skip名次的排序中二分查找slot应在的名次
+    private int search(int slot, int skip) {
+        int n = skip < 0 ? mSize : mSize - 1;
+        int lo = 0;
+        int hi = n;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            int other = mOrder[skip >= 0 && mid >= skip ? mid + 1 : mid];
+            if (compare(other, slot) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private void reindex(int from, int to) {
+        for (int i = from; i <= to; i++) {
+            mRanks[mOrder[i]] = i;
+        }
+    }
+
+    private void ensureSlot(int slot) {
+        if (slot < mRanks.length) return;
+        int capacity = Math.max(slot + 1, mRanks.length * 2);
+        int old = mRanks.length;
+        mRanks = Arrays.copyOf(mRanks, capacity);
+        Arrays.fill(mRanks, old, capacity, -1);
+        mKeys = Arrays.copyOf(mKeys, capacity);
+    }
+
+    // 插入、移除和移动计入本批的变化数，超出后不再逐个回调
+    private boolean emit(boolean structural) {
+        if (!mBatching) return true;
+        if (structural) mBatchOps++;
+        return mBatchOps <= MAX_BATCH_OPS;
+    }
+}
@@ -0,0 +1,295 @@
+package com.ble.demo.util;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.Choreographer;
+
+import com.ble.ble.LeScanRecord;
+import com.ble.ble.scan.LeScanResult;
+import com.ble.demo.AdvData;
+import com.ble.demo.LeDevice;
+
+import java.util.Arrays;
+
+/**
+ * 合并扫描结果再刷新界面：扫描线程只把结果放进缓冲区，主线程每帧（或按设定的最小间隔）最多处理一次，
+ * 批量写入{@link LeDeviceIndex}，再更新按信号强度排列的{@link LeRssiRanking}，只通知新增、移动和变化了的名次，
+ * 避免每个广播包都刷新整个列表
+ * <p>
+ * 设置了存活时间（{@link #setTtl}）时，超过该时间没有再扫描到的设备会被移除
+ */
+public class LeScanBatcher {
+    private static final long EVICT_INTERVAL = 1000;// 检查过期设备的间隔
+
+    private final LeDeviceIndex mIndex = new LeDeviceIndex();
+    private final LeRssiRanking mRanking;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Object mLock = new Object();
+    private final AdvData mAdvData = new AdvData();// 只在mLock内使用
+
+    // 双缓冲，扫描线程写mPending，主线程处理时交换
+    private Buffer mPending = new Buffer();
+    private Buffer mDraining = new Buffer();
+    private boolean mScheduled;
+    private volatile boolean mReleased;
+    private volatile long mMinIntervalMillis;
+
+    // 以下只在主线程中使用
+    private long mLastFlushUptime;
+    private int[] mChanged = new int[64];
+    private int[] mInserted = new int[64];
+    private int[] mChangedStamps = new int[64];// 每个位置最近一次变化时的批次，用于去重
+    private int mBatch;
+    private long mTtlMillis;
+    private boolean mEvictScheduled;
+
+    private final LeMetrics.Histogram mFlushTime = new LeMetrics.Histogram();
+    private long mResultCount;
+    private long mFlushCount;
+    private long mEvictedCount;
+
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            flush();
+        }
+    };
+
+    private final Runnable mScheduleRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mReleased) return;
+            long delay = mLastFlushUptime + mMinIntervalMillis - SystemClock.uptimeMillis();
+            Choreographer.getInstance().postFrameCallbackDelayed(mFrameCallback, Math.max(0, delay));
+        }
+    };
+
+    private final Runnable mEvictRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mEvictScheduled = false;
+            evictExpired();
+            scheduleEvict();
+        }
+    };
+
+    /**
+     * @param callback 排序的变化，在主线程中回调
+     */
+    public LeScanBatcher(LeRssiRanking.Callback callback) {
+        mRanking = new LeRssiRanking(mIndex, callback);
+    }
+
+    /**
+     * 两次刷新的最小间隔，0表示每帧最多一次
+     */
+    public void setMinInterval(long millis) {
+        mMinIntervalMillis = Math.max(0, millis);
+    }
+
+    /**
+     * 加入一个扫描结果，可以在任意线程中调用
+     */
+    public void offer(LeScanResult result) {
+        LeScanRecord record = result.getLeScanRecord();
+        offer(result.getDevice(), result.getRssi(), record != null ? record.getBytes() : null);
+    }
+
+    /**
+     * 同{@link #offer(LeScanResult)}，用于平台扫描接口的结果
+     */
+    public void offer(BluetoothDevice device, int rssi, byte[] scanRecord) {
+        if (mReleased) return;
+        boolean schedule = false;
+        synchronized (mLock) {
+            // 名称在扫描线程中从广播数据取出，主线程不再逐个查询设备名称
+            String localName = mAdvData.reset(scanRecord).getLocalName();
+            mAdvData.reset(null);
+            mPending.add(device, rssi, scanRecord, localName);
+            if (!mScheduled) {
+                mScheduled = true;
+                schedule = true;
+            }
+        }
+        // Choreographer只能在主线程中使用
+        if (schedule) mHandler.post(mScheduleRunnable);
+    }
+
+    /**
+     * 设备的存活时间，超过这么久没有扫描到就移除，0表示不移除；在主线程中调用
+     * <p>
+     * 批量上报时要大于上报延时
+     */
+    public void setTtl(long millis) {
+        mTtlMillis = Math.max(0, millis);
+        if (mTtlMillis == 0) {
+            mHandler.removeCallbacks(mEvictRunnable);
+            mEvictScheduled = false;
+        } else {
+            scheduleEvict();
+        }
+    }
+
+    /**
+     * 主线程中使用
+     */
+    public LeDeviceIndex getIndex() {
+        return mIndex;
+    }
+
+    /**
+     * 按信号强度排列的设备，主线程中使用
+     */
+    public LeRssiRanking getRanking() {
+        return mRanking;
+    }
+
+    /**
+     * 清空列表和未处理的结果，不回调，在主线程中调用
+     */
+    public void clear() {
+        synchronized (mLock) {
+            mPending.clear();
+        }
+        mRanking.clear();
+        mIndex.clear();
+    }
+
+    public void release() {
+        mReleased = true;
+        mHandler.removeCallbacks(mScheduleRunnable);
+        mHandler.removeCallbacks(mEvictRunnable);
+        Choreographer.getInstance().removeFrameCallback(mFrameCallback);
+        synchronized (mLock) {
+            mPending.clear();
+        }
+    }
+
+    public long getResultCount() {
+        return mResultCount;
+    }
+
+    public long getFlushCount() {
+        return mFlushCount;
+    }
+
+    /**
+     * 因过期移除的设备数
+     */
+    public long getEvictedCount() {
+        return mEvictedCount;
+    }
+
+    /**
+     * 每次刷新在主线程中的耗时（含回调）
+     */
+    public LeMetrics.HistogramSnapshot getFlushTime() {
+        LeMetrics.HistogramSnapshot s = new LeMetrics.HistogramSnapshot();
+        mFlushTime.copyTo(s);
+        return s;
+    }
+
+    private void flush() {
+        Buffer results;
+        synchronized (mLock) {
+            results = mPending;
+            mPending = mDraining;
+            mDraining = results;
+            mScheduled = false;
+        }
+        if (mReleased || results.size == 0) {
+            results.clear();
+            return;
+        }
+
+        long start = System.nanoTime();
+        mLastFlushUptime = SystemClock.uptimeMillis();
+        mBatch++;
+        int changedCount = 0;
+        int insertedCount = 0;
+        for (int i = 0, n = results.size; i < n; i++) {
+            int r = mIndex.update(results.devices[i], results.rssi[i], results.records[i], results.names[i]);
+            int slot = r < 0 ? -(r + 1) : r;
+            if (mChangedStamps.length <= slot) {
+                mChangedStamps = Arrays.copyOf(mChangedStamps, Math.max(slot + 1, mChangedStamps.length * 2));
+            }
+            // 本批新增的设备再次更新时仍算新增
+            if (mChangedStamps[slot] == mBatch) continue;
+            mChangedStamps[slot] = mBatch;
+            if (r < 0) {
+                if (insertedCount == mInserted.length) mInserted = Arrays.copyOf(mInserted, insertedCount * 2);
+                mInserted[insertedCount++] = slot;
+            } else {
+                if (changedCount == mChanged.length) mChanged = Arrays.copyOf(mChanged, changedCount * 2);
+                mChanged[changedCount++] = slot;
+            }
+        }
+        mResultCount += results.size;
+        mFlushCount++;
+        results.clear();
+
+        // 每个设备在本批中只排一次名，用的是最后的信号强度
+        mRanking.beginBatch();
+        for (int i = 0; i < changedCount; i++) {
+            mRanking.update(mChanged[i]);
+        }
+        for (int i = 0; i < insertedCount; i++) {
+            mRanking.insert(mInserted[i]);
+        }
+        mRanking.endBatch();
+        if (insertedCount > 0) scheduleEvict();
+        mFlushTime.record(System.nanoTime() - start);
+    }
+
+    private void scheduleEvict() {
+        if (mEvictScheduled || mReleased || mTtlMillis == 0 || mIndex.size() == 0) return;
+        mEvictScheduled = true;
+        mHandler.postDelayed(mEvictRunnable, EVICT_INTERVAL);
+    }
+
+    private void evictExpired() {
+        if (mReleased || mTtlMillis == 0) return;
+        long deadline = SystemClock.elapsedRealtime() - mTtlMillis;
+        mRanking.beginBatch();
+        for (int slot = 0, n = mIndex.getSlotCount(); slot < n; slot++) {
+            LeDevice device = mIndex.get(slot);
+            if (device == null || device.getLastSeen() >= deadline) continue;
+            mRanking.remove(slot);
+            mIndex.remove(slot);
+            mEvictedCount++;
+        }
+        mRanking.endBatch();
+    }
+
+    // 扫描结果按列保存，缓冲区反复使用，加入结果不分配对象
+    private static class Buffer {
+        BluetoothDevice[] devices = new BluetoothDevice[64];
+        int[] rssi = new int[64];
+        byte[][] records = new byte[64][];
+        String[] names = new String[64];
+        int size;
+
+        void add(BluetoothDevice device, int rssi, byte[] record, String name) {
+            if (size == devices.length) {
+                devices = Arrays.copyOf(devices, size * 2);
+                this.rssi = Arrays.copyOf(this.rssi, size * 2);
+                records = Arrays.copyOf(records, size * 2);
+                names = Arrays.copyOf(names, size * 2);
+            }
+            devices[size] = device;
+            this.rssi[size] = rssi;
+            records[size] = record;
+            names[size] = name;
+            size++;
+        }
+
+        void clear() {
+            Arrays.fill(devices, 0, size, null);
+            Arrays.fill(records, 0, size, null);
+            Arrays.fill(names, 0, size, null);
+            size = 0;
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package com.ble.demo.util;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.ScanSettings;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+
+/**
+ * 扫描配置：过滤条件、扫描模式和批量上报延时，保存在SharedPreferences中
+ * <p>
+ * 服务UUID、厂商ID和地址交给蓝牙芯片过滤（满足其中任意一个即可），不匹配的广播不会唤醒应用；
+ * ScanFilter只支持完整名称，名称前缀在回调中用{@link com.ble.demo.AdvData}过滤，与前面的条件同时满足
+ */
+public class LeScanConfig {
+    private static final String PREFS_NAME = "scan_config";
+
+    private static final String KEY_SERVICE_UUIDS = "service_uuids";
+    private static final String KEY_MANUFACTURER_IDS = "manufacturer_ids";
+    private static final String KEY_NAME_PREFIX = "name_prefix";
+    private static final String KEY_ADDRESSES = "addresses";
+    private static final String KEY_SCAN_MODE = "scan_mode";
+    private static final String KEY_REPORT_DELAY = "report_delay";
+
+    private static final String BASE_UUID_SUFFIX = "-0000-1000-8000-00805f9b34fb";
+
+    private List<UUID> mServiceUuids = Collections.emptyList();
+    private List<Integer> mManufacturerIds = Collections.emptyList();
+    private String mNamePrefix = "";
+    private List<String> mAddresses = Collections.emptyList();
+    private int mScanMode = ScanSettings.SCAN_MODE_LOW_LATENCY;
+    private long mReportDelayMillis;
+
+    /**
+     * 没有过滤条件、低延时、不批量上报，与LeScanner.startScan()相同
+     */
+    public boolean isDefault() {
+        return !hasHardwareFilters() && mNamePrefix.isEmpty()
+                && mScanMode == ScanSettings.SCAN_MODE_LOW_LATENCY && mReportDelayMillis == 0;
+    }
+
+    public boolean hasHardwareFilters() {
+        return !mServiceUuids.isEmpty() || !mManufacturerIds.isEmpty() || !mAddresses.isEmpty();
+    }
+
+    public List<UUID> getServiceUuids() {
+        return mServiceUuids;
+    }
+
+    public List<Integer> getManufacturerIds() {
+        return mManufacturerIds;
+    }
+
+    public String getNamePrefix() {
+        return mNamePrefix;
+    }
+
+    public List<String> getAddresses() {
+        return mAddresses;
+    }
+
+    /**
+     * ScanSettings.SCAN_MODE_LOW_POWER、SCAN_MODE_BALANCED或SCAN_MODE_LOW_LATENCY
+     */
+    public int getScanMode() {
+        return mScanMode;
+    }
+
+    public void setScanMode(int scanMode) {
+        mScanMode = scanMode;
+    }
+
+    /**
+     * 大于0时蓝牙芯片先缓存扫描结果，到时间后一次上报（需要芯片支持，不支持时逐个上报）
+     */
+    public long getReportDelayMillis() {
+        return mReportDelayMillis;
+    }
+
+    public void setReportDelayMillis(long millis) {
+        mReportDelayMillis = Math.max(0, millis);
+    }
+
+    /**
+     * @param text 逗号分隔，16位（如180D）或完整的UUID
+     * @throws IllegalArgumentException 格式不对
+     */
+    public void setServiceUuids(String text) {
+        List<UUID> uuids = new ArrayList<>();
+        for (String s : split(text)) {
+            if (s.length() <= 8) {
+                uuids.add(UUID.fromString(String.format(Locale.US, "%08x", parseHex(s, 0xFFFFFFFFL)) + BASE_UUID_SUFFIX));
+            } else {
+                uuids.add(UUID.fromString(s));
+            }
+        }
+        mServiceUuids = uuids;
+    }
+
+    /**
+     * @param text 逗号分隔的16进制公司ID，如004C
+     * @throws IllegalArgumentException 格式不对
+     */
+    public void setManufacturerIds(String text) {
+        List<Integer> ids = new ArrayList<>();
+        for (String s : split(text)) {
+            ids.add((int) parseHex(s, 0xFFFF));
+        }
+        mManufacturerIds = ids;
+    }
+
+    public void setNamePrefix(String prefix) {
+        mNamePrefix = prefix == null ? "" : prefix.trim();
+    }
+
+    /**
+     * @param text 逗号分隔的MAC地址
+     * @throws IllegalArgumentException 格式不对
+     */
+    public void setAddresses(String text) {
+        List<String> addresses = new ArrayList<>();
+        for (String s : split(text)) {
+            String address = s.toUpperCase(Locale.US);
+            if (!BluetoothAdapter.checkBluetoothAddress(address)) {
+                throw new IllegalArgumentException("invalid address: " + s);
+            }
+            addresses.add(address);
+        }
+        mAddresses = addresses;
+    }
+
+    public String getServiceUuidsText() {
+        StringBuilder sb = new StringBuilder();
+        for (UUID uuid : mServiceUuids) {
+            if (sb.length() > 0) sb.append(',');
+            String s = uuid.toString();
+            // 基础UUID上的16位UUID只显示短格式
+            if (s.endsWith(BASE_UUID_SUFFIX) && s.startsWith("0000")) {
+                sb.append(s.substring(4, 8).toUpperCase(Locale.US));
+            } else {
+                sb.append(s);
+            }
+        }
+        return sb.toString();
+    }
+
+    public String getManufacturerIdsText() {
+        StringBuilder sb = new StringBuilder();
+        for (int id : mManufacturerIds) {
+            if (sb.length() > 0) sb.append(',');
+            sb.append(String.format(Locale.US, "%04X", id));
+        }
+        return sb.toString();
+    }
+
+    public String getAddressesText() {
+        return TextUtils.join(",", mAddresses);
+    }
+
+    private static SharedPreferences prefs(Context context) {
+        return context.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    public void save(Context context) {
+        prefs(context).edit()
+                .putString(KEY_SERVICE_UUIDS, getServiceUuidsText())
+                .putString(KEY_MANUFACTURER_IDS, getManufacturerIdsText())
+                .putString(KEY_NAME_PREFIX, mNamePrefix)
+                .putString(KEY_ADDRESSES, getAddressesText())
+                .putInt(KEY_SCAN_MODE, mScanMode)
+                .putLong(KEY_REPORT_DELAY, mReportDelayMillis)
+                .apply();
+    }
+
+    /**
+     * 没有保存过或保存的内容无法解析时返回默认配置
+     */
+    public static LeScanConfig load(Context context) {
+        SharedPreferences sp = prefs(context);
+        LeScanConfig config = new LeScanConfig();
+        try {
+            config.setServiceUuids(sp.getString(KEY_SERVICE_UUIDS, ""));
+            config.setManufacturerIds(sp.getString(KEY_MANUFACTURER_IDS, ""));
+            config.setNamePrefix(sp.getString(KEY_NAME_PREFIX, ""));
+            config.setAddresses(sp.getString(KEY_ADDRESSES, ""));
+            config.setScanMode(sp.getInt(KEY_SCAN_MODE, ScanSettings.SCAN_MODE_LOW_LATENCY));
+            config.setReportDelayMillis(sp.getLong(KEY_REPORT_DELAY, 0));
+        } catch (IllegalArgumentException e) {
+            return new LeScanConfig();
+        }
+        return config;
+    }
+
+    private static List<String> split(String text) {
+        List<String> list = new ArrayList<>();
+        if (text == null) return list;
+        for (String s : text.split("[,;\\s]+")) {
+            if (!s.isEmpty()) list.add(s);
+        }
+        return list;
+    }
+
+    private static long parseHex(String s, long max) {
+        if (s.startsWith("0x") || s.startsWith("0X")) s = s.substring(2);
+        long value;
+        try {
+            value = Long.parseLong(s, 16);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid hex: " + s);
+        }
+        if (value < 0 || value > max) throw new IllegalArgumentException("out of range: " + s);
+        return value;
+    }
+}
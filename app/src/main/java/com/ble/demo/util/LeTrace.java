@@ -0,0 +1,268 @@
+package com.ble.demo.util;
+
+import android.util.Log;
+
+import com.ble.api.DataUtil;
+import com.ble.demo.BuildConfig;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 蓝牙回调的轻量级跟踪日志
+ * <p>
+ * 回调线程中只把原始字段（地址编号、uuid编号、长度、数据引用、状态）写入预先分配的环形数组，
+ * 不做16进制转换和字符串拼接；只有设置了{@link Sink}才会启动后台线程，在后台格式化输出。
+ * release版本{@link #ENABLED}为false，所有记录直接返回
+ */
+public final class LeTrace {
+    private static final String TAG = "LeTrace";
+
+    /**
+     * 编译期开关，release版本关闭
+     */
+    public static final boolean ENABLED = BuildConfig.DEBUG;
+
+    public static final int ERROR = 1;
+    public static final int INFO = 2;
+    public static final int VERBOSE = 3;
+
+    public static final int EVENT_RX = 1;
+    public static final int EVENT_READ = 2;
+    public static final int EVENT_WRITE = 3;
+    public static final int EVENT_DESCRIPTOR_WRITE = 4;
+
+    private static final int CAPACITY = 1024;// 2的幂
+    private static final int MASK = CAPACITY - 1;
+    private static final long DRAIN_INTERVAL = 50;// ms
+
+    private static final int[] sLevels = new int[CAPACITY];
+    private static final int[] sEvents = new int[CAPACITY];
+    private static final int[] sAddressIds = new int[CAPACITY];
+    private static final int[] sUuidIds = new int[CAPACITY];
+    private static final int[] sExtraUuidIds = new int[CAPACITY];
+    private static final int[] sLengths = new int[CAPACITY];
+    private static final int[] sStatuses = new int[CAPACITY];
+    private static final long[] sTimestamps = new long[CAPACITY];
+    private static final byte[][] sPayloads = new byte[CAPACITY][];
+    private static final Object sLock = new Object();
+
+    // 地址和uuid编号，每个地址/uuid只在第一次出现时分配
+    private static final ConcurrentHashMap<String, Integer> sAddressIdMap = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<UUID, Integer> sUuidIdMap = new ConcurrentHashMap<>();
+    private static volatile String[] sAddresses = new String[0];
+    private static volatile UUID[] sUuids = new UUID[0];
+
+    private static volatile int sLevel = INFO;
+    private static volatile Sink sSink;
+    private static Thread sDrainThread;
+
+    private static long sWriteIndex;
+    private static long sReadIndex;
+    private static long sDroppedCount;
+
+    /**
+     * 跟踪日志的输出端，在后台线程中调用
+     */
+    public interface Sink {
+        void write(int level, CharSequence msg);
+    }
+
+    /**
+     * 输出到logcat
+     */
+    public static final Sink LOGCAT = new Sink() {
+        @Override
+        public void write(int level, CharSequence msg) {
+            if (level == ERROR) {
+                Log.e(TAG, msg.toString());
+            } else {
+                Log.i(TAG, msg.toString());
+            }
+        }
+    };
+
+    static {
+        if (ENABLED) setSink(LOGCAT);
+    }
+
+    private LeTrace() {
+    }
+
+    /**
+     * 运行时级别，高于该级别的记录直接丢弃
+     */
+    public static void setLevel(int level) {
+        sLevel = level;
+    }
+
+    public static int getLevel() {
+        return sLevel;
+    }
+
+    public static boolean isLoggable(int level) {
+        return ENABLED && level <= sLevel;
+    }
+
+    /**
+     * 设置输出端，null表示不输出（记录仍会写入环形数组，旧记录被覆盖）
+     */
+    public static synchronized void setSink(Sink sink) {
+        sSink = sink;
+        if (sink != null && sDrainThread == null) {
+            sDrainThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    drainLoop();
+                }
+            }, TAG);
+            sDrainThread.setDaemon(true);
+            sDrainThread.setPriority(Thread.MIN_PRIORITY);
+            sDrainThread.start();
+        }
+    }
+
+    /**
+     * 因输出不及时被覆盖的记录数
+     */
+    public static long getDroppedCount() {
+        synchronized (sLock) {
+            return sDroppedCount;
+        }
+    }
+
+    public static void record(int level, int event, String address, UUID uuid, byte[] payload, int status) {
+        record(level, event, address, uuid, null, payload, status);
+    }
+
+    /**
+     * 记录一次回调，只保存原始字段，payload只保存引用，调用方不要再修改
+     */
+    public static void record(int level, int event, String address, UUID uuid, UUID extraUuid, byte[] payload, int status) {
+        if (!ENABLED || level > sLevel) return;
+
+        int addressId = addressId(address);
+        int uuidId = uuidId(uuid);
+        int extraUuidId = uuidId(extraUuid);
+        long now = System.nanoTime();
+        synchronized (sLock) {
+            int i = (int) (sWriteIndex++ & MASK);
+            sLevels[i] = level;
+            sEvents[i] = event;
+            sAddressIds[i] = addressId;
+            sUuidIds[i] = uuidId;
+            sExtraUuidIds[i] = extraUuidId;
+            sLengths[i] = payload == null ? 0 : payload.length;
+            sStatuses[i] = status;
+            sTimestamps[i] = now;
+            sPayloads[i] = payload;
+        }
+    }
+
+    private static int addressId(String address) {
+        if (address == null) return -1;
+        Integer id = sAddressIdMap.get(address);
+        if (id != null) return id;
+        synchronized (sAddressIdMap) {
+            id = sAddressIdMap.get(address);
+            if (id == null) {
+                String[] old = sAddresses;
+                String[] addresses = new String[old.length + 1];
+                System.arraycopy(old, 0, addresses, 0, old.length);
+                addresses[old.length] = address;
+                sAddresses = addresses;
+                id = old.length;
+                sAddressIdMap.put(address, id);
+            }
+            return id;
+        }
+    }
+
+    private static int uuidId(UUID uuid) {
+        if (uuid == null) return -1;
+        Integer id = sUuidIdMap.get(uuid);
+        if (id != null) return id;
+        synchronized (sUuidIdMap) {
+            id = sUuidIdMap.get(uuid);
+            if (id == null) {
+                UUID[] old = sUuids;
+                UUID[] uuids = new UUID[old.length + 1];
+                System.arraycopy(old, 0, uuids, 0, old.length);
+                uuids[old.length] = uuid;
+                sUuids = uuids;
+                id = old.length;
+                sUuidIdMap.put(uuid, id);
+            }
+            return id;
+        }
+    }
+
+    private static void drainLoop() {
+        StringBuilder sb = new StringBuilder(256);
+        int level, event, addressId, uuidId, extraUuidId, length, status;
+        long timestamp;
+        byte[] payload;
+
+        while (true) {
+            Sink sink = sSink;
+            while (sink != null) {
+                synchronized (sLock) {
+                    if (sReadIndex == sWriteIndex) break;
+                    if (sWriteIndex - sReadIndex > CAPACITY) {
+                        sDroppedCount += sWriteIndex - sReadIndex - CAPACITY;
+                        sReadIndex = sWriteIndex - CAPACITY;
+                    }
+                    int i = (int) (sReadIndex++ & MASK);
+                    level = sLevels[i];
+                    event = sEvents[i];
+                    addressId = sAddressIds[i];
+                    uuidId = sUuidIds[i];
+                    extraUuidId = sExtraUuidIds[i];
+                    length = sLengths[i];
+                    status = sStatuses[i];
+                    timestamp = sTimestamps[i];
+                    payload = sPayloads[i];
+                    sPayloads[i] = null;
+                }
+                sb.setLength(0);
+                format(sb, event, addressId, uuidId, extraUuidId, length, status, timestamp, payload);
+                sink.write(level, sb);
+            }
+
+            try {
+                Thread.sleep(DRAIN_INTERVAL);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private static void format(StringBuilder sb, int event, int addressId, int uuidId, int extraUuidId,
+                               int length, int status, long timestamp, byte[] payload) {
+        String address = addressId < 0 ? null : sAddresses[addressId];
+        UUID uuid = uuidId < 0 ? null : sUuids[uuidId];
+        switch (event) {
+            case EVENT_RX:
+                sb.append("onCharacteristicChanged() - ").append(address).append(" uuid=").append(uuid);
+                break;
+            case EVENT_READ:
+                sb.append("onCharacteristicRead() - ").append(address).append(" uuid=").append(uuid);
+                break;
+            case EVENT_WRITE:
+                sb.append("onCharacteristicWrite() - ").append(address).append(", ").append(uuid);
+                break;
+            case EVENT_DESCRIPTOR_WRITE:
+                UUID descUuid = extraUuidId < 0 ? null : sUuids[extraUuidId];
+                sb.append("onDescriptorWrite() - ").append(address).append(' ')
+                        .append(uuid).append('/').append(descUuid);
+                break;
+            default:
+                sb.append("event ").append(event).append(" - ").append(address).append(' ').append(uuid);
+                break;
+        }
+        sb.append(", status=").append(status)
+                .append("\n len=").append(length)
+                .append(" [").append(DataUtil.byteArrayToHex(payload)).append(']')
+                .append(" @").append(timestamp / 1000).append("us");
+    }
+}
@@ -0,0 +1,49 @@
+package com.ble.demo.util;
+
+/**
+ * 带长度头的帧：[长度][数据][校验]
+ * <p>
+ * 长度字段的值默认为长度字段之后的字节数（数据+校验），其他约定可用lengthAdjustment修正，
+ * 如长度包含长度字段本身时lengthAdjustment为负的长度字段字节数
+ */
+public class LengthFieldFrameDecoder extends FrameDecoder {
+    private final int mFieldSize;
+    private final boolean mBigEndian;
+    private final int mLengthAdjustment;
+
+    /**
+     * @param fieldSize        长度字段的字节数，1、2或4
+     * @param bigEndian        长度字段是否高字节在前
+     * @param lengthAdjustment 长度字段的值与其后实际字节数之差的修正
+     * @param maxFrameLength   最大帧长
+     * @param checksum         帧尾校验，可为null
+     */
+    public LengthFieldFrameDecoder(int fieldSize, boolean bigEndian, int lengthAdjustment,
+                                   int maxFrameLength, FrameChecksum checksum) {
+        super(maxFrameLength, checksum);
+        if (fieldSize != 1 && fieldSize != 2 && fieldSize != 4) {
+            throw new IllegalArgumentException("fieldSize must be 1, 2 or 4");
+        }
+        mFieldSize = fieldSize;
+        mBigEndian = bigEndian;
+        mLengthAdjustment = lengthAdjustment;
+    }
+
+    @Override
+    protected int frameLength(byte[] buf, int start, int available) {
+        if (available < mFieldSize) return 0;
+        long value = 0;
+        for (int i = 0; i < mFieldSize; i++) {
+            int b = buf[start + (mBigEndian ? i : mFieldSize - 1 - i)] & 0xFF;
+            value = (value << 8) | b;
+        }
+        long len = mFieldSize + value + mLengthAdjustment;
+        if (len < mFieldSize) return -1;
+        return len > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) len;
+    }
+
+    @Override
+    protected int headerLength() {
+        return mFieldSize;
+    }
+}
@@ -0,0 +1,253 @@
+package com.ble.demo.util;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 检索服务成功后自动调整连接参数：请求最大MTU、2M PHY（Android8.0及以上），
+ * 有数据收发时切换到高速连接间隔（CONNECTION_PRIORITY_HIGH），空闲一段时间后恢复BALANCED
+ * <p>
+ * 各项操作都在LeProxy的发送线程中执行，onActivity()在发送/接收回调中调用，只读一个volatile变量
+ */
+public class LinkTuner {
+    private static final String TAG = "LinkTuner";
+
+    public static final int PHY_UNKNOWN = 0;
+    public static final int PHY_1M = 1;
+    public static final int PHY_2M = 2;
+
+    private static final long MTU_RETRY_DELAY = 300;// ms
+    private static final int MTU_MAX_RETRIES = 3;
+
+    /**
+     * 调整策略
+     */
+    public static class Policy {
+        /**
+         * 检索服务成功后请求的MTU，0表示不请求
+         */
+        public int mtu = 247;
+        /**
+         * 检索服务成功后等待多久开始调整（ms），先让打开notify等操作完成
+         */
+        public long startDelay = 300;
+        /**
+         * 有数据收发时是否切换到CONNECTION_PRIORITY_HIGH
+         */
+        public boolean highPriorityOnTransfer = true;
+        /**
+         * 没有数据收发多久后恢复CONNECTION_PRIORITY_BALANCED（ms）
+         */
+        public long idleTimeout = 3000;
+        /**
+         * 是否请求2M PHY，仅Android8.0及以上有效
+         */
+        public boolean preferPhy2M = true;
+    }
+
+    /**
+     * 设备当前的连接参数
+     */
+    public static class LinkState {
+        public final String address;
+        /**
+         * 协商成功的MTU，未协商为23
+         */
+        public volatile int mtu = 23;
+        /**
+         * 最近一次请求的连接优先级，如BluetoothGatt.CONNECTION_PRIORITY_HIGH
+         */
+        public volatile int priority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+        /**
+         * 请求的PHY，系统不回调实际结果，PHY_UNKNOWN表示没有请求
+         */
+        public volatile int phy = PHY_UNKNOWN;
+        /**
+         * 批量传输中，不会因空闲而降低优先级
+         */
+        volatile int bulkTransfers;
+        volatile long lastActivityNanos;
+        volatile boolean boostPending;
+        boolean idleCheckScheduled;
+        int mtuRetries;
+
+        LinkState(String address) {
+            this.address = address;
+        }
+    }
+
+    private final LeProxy mLeProxy;
+    private final ScheduledExecutorService mExecutor;
+    private final ConcurrentHashMap<String, LinkState> mStates = new ConcurrentHashMap<>();
+    private volatile Policy mPolicy = new Policy();
+    private volatile boolean mEnabled = true;
+
+    LinkTuner(LeProxy leProxy, ScheduledExecutorService executor) {
+        mLeProxy = leProxy;
+        mExecutor = executor;
+    }
+
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    /**
+     * 设置调整策略，对之后连接的设备生效
+     */
+    public void setPolicy(Policy policy) {
+        mPolicy = policy;
+    }
+
+    public Policy getPolicy() {
+        return mPolicy;
+    }
+
+    /**
+     * 设备当前的连接参数，未连接返回null
+     */
+    public LinkState getLinkState(String address) {
+        return address == null ? null : mStates.get(address);
+    }
+
+    void onServicesDiscovered(final String address) {
+        final LinkState state = new LinkState(address);
+        mStates.put(address, state);
+        if (!mEnabled) return;
+        final Policy policy = mPolicy;
+        mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (mStates.get(address) != state) return;
+                requestPhy(state, policy);
+                requestMtu(state, policy);
+            }
+        }, policy.startDelay, TimeUnit.MILLISECONDS);
+    }
+
+    void onMtuChanged(String address, int mtu, int status) {
+        LinkState state = mStates.get(address);
+        if (state != null && status == BluetoothGatt.GATT_SUCCESS) {
+            state.mtu = mtu;
+        }
+    }
+
+    void onDisconnected(String address) {
+        mStates.remove(address);
+    }
+
+    /**
+     * 有数据收发，必要时切换到高速连接间隔
+     */
+    void onActivity(String address) {
+        LinkState state = mStates.get(address);
+        if (state == null) return;
+        state.lastActivityNanos = System.nanoTime();
+        if (state.priority != BluetoothGatt.CONNECTION_PRIORITY_HIGH && !state.boostPending
+                && mEnabled && mPolicy.highPriorityOnTransfer) {
+            state.boostPending = true;
+            boost(state);
+        }
+    }
+
+    /**
+     * 开始批量传输（如OAD），期间保持CONNECTION_PRIORITY_HIGH，须与{@link #endBulkTransfer}成对调用
+     */
+    public void beginBulkTransfer(String address) {
+        final LinkState state = mStates.get(address);
+        if (state == null) return;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                state.bulkTransfers++;
+            }
+        });
+        state.lastActivityNanos = System.nanoTime();
+        boost(state);
+    }
+
+    public void endBulkTransfer(String address) {
+        final LinkState state = mStates.get(address);
+        if (state == null) return;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (state.bulkTransfers > 0) state.bulkTransfers--;
+                state.lastActivityNanos = System.nanoTime();
+                scheduleIdleCheck(state);
+            }
+        });
+    }
+
+    private void boost(final LinkState state) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                state.boostPending = false;
+                if (mStates.get(state.address) != state) return;
+                if (state.priority != BluetoothGatt.CONNECTION_PRIORITY_HIGH) {
+                    requestPriority(state, BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+                }
+                scheduleIdleCheck(state);
+            }
+        });
+    }
+
+    private void scheduleIdleCheck(final LinkState state) {
+        if (state.idleCheckScheduled) return;
+        long delay = mPolicy.idleTimeout - (System.nanoTime() - state.lastActivityNanos) / 1000000;
+        state.idleCheckScheduled = true;
+        mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                state.idleCheckScheduled = false;
+                if (mStates.get(state.address) != state
+                        || state.priority == BluetoothGatt.CONNECTION_PRIORITY_BALANCED) return;
+                long idle = (System.nanoTime() - state.lastActivityNanos) / 1000000;
+                if (state.bulkTransfers == 0 && idle >= mPolicy.idleTimeout) {
+                    requestPriority(state, BluetoothGatt.CONNECTION_PRIORITY_BALANCED);
+                } else {
+                    scheduleIdleCheck(state);
+                }
+            }
+        }, Math.max(delay, 100), TimeUnit.MILLISECONDS);
+    }
+
+    private void requestPriority(LinkState state, int priority) {
+        BluetoothGatt gatt = mLeProxy.getBluetoothGatt(state.address);
+        if (gatt != null && gatt.requestConnectionPriority(priority)) {
+            state.priority = priority;
+            Log.i(TAG, state.address + " connection priority -> " + priority);
+        }
+    }
+
+    private void requestPhy(LinkState state, Policy policy) {
+        if (!policy.preferPhy2M || Build.VERSION.SDK_INT < Build.VERSION_CODES.O) return;
+        BluetoothGatt gatt = mLeProxy.getBluetoothGatt(state.address);
+        if (gatt == null) return;
+        gatt.setPreferredPhy(BluetoothDevice.PHY_LE_2M_MASK, BluetoothDevice.PHY_LE_2M_MASK,
+                BluetoothDevice.PHY_OPTION_NO_PREFERRED);
+        state.phy = PHY_2M;
+    }
+
+    // GATT忙（如正在打开notify）时请求会失败，稍后重试
+    private void requestMtu(final LinkState state, final Policy policy) {
+        if (policy.mtu <= 23 || state.mtu >= policy.mtu) return;
+        if (mLeProxy.requestMtu(state.address, policy.mtu)) return;
+        if (++state.mtuRetries > MTU_MAX_RETRIES) {
+            Log.w(TAG, state.address + " request MTU failed");
+            return;
+        }
+        mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (mStates.get(state.address) == state) requestMtu(state, policy);
+            }
+        }, MTU_RETRY_DELAY, TimeUnit.MILLISECONDS);
+    }
+}
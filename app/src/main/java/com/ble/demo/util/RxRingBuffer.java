@@ -0,0 +1,256 @@
+package com.ble.demo.util;
+
+import java.util.UUID;
+
+/**
+ * 单个设备的接收环形缓冲区，所有槽位在创建时一次性分配
+ * <p>
+ * 每包数据写入时记录递增的序号和{@link System#nanoTime()}时间戳，
+ * 消费者通过各自的{@link Cursor}按序读取到自己的{@link Packet}中，读写过程都不分配内存。
+ * 缓冲区满时按{@link #OVERFLOW_OVERWRITE}或{@link #OVERFLOW_DROP_NEWEST}处理并计数，
+ * 消费者处理不过来也不会让内存增长
+ */
+public class RxRingBuffer {
+    /**
+     * 缓冲区满时覆盖最旧的数据，落后的消费者会跳过被覆盖的部分（计入{@link Cursor#getLost()}）
+     */
+    public static final int OVERFLOW_OVERWRITE = 0;
+    /**
+     * 缓冲区满时丢弃新来的数据，直到最慢的消费者读走旧数据
+     */
+    public static final int OVERFLOW_DROP_NEWEST = 1;
+
+    private static final Cursor[] NO_CURSORS = new Cursor[0];
+    private static final char[] HEX_CHARS = "0123456789ABCDEF".toCharArray();
+
+    private final int mCapacity;
+    private final int mMask;
+    private final int mSlotSize;
+    private final int mOverflowPolicy;
+
+    private final byte[][] mData;
+    private final int[] mLengths;
+    private final long[] mTimestamps;
+    private final UUID[] mUuids;
+
+    // 下一包数据的序号，序号从0开始，槽位为 seq & mMask
+    private long mNextSeq;
+    private Cursor[] mCursors = NO_CURSORS;
+
+    private long mOverwrittenCount;
+    private long mDroppedCount;
+    private long mTruncatedCount;
+
+    /**
+     * 消费者的读取位置
+     */
+    public static class Cursor {
+        private long next;
+        private long lost;
+
+        /**
+         * 下一次读取的序号
+         */
+        public long getNext() {
+            return next;
+        }
+
+        /**
+         * 因缓冲区被覆盖而没有读到的包数
+         */
+        public long getLost() {
+            return lost;
+        }
+    }
+
+    /**
+     * 读取结果，由{@link #newPacket()}创建后反复使用
+     */
+    public static class Packet {
+        public final byte[] data;
+        public int length;
+        public long seq;
+        public long timestampNanos;
+        public UUID uuid;
+
+        Packet(int size) {
+            data = new byte[size];
+        }
+
+        /**
+         * 以16进制格式追加数据，如"01 02 0A"，不产生临时数组
+         */
+        public StringBuilder appendHex(StringBuilder sb) {
+            for (int i = 0; i < length; i++) {
+                if (i > 0) sb.append(' ');
+                sb.append(HEX_CHARS[(data[i] >> 4) & 0x0F]).append(HEX_CHARS[data[i] & 0x0F]);
+            }
+            return sb;
+        }
+    }
+
+    /**
+     * @param capacity       槽位数，向上取整为2的幂
+     * @param slotSize       每个槽位的字节数，超出的部分会被截掉
+     * @param overflowPolicy {@link #OVERFLOW_OVERWRITE}或{@link #OVERFLOW_DROP_NEWEST}
+     */
+    public RxRingBuffer(int capacity, int slotSize, int overflowPolicy) {
+        if (capacity <= 0 || slotSize <= 0) {
+            throw new IllegalArgumentException("capacity and slotSize must be > 0");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) size <<= 1;
+        mCapacity = size;
+        mMask = size - 1;
+        mSlotSize = slotSize;
+        mOverflowPolicy = overflowPolicy;
+        mData = new byte[size][slotSize];
+        mLengths = new int[size];
+        mTimestamps = new long[size];
+        mUuids = new UUID[size];
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    public int getSlotSize() {
+        return mSlotSize;
+    }
+
+    public Packet newPacket() {
+        return new Packet(mSlotSize);
+    }
+
+    /**
+     * 打开一个从最新位置开始读的游标，不再使用时须调用{@link #closeCursor(Cursor)}
+     */
+    public synchronized Cursor openCursor() {
+        Cursor cursor = new Cursor();
+        cursor.next = mNextSeq;
+        Cursor[] cursors = new Cursor[mCursors.length + 1];
+        System.arraycopy(mCursors, 0, cursors, 0, mCursors.length);
+        cursors[mCursors.length] = cursor;
+        mCursors = cursors;
+        return cursor;
+    }
+
+    public synchronized void closeCursor(Cursor cursor) {
+        for (int i = 0; i < mCursors.length; i++) {
+            if (mCursors[i] == cursor) {
+                Cursor[] cursors = new Cursor[mCursors.length - 1];
+                System.arraycopy(mCursors, 0, cursors, 0, i);
+                System.arraycopy(mCursors, i + 1, cursors, i, mCursors.length - i - 1);
+                mCursors = cursors;
+                return;
+            }
+        }
+    }
+
+    /**
+     * 写入一包数据
+     *
+     * @return 写入的序号，被丢弃时返回-1
+     */
+    public synchronized long write(UUID uuid, byte[] data) {
+        if (mCursors.length > 0 && mNextSeq - minCursor() >= mCapacity) {
+            if (mOverflowPolicy == OVERFLOW_DROP_NEWEST) {
+                mDroppedCount++;
+                return -1;
+            }
+            mOverwrittenCount++;
+        }
+
+        long seq = mNextSeq++;
+        int slot = (int) (seq & mMask);
+        int len = data == null ? 0 : data.length;
+        if (len > mSlotSize) {
+            len = mSlotSize;
+            mTruncatedCount++;
+        }
+        if (len > 0) System.arraycopy(data, 0, mData[slot], 0, len);
+        mLengths[slot] = len;
+        mTimestamps[slot] = System.nanoTime();
+        mUuids[slot] = uuid;
+        return seq;
+    }
+
+    // 最慢的游标位置，没有游标时没有消费者，直接覆盖不计数
+    private long minCursor() {
+        long min = mNextSeq;
+        for (Cursor c : mCursors) {
+            if (c.next < min) min = c.next;
+        }
+        return min;
+    }
+
+    /**
+     * 按序读取下一包数据
+     *
+     * @return false表示没有新数据
+     */
+    public synchronized boolean read(Cursor cursor, Packet out) {
+        catchUp(cursor);
+        if (cursor.next >= mNextSeq) return false;
+        copy(cursor.next++, out);
+        return true;
+    }
+
+    /**
+     * 只读取最新的一包数据，跳过中间未读的部分（不计入丢包），适合只显示最新数据的界面
+     *
+     * @return false表示没有新数据
+     */
+    public synchronized boolean readLatest(Cursor cursor, Packet out) {
+        catchUp(cursor);
+        if (cursor.next >= mNextSeq) return false;
+        cursor.next = mNextSeq;
+        copy(mNextSeq - 1, out);
+        return true;
+    }
+
+    /**
+     * @return 该游标未读的包数
+     */
+    public synchronized int available(Cursor cursor) {
+        catchUp(cursor);
+        return (int) (mNextSeq - cursor.next);
+    }
+
+    private void catchUp(Cursor cursor) {
+        long oldest = mNextSeq - mCapacity;
+        if (cursor.next < oldest) {
+            cursor.lost += oldest - cursor.next;
+            cursor.next = oldest;
+        }
+    }
+
+    private void copy(long seq, Packet out) {
+        int slot = (int) (seq & mMask);
+        int len = Math.min(mLengths[slot], out.data.length);
+        System.arraycopy(mData[slot], 0, out.data, 0, len);
+        out.length = len;
+        out.seq = seq;
+        out.timestampNanos = mTimestamps[slot];
+        out.uuid = mUuids[slot];
+    }
+
+    /**
+     * 已写入的总包数（不含被丢弃的）
+     */
+    public synchronized long getWrittenCount() {
+        return mNextSeq;
+    }
+
+    public synchronized long getOverwrittenCount() {
+        return mOverwrittenCount;
+    }
+
+    public synchronized long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    public synchronized long getTruncatedCount() {
+        return mTruncatedCount;
+    }
+}
@@ -0,0 +1,150 @@
+package com.ble.demo.util;
+
+/**
+ * 一次发送的结果，由{@link WriteScheduler}完成
+ * <p>
+ * 一个句柄可以对应多包数据（如分包发送的长数据），所有包都成功才算成功，有一包失败即失败
+ */
+public class WriteHandle {
+    public static final int STATE_PENDING = 0;
+    public static final int STATE_SUCCESS = 1;
+    public static final int STATE_FAILED = 2;
+    public static final int STATE_CANCELLED = 3;
+
+    public interface Callback {
+        /**
+         * 在蓝牙回调线程或发送线程中调用，不能有阻塞操作
+         */
+        void onComplete(WriteHandle handle);
+    }
+
+    private final String mAddress;
+    private final long mCreateTime = System.nanoTime();
+    private int mParts;
+    private int mCompletedParts;
+    private boolean mSealed;
+    private int mState = STATE_PENDING;
+    private int mStatus;
+    private long mCompleteTime;
+    private Callback mCallback;
+
+    WriteHandle(String address) {
+        mAddress = address;
+    }
+
+    static WriteHandle failed(String address) {
+        WriteHandle handle = new WriteHandle(address);
+        handle.seal();
+        handle.fail(STATE_FAILED, -1);
+        return handle;
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public synchronized int getState() {
+        return mState;
+    }
+
+    public synchronized boolean isDone() {
+        return mState != STATE_PENDING;
+    }
+
+    public synchronized boolean isSuccess() {
+        return mState == STATE_SUCCESS;
+    }
+
+    /**
+     * 最后一次onCharacteristicWrite()回调的status，发送被拒绝或超时为-1
+     */
+    public synchronized int getStatus() {
+        return mStatus;
+    }
+
+    public synchronized int getPartCount() {
+        return mParts;
+    }
+
+    public synchronized int getCompletedPartCount() {
+        return mCompletedParts;
+    }
+
+    /**
+     * 从入队到完成的时间，未完成时返回-1
+     */
+    public synchronized long getLatencyNanos() {
+        return mState == STATE_PENDING ? -1 : mCompleteTime - mCreateTime;
+    }
+
+    /**
+     * 设置完成回调，如果已经完成则立即回调
+     */
+    public void setCallback(Callback callback) {
+        boolean done;
+        synchronized (this) {
+            mCallback = callback;
+            done = mState != STATE_PENDING;
+        }
+        if (done && callback != null) callback.onComplete(this);
+    }
+
+    /**
+     * 等待完成，不要在主线程或蓝牙回调线程中调用
+     *
+     * @return 是否已完成
+     */
+    public synchronized boolean await(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (mState == STATE_PENDING) {
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0) return false;
+            wait(wait);
+        }
+        return true;
+    }
+
+    synchronized void addPart() {
+        mParts++;
+    }
+
+    /**
+     * 所有包都已加入，之后全部完成即可结束
+     */
+    void seal() {
+        boolean complete;
+        synchronized (this) {
+            mSealed = true;
+            complete = mState == STATE_PENDING && mCompletedParts == mParts;
+        }
+        if (complete) finish(STATE_SUCCESS, mStatus);
+    }
+
+    void onPartSuccess(int status) {
+        boolean complete;
+        synchronized (this) {
+            if (mState != STATE_PENDING) return;
+            mCompletedParts++;
+            mStatus = status;
+            complete = mSealed && mCompletedParts == mParts;
+        }
+        if (complete) finish(STATE_SUCCESS, status);
+    }
+
+    void fail(int state, int status) {
+        finish(state, status);
+    }
+
+    private void finish(int state, int status) {
+        Callback callback;
+        synchronized (this) {
+            if (mState != STATE_PENDING) return;
+            mState = state;
+            mStatus = status;
+            mCompleteTime = System.nanoTime();
+            callback = mCallback;
+            notifyAll();
+        }
+        if (callback != null) callback.onComplete(this);
+    }
+}
@@ -0,0 +1,370 @@
+package com.ble.demo.util;
+
+import java.util.ArrayDeque;
+import java.util.UUID;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 单个设备的发送队列
+ * <p>
+ * 所有写操作按顺序排队，最多同时有{@link #setWindow(int)}个WRITE_NO_RESPONSE写操作在途（需要响应的写操作总是一个一个来），
+ * 每个onCharacteristicWrite()回调归还一个额度并发出下一包；status失败或超时未回调的包会重发，
+ * 超过重试次数则该包所属的{@link WriteHandle}失败。
+ * 底层拒绝写入（如GATT忙）时稍后重试，不会丢包
+ * <p>
+ * 回调不带包的标识，只能按发出的顺序对应：某包失败或超时后，它和在途的后续包按原顺序放回队首重发，
+ * 这些包还没到的回调（迟到的）按顺序丢弃，丢弃完或超时之前不发新的包，避免把迟到的回调算到重发的包上。
+ * GATT写操作在锁外执行，同一时间只有一个线程在发送
+ */
+public class WriteScheduler {
+
+    /**
+     * 实际执行写操作
+     */
+    public interface Writer {
+        /**
+         * @return false表示底层拒绝写入（如GATT忙、未连接）
+         */
+        boolean write(String address, UUID serUuid, UUID charUuid, byte[] data, boolean noResponse);
+    }
+
+    /**
+     * 每包写操作结束时回调，用于统计，不能有阻塞操作
+     */
+    public interface Listener {
+        /**
+         * @param latencyNanos 从写入到onCharacteristicWrite()回调的时间，失败时为-1
+         */
+        void onWriteComplete(String address, int length, long latencyNanos, boolean success);
+    }
+
+    private static final long BUSY_RETRY_DELAY = 5;// ms
+
+    private final String mAddress;
+    private final Writer mWriter;
+    private final ScheduledExecutorService mExecutor;
+    private volatile Listener mListener;
+
+    private final ArrayDeque<Op> mQueue = new ArrayDeque<>();
+    private final ArrayDeque<Op> mInFlight = new ArrayDeque<>();
+    private final ArrayDeque<Op> mStale = new ArrayDeque<>();// 已放回队列重发，但回调还没到的包
+    private long mStaleDeadline;// ms，之后不再等mStale的回调
+    private int mGeneration;// 每次把在途的包放回队列或全部取消时加1
+    private boolean mPumping;// 有线程正在发送
+    private int mWindow = 1;
+    private int mMaxRetries = 2;
+    private long mTimeoutMillis = 1000;
+    private boolean mPumpScheduled;
+    private boolean mWatchdogScheduled;
+
+    private static class Op {
+        final UUID serUuid;
+        final UUID charUuid;
+        final byte[] data;
+        final boolean noResponse;
+        final WriteHandle handle;
+        int retries;
+        long firstTryTime;// ms，第一次尝试写入的时间
+        long sentTime;// ms
+        long sentNanos;
+
+        Op(UUID serUuid, UUID charUuid, byte[] data, boolean noResponse, WriteHandle handle) {
+            this.serUuid = serUuid;
+            this.charUuid = charUuid;
+            this.data = data;
+            this.noResponse = noResponse;
+            this.handle = handle;
+        }
+    }
+
+    private final Runnable mPumpTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (WriteScheduler.this) {
+                mPumpScheduled = false;
+            }
+            pump();
+        }
+    };
+
+    private final Runnable mWatchdogTask = new Runnable() {
+        @Override
+        public void run() {
+            checkTimeout();
+        }
+    };
+
+    public WriteScheduler(String address, Writer writer, ScheduledExecutorService executor) {
+        mAddress = address;
+        mWriter = writer;
+        mExecutor = executor;
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * @param window WRITE_NO_RESPONSE写操作的最大在途数量，至少为1
+     */
+    public synchronized void setWindow(int window) {
+        mWindow = Math.max(1, window);
+    }
+
+    public synchronized void setMaxRetries(int maxRetries) {
+        mMaxRetries = Math.max(0, maxRetries);
+    }
+
+    /**
+     * @param timeoutMillis 写入后等待onCharacteristicWrite()回调的超时时间
+     */
+    public synchronized void setTimeout(long timeoutMillis) {
+        mTimeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * 排队中和在途的包数
+     */
+    public synchronized int getPendingCount() {
+        return mQueue.size() + mInFlight.size();
+    }
+
+    public WriteHandle enqueue(UUID serUuid, UUID charUuid, byte[] data, boolean noResponse) {
+        WriteHandle handle = new WriteHandle(mAddress);
+        enqueue(serUuid, charUuid, data, noResponse, handle);
+        handle.seal();
+        return handle;
+    }
+
+    /**
+     * 向已有句柄追加一包数据，全部加完后须调用{@link WriteHandle#seal()}
+     */
+    void enqueue(UUID serUuid, UUID charUuid, byte[] data, boolean noResponse, WriteHandle handle) {
+        handle.addPart();
+        synchronized (this) {
+            mQueue.add(new Op(serUuid, charUuid, data, noResponse, handle));
+        }
+        pump();
+    }
+
+    /**
+     * 发出排队中的包，直到额度用完或底层拒绝
+     */
+    private void pump() {
+        synchronized (this) {
+            // 正在发送的线程每次都会重新检查队列，不会漏掉这次加入的包
+            if (mPumping) return;
+            mPumping = true;
+        }
+        boolean pumping = true;
+        try {
+            while (pumping) {
+                Op op;
+                int generation;
+                synchronized (this) {
+                    op = nextOp();
+                    if (op == null) {
+                        mPumping = false;
+                        return;
+                    }
+                    generation = mGeneration;
+                    if (op.firstTryTime == 0) op.firstTryTime = System.currentTimeMillis();
+                }
+
+                boolean written = mWriter.write(mAddress, op.serUuid, op.charUuid, op.data, op.noResponse);
+
+                Op failed = null;
+                synchronized (this) {
+                    long now = System.currentTimeMillis();
+                    if (generation != mGeneration) {
+                        // 写入期间有包失败或超时，这一包排在放回的包后面，已发出的回调要丢弃
+                        if (written && mQueue.contains(op)) {
+                            mStale.add(op);
+                        }
+                    } else if (written) {
+                        mQueue.poll();
+                        op.sentTime = now;
+                        op.sentNanos = System.nanoTime();
+                        mInFlight.add(op);
+                        scheduleWatchdog();
+                    } else if (now - op.firstTryTime > mTimeoutMillis) {
+                        // 一直被拒绝（如已断开），放弃该包
+                        mQueue.poll();
+                        failed = op;
+                    } else {
+                        schedulePump();
+                        mPumping = false;
+                        pumping = false;
+                    }
+                }
+                if (failed != null) {
+                    notifyComplete(failed, false);
+                    failed.handle.fail(WriteHandle.STATE_FAILED, -1);
+                }
+            }
+        } finally {
+            if (pumping) {
+                synchronized (this) {
+                    mPumping = false;
+                }
+            }
+        }
+    }
+
+    // 下一个可以发出的包，没有时返回null
+    private Op nextOp() {
+        // 等迟到的回调
+        if (!mStale.isEmpty()) return null;
+        Op op = mQueue.peek();
+        if (op == null) return null;
+        if (!op.noResponse || (!mInFlight.isEmpty() && !mInFlight.peekLast().noResponse)) {
+            // 需要响应的写操作不和其他写操作重叠
+            if (!mInFlight.isEmpty()) return null;
+        } else if (mInFlight.size() >= mWindow) {
+            return null;
+        }
+        return op;
+    }
+
+    /**
+     * 由onCharacteristicWrite()回调调用
+     */
+    public void onWriteComplete(UUID charUuid, int status, boolean success) {
+        Op done = null;
+        boolean failed = false;
+        synchronized (this) {
+            Op stale = mStale.peek();
+            if (stale != null) {
+                // 已放回队列的包迟到的回调，丢弃
+                if (!stale.charUuid.equals(charUuid)) return;
+                mStale.poll();
+            } else {
+                Op op = mInFlight.peek();
+                // 不是本队列发出的写操作（如OAD直接写入），不处理
+                if (op == null || !op.charUuid.equals(charUuid)) return;
+                mInFlight.poll();
+                if (success) {
+                    done = op;
+                } else if (op.retries < mMaxRetries) {
+                    op.retries++;
+                    requeueInFlight(op, false);
+                } else {
+                    done = op;
+                    failed = true;
+                }
+            }
+        }
+        if (done != null) {
+            notifyComplete(done, !failed);
+            if (failed) {
+                done.handle.fail(WriteHandle.STATE_FAILED, status);
+            } else {
+                done.handle.onPartSuccess(status);
+            }
+        }
+        pump();
+    }
+
+    /**
+     * 把head（已从在途中取出）和在途的后续包按原顺序放回队首，后续包的回调还会到，记入mStale等待丢弃
+     *
+     * @param headPending head的回调是否也还会到（超时）
+     */
+    private void requeueInFlight(Op head, boolean headPending) {
+        if (headPending) mStale.add(head);
+        mStale.addAll(mInFlight);
+        while (!mInFlight.isEmpty()) {
+            Op op = mInFlight.pollLast();
+            op.firstTryTime = 0;
+            mQueue.addFirst(op);
+        }
+        if (head != null) {
+            head.firstTryTime = 0;
+            mQueue.addFirst(head);
+        }
+        mGeneration++;
+        mStaleDeadline = System.currentTimeMillis() + mTimeoutMillis;
+        if (!mStale.isEmpty()) scheduleWatchdog();
+    }
+
+    /**
+     * 取消所有排队中和在途的包（如断线时）
+     */
+    public void cancelAll() {
+        Op[] ops;
+        synchronized (this) {
+            ops = new Op[mQueue.size() + mInFlight.size()];
+            int i = 0;
+            for (Op op : mInFlight) ops[i++] = op;
+            for (Op op : mQueue) ops[i++] = op;
+            mInFlight.clear();
+            mQueue.clear();
+            mStale.clear();
+            mGeneration++;
+        }
+        for (Op op : ops) {
+            notifyComplete(op, false);
+            op.handle.fail(WriteHandle.STATE_CANCELLED, -1);
+        }
+    }
+
+    private void notifyComplete(Op op, boolean success) {
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onWriteComplete(mAddress, op.data.length,
+                    success ? System.nanoTime() - op.sentNanos : -1, success);
+        }
+    }
+
+    private void schedulePump() {
+        if (!mPumpScheduled) {
+            mPumpScheduled = true;
+            mExecutor.schedule(mPumpTask, BUSY_RETRY_DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void scheduleWatchdog() {
+        if (!mWatchdogScheduled) {
+            mWatchdogScheduled = true;
+            mExecutor.schedule(mWatchdogTask, mTimeoutMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // 在途的包超时未回调，按写入失败处理；迟到的回调等太久也不再等
+    private void checkTimeout() {
+        Op failed = null;
+        boolean resume = false;
+        synchronized (this) {
+            mWatchdogScheduled = false;
+            long now = System.currentTimeMillis();
+            if (!mStale.isEmpty() && now >= mStaleDeadline) {
+                mStale.clear();
+                resume = true;
+            }
+            Op op = mInFlight.peek();
+            if (op != null && now - op.sentTime >= mTimeoutMillis) {
+                mInFlight.poll();
+                if (op.retries < mMaxRetries) {
+                    op.retries++;
+                    requeueInFlight(op, true);
+                } else {
+                    // 放弃该包，它的回调还会到时也要丢弃
+                    mStale.add(op);
+                    requeueInFlight(null, false);
+                    failed = op;
+                }
+            }
+            if (!mInFlight.isEmpty() || !mStale.isEmpty()) scheduleWatchdog();
+        }
+        if (failed != null) {
+            notifyComplete(failed, false);
+            failed.handle.fail(WriteHandle.STATE_FAILED, -1);
+        }
+        if (resume || failed != null) pump();
+    }
+}
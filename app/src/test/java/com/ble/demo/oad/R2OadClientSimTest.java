@@ -0,0 +1,269 @@
+package com.ble.demo.oad;
+
+import com.ble.ble.oad.OADListener;
+import com.ble.ble.oad.OADType;
+import com.ble.gatt.GattAttributes;
+
+import org.junit.After;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 用{@link OadTargetSimulator}在JVM上测试{@link R2OadClient}，android.util.Log靠unitTests.returnDefaultValues
+ */
+public class R2OadClientSimTest {
+    private static final String ADDRESS = "00:00:00:00:00:01";
+    private static final long TIMEOUT = 60000;
+
+    private OadTargetSimulator mTarget;
+    private R2OadClient mClient;
+
+    // 记录回调，每次prepare()前重置
+    private static class Events implements OADListener {
+        volatile CountDownLatch prepared = new CountDownLatch(1);
+        volatile CountDownLatch ended = new CountDownLatch(1);
+        volatile boolean finished;
+        volatile int blocksWritten;
+
+        void rearm() {
+            prepared = new CountDownLatch(1);
+            ended = new CountDownLatch(1);
+            finished = false;
+            blocksWritten = 0;
+        }
+
+        @Override
+        public void onPrepared(String address) {
+            prepared.countDown();
+        }
+
+        @Override
+        public void onFinished(String address, int nBytes, long milliseconds) {
+            finished = true;
+            ended.countDown();
+        }
+
+        @Override
+        public void onInterrupted(String address, int iBytes, int nBytes, long milliseconds) {
+            ended.countDown();
+        }
+
+        @Override
+        public void onProgressChanged(String address, int iBytes, int nBytes, long milliseconds) {
+        }
+
+        @Override
+        public void onBlockWrite(byte[] data) {
+            blocksWritten++;
+        }
+
+        @Override
+        public void onStatusChange(String address, int status) {
+        }
+    }
+
+    /**
+     * 镜像头中的长度和CRC都正确的镜像，内容随块号变化
+     */
+    private static OadImage image(int blocks) {
+        byte[] data = new byte[blocks * OadImage.BLOCK_SIZE];
+        for (int i = OadImage.HEADER_SIZE; i < data.length; i++) {
+            data[i] = (byte) (i * 31 + (i >> 4));
+        }
+        data[OadImage.OFFSET_VER] = 2;
+        int words = data.length / OadImage.WORD_SIZE;
+        data[OadImage.OFFSET_LEN] = (byte) words;
+        data[OadImage.OFFSET_LEN + 1] = (byte) (words >> 8);
+        data[OadImage.OFFSET_UID] = 'E';
+        data[OadImage.OFFSET_UID + 1] = 'E';
+        data[OadImage.OFFSET_UID + 2] = 'E';
+        data[OadImage.OFFSET_UID + 3] = 'E';
+        int crc = OadImage.crc16(ByteBuffer.wrap(data), OadImage.CRC_START, data.length);
+        data[OadImage.OFFSET_CRC0] = (byte) crc;
+        data[OadImage.OFFSET_CRC0 + 1] = (byte) (crc >> 8);
+        return new OadImage(ByteBuffer.wrap(data));
+    }
+
+    private Events connect(OadTargetSimulator.LinkModel model) {
+        Events events = new Events();
+        mTarget = new OadTargetSimulator(ADDRESS, model);
+        mClient = new R2OadClient(ADDRESS, mTarget, events);
+        mTarget.setListener(mClient);
+        return events;
+    }
+
+    private void prepare(Events events, OadImage image) throws InterruptedException {
+        events.rearm();
+        mClient.prepare(image);
+        assertTrue("prepare timeout", events.prepared.await(TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+
+    private void awaitEnd(Events events) throws InterruptedException {
+        assertTrue("transfer timeout", events.ended.await(TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+
+    @After
+    public void tearDown() {
+        if (mClient != null) mClient.release();
+        if (mTarget != null) mTarget.release();
+        mClient = null;
+        mTarget = null;
+    }
+
+    @Test
+    public void losslessTransfer() throws InterruptedException {
+        OadImage image = image(512);
+        Events events = connect(new OadTargetSimulator.LinkModel());
+        prepare(events, image);
+        mClient.startProgramming();
+        awaitEnd(events);
+
+        OadTargetSimulator.Result result = mTarget.getResult();
+        assertTrue(result.toString(), events.finished);
+        assertEquals(OadTargetSimulator.STATUS_SUCCESS, result.status);
+        assertEquals(0, result.packetsLost);
+        assertEquals(0, result.resumedBlocks);
+    }
+
+    @Test
+    public void lossyTransferRetransmits() throws InterruptedException {
+        OadTargetSimulator.LinkModel model = new OadTargetSimulator.LinkModel();
+        model.lossRate = 0.03;
+        model.seed = 7;
+        OadImage image = image(512);
+        Events events = connect(model);
+        prepare(events, image);
+        mClient.startProgramming();
+        awaitEnd(events);
+
+        OadTargetSimulator.Result result = mTarget.getResult();
+        assertTrue(result.toString(), events.finished);
+        assertEquals(OadTargetSimulator.STATUS_SUCCESS, result.status);
+        assertTrue(result.toString(), result.packetsLost > 0);
+        // 每个丢失的块都要重发，目标CRC校验通过说明没有漏块
+        assertTrue(result.toString(), result.packetsSent > image.getBlockCount() + 1);
+    }
+
+    @Test
+    public void resumeFromCheckpoint() throws InterruptedException {
+        OadImage image = image(1024);
+        Events events = connect(new OadTargetSimulator.LinkModel());
+        mTarget.setSupportResume(true);
+        prepare(events, image);
+        mClient.startProgramming();
+
+        // 传到一半时断线
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (mClient.getAckedBlocks() < image.getBlockCount() / 2) {
+            assertTrue("no progress", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+        mTarget.disconnect();
+        awaitEnd(events);
+        assertFalse(events.finished);
+
+        String type = OADType.cc2640_r2_oad.name();
+        OadCheckpoint checkpoint = new OadCheckpoint(ADDRESS, image.getHash(), mClient.getAckedBlocks(),
+                mClient.getBlockCount(), type);
+        assertTrue("checkpoint " + checkpoint.ackedBlocks, checkpoint.matches(image.getHash(), type));
+
+        mTarget.reconnect();
+        prepare(events, image);
+        mClient.startProgramming(checkpoint.ackedBlocks);
+        awaitEnd(events);
+
+        OadTargetSimulator.Result result = mTarget.getResult();
+        assertTrue(result.toString(), events.finished);
+        assertEquals(OadTargetSimulator.STATUS_SUCCESS, result.status);
+        // 目标可能比APP端确认的多收到几块，以目标的块请求为准
+        assertTrue(result.toString(), result.resumedBlocks >= checkpoint.ackedBlocks);
+        assertEquals(result.resumedBlocks, mClient.getResumedBlocks());
+    }
+
+    // 模拟目标发来的块请求
+    private void requestBlock(int block) {
+        mClient.onDataAvailable(ADDRESS, GattAttributes.TI_OAD_Image_Block, new byte[]{(byte) block, (byte) (block >> 8)});
+    }
+
+    @Test
+    public void firstRequestBeyondImageInterrupts() throws InterruptedException {
+        OadImage image = image(64);
+        OadTargetSimulator.LinkModel model = new OadTargetSimulator.LinkModel();
+        model.connectionIntervalMillis = 50;
+        Events events = connect(model);
+        prepare(events, image);
+        mClient.startProgramming();
+        // 模拟目标的第一个请求要经过一个连接间隔，这个请求先到
+        while (!mClient.isProgramming()) {
+            Thread.sleep(1);
+        }
+        requestBlock(image.getBlockCount() + 1);
+        awaitEnd(events);
+        assertFalse(events.finished);
+        assertEquals(0, events.blocksWritten);
+    }
+
+    @Test
+    public void requestForUnsentBlocksInterrupts() throws InterruptedException {
+        OadImage image = image(512);
+        Events events = connect(new OadTargetSimulator.LinkModel());
+        prepare(events, image);
+        mClient.startProgramming();
+
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (mClient.getAckedBlocks() < 16) {
+            assertTrue("no progress", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+        // 还有块没发出，请求最后一块之后的块不能当作完成
+        requestBlock(image.getBlockCount());
+        awaitEnd(events);
+        assertFalse(events.finished);
+    }
+
+    /**
+     * R2 OAD的块大小固定为16字节，每个连接事件能发出的块数决定了吞吐量：
+     * 比较不同的连接间隔（发送间隔）和窗口（发出未确认的块数），打印耗时
+     * <p>
+     * 要按实际时间传输9次，约20秒，不放在默认的单元测试中，需要时去掉@Ignore手动运行
+     */
+    @Ignore("benchmark, about 20 s")
+    @Test
+    public void benchmarkConnectionIntervalAgainstWindow() throws InterruptedException {
+        OadImage image = image(256);
+        double[] intervals = {7.5, 15, 30};// ms
+        int[] windows = {4, 16, 64};
+        StringBuilder report = new StringBuilder("interval(ms) window  time(ms)  sent  lost\n");
+        for (double interval : intervals) {
+            for (int window : windows) {
+                OadTargetSimulator.LinkModel model = new OadTargetSimulator.LinkModel();
+                model.connectionIntervalMillis = interval;
+                model.lossRate = 0.01;
+                Events events = connect(model);
+                mClient.setWindow(window);
+                prepare(events, image);
+
+                long start = System.nanoTime();
+                mClient.startProgramming();
+                awaitEnd(events);
+                long millis = (System.nanoTime() - start) / 1000000;
+                OadTargetSimulator.Result result = mTarget.getResult();
+                assertTrue(result.toString(), events.finished);
+                assertEquals(OadTargetSimulator.STATUS_SUCCESS, result.status);
+                report.append(String.format(Locale.US, "%12.1f %6d %9d %5d %5d%n",
+                        interval, window, millis, result.packetsSent, result.packetsLost));
+                tearDown();
+            }
+        }
+        System.out.print(report);
+    }
+}
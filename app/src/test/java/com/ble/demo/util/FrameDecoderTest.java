@@ -0,0 +1,263 @@
+package com.ble.demo.util;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class FrameDecoderTest {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    // 收集解出的帧（复制出来，buf会被复用）
+    private static class Frames implements FrameDecoder.Sink {
+        final List<String> frames = new ArrayList<>();
+
+        @Override
+        public void onFrame(byte[] buf, int offset, int length) {
+            frames.add(new String(buf, offset, length, ASCII));
+        }
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(ASCII);
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        int n = 0;
+        for (byte[] p : parts) n += p.length;
+        byte[] out = new byte[n];
+        int pos = 0;
+        for (byte[] p : parts) {
+            System.arraycopy(p, 0, out, pos, p.length);
+            pos += p.length;
+        }
+        return out;
+    }
+
+    // 按packetSize分包输入
+    private static void feed(FrameDecoder decoder, byte[] data, int packetSize, Frames sink) {
+        for (int i = 0; i < data.length; i += packetSize) {
+            decoder.decode(data, i, Math.min(packetSize, data.length - i), sink);
+        }
+    }
+
+    private static byte[] lengthFrame(String payload) {
+        return concat(new byte[]{(byte) payload.length()}, bytes(payload));
+    }
+
+    private static byte[] withModbus(byte[] data) {
+        int crc = 0xFFFF;
+        for (byte b : data) {
+            crc ^= b & 0xFF;
+            for (int j = 0; j < 8; j++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ 0xA001 : crc >>> 1;
+            }
+        }
+        return concat(data, new byte[]{(byte) crc, (byte) (crc >>> 8)});
+    }
+
+    private static byte[] withSum8(byte[] data) {
+        int sum = 0;
+        for (byte b : data) sum += b;
+        return concat(data, new byte[]{(byte) sum});
+    }
+
+    @Test
+    public void lengthFieldFrameSplitAcrossPackets() {
+        FrameDecoder decoder = new LengthFieldFrameDecoder(1, true, 0, 32, null);
+        Frames sink = new Frames();
+        byte[] data = concat(lengthFrame("hello"), lengthFrame("ble"), lengthFrame("world!"));
+        for (int packetSize = 1; packetSize <= data.length; packetSize++) {
+            sink.frames.clear();
+            feed(decoder, data, packetSize, sink);
+            assertEquals("packet size " + packetSize, 3, sink.frames.size());
+            assertEquals("hello", sink.frames.get(0));
+            assertEquals("ble", sink.frames.get(1));
+            assertEquals("world!", sink.frames.get(2));
+        }
+    }
+
+    @Test
+    public void lengthFieldTwoByteLittleEndian() {
+        FrameDecoder decoder = new LengthFieldFrameDecoder(2, false, 0, 300, null);
+        Frames sink = new Frames();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 260; i++) sb.append((char) ('a' + i % 26));
+        String payload = sb.toString();
+        byte[] data = concat(new byte[]{(byte) 260, (byte) (260 >> 8)}, bytes(payload));
+        feed(decoder, data, 20, sink);
+        assertEquals(1, sink.frames.size());
+        assertEquals(payload, sink.frames.get(0));
+    }
+
+    @Test
+    public void delimiterFrameSplitAcrossPackets() {
+        FrameDecoder decoder = new DelimiterFrameDecoder(CRLF, 32, null);
+        Frames sink = new Frames();
+        byte[] data = bytes("hello\r\nble\r\nworld!\r\n");
+        for (int packetSize = 1; packetSize <= data.length; packetSize++) {
+            sink.frames.clear();
+            feed(decoder, data, packetSize, sink);
+            assertEquals("packet size " + packetSize, 3, sink.frames.size());
+            assertEquals("hello", sink.frames.get(0));
+            assertEquals("ble", sink.frames.get(1));
+            assertEquals("world!", sink.frames.get(2));
+        }
+    }
+
+    @Test
+    public void delimiterSplitAcrossTwoNotifications() {
+        FrameDecoder decoder = new DelimiterFrameDecoder(CRLF, 32, null);
+        Frames sink = new Frames();
+        feed(decoder, bytes("abc\r"), 20, sink);
+        assertEquals(0, sink.frames.size());
+        feed(decoder, bytes("\nxyz\r\n"), 20, sink);
+        assertEquals(2, sink.frames.size());
+        assertEquals("abc", sink.frames.get(0));
+        assertEquals("xyz", sink.frames.get(1));
+    }
+
+    @Test
+    public void fixedLengthFrameSplitAcrossPackets() {
+        FrameDecoder decoder = new FixedLengthFrameDecoder(4, null);
+        Frames sink = new Frames();
+        feed(decoder, bytes("abcdefghijkl"), 3, sink);
+        assertEquals(3, sink.frames.size());
+        assertEquals("abcd", sink.frames.get(0));
+        assertEquals("efgh", sink.frames.get(1));
+        assertEquals("ijkl", sink.frames.get(2));
+    }
+
+    @Test
+    public void declaredLengthAboveMaxIsDiscardedWithoutDroppingNextFrame() {
+        byte[] oversized = concat(new byte[]{20}, bytes("0123456789abcdefghij"));
+        byte[] data = concat(oversized, lengthFrame("ok"), lengthFrame("next"));
+        for (int packetSize = 1; packetSize <= data.length; packetSize++) {
+            FrameDecoder decoder = new LengthFieldFrameDecoder(1, true, 0, 8, null);
+            Frames sink = new Frames();
+            feed(decoder, data, packetSize, sink);
+            assertEquals("packet size " + packetSize, 1, decoder.getOverflowCount());
+            assertEquals("packet size " + packetSize, 2, sink.frames.size());
+            assertEquals("ok", sink.frames.get(0));
+            assertEquals("next", sink.frames.get(1));
+        }
+    }
+
+    @Test
+    public void delimiterOverflowSkipsOnlyTheOversizedFrame() {
+        byte[] data = bytes("0123456789ab\r\nok\r\nnext\r\n");
+        for (int packetSize = 1; packetSize <= data.length; packetSize++) {
+            FrameDecoder decoder = new DelimiterFrameDecoder(CRLF, 8, null);
+            Frames sink = new Frames();
+            feed(decoder, data, packetSize, sink);
+            assertEquals("packet size " + packetSize, 1, decoder.getOverflowCount());
+            assertEquals("packet size " + packetSize, 2, sink.frames.size());
+            assertEquals("ok", sink.frames.get(0));
+            assertEquals("next", sink.frames.get(1));
+        }
+    }
+
+    @Test
+    public void delimiterSplitAtOverflowBoundary() {
+        FrameDecoder decoder = new DelimiterFrameDecoder(CRLF, 8, null);
+        Frames sink = new Frames();
+        // 缓冲区满时最后一个字节是'\r'，'\n'在下一包中
+        feed(decoder, bytes("0123456\r"), 8, sink);
+        feed(decoder, bytes("\nok\r\n"), 8, sink);
+        assertEquals(1, decoder.getOverflowCount());
+        assertEquals(1, sink.frames.size());
+        assertEquals("ok", sink.frames.get(0));
+    }
+
+    @Test
+    public void badCrcFrameIsDroppedAndCounted() {
+        FrameDecoder decoder = new LengthFieldFrameDecoder(1, true, 0, 32, FrameChecksum.CRC16_MODBUS);
+        Frames sink = new Frames();
+        byte[] good = withModbus(bytes("good"));
+        byte[] bad = withModbus(bytes("bad!"));
+        bad[bad.length - 1] ^= 0x01;
+        byte[] data = concat(new byte[]{(byte) bad.length}, bad, new byte[]{(byte) good.length}, good);
+        feed(decoder, data, 3, sink);
+        assertEquals(1, decoder.getChecksumErrorCount());
+        assertEquals(1, decoder.getFrameCount());
+        assertEquals(1, sink.frames.size());
+        assertEquals("good", sink.frames.get(0));
+    }
+
+    @Test
+    public void badSum8FrameIsDroppedAndCounted() {
+        FrameDecoder decoder = new DelimiterFrameDecoder(CRLF, 32, FrameChecksum.SUM8);
+        Frames sink = new Frames();
+        byte[] good = withSum8(bytes("good"));
+        byte[] bad = withSum8(bytes("bad!"));
+        bad[bad.length - 1]++;
+        feed(decoder, concat(bad, CRLF, good, CRLF), 4, sink);
+        assertEquals(1, decoder.getChecksumErrorCount());
+        assertEquals(1, sink.frames.size());
+        assertEquals("good", sink.frames.get(0));
+    }
+
+    @Test
+    public void checksumVectors() {
+        // "123456789"的标准校验值
+        byte[] check = bytes("123456789");
+        assertEquals(true, FrameChecksum.CRC16_MODBUS.verify(concat(check, new byte[]{0x37, 0x4B}), 0, 9));
+        assertEquals(true, FrameChecksum.CRC16_CCITT.verify(concat(check, new byte[]{0x29, (byte) 0xB1}), 0, 9));
+        assertEquals(false, FrameChecksum.CRC16_CCITT.verify(concat(check, new byte[]{(byte) 0xB1, 0x29}), 0, 9));
+    }
+
+    @Test
+    public void resetDropsPartialFrame() {
+        FrameDecoder decoder = new LengthFieldFrameDecoder(1, true, 0, 32, null);
+        Frames sink = new Frames();
+        feed(decoder, new byte[]{5, 'a', 'b'}, 3, sink);
+        decoder.reset();
+        feed(decoder, lengthFrame("fresh"), 2, sink);
+        assertEquals(1, sink.frames.size());
+        assertEquals("fresh", sink.frames.get(0));
+    }
+
+    @Test
+    public void resetClearsPendingDiscard() {
+        FrameDecoder decoder = new LengthFieldFrameDecoder(1, true, 0, 8, null);
+        Frames sink = new Frames();
+        feed(decoder, new byte[]{100, 'x', 'x'}, 3, sink);
+        decoder.reset();
+        feed(decoder, lengthFrame("ok"), 3, sink);
+        assertEquals(1, sink.frames.size());
+        assertEquals("ok", sink.frames.get(0));
+    }
+
+    @Test
+    public void assemblerResetsDecoderOnDisconnect() {
+        final List<String> frames = new ArrayList<>();
+        FrameAssembler assembler = new FrameAssembler(new FrameDecoder.Factory() {
+            @Override
+            public FrameDecoder create() {
+                return new DelimiterFrameDecoder(CRLF, 32, null);
+            }
+        }, new FrameAssembler.FrameListener() {
+            @Override
+            public void onFrame(String address, UUID uuid, byte[] buf, int offset, int length) {
+                frames.add(address + ":" + new String(buf, offset, length, ASCII));
+            }
+        });
+        UUID uuid = UUID.randomUUID();
+        String a = "00:11:22:33:44:55";
+        String b = "00:11:22:33:44:66";
+
+        assembler.onDataAvailable(a, uuid, bytes("stale"));
+        assembler.onDataAvailable(b, uuid, bytes("kept"));
+        assembler.onDisconnected(a);
+        assembler.onDataAvailable(a, uuid, bytes("new\r\n"));
+        assembler.onDataAvailable(b, uuid, bytes("\r\n"));
+
+        assertArrayEquals(new Object[]{a + ":new", b + ":kept"}, frames.toArray());
+    }
+}
@@ -0,0 +1,145 @@
+package com.ble.demo.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LeDispatcherTest {
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final UUID UUID_RX = UUID.randomUUID();
+
+    private LeDispatcher mDispatcher;
+
+    // 第一个事件阻塞到release()，之后记录收到的事件
+    private static class Recorder extends LeListener {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<String> events = new ArrayList<>();
+
+        private void record(String event) {
+            started.countDown();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            synchronized (events) {
+                events.add(event);
+            }
+        }
+
+        Object[] events() {
+            synchronized (events) {
+                return events.toArray();
+            }
+        }
+
+        @Override
+        public void onConnected(String address) {
+            record("connected");
+        }
+
+        @Override
+        public void onDisconnected(String address) {
+            record("disconnected");
+        }
+
+        @Override
+        public void onServicesDiscovered(String address) {
+            record("discovered");
+        }
+
+        @Override
+        public void onDataAvailable(String address, UUID uuid, byte[] data) {
+            record("data" + data[0]);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mDispatcher = new LeDispatcher(1);
+    }
+
+    @After
+    public void tearDown() {
+        mDispatcher.shutdown();
+    }
+
+    private static void awaitEvents(Recorder recorder, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (recorder.events().length < count) {
+            assertTrue("timeout", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void dropsOldestDataButKeepsStateEvents() throws InterruptedException {
+        Recorder recorder = new Recorder();
+        LeDispatcher.AsyncListener listener = mDispatcher.wrap(recorder, LeDispatcher.POLICY_DROP_OLDEST, 3);
+        listener.onConnected(ADDRESS);
+        assertTrue(recorder.started.await(5, TimeUnit.SECONDS));
+
+        listener.onDataAvailable(ADDRESS, UUID_RX, new byte[]{1});
+        listener.onServicesDiscovered(ADDRESS);
+        listener.onDataAvailable(ADDRESS, UUID_RX, new byte[]{2});
+        listener.onDataAvailable(ADDRESS, UUID_RX, new byte[]{3});
+        recorder.release.countDown();
+
+        awaitEvents(recorder, 4);
+        assertArrayEquals(new Object[]{"connected", "discovered", "data2", "data3"}, recorder.events());
+        assertEquals(1, listener.getDroppedCount());
+    }
+
+    @Test
+    public void fullOfStateEventsRejectsIncomingData() throws InterruptedException {
+        Recorder recorder = new Recorder();
+        LeDispatcher.AsyncListener listener = mDispatcher.wrap(recorder, LeDispatcher.POLICY_DROP_OLDEST, 2);
+        listener.onConnected(ADDRESS);
+        assertTrue(recorder.started.await(5, TimeUnit.SECONDS));
+
+        listener.onServicesDiscovered(ADDRESS);
+        listener.onDisconnected(ADDRESS);
+        listener.onDataAvailable(ADDRESS, UUID_RX, new byte[]{1});
+        assertEquals(1, listener.getDroppedCount());
+        recorder.release.countDown();
+
+        awaitEvents(recorder, 3);
+        assertArrayEquals(new Object[]{"connected", "discovered", "disconnected"}, recorder.events());
+    }
+
+    @Test
+    public void fullOfStateEventsBlocksIncomingStateEvent() throws InterruptedException {
+        final Recorder recorder = new Recorder();
+        final LeDispatcher.AsyncListener listener = mDispatcher.wrap(recorder, LeDispatcher.POLICY_DROP_OLDEST, 1);
+        listener.onConnected(ADDRESS);
+        assertTrue(recorder.started.await(5, TimeUnit.SECONDS));
+        listener.onServicesDiscovered(ADDRESS);
+
+        Thread poster = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                listener.onDisconnected(ADDRESS);
+            }
+        });
+        poster.start();
+        poster.join(100);
+        assertTrue("should wait for space", poster.isAlive());
+
+        recorder.release.countDown();
+        poster.join(5000);
+        awaitEvents(recorder, 3);
+        assertArrayEquals(new Object[]{"connected", "discovered", "disconnected"}, recorder.events());
+        assertEquals(0, listener.getDroppedCount());
+    }
+}
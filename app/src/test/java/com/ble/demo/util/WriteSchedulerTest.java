@@ -0,0 +1,129 @@
+package com.ble.demo.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WriteSchedulerTest {
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final UUID SERVICE = UUID.randomUUID();
+    private static final UUID CHAR = UUID.randomUUID();
+
+    private ScheduledExecutorService mExecutor;
+    private Recorder mWriter;
+    private WriteScheduler mScheduler;
+
+    // 记录写入的第一个字节，检查写入时是否持有锁
+    private class Recorder implements WriteScheduler.Writer {
+        final List<Integer> written = new ArrayList<>();
+        boolean heldLock;
+
+        @Override
+        public synchronized boolean write(String address, UUID serUuid, UUID charUuid, byte[] data, boolean noResponse) {
+            if (Thread.holdsLock(mScheduler)) heldLock = true;
+            written.add((int) data[0]);
+            return true;
+        }
+
+        synchronized Object[] take() {
+            Object[] out = written.toArray();
+            written.clear();
+            return out;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mExecutor = Executors.newSingleThreadScheduledExecutor();
+        mWriter = new Recorder();
+        mScheduler = new WriteScheduler(ADDRESS, mWriter, mExecutor);
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+    }
+
+    private WriteHandle send(int n) {
+        return mScheduler.enqueue(SERVICE, CHAR, new byte[]{(byte) n}, true);
+    }
+
+    private void complete(boolean success) {
+        mScheduler.onWriteComplete(CHAR, success ? 0 : 133, success);
+    }
+
+    @Test
+    public void writesOutsideLock() {
+        mScheduler.setWindow(4);
+        for (int i = 0; i < 4; i++) send(i);
+        assertArrayEquals(new Object[]{0, 1, 2, 3}, mWriter.take());
+        assertFalse(mWriter.heldLock);
+    }
+
+    @Test
+    public void failureResendsInFlightInOrder() {
+        mScheduler.setWindow(3);
+        WriteHandle[] handles = new WriteHandle[4];
+        for (int i = 0; i < 4; i++) handles[i] = send(i);
+        assertArrayEquals(new Object[]{0, 1, 2}, mWriter.take());
+
+        // 0失败：0、1、2按原顺序重发，但要先丢弃1、2迟到的回调
+        complete(false);
+        assertArrayEquals(new Object[0], mWriter.take());
+        complete(true);
+        assertArrayEquals(new Object[0], mWriter.take());
+        assertFalse(handles[1].isDone());
+        complete(true);
+        assertArrayEquals(new Object[]{0, 1, 2}, mWriter.take());
+
+        for (int i = 0; i < 4; i++) complete(true);
+        assertArrayEquals(new Object[]{3}, mWriter.take());
+        for (WriteHandle handle : handles) assertTrue(handle.isSuccess());
+        assertEquals(0, mScheduler.getPendingCount());
+    }
+
+    @Test
+    public void lateCompletionAfterTimeoutIsNotCreditedToNextOp() throws InterruptedException {
+        mScheduler.setTimeout(200);
+        WriteHandle first = send(1);
+        WriteHandle second = send(2);
+        assertArrayEquals(new Object[]{1}, mWriter.take());
+
+        // 1超时后重发，之前的回调迟到
+        Thread.sleep(300);
+        complete(true);
+        assertFalse(first.isDone());
+        assertFalse(second.isDone());
+        assertArrayEquals(new Object[]{1}, mWriter.take());
+
+        complete(true);
+        assertTrue(first.isSuccess());
+        assertFalse(second.isDone());
+        assertArrayEquals(new Object[]{2}, mWriter.take());
+        complete(true);
+        assertTrue(second.isSuccess());
+    }
+
+    @Test
+    public void exhaustedRetriesFailOnlyThatOp() {
+        mScheduler.setMaxRetries(0);
+        WriteHandle first = send(1);
+        WriteHandle second = send(2);
+        complete(false);
+        assertEquals(WriteHandle.STATE_FAILED, first.getState());
+        complete(true);
+        assertTrue(second.isSuccess());
+        assertArrayEquals(new Object[]{1, 2}, mWriter.take());
+    }
+}